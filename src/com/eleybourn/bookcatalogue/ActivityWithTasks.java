@@ -54,6 +54,13 @@ abstract public class ActivityWithTasks extends Activity {
 		mTaskManager = new TaskManager(this);
 	}
 
+	/**
+	 * Get the TaskManager for this activity; eg. for a SearchManager.
+	 */
+	public TaskManager getTaskManager() {
+		return mTaskManager;
+	}
+
 	private class NonConfigInstance {
 		TaskManager taskManager = mTaskManager;
 		Hashtable<String,Object> extra = new Hashtable<String,Object>();
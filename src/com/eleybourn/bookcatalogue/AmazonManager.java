@@ -5,7 +5,6 @@ import java.net.URL;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import org.xml.sax.SAXException;
 
@@ -34,15 +33,14 @@ public class AmazonManager {
 		}
 		URL url;
 		
-		SAXParserFactory factory = SAXParserFactory.newInstance();
 		SAXParser parser;
 		SearchAmazonHandler handler = new SearchAmazonHandler(bookData, fetchThumbnail);
 
 		try {
 			url = new URL(path);
-			parser = factory.newSAXParser();
+			parser = Utils.getSaxParser();
 			// We can't Toast anything here, so let exceptions fall through.
-			parser.parse(Utils.getInputStream(url), handler);
+			Utils.parseUrl(parser, url, handler);
 		} catch (MalformedURLException e) {
 			Logger.logError(e);
 		} catch (ParserConfigurationException e) {
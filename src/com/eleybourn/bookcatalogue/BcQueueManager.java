@@ -40,18 +40,22 @@ import net.philipwarner.taskqueue.QueueManager;
 public class BcQueueManager extends QueueManager {
 	public static final String QUEUE_MAIN = "main";
 	public static final String QUEUE_SMALL_JOBS = "small_jobs";
+	public static final String QUEUE_COVERS = "covers";
 
 	public static final long CAT_LEGACY = 1;
 	public static final long CAT_GOODREADS_AUTH = 2;
 	public static final long CAT_GOODREADS_IMPORT_ALL = 3;
 	public static final long CAT_GOODREADS_EXPORT_ALL = 4;
 	public static final long CAT_GOODREADS_EXPORT_ONE = 5;
+	public static final long CAT_COVER_CACHE = 6;
+	public static final long CAT_GOODREADS_COVERS = 7;
 	
 	/**
 	 * Create the queue we need, if they do not already exist.
 	 * 
 	 * main: long-running tasks, or tasks that can just wait
 	 * small_jobs: trivial background tasks that will only take a few seconds.
+	 * covers: low priority cover cache work that must not hold up the other queues.
 	 */
 	@Override
     public void onCreate() {
@@ -59,6 +63,7 @@ public class BcQueueManager extends QueueManager {
 
 		initializeQueue(QUEUE_MAIN);
 		initializeQueue(QUEUE_SMALL_JOBS);
+		initializeQueue(QUEUE_COVERS);
 	}
 
 	/**
@@ -0,0 +1,441 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.Build;
+
+/**
+ * Pool of bitmaps and decode buffers used when decoding thumbnails, to reduce garbage collection
+ * while scrolling long lists.
+ *
+ * Bitmaps are only added to the pool by code that would otherwise have recycled them; the pool
+ * then owns them. Reuse takes two forms:
+ *
+ * - as the target for scaling (see scale()); this works on all versions since it only needs a
+ *   mutable bitmap of the right size.
+ * - as BitmapFactory.Options.inBitmap when decoding; this needs Android 3.0, and before 4.4 the
+ *   bitmap must be exactly the decoded size and inSampleSize must be 1. Since the app is built
+ *   for older versions, the relevant fields and methods are found by reflection.
+ *
+ * Bitmaps are bucketed by size; before 4.4 only an exact match is used, from 4.4 onwards any
+ * pooled bitmap that is large enough is reconfigured.
+ *
+ * @author Philip Warner
+ */
+public class BitmapPool {
+	/** Size of decode buffers; as recommended for BitmapFactory.Options.inTempStorage */
+	private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+	/** Maximum number of decode buffers to keep */
+	private static final int MAX_TEMP_STORAGE = 4;
+	/** Maximum number of bitmaps to keep */
+	private static final int MAX_BITMAPS = 24;
+	/** Maximum total size of pooled bitmaps */
+	private static final long MAX_POOL_BYTES = 4 * 1024 * 1024;
+
+	private static final int HONEYCOMB = 11;
+	private static final int KITKAT = 19;
+
+	/** Pooled bitmaps, most recently released at the end */
+	private static final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+	/** Total size of mBitmaps */
+	private static long mPoolBytes = 0;
+	/** Pooled decode buffers */
+	private static final ArrayList<byte[]> mTempStorage = new ArrayList<byte[]>();
+
+	// Statistics
+	private static long mHits = 0;
+	private static long mMisses = 0;
+	private static long mBytesReused = 0;
+	private static long mReleased = 0;
+	private static long mDiscarded = 0;
+	private static long mDecodeFallbacks = 0;
+	private static long mBufferHits = 0;
+	private static long mBufferAllocs = 0;
+
+	/** Reflected API; null if not available on this device */
+	private static final Field mInBitmapField;
+	private static final Field mInMutableField;
+	private static final Method mReconfigureMethod;
+	private static final Method mAllocationByteCountMethod;
+
+	/** Paint used for scaling; only used with the lock held */
+	private static final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private static final Matrix mScaleMatrix = new Matrix();
+
+	static {
+		Field inBitmap = null;
+		Field inMutable = null;
+		Method reconfigure = null;
+		Method allocationByteCount = null;
+		final int sdk = Build.VERSION.SDK_INT;
+		try {
+			if (sdk >= HONEYCOMB) {
+				inBitmap = BitmapFactory.Options.class.getField("inBitmap");
+				inMutable = BitmapFactory.Options.class.getField("inMutable");
+			}
+			if (sdk >= KITKAT) {
+				reconfigure = Bitmap.class.getMethod("reconfigure", int.class, int.class, Bitmap.Config.class);
+				allocationByteCount = Bitmap.class.getMethod("getAllocationByteCount");
+			}
+		} catch (Exception e) {
+			// Not supported; we just do less
+			inBitmap = null;
+			inMutable = null;
+			reconfigure = null;
+			allocationByteCount = null;
+		}
+		mInBitmapField = inBitmap;
+		mInMutableField = inMutable;
+		mReconfigureMethod = reconfigure;
+		mAllocationByteCountMethod = allocationByteCount;
+	}
+
+	/**
+	 * Check if decoding into an existing bitmap is supported on this device.
+	 */
+	public static boolean canDecodeIntoBitmap() {
+		return mInBitmapField != null;
+	}
+
+	/**
+	 * Get a decode buffer for BitmapFactory.Options.inTempStorage. Return it with releaseTempStorage().
+	 */
+	public static byte[] obtainTempStorage() {
+		synchronized(mTempStorage) {
+			final int n = mTempStorage.size();
+			if (n > 0) {
+				mBufferHits++;
+				return mTempStorage.remove(n - 1);
+			}
+			mBufferAllocs++;
+		}
+		return new byte[TEMP_STORAGE_SIZE];
+	}
+
+	/**
+	 * Return a decode buffer to the pool.
+	 */
+	public static void releaseTempStorage(byte[] buffer) {
+		if (buffer == null || buffer.length != TEMP_STORAGE_SIZE)
+			return;
+		synchronized(mTempStorage) {
+			if (mTempStorage.size() < MAX_TEMP_STORAGE)
+				mTempStorage.add(buffer);
+		}
+	}
+
+	/**
+	 * Set up decode options for a decode of the passed final size: use a pooled buffer and,
+	 * where supported, a pooled bitmap. Call finishDecode() after decoding.
+	 *
+	 * @param opt			Options to set up; inSampleSize must already be set
+	 * @param width			Width of decoded image
+	 * @param height		Height of decoded image
+	 */
+	public static void prepareDecode(BitmapFactory.Options opt, int width, int height) {
+		opt.inTempStorage = obtainTempStorage();
+		if (mInBitmapField == null)
+			return;
+		try {
+			// Make the result poolable
+			mInMutableField.setBoolean(opt, true);
+			// Before 4.4, inBitmap only works without subsampling
+			if (mReconfigureMethod != null || opt.inSampleSize <= 1) {
+				final Bitmap.Config config = (opt.inPreferredConfig == null ? Bitmap.Config.ARGB_8888 : opt.inPreferredConfig);
+				Bitmap bm = get(width, height, config, false);
+				if (bm != null)
+					mInBitmapField.set(opt, bm);
+			}
+		} catch (Exception e) {
+			// Ignore; just decode normally
+		}
+	}
+
+	/**
+	 * Tidy up after a decode set up by prepareDecode().
+	 *
+	 * @param opt		Options used
+	 * @param result	Result of decode, or null if it failed
+	 */
+	public static void finishDecode(BitmapFactory.Options opt, Bitmap result) {
+		releaseTempStorage(opt.inTempStorage);
+		opt.inTempStorage = null;
+		if (mInBitmapField == null)
+			return;
+		try {
+			Bitmap reused = (Bitmap)mInBitmapField.get(opt);
+			if (reused != null) {
+				mInBitmapField.set(opt, null);
+				if (reused != result) {
+					// Decoder could not use it; put it back
+					synchronized(mBitmaps) {
+						mDecodeFallbacks++;
+					}
+					release(reused);
+				}
+			}
+		} catch (Exception e) {
+			// Ignore
+		}
+	}
+
+	/**
+	 * Decode a byte array using pooled buffers and bitmaps where possible.
+	 *
+	 * @param bytes		Encoded image
+	 * @param opt		Options; bounds are decoded if not already known
+	 *
+	 * @return	Bitmap, or null
+	 */
+	public static Bitmap decodeByteArray(byte[] bytes, BitmapFactory.Options opt) {
+		if (opt.outWidth <= 0 || opt.outHeight <= 0) {
+			opt.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+			opt.inJustDecodeBounds = false;
+		}
+		if (opt.outWidth <= 0 || opt.outHeight <= 0)
+			return null;
+		final int sample = Math.max(1, opt.inSampleSize);
+		prepareDecode(opt, (opt.outWidth + sample - 1) / sample, (opt.outHeight + sample - 1) / sample);
+		Bitmap bm = null;
+		try {
+			bm = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+		} catch (IllegalArgumentException e) {
+			// Pooled bitmap was not suitable after all; try without it.
+			finishDecode(opt, null);
+			opt.inTempStorage = obtainTempStorage();
+			bm = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+		} finally {
+			finishDecode(opt, bm);
+		}
+		return bm;
+	}
+
+	/**
+	 * Decode a file using pooled buffers and bitmaps where possible.
+	 *
+	 * @param filename	File to decode
+	 * @param opt		Options, with bounds already decoded
+	 *
+	 * @return	Bitmap, or null
+	 */
+	public static Bitmap decodeFile(String filename, BitmapFactory.Options opt) {
+		final int sample = Math.max(1, opt.inSampleSize);
+		prepareDecode(opt, (opt.outWidth + sample - 1) / sample, (opt.outHeight + sample - 1) / sample);
+		Bitmap bm = null;
+		try {
+			bm = BitmapFactory.decodeFile(filename, opt);
+		} catch (IllegalArgumentException e) {
+			finishDecode(opt, null);
+			opt.inTempStorage = obtainTempStorage();
+			bm = BitmapFactory.decodeFile(filename, opt);
+		} finally {
+			finishDecode(opt, bm);
+		}
+		return bm;
+	}
+
+	/**
+	 * Scale a bitmap into a (possibly pooled) bitmap. The source is not released.
+	 *
+	 * @param source	Bitmap to scale
+	 * @param ratio		Scale factor
+	 *
+	 * @return	Scaled bitmap
+	 */
+	public static Bitmap scale(Bitmap source, float ratio) {
+		final int width = Math.max(1, Math.round(source.getWidth() * ratio));
+		final int height = Math.max(1, Math.round(source.getHeight() * ratio));
+		final Bitmap.Config config = (source.getConfig() == null ? Bitmap.Config.ARGB_8888 : source.getConfig());
+		Bitmap target = get(width, height, config, true);
+		if (target == null)
+			target = Bitmap.createBitmap(width, height, config);
+		else
+			target.eraseColor(0);
+		synchronized(mScaleMatrix) {
+			mScaleMatrix.setScale((float)width / source.getWidth(), (float)height / source.getHeight());
+			new Canvas(target).drawBitmap(source, mScaleMatrix, mScalePaint);
+		}
+		return target;
+	}
+
+	/**
+	 * Get a pooled bitmap suitable for the passed size, removing it from the pool.
+	 *
+	 * @param width			Required width
+	 * @param height		Required height
+	 * @param config		Required config
+	 * @param forDrawing	If true, the bitmap will be drawn into so need not be decodable into
+	 *
+	 * @return	Bitmap, or null if none suitable
+	 */
+	private static Bitmap get(int width, int height, Bitmap.Config config, boolean forDrawing) {
+		final long needed = (long)width * height * bytesPerPixel(config);
+		synchronized(mBitmaps) {
+			Bitmap found = null;
+			// Look for an exact match first, most recent first
+			ListIterator<Bitmap> i = mBitmaps.listIterator(mBitmaps.size());
+			while (i.hasPrevious()) {
+				Bitmap bm = i.previous();
+				if (bm.getWidth() == width && bm.getHeight() == height && bm.getConfig() == config) {
+					found = bm;
+					i.remove();
+					break;
+				}
+			}
+			// From 4.4 any large enough bitmap can be reconfigured
+			if (found == null && mReconfigureMethod != null) {
+				i = mBitmaps.listIterator(mBitmaps.size());
+				while (i.hasPrevious()) {
+					Bitmap bm = i.previous();
+					if (allocationSize(bm) >= needed) {
+						try {
+							mReconfigureMethod.invoke(bm, width, height, config);
+							found = bm;
+							i.remove();
+						} catch (Exception e) {
+							// Leave it in the pool
+						}
+						break;
+					}
+				}
+			}
+			if (found == null) {
+				mMisses++;
+				return null;
+			}
+			mPoolBytes -= allocationSize(found);
+			mHits++;
+			mBytesReused += needed;
+			return found;
+		}
+	}
+
+	/**
+	 * Give a bitmap to the pool. The caller must not use it afterwards. If it can not be pooled
+	 * it is recycled.
+	 *
+	 * @param bm	Bitmap no longer in use
+	 */
+	public static void release(Bitmap bm) {
+		if (bm == null || bm.isRecycled())
+			return;
+		if (!bm.isMutable()) {
+			synchronized(mBitmaps) {
+				mDiscarded++;
+			}
+			bm.recycle();
+			return;
+		}
+		final long size = allocationSize(bm);
+		synchronized(mBitmaps) {
+			if (mBitmaps.contains(bm))
+				return;
+			mReleased++;
+			mBitmaps.addLast(bm);
+			mPoolBytes += size;
+			// Drop the oldest entries if we are over the limits
+			while (mBitmaps.size() > MAX_BITMAPS || mPoolBytes > MAX_POOL_BYTES) {
+				Bitmap old = mBitmaps.removeFirst();
+				mPoolBytes -= allocationSize(old);
+				mDiscarded++;
+				old.recycle();
+			}
+		}
+	}
+
+	/**
+	 * Empty the pool, eg. when memory is low.
+	 */
+	public static void clear() {
+		synchronized(mBitmaps) {
+			for(Bitmap bm : mBitmaps)
+				bm.recycle();
+			mBitmaps.clear();
+			mPoolBytes = 0;
+		}
+		synchronized(mTempStorage) {
+			mTempStorage.clear();
+		}
+	}
+
+	/**
+	 * Get a summary of pool usage, for debugging.
+	 */
+	public static String getStatistics() {
+		StringBuilder sb = new StringBuilder();
+		synchronized(mBitmaps) {
+			sb.append("Bitmap pool: hits=").append(mHits)
+				.append(", misses=").append(mMisses)
+				.append(", allocations avoided=").append(mHits)
+				.append(" (").append(mBytesReused / 1024).append("KB)")
+				.append(", released=").append(mReleased)
+				.append(", discarded=").append(mDiscarded)
+				.append(", decode fallbacks=").append(mDecodeFallbacks)
+				.append(", pooled=").append(mBitmaps.size())
+				.append(" (").append(mPoolBytes / 1024).append("KB)");
+		}
+		synchronized(mTempStorage) {
+			sb.append("; buffers: hits=").append(mBufferHits)
+				.append(", allocated=").append(mBufferAllocs);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Number of bitmap allocations avoided by reuse.
+	 */
+	public static long getAllocationsAvoided() {
+		synchronized(mBitmaps) {
+			return mHits;
+		}
+	}
+
+	private static long allocationSize(Bitmap bm) {
+		if (mAllocationByteCountMethod != null) {
+			try {
+				return ((Integer)mAllocationByteCountMethod.invoke(bm)).longValue();
+			} catch (Exception e) {
+				// Fall through
+			}
+		}
+		return (long)bm.getRowBytes() * bm.getHeight();
+	}
+
+	private static int bytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8)
+			return 1;
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+			return 2;
+		return 4;
+	}
+}
@@ -1,7 +1,7 @@
 /*
  * @copyright 2011 Philip Warner
  * @license GNU General Public License
- * 
+ *
  * This file is part of Book Catalogue.
  *
  * Book Catalogue is free software: you can redistribute it and/or modify
@@ -20,176 +20,267 @@
 
 package com.eleybourn.bookcatalogue;
 
+import java.util.ArrayList;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Based loosely on LinkedBlockingQueue. Ideally we would use BlockingDeque but that is only
- * available in Android 2.3.
- * 
- * A much-simplified blocking stack that satisfies the need of this application. Should be 
- * replaceable with BlockingDeque when we set the min. version requirement to 2.3!
- * 
+ * A lock-free blocking stack. Ideally we would use BlockingDeque but that is only available
+ * in Android 2.3, and it is not lock-free anyway.
+ *
+ * push() and poll() are a Treiber stack: a singly linked list whose head is swapped with
+ * compareAndSet. Each pushed object is wrapped in an Entry which is returned to the caller;
+ * removing via the Entry just marks it dead (a tombstone) in O(1), and dead entries are
+ * skipped and unlinked by poll() when they reach the top of the stack. An Entry is claimed
+ * exactly once, either by a consumer or by a remove, so the two can not both get it.
+ *
+ * Consumers that need to wait in pop() park on a Condition. The lock is only used on that
+ * slow path: push() only takes it when it sees there is a waiting consumer.
+ *
+ * getElements() and remove(T) walk the list so are O(n), but do not block other threads.
+ *
  * @author Philip Warner
  * @param <T>
  */
 public class BlockingStack<T> {
-	// Underlying stack object
-	private Stack<T> mStack;
-	// Lock help by pop and by push when an item was added to an empty stack.
-	private final ReentrantLock mPopLock = new ReentrantLock();
-	// Signal for available items
-	private final Condition mNotEmpty = mPopLock.newCondition();
-
-	// Lock held by push(). Probably not needed since we sync on mStack...
-	private final ReentrantLock mPushLock = new ReentrantLock();
-
-	BlockingStack() {
-		mStack = new Stack<T>();
+	/** Entry state: in the stack */
+	private static final int LIVE = 0;
+	/** Entry state: taken by a consumer or removed */
+	private static final int DEAD = 1;
+
+	/**
+	 * Handle for a pushed object, used to remove it in O(1).
+	 *
+	 * @author Philip Warner
+	 * @param <T>
+	 */
+	public static final class Entry<T> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<Entry> mStateUpdater = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "mState");
+
+		private final BlockingStack<T> mOwner;
+		private final T mItem;
+		private volatile int mState = LIVE;
+
+		private Entry(BlockingStack<T> owner, T item) {
+			mOwner = owner;
+			mItem = item;
+		}
+
+		/**
+		 * @return	the pushed object
+		 */
+		public T getItem() {
+			return mItem;
+		}
+
+		/**
+		 * @return	true if the object has not yet been taken or removed
+		 */
+		public boolean isLive() {
+			return mState == LIVE;
+		}
+
+		/**
+		 * Remove the object from the stack if it has not already been taken.
+		 *
+		 * @return	true if this call removed it
+		 */
+		public boolean remove() {
+			if (!claim())
+				return false;
+			mOwner.mSize.decrementAndGet();
+			mOwner.trimHead();
+			return true;
+		}
+
+		/**
+		 * Mark the entry as dead.
+		 *
+		 * @return	true if this call changed the state
+		 */
+		private boolean claim() {
+			return mStateUpdater.compareAndSet(this, LIVE, DEAD);
+		}
+	}
+
+	/**
+	 * List node. Never reused, so there is no ABA problem with compareAndSet on the head.
+	 *
+	 * @author Philip Warner
+	 * @param <T>
+	 */
+	private static final class Node<T> {
+		final Entry<T> entry;
+		Node<T> next;
+		Node(Entry<T> entry) {
+			this.entry = entry;
+		}
+	}
+
+	/** Top of the stack */
+	private final AtomicReference<Node<T>> mHead = new AtomicReference<Node<T>>();
+	/** Number of live entries */
+	private final AtomicInteger mSize = new AtomicInteger();
+	/** Number of consumers waiting in pop() */
+	private final AtomicInteger mWaiters = new AtomicInteger();
+	/** Lock used only by waiting consumers and the producers that wake them */
+	private final ReentrantLock mWaitLock = new ReentrantLock();
+	/** Signal for available items */
+	private final Condition mNotEmpty = mWaitLock.newCondition();
+
+	public BlockingStack() {
 	}
 
 	/**
 	 * Get the size of the stack
 	 */
 	public int size() {
-		return mStack.size();
+		return mSize.get();
 	}
 
 	/**
-	 * Remove the passed element, if present.
+	 * Remove the passed element, if present. Has to search the stack; use Entry.remove()
+	 * where possible.
 	 */
 	public boolean remove(T o) {
-		synchronized(mStack) {
-			return mStack.remove(o);
+		for(Node<T> n = mHead.get(); n != null; n = n.next) {
+			final Entry<T> e = n.entry;
+			if (e.isLive() && (o == null ? e.mItem == null : o.equals(e.mItem)) && e.remove())
+				return true;
 		}
+		return false;
 	}
-	
+
 	/**
 	 * Return a copy of all elements for safe examination. Obviously this
 	 * collection will not reflect reality for very long, but is safe to
-	 * iterate etc.
-	 * 
+	 * iterate etc. As with java.util.Stack, the first element is the bottom
+	 * of the stack.
+	 *
 	 * @return
 	 */
 	public Stack<T> getElements() {
-		Stack<T> copy = new Stack<T>();
-		synchronized(mStack) {
-			for(T o : mStack) {
-				copy.add(o);
-			}
+		ArrayList<T> top = new ArrayList<T>();
+		for(Node<T> n = mHead.get(); n != null; n = n.next) {
+			if (n.entry.isLive())
+				top.add(n.entry.mItem);
 		}
+		Stack<T> copy = new Stack<T>();
+		for(int i = top.size() - 1; i >= 0; i--)
+			copy.add(top.get(i));
 		return copy;
 	}
+
 	/**
-	 * Add an object to the stack and signal
-	 * 
+	 * Add an object to the stack and signal any waiting consumer.
+	 *
 	 * @param object		Object to add
-	 * 
-	 * @throws InterruptedException
+	 *
+	 * @return	Entry that can be used to remove the object
 	 */
-	void push(T object) throws InterruptedException {
-		final ReentrantLock pushLock = this.mPushLock;
-
-		// This will hold the original stack size, before push.
-		int origSize;
-
-		// Make sure we are the only 'pusher' here.
-		pushLock.lockInterruptibly();
-		try {
-			// Add the object and get the size of the current stack
-			// we 'synchronize' because it is not at all clear that 
-			// push and pop can be done concurrently (unlike the
-			// linked list versions of queues).
-			synchronized(mStack) {
-				origSize = mStack.size();
-				mStack.push(object);
-			}
-		} finally {
-			pushLock.unlock();
+	public Entry<T> push(T object) {
+		final Entry<T> e = new Entry<T>(this, object);
+		final Node<T> n = new Node<T>(e);
+		// Count it first so size() never goes negative when a consumer takes it straight away.
+		mSize.incrementAndGet();
+		while (true) {
+			final Node<T> head = mHead.get();
+			n.next = head;
+			if (mHead.compareAndSet(head, n))
+				break;
 		}
-		if (origSize == 0) {
-			// It was an empty stack; signal that it has some objects now.
-			// But we need to take the popLock because the pop code also
-			// messes with this.
-			final ReentrantLock popLock = mPopLock;
-			popLock.lock();
+		// A consumer increments mWaiters before its final poll(), so either it sees this
+		// object or we see it waiting.
+		if (mWaiters.get() > 0) {
+			final ReentrantLock lock = mWaitLock;
+			lock.lock();
 			try {
 				mNotEmpty.signal();
 			} finally {
-				popLock.unlock();
-			}			
-		}			
+				lock.unlock();
+			}
+		}
+		return e;
 	}
 
 	/**
 	 * Remove an object from the stack, wait if none.
-	 * 
-	 * @return
+	 *
+	 * @param waitMilliseconds	Maximum time to wait; 0 or less to wait forever
+	 *
+	 * @return	Object, or null if the time limit was reached
+	 *
 	 * @throws InterruptedException
 	 */
-	T pop(long waitMilliseconds) throws InterruptedException {
-		final ReentrantLock popLock = mPopLock;
+	public T pop(long waitMilliseconds) throws InterruptedException {
+		// Fast path
+		T o = poll();
+		if (o != null)
+			return o;
 
-		T o;
-		boolean noTimeLimit = (waitMilliseconds <= 0);
-		// Make sure we are the only popper.
-		popLock.lockInterruptibly();
+		final boolean noTimeLimit = (waitMilliseconds <= 0);
+		long nanos = TimeUnit.MILLISECONDS.toNanos(waitMilliseconds);
+		final ReentrantLock lock = mWaitLock;
+		lock.lockInterruptibly();
+		mWaiters.incrementAndGet();
 		try {
-			o = poll();
-			// If none left, wait for another thread to signal.
-			while (o == null) {
+			while (true) {
+				o = poll();
+				if (o != null) {
+					// If there are more, let another waiter have a go.
+					if (mSize.get() > 0)
+						mNotEmpty.signal();
+					return o;
+				}
 				// Wait for the notEmpty condition, or until timeout if one was specified
-				if (noTimeLimit)
+				if (noTimeLimit) {
 					mNotEmpty.await();
-				else {
-					waitMilliseconds = mNotEmpty.awaitNanos(TimeUnit.MILLISECONDS.toNanos(waitMilliseconds));
-					if (waitMilliseconds <= 0) // Ran out of time
-						break;
+				} else {
+					if (nanos <= 0) // Ran out of time
+						return null;
+					nanos = mNotEmpty.awaitNanos(nanos);
 				}
-				// Try getting an object
-				o = poll();
-			};
-
+			}
 		} finally {
-			popLock.unlock();
+			mWaiters.decrementAndGet();
+			lock.unlock();
 		}
-		return o;
 	}
 
 	/**
-	 * Return an object if available, otherwise null.
-	 * 
+	 * Return an object if available, otherwise null. Never blocks.
+	 *
 	 * @return	Object
-	 * 
-	 * @throws InterruptedException
 	 */
-	T poll() throws InterruptedException {
-		final ReentrantLock popLock = mPopLock;
-
-		T o = null;
-		// Make sure we are the only popper.
-		popLock.lockInterruptibly();
-		try {
-			int count;
-			// Get the current size
-			synchronized(mStack) {
-				count = mStack.size();
-				// If any present, we know no-one will delete (we are the popper) so get it.
-				if (count > 0) {
-					// Pop an item
-					o = mStack.pop();
+	public T poll() {
+		while (true) {
+			final Node<T> head = mHead.get();
+			if (head == null)
+				return null;
+			if (mHead.compareAndSet(head, head.next)) {
+				// We unlinked it; if it was not already removed, it is ours.
+				if (head.entry.claim()) {
+					mSize.decrementAndGet();
+					return head.entry.mItem;
 				}
 			}
-			// If, after popping, there would be more left, resignal.
-			if (count > 1)
-				mNotEmpty.signal();					
+		}
+	}
 
-		} finally {
-			popLock.unlock();
+	/**
+	 * Unlink removed entries from the top of the stack so they can be collected. Entries
+	 * further down are unlinked by poll() when they get to the top.
+	 */
+	private void trimHead() {
+		Node<T> head;
+		while ( (head = mHead.get()) != null && !head.entry.isLive()) {
+			mHead.compareAndSet(head, head.next);
 		}
-		return o;
 	}
 }
-
@@ -106,6 +106,15 @@ public class BookCatalogueApp extends Application {
 		super.onCreate();
 	}
 
+	/**
+	 * Release pooled memory when the system is short.
+	 */
+	@Override
+	public void onLowMemory() {
+		BitmapPool.clear();
+		super.onLowMemory();
+	}
+
 	/**
 	 * Check if sqlite unicode collation is broken (ie. case sensitive); cache the result.
 	 * This bug was introduced in ICS and present in 4.0-4.0.3, at least.
@@ -274,6 +283,8 @@ public class BookCatalogueApp extends Application {
 		public static final String PREF_SHOW_ALL_SERIES = "APP.ShowAllSeries";
 		public static final String PREF_DISPLAY_FIRST_THEN_LAST_NAMES = "APP.DisplayFirstThenLast";
 		public static final String PREF_BOOKLIST_STYLE = "APP.BooklistStyle";
+		public static final String PREF_USE_COVER_PACK = "APP.UseCoverPack";
+		public static final String PREF_SEQUENTIAL_TITLE_SEARCH = "APP.SequentialTitleSearch";
 
 		/** Get startup activity preference */
 		public boolean getStartInMyBook() {
@@ -332,7 +332,7 @@ public class BookEditAnthology extends ListActivity {
 			url = new URL(path);
 			parser = factory.newSAXParser();
 			try {
-				parser.parse(Utils.getInputStream(url), handler);
+				Utils.parseUrl(parser, url, handler);
 			} catch (RuntimeException e) {
 				Toast.makeText(this, R.string.automatic_population_failed, Toast.LENGTH_LONG).show();
 				Logger.logError(e);
@@ -346,7 +346,7 @@ public class BookEditAnthology extends ListActivity {
 				url = new URL(basepath + links[i]);
 				parser = factory.newSAXParser();
 				try {
-					parser.parse(Utils.getInputStream(url), entryHandler);
+					Utils.parseUrl(parser, url, entryHandler);
 					ArrayList<String> titles = entryHandler.getList();
 					/* Display the confirm dialog */
 					if (titles.size() > 0) {
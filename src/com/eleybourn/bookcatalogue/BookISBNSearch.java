@@ -417,6 +417,8 @@ public class BookISBNSearch extends ActivityWithTasks {
 				// Start the lookup in background.
 				//mTaskManager.doProgress("Searching");
 				mSearchManager = new SearchManager(mTaskManager, mSearchHandler);
+				// The user is waiting; if a site is being slow and the book has been found, do not wait for it.
+				mSearchManager.setHedgePercentile(0.9);
 				mSearchManager.search(mAuthor, mTitle, mIsbn, true, SearchManager.SEARCH_ALL);
 				// reset the details so we don't restart the search unnecessarily
 				mAuthor = "";
@@ -32,6 +32,7 @@ import com.eleybourn.bookcatalogue.booklist.BooklistBuilder.BookRowInfo;
 import com.eleybourn.bookcatalogue.booklist.BooklistCursor;
 import com.eleybourn.bookcatalogue.booklist.BooklistPreferencesActivity;
 import com.eleybourn.bookcatalogue.booklist.BooklistPseudoCursor;
+import com.eleybourn.bookcatalogue.booklist.BooklistRowView;
 import com.eleybourn.bookcatalogue.booklist.BooklistStyle;
 import com.eleybourn.bookcatalogue.booklist.BooklistStylePropertiesActivity;
 import com.eleybourn.bookcatalogue.booklist.BooklistStyles;
@@ -123,6 +124,8 @@ public class BooksOnBookshelf extends ListActivity implements BooklistChangeList
 	private BooklistPseudoCursor mList;
 	/** Multi-type adapter to manage list connection to cursor */
 	private MultitypeListAdapter mAdapter;
+	/** Prefetcher to warm cover caches ahead of scrolling; null if thumbnails not shown */
+	private ThumbnailPrefetcher mPrefetcher = null;
 	/** Task queue to get book lists in background */
 	private SimpleTaskQueue mTaskQueue = new SimpleTaskQueue("BoB-List", 1);
 	/** Preferred booklist state in next rebuild */
@@ -558,6 +561,26 @@ public class BooksOnBookshelf extends ListActivity implements BooklistChangeList
 			//}
 		}
 
+		// Replace the cover prefetcher; the old one refers to the old list.
+		if (mPrefetcher != null)
+			mPrefetcher.close();
+		final int prefetch = BooklistPreferencesActivity.getCoverPrefetch();
+		if (mList.getBuilder().getStyle().showThumbnails() && prefetch != BooklistPreferencesActivity.COVER_PREFETCH_OFF) {
+			BooklistRowView rowView = mList.getRowView();
+			mPrefetcher = new ThumbnailPrefetcher(mList.getBuilder(), rowView.getMaxThumbnailWidth(), rowView.getMaxThumbnailHeight());
+			if (prefetch == BooklistPreferencesActivity.COVER_PREFETCH_LIGHT) {
+				mPrefetcher.setRowsAhead(ThumbnailPrefetcher.DEFAULT_ROWS_AHEAD / 2)
+							.setDecodesPerSecond(ThumbnailPrefetcher.DEFAULT_DECODES_PER_SECOND / 2);
+			} else if (prefetch == BooklistPreferencesActivity.COVER_PREFETCH_AGGRESSIVE) {
+				// Going much further ahead than this just evicts the nearest covers from memory
+				mPrefetcher.setRowsAhead(ThumbnailPrefetcher.DEFAULT_ROWS_AHEAD * 3 / 2)
+							.setDecodesPerSecond(ThumbnailPrefetcher.DEFAULT_DECODES_PER_SECOND * 2);
+			}
+		} else {
+			mPrefetcher = null;
+		}
+		final ThumbnailPrefetcher prefetcher = mPrefetcher;
+
 		final boolean hasLevel1 = (mList.numLevels() > 1);
 		final boolean hasLevel2 = (mList.numLevels() > 2);
 
@@ -587,6 +610,8 @@ public class BooksOnBookshelf extends ListActivity implements BooklistChangeList
 					ListViewHolder holder = (ListViewHolder)ViewTagger.getTag(view, R.id.TAG_HOLDER);
 					updateListHeader(holder, firstVisibleItem, hasLevel1, hasLevel2);
 				}
+				if (prefetcher != null && !mIsDead)
+					prefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
 			}
 
 			@Override
@@ -742,6 +767,10 @@ public class BooksOnBookshelf extends ListActivity implements BooklistChangeList
 		mIsDead = true;
 
 		mTaskQueue.finish();
+		if (mPrefetcher != null) {
+			mPrefetcher.close();
+			mPrefetcher = null;
+		}
 
 		try {
 			if (mList != null) {
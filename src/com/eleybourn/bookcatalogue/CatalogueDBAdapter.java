@@ -28,6 +28,7 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.eleybourn.bookcatalogue.booklist.BooklistStyle;
 import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
@@ -1633,6 +1634,16 @@ public class CatalogueDBAdapter {
 		return new File(StorageUtils.getSharedStoragePath() + "/tmp" + suffix + ".jpg");
 	}
 
+	/** Counter used to make temp file names unique */
+	private static final AtomicInteger mTempThumbnailCounter = new AtomicInteger();
+	/**
+	 * Get a temp file name, including a suffix, that no other caller in this process will get.
+	 * Used where several searches may be saving covers at once.
+	 */
+	public static final File getUniqueTempThumbnail(String suffix) {
+		return getTempThumbnail(suffix + "_" + mTempThumbnailCounter.incrementAndGet());
+	}
+
 	/**
 	 * return the thumbnail (as a File object) for the given hash
 	 * 
@@ -4283,6 +4294,36 @@ public class CatalogueDBAdapter {
 		return cursor;
 	}
 
+	/**
+	 * Query to get the books to send to goodreads as CSV, with their primary author, in ID order.
+	 * 
+	 * @param startId	Only books with larger IDs are returned
+	 */
+	public BooksCursor getAllBooksForGoodreadsCsvCursor(long startId) {
+		String sql = "Select b." + KEY_ROWID + " as " + KEY_ROWID + ", b." + KEY_ISBN + " as " + KEY_ISBN + 
+				", b." + DOM_GOODREADS_BOOK_ID + " as " + DOM_GOODREADS_BOOK_ID + ", b." + KEY_TITLE + " as " + KEY_TITLE + 
+				", b." + KEY_PUBLISHER + " as " + KEY_PUBLISHER + ", b." + KEY_FORMAT + " as " + KEY_FORMAT + 
+				", b." + KEY_DATE_PUBLISHED + " as " + KEY_DATE_PUBLISHED + ", b." + KEY_DATE_ADDED + " as " + KEY_DATE_ADDED + 
+				", b." + KEY_READ + " as " + KEY_READ + ", b." + KEY_READ_END + " as " + KEY_READ_END + 
+				", b." + KEY_RATING + " as " + KEY_RATING + 
+				", Case When a." + KEY_GIVEN_NAMES + " = '' Then a." + KEY_FAMILY_NAME + 
+				" Else a." + KEY_GIVEN_NAMES + " || ' ' || a." + KEY_FAMILY_NAME + " End as " + KEY_AUTHOR_FORMATTED_GIVEN_FIRST + 
+				" from " + DB_TB_BOOKS + " b" +
+				" Left Outer Join " + DB_TB_BOOK_AUTHOR + " ba On ba." + KEY_BOOK + " = b." + KEY_ROWID + " and ba." + KEY_AUTHOR_POSITION + " = 1" +
+				" Left Outer Join " + DB_TB_AUTHORS + " a On a." + KEY_ROWID + " = ba." + KEY_AUTHOR_ID +
+				" Where b." + KEY_ROWID + " > " + startId + " Order by b." + KEY_ROWID;
+		return fetchBooks(sql, EMPTY_STRNG_ARRAY);
+	}
+
+	/**
+	 * Query to get all book IDs and UUIDs, in ID order, for building the covers cache.
+	 */
+	public BooksCursor getAllBooksForCoverCacheCursor(long startId) {
+		String sql = "Select " + KEY_ROWID + ", " + DOM_BOOK_UUID + " from " + DB_TB_BOOKS + 
+				" Where " + KEY_ROWID + " > " + startId + " Order by " + KEY_ROWID;
+		return fetchBooks(sql, EMPTY_STRNG_ARRAY);
+	}
+
 	/**
 	 * Query to get a specific book ISBN from the ID for sending to goodreads.
 	 */
@@ -4294,6 +4335,17 @@ public class CatalogueDBAdapter {
 		return cursor;
 	}
 
+	/**
+	 * Query to get the ID, ISBN, goodreads book ID and last goodreads sync date of all books,
+	 * for matching imported goodreads reviews.
+	 */
+	public Cursor getAllBooksForGoodreadsMatchCursor() {
+		String sql = "Select " + KEY_ROWID + ", " + KEY_ISBN + ", " + DOM_GOODREADS_BOOK_ID + 
+				", " + DOM_LAST_GOODREADS_SYNC_DATE + " from " + DB_TB_BOOKS;
+		Cursor cursor = mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+		return cursor;
+	}
+
 	/**
 	 * Query to get a all bookshelves for a book, for sending to goodreads.
 	 */
@@ -22,12 +22,14 @@
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Hashtable;
 
 import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnDismissListener;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
@@ -199,6 +201,7 @@ public class CoverBrowser {
 		int position;
 		String isbn;
 		String fileSpec;
+		Bitmap bitmap;
 
 		/**
 		 * Constructor
@@ -214,12 +217,16 @@ public class CoverBrowser {
 
 		@Override
 		public void run(SimpleTaskContext taskContext) {
-			// Start the download
-			fileSpec = mFileManager.download(isbn, ImageSizes.SMALL);
+			// Start the download, building the preview as it arrives
+			ImageSizes size = ImageSizes.SMALL;
+			fileSpec = mFileManager.download(isbn, size, mPreviewSize);
 			File file = new File(fileSpec);
 			if (file.length() < 50) {
-				fileSpec = mFileManager.download(isbn, ImageSizes.LARGE);
+				BitmapPool.release(mFileManager.takeThumbnail(isbn, size));
+				size = ImageSizes.LARGE;
+				fileSpec = mFileManager.download(isbn, size, mPreviewSize);
 			}
+			bitmap = mFileManager.takeThumbnail(isbn, size);
 		}
 		@Override
 		public void onFinish() {
@@ -228,7 +235,10 @@ public class CoverBrowser {
 			file.deleteOnExit();
 			//CoverImageAdapter cia = (CoverImageAdapter) gallery.getAdapter();
 			//cia.notifyDataSetChanged();
-			Utils.fetchFileIntoImageView(file, v, mPreviewSize, mPreviewSize, true );
+			if (bitmap != null)
+				v.setImageBitmap(bitmap);
+			else
+				Utils.fetchFileIntoImageView(file, v, mPreviewSize, mPreviewSize, true );
 		}
 
 		@Override
@@ -252,6 +262,8 @@ public class CoverBrowser {
 		private String isbn;
 		// Resulting file spec
 		private String fileSpec;
+		// Image built from the download stream, if any
+		private Bitmap bitmap;
 
 		/**
 		 * Constructor
@@ -271,12 +283,16 @@ public class CoverBrowser {
 			if (mShutdown)
 				return;
 
-			// Download the file
-			fileSpec = mFileManager.download(isbn, ImageSizes.LARGE);
+			// Download the file, building the preview as it arrives
+			ImageSizes size = ImageSizes.LARGE;
+			fileSpec = mFileManager.download(isbn, size, mPreviewSize*4);
 			File file = new File(fileSpec);
 			if (file.length() < 50) {
-				fileSpec = mFileManager.download(isbn, ImageSizes.SMALL);
+				BitmapPool.release(mFileManager.takeThumbnail(isbn, size));
+				size = ImageSizes.SMALL;
+				fileSpec = mFileManager.download(isbn, size, mPreviewSize*4);
 			}
+			bitmap = mFileManager.takeThumbnail(isbn, size);
 		}
 		@Override
 		public void onFinish() {
@@ -284,7 +300,9 @@ public class CoverBrowser {
 			File file = new File(fileSpec);
 			TextView msgVw = (TextView)mDialog.findViewById(R.id.switcherStatus);
 			if (file.exists() && file.length() > 100) {
-				Drawable d = new BitmapDrawable(Utils.fetchFileIntoImageView(file, null, mPreviewSize*4, mPreviewSize*4, true ));
+				if (bitmap == null)
+					bitmap = Utils.fetchFileIntoImageView(file, null, mPreviewSize*4, mPreviewSize*4, true );
+				Drawable d = new BitmapDrawable(bitmap);
 				switcher.setImageDrawable(d);
 				ViewTagger.setTag(switcher, file.getAbsolutePath());    			
 				msgVw.setVisibility(View.GONE);
@@ -419,6 +437,8 @@ public class CoverBrowser {
 	 */
 	private class FileManager {
 		private Bundle mFiles = new Bundle();
+		/** Thumbnails built while downloading, waiting to be collected */
+		private Hashtable<String, Bitmap> mThumbnails = new Hashtable<String, Bitmap>();
     	LibraryThingManager mLibraryThing = new LibraryThingManager(mContext);
 
 		/**
@@ -429,6 +449,19 @@ public class CoverBrowser {
 		 * @return
 		 */
 		public String download(String isbn, ImageSizes size) {
+			return download(isbn, size, 0);
+		}
+
+		/**
+		 * Download a file if not present and keep a record of it. If a thumbnail size is given, 
+		 * a thumbnail is built from the download stream; collect it with takeThumbnail().
+		 * 
+		 * @param isbn			ISBN of file
+		 * @param size			Size of image required.
+		 * @param thumbnailSize	Size of thumbnail to build, or 0 for none
+		 * @return
+		 */
+		public String download(String isbn, ImageSizes size, int thumbnailSize) {
 		    String filespec;
 		    String key = isbn + "_" + size;
 		    boolean isPresent;
@@ -456,7 +489,14 @@ public class CoverBrowser {
 		    }
 
 		    if (!isPresent) {
-		    	filespec = mLibraryThing.getCoverImage(isbn, null, size);
+		    	ImageDownloader.Result result = mLibraryThing.getCoverImage(isbn, size, thumbnailSize);
+		    	if (result == null) {
+		    		filespec = "";
+		    	} else {
+		    		filespec = result.file.getAbsolutePath();
+		    		if (result.thumbnail != null)
+		    			putThumbnail(key, result.thumbnail);
+		    	}
 		    	synchronized(mFiles) {
 				    mFiles.putString(key, filespec);		    		
 		    	}
@@ -468,6 +508,21 @@ public class CoverBrowser {
 			return filespec;
 		}
 
+		/**
+		 * Get, and remove, the thumbnail built when the file was downloaded.
+		 * 
+		 * @return	Thumbnail, or null if none was built
+		 */
+		public Bitmap takeThumbnail(String isbn, ImageSizes size) {
+			return mThumbnails.remove(isbn + "_" + size);
+		}
+
+		private void putThumbnail(String key, Bitmap bm) {
+			Bitmap old = mThumbnails.put(key, bm);
+			if (old != null && old != bm)
+				BitmapPool.release(old);
+		}
+
 		// Get the requested file, if available, otherwise return null.
 		public File getFile(String isbn, ImageSizes size) {
 		    String filespec;
@@ -497,6 +552,9 @@ public class CoverBrowser {
 						file.delete();
 				}				
 				mFiles.clear();
+				for(Bitmap bm : mThumbnails.values())
+					BitmapPool.release(bm);
+				mThumbnails.clear();
 			} catch (Exception e) {
 				Logger.logError(e);
 			}
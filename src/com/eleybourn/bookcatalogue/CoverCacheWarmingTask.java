@@ -0,0 +1,243 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+
+import net.philipwarner.taskqueue.QueueManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.eleybourn.bookcatalogue.booklist.BooklistStyle;
+import com.eleybourn.bookcatalogue.booklist.BooklistStyles;
+import com.eleybourn.bookcatalogue.goodreads.GenericTask;
+
+/**
+ * Background task to populate the cover cache for every book, in every thumbnail size used
+ * by the preferred booklist styles. Each cover file is decoded once at the largest size and the
+ * smaller sizes are scaled from that bitmap.
+ *
+ * The task is resumable: mLastId is saved periodically so that a restart (eg. after the phone
+ * is rebooted) continues where it left off. It backs off while the UI is loading thumbnails.
+ *
+ * @author Philip Warner
+ */
+public class CoverCacheWarmingTask extends GenericTask {
+	private static final long serialVersionUID = -4617353425938711307L;
+
+	/** Number of books to process between checkpoints */
+	private static final int CHECKPOINT_INTERVAL = 25;
+	/** Time to wait when the UI is busy with thumbnails */
+	private static final int UI_BUSY_WAIT_MS = 1000;
+	/** Pause between books so that we never saturate the SD card */
+	private static final int INTER_BOOK_PAUSE_MS = 20;
+
+	/** Last book ID processed */
+	private long mLastId = 0;
+	/** Number of books processed */
+	private int mCount = 0;
+	/** Total number of books when last started */
+	private int mTotalBooks = 0;
+
+	/**
+	 * Queue a task to build the cover cache, unless one is already queued or running; the
+	 * existing task will pick up any new books because it works through them in ID order.
+	 */
+	public static synchronized void start() {
+		if (QueueManager.getQueueManager().hasActiveTasks(BcQueueManager.CAT_COVER_CACHE))
+			return;
+		QueueManager.getQueueManager().enqueueTask(new CoverCacheWarmingTask(), BcQueueManager.QUEUE_COVERS, 0);
+	}
+
+	/**
+	 * Constructor
+	 */
+	public CoverCacheWarmingTask() {
+		super(BookCatalogueApp.getResourceString(R.string.build_cover_cache));
+	}
+
+	/**
+	 * Run the task, log exceptions.
+	 */
+	@Override
+	public boolean run(QueueManager manager, Context c) {
+		boolean result = false;
+		try {
+			result = warmCache(manager, c);
+		} catch (InterruptedException e) {
+			manager.saveTask(this);
+		} catch (Exception e) {
+			Logger.logError(e, "Error building cover cache");
+		}
+		return result;
+	}
+
+	/**
+	 * Get the distinct thumbnail sizes used by the preferred styles, largest first.
+	 */
+	private ArrayList<Integer> getSizes(CatalogueDBAdapter db) {
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		for(BooklistStyle style : BooklistStyles.getPreferredStyles(db)) {
+			if (style.showThumbnails()) {
+				Integer size = style.getThumbnailSize();
+				if (!sizes.contains(size)) {
+					int i = 0;
+					while(i < sizes.size() && sizes.get(i) > size)
+						i++;
+					sizes.add(i, size);
+				}
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * Walk the books from mLastId, writing any missing or stale cache entries.
+	 */
+	private boolean warmCache(QueueManager qmanager, Context context) throws InterruptedException {
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
+		CatalogueDBAdapter db = new CatalogueDBAdapter(context.getApplicationContext());
+		db.open();
+		Utils utils = new Utils();
+		BooksCursor books = null;
+		try {
+			ArrayList<Integer> sizes = getSizes(db);
+			if (sizes.size() == 0)
+				return true;
+
+			if (!utils.isCoverCacheAvailable())
+				return true;
+
+			books = db.getAllBooksForCoverCacheCursor(mLastId);
+			final BooksRowView book = books.getRowView();
+			mTotalBooks = books.getCount() + mCount;
+			int lastSave = mCount;
+
+			while (books.moveToNext()) {
+				// Let the UI have the SD card while it is loading covers
+				while (GetThumbnailTask.hasActiveTasks() || ThumbnailCacheWriterTask.hasActiveTasks()) {
+					if (this.isAborting()) {
+						qmanager.saveTask(this);
+						return false;
+					}
+					Thread.sleep(UI_BUSY_WAIT_MS);
+				}
+
+				warmBook(utils, book.getBookUuid(), sizes);
+
+				mCount++;
+				mLastId = book.getId();
+
+				if (this.isAborting()) {
+					qmanager.saveTask(this);
+					return false;
+				}
+				if (mCount - lastSave >= CHECKPOINT_INTERVAL) {
+					qmanager.saveTask(this);
+					lastSave = mCount;
+				}
+				Thread.sleep(INTER_BOOK_PAUSE_MS);
+			}
+		} finally {
+			if (books != null)
+				try {
+					books.close();
+				} catch (Exception e) {
+					Logger.logError(e, "Failed to close cover cache books cursor");
+				}
+			utils.close();
+			db.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Write all required sizes for one book, decoding the cover at most once.
+	 *
+	 * @param utils		Utils object for cache access
+	 * @param uuid		Book UUID
+	 * @param sizes		Sizes required, largest first
+	 */
+	private void warmBook(Utils utils, String uuid, ArrayList<Integer> sizes) {
+		File coverFile = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
+		if (!coverFile.exists())
+			return;
+		Date lastModified = new Date(coverFile.lastModified());
+
+		Bitmap source = null;
+		try {
+			for(Integer size : sizes) {
+				final String cacheId = Utils.getCoverCacheId(uuid, size, size);
+				if (utils.isCachedCoverValid(cacheId, lastModified))
+					continue;
+
+				Bitmap bm;
+				if (source == null) {
+					source = Utils.fetchFileIntoImageView(coverFile, null, size, size, true);
+					if (source == null)
+						return;
+					bm = source;
+				} else {
+					bm = scaleToFit(source, size);
+				}
+				try {
+					utils.saveCachedCover(cacheId, bm);
+				} finally {
+					if (bm != source)
+						BitmapPool.release(bm);
+				}
+			}
+		} catch (Exception e) {
+			// Just a cache; log and move on.
+			Logger.logError(e, "Failed to cache cover for " + uuid);
+		} finally {
+			if (source != null)
+				BitmapPool.release(source);
+		}
+	}
+
+	/**
+	 * Scale a bitmap to fit in a square of the passed size, preserving aspect ratio.
+	 */
+	private static Bitmap scaleToFit(Bitmap source, int size) {
+		float ratio = Math.min((float)size / source.getWidth(), (float)size / source.getHeight());
+		if (ratio >= 1.0f)
+			return source;
+		return BitmapPool.scale(source, ratio);
+	}
+
+	/**
+	 * Make a more informative description
+	 */
+	@Override
+	public String getDescription() {
+		String base = super.getDescription();
+		return base + " (" + BookCatalogueApp.getResourceString(R.string.x_of_y, mCount, mTotalBooks) + ")";
+	}
+
+	@Override
+	public long getCategory() {
+		return BcQueueManager.CAT_COVER_CACHE;
+	}
+}
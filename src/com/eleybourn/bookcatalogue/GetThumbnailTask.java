@@ -43,7 +43,7 @@ public class GetThumbnailTask implements SimpleTask {
 	// Queue for background thumbnail retrieval; allow 2 threads. More is nice, but with 
 	// many books to process it introduces what looks like lag when scrolling: 5 tasks
 	// building now-invisible views is pointless. 
-	private static final SimpleTaskQueue mQueue = new SimpleTaskQueue("thumbnails", 2);
+	private static final SimpleTaskQueue mQueue = new SimpleTaskQueue("thumbnails", 2).setDefaultPriority(SimpleTaskQueue.PRIORITY_HIGH);
 
 	/**
 	 * Create a task to convert, set and store the thumbnail for the passed book.
@@ -202,7 +202,9 @@ public class GetThumbnailTask implements SimpleTask {
 				//v.setLayoutParams(lp);
 				v.setImageBitmap(mBitmap);
 			} else {
-				mBitmap.recycle();
+				// If it was queued for the cache, the cache writer now owns it and will release it.
+				if (mWasInCache)
+					BitmapPool.release(mBitmap);
 				mBitmap = null;
 			}
 		} else {
@@ -5,7 +5,6 @@ import java.net.URL;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import org.xml.sax.SAXException;
 
@@ -28,24 +27,22 @@ public class GoogleBooksManager {
 		}
 		URL url;
 
-		SAXParserFactory factory = SAXParserFactory.newInstance();
 		SAXParser parser;
 		SearchGoogleBooksHandler handler = new SearchGoogleBooksHandler();
 		SearchGoogleBooksEntryHandler entryHandler = new SearchGoogleBooksEntryHandler(bookData, fetchThumbnail);
 	
 		try {
 			url = new URL(path);
-			parser = factory.newSAXParser();
+			parser = Utils.getSaxParser();
 			int count = 0;
 			// We can't Toast anything from here; it no longer runs in UI thread. So let the caller deal 
 			// with any exceptions.
-			parser.parse(Utils.getInputStream(url), handler);
+			Utils.parseUrl(parser, url, handler);
 			count = handler.getCount();
 			if (count > 0) {
 				String id = handler.getId();
 				url = new URL(id);
-				parser = factory.newSAXParser();
-				parser.parse(Utils.getInputStream(url), entryHandler);
+				Utils.parseUrl(parser, url, entryHandler);
 			}
 			return;
 		} catch (MalformedURLException e) {
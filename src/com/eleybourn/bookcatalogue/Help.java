@@ -83,6 +83,15 @@ public class Help extends Activity {
 					StorageUtils.sendDebugInfo(Help.this, mDbHelper);
 				}
 			});
+
+			Button showStats = (Button) findViewById(R.id.task_statistics);
+			showStats.setOnClickListener(new OnClickListener() {
+				@Override
+				public void onClick(View v) {
+					Intent i = new Intent(Help.this, TaskStatisticsActivity.class);
+					startActivity(i);
+				}
+			});
 			
 			setupCleanupButton();
 			
@@ -0,0 +1,400 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Streams images from the network straight to a file through a fixed size buffer, so that large
+ * covers never have to be held in memory.
+ *
+ * Data is written to a '.part' file which is renamed when complete. If a download fails part way
+ * it is retried with an HTTP Range request for the remainder; a partial file left by an earlier
+ * attempt at the same URL is also resumed (using If-Range so that a changed image is fetched in
+ * full).
+ *
+ * Optionally a thumbnail is decoded from the same stream as it is written: the image bounds are
+ * read from a small marked buffer, then the stream is rewound and decoded with a suitable sample
+ * size. This avoids reading the file back and decoding it full size just to shrink it.
+ *
+ * @author Philip Warner
+ */
+public class ImageDownloader {
+	/** Size of copy buffer */
+	private static final int BUFFER_SIZE = 8192;
+	/** Maximum bytes to look at when reading image bounds; JPEG headers are normally well within this */
+	private static final int BOUNDS_MARK_LIMIT = 64 * 1024;
+	/** Number of times to retry (resume) a failed download */
+	private static final int MAX_RETRIES = 2;
+	/** Suffix for partial downloads */
+	private static final String PART_SUFFIX = ".part";
+	/** Suffix for the file recording the URL and validator of a partial download */
+	private static final String PART_INFO_SUFFIX = ".part.info";
+
+	/**
+	 * Result of a download.
+	 *
+	 * @author Philip Warner
+	 */
+	public static class Result {
+		/** File written */
+		public final File file;
+		/** Thumbnail, if requested and it could be decoded */
+		public final Bitmap thumbnail;
+		/** Total bytes transferred over the network */
+		public final long bytesTransferred;
+		/** True if the download was resumed */
+		public final boolean resumed;
+
+		Result(File file, Bitmap thumbnail, long bytesTransferred, boolean resumed) {
+			this.file = file;
+			this.thumbnail = thumbnail;
+			this.bytesTransferred = bytesTransferred;
+			this.resumed = resumed;
+		}
+	}
+
+	/**
+	 * Download a URL to a file, optionally generating a thumbnail in the same pass.
+	 *
+	 * @param urlText		URL to fetch
+	 * @param dest			File to write
+	 * @param thumbnailSize	Size of square to fit the thumbnail in; 0 for no thumbnail
+	 *
+	 * @return	Result, or null if the download failed
+	 */
+	public static Result download(String urlText, File dest, int thumbnailSize) {
+		URI uri;
+		try {
+			uri = new URI(urlText);
+		} catch (URISyntaxException e) {
+			Logger.logError(e);
+			return null;
+		}
+
+		final File part = new File(dest.getPath() + PART_SUFFIX);
+		final File info = new File(dest.getPath() + PART_INFO_SUFFIX);
+
+		// Only resume a partial file if it was for the same URL
+		String validator = null;
+		if (part.exists()) {
+			String[] saved = readPartInfo(info);
+			if (saved != null && saved[0].equals(urlText)) {
+				validator = saved[1];
+			} else {
+				part.delete();
+				info.delete();
+			}
+		}
+
+		Bitmap thumbnail = null;
+		long transferred = 0;
+		boolean resumed = false;
+		int retries = MAX_RETRIES;
+
+		while (true) {
+			final long have = part.exists() ? part.length() : 0;
+			HttpGet request = new HttpGet(uri);
+			// Ranges refer to the encoded data, so do not let the client decompress it.
+			request.addHeader("Accept-Encoding", "identity");
+			if (have > 0) {
+				request.addHeader("Range", "bytes=" + have + "-");
+				if (validator != null && validator.length() > 0)
+					request.addHeader("If-Range", validator);
+			}
+
+			InputStream in = null;
+			OutputStream out = null;
+			try {
+				RateLimiter.acquire(uri);
+				HttpResponse response = SharedHttpClient.execute(request);
+				final int status = response.getStatusLine().getStatusCode();
+				HttpEntity entity = response.getEntity();
+				if (entity == null)
+					return null;
+
+				boolean append;
+				if (status == HttpStatus.SC_PARTIAL_CONTENT && have > 0) {
+					append = true;
+					resumed = true;
+				} else if (status == HttpStatus.SC_OK) {
+					append = false;
+				} else if (status == 416 && have > 0) {
+					// Requested range not satisfiable: we already have it all.
+					entity.consumeContent();
+					break;
+				} else {
+					entity.consumeContent();
+					Logger.logError(new RuntimeException("HTTP " + status + " fetching " + urlText));
+					part.delete();
+					info.delete();
+					return null;
+				}
+
+				// Remember where this partial file came from, in case we need to resume
+				validator = getValidator(response);
+				writePartInfo(info, urlText, validator);
+
+				in = entity.getContent();
+				CountingTeeInputStream tee = new CountingTeeInputStream(in, new FileOutputStream(part, append));
+				out = tee.getOutput();
+
+				// Thumbnails can only be generated from a complete stream
+				if (thumbnailSize > 0 && !append && thumbnail == null)
+					thumbnail = decodeThumbnail(tee, thumbnailSize);
+
+				tee.drain();
+				transferred += tee.getCount();
+				break;
+			} catch (InterruptedIOException e) {
+				// Cancelled; do not retry. Leave the partial file so that it may be resumed.
+				request.abort();
+				if (thumbnail != null)
+					BitmapPool.release(thumbnail);
+				return null;
+			} catch (IOException e) {
+				// Do not try to read the rest of a broken stream just to reuse the connection
+				request.abort();
+				if (retries-- <= 0) {
+					Logger.logError(e, "Failed to download " + urlText);
+					// Leave the partial file; a later request for the same URL may resume it.
+					if (thumbnail != null)
+						BitmapPool.release(thumbnail);
+					return null;
+				}
+				// Discard any thumbnail from a stream that did not complete
+				if (thumbnail != null) {
+					BitmapPool.release(thumbnail);
+					thumbnail = null;
+				}
+				System.out.println("Download of " + urlText + " failed; resuming from " + (part.exists() ? part.length() : 0));
+			} finally {
+				if (out != null)
+					try { out.close(); } catch (Exception e) {};
+				if (in != null)
+					try { in.close(); } catch (Exception e) {};
+			}
+		}
+
+		dest.delete();
+		if (!part.renameTo(dest)) {
+			Logger.logError(new RuntimeException("Unable to rename " + part.getPath()));
+			return null;
+		}
+		info.delete();
+
+		// If it was resumed, or the bounds could not be read from the stream, decode from the file.
+		if (thumbnailSize > 0 && thumbnail == null)
+			thumbnail = Utils.fetchFileIntoImageView(dest, null, thumbnailSize, thumbnailSize, true);
+
+		return new Result(dest, thumbnail, transferred, resumed);
+	}
+
+	/**
+	 * Decode a thumbnail from the stream. The stream is left positioned somewhere in the image;
+	 * the caller must drain it.
+	 *
+	 * @return	Thumbnail, or null if the bounds could not be read within the mark limit
+	 */
+	private static Bitmap decodeThumbnail(InputStream in, int size) throws IOException {
+		BufferedInputStream bin = new BufferedInputStream(in, BUFFER_SIZE);
+		bin.mark(BOUNDS_MARK_LIMIT);
+
+		BitmapFactory.Options opt = new BitmapFactory.Options();
+		opt.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(bin, null, opt);
+		// Placeholder images are often a single pixel; leave those for the caller to deal with.
+		if (opt.outWidth <= 1 || opt.outHeight <= 1)
+			return null;
+		try {
+			bin.reset();
+		} catch (IOException e) {
+			// Header was bigger than the mark limit; caller will decode from the file.
+			return null;
+		}
+
+		final float ratio = Math.min((float)size / opt.outWidth, (float)size / opt.outHeight);
+		int sample = 1;
+		while (ratio * sample * 2 <= 1.0f)
+			sample *= 2;
+		opt.inJustDecodeBounds = false;
+		opt.inSampleSize = sample;
+		opt.inTempStorage = BitmapPool.obtainTempStorage();
+		Bitmap bm;
+		try {
+			bm = BitmapFactory.decodeStream(bin, null, opt);
+		} catch (OutOfMemoryError e) {
+			return null;
+		} finally {
+			BitmapPool.releaseTempStorage(opt.inTempStorage);
+			opt.inTempStorage = null;
+		}
+		if (bm == null)
+			return null;
+
+		// Scale the subsampled image down to the exact size
+		final float remaining = Math.min((float)size / bm.getWidth(), (float)size / bm.getHeight());
+		if (remaining < 1.0f) {
+			Bitmap scaled = BitmapPool.scale(bm, remaining);
+			BitmapPool.release(bm);
+			bm = scaled;
+		}
+		return bm;
+	}
+
+	/**
+	 * Get the ETag or Last-Modified header to use with If-Range.
+	 */
+	private static String getValidator(HttpResponse response) {
+		Header h = response.getFirstHeader("ETag");
+		if (h == null)
+			h = response.getFirstHeader("Last-Modified");
+		return h == null ? "" : h.getValue();
+	}
+
+	/**
+	 * Read the URL and validator of a partial download.
+	 */
+	private static String[] readPartInfo(File info) {
+		if (!info.exists())
+			return null;
+		BufferedReader r = null;
+		try {
+			r = new BufferedReader(new InputStreamReader(new FileInputStream(info), "UTF-8"));
+			String url = r.readLine();
+			String validator = r.readLine();
+			if (url == null)
+				return null;
+			return new String[] {url, validator == null ? "" : validator};
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (r != null)
+				try { r.close(); } catch (Exception e) {};
+		}
+	}
+
+	/**
+	 * Record the URL and validator of a partial download.
+	 */
+	private static void writePartInfo(File info, String url, String validator) {
+		Writer w = null;
+		try {
+			w = new OutputStreamWriter(new FileOutputStream(info), "UTF-8");
+			w.write(url + "\n" + validator + "\n");
+		} catch (IOException e) {
+			// Just means we can not resume later
+			Logger.logError(e);
+		} finally {
+			if (w != null)
+				try { w.close(); } catch (Exception e) {};
+		}
+	}
+
+	/**
+	 * Stream that copies everything read from the underlying stream to an output stream, counting bytes.
+	 *
+	 * @author Philip Warner
+	 */
+	private static class CountingTeeInputStream extends FilterInputStream {
+		private final OutputStream mOut;
+		private long mCount = 0;
+
+		CountingTeeInputStream(InputStream in, OutputStream out) {
+			super(in);
+			mOut = out;
+		}
+
+		OutputStream getOutput() {
+			return mOut;
+		}
+
+		long getCount() {
+			return mCount;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0) {
+				mOut.write(b);
+				mCount++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			final int n = super.read(buffer, offset, length);
+			if (n > 0) {
+				mOut.write(buffer, offset, n);
+				mCount += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// Skipped data must still be written
+			byte[] buffer = new byte[(int)Math.min(n, BUFFER_SIZE)];
+			final int got = read(buffer, 0, buffer.length);
+			return got < 0 ? 0 : got;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		/**
+		 * Read (and so write) everything that remains.
+		 */
+		void drain() throws IOException {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (read(buffer, 0, buffer.length) >= 0)
+				;
+			mOut.flush();
+		}
+	}
+}
@@ -399,6 +399,12 @@ public class ImportThread extends ManagedTask {
 			// Do nothing. Not a critical step.
 			Logger.logError(e);
 		}
+		// Imported covers will not be in the cache; build it now rather than when the user scrolls.
+		try {
+			CoverCacheWarmingTask.start();
+		} catch (Exception e) {
+			Logger.logError(e);
+		}
 		doToast("Import Complete");
 	}
 
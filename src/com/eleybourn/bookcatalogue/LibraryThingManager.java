@@ -26,7 +26,6 @@ import java.util.ArrayList;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -60,8 +59,6 @@ public class LibraryThingManager {
 	/** Name of preference that controls display of alert about LT */
 	public static final String LT_HIDE_ALERT_PREF_NAME = "lt_hide_alert";
 
-	private static Long mLastRequestTime = 0L;
-
 	// Words in XML
 	public static String ID = "id";
 	public static String AUTHOR = "author";
@@ -91,39 +88,6 @@ public class LibraryThingManager {
 		mAppContext = context.getApplicationContext();
 	}
 
-	/**
-	 * Use mLastRequestTime to determine how long until the next request is allowed; and
-	 * update mLastRequestTime this needs to be synchroized across threads.
-	 *
- 	 * Note that as a result of this approach mLastRequestTime may in fact be
-	 * in the future; callers to this routine effectively allocate time slots.
-	 * 
-	 * This method will sleep() until it can make a request; if ten threads call this 
-	 * simultaneously, one will return immediately, one will return 1 second later, another
-	 * two seconds etc.
-	 * 
-	 */
-	private static void waitUntilRequestAllowed() {
-		long now = System.currentTimeMillis();
-		long wait;
-		synchronized(mLastRequestTime) {
-			wait = 1000 - (now - mLastRequestTime);
-			//
-			// mLastRequestTime must be updated while synchronized. As soon as this
-			// block is left, another block may perform another update.
-			//
-			if (wait < 0)
-				wait = 0;
-			mLastRequestTime = now + wait;
-		}
-		if (wait > 0) {
-			try {
-			Thread.sleep(wait);
-			} catch (InterruptedException e) {
-			}
-		}
-	}
-
 	/**
 	 * Search LibaryThing for an ISBN using the Web API.
 	 * 
@@ -431,16 +395,14 @@ public class LibraryThingManager {
 		URL url;
 
 		// Setup the parser
-		SAXParserFactory factory = SAXParserFactory.newInstance();
 		SAXParser parser;
 		SearchLibraryThingEntryHandler entryHandler = new LibraryThingManager.SearchLibraryThingEntryHandler(bookData);
 
 		try {
 			url = new URL(path);
-			parser = factory.newSAXParser();
-			// Make sure we follow LibraryThing ToS (no more than 1 request/second).
-			waitUntilRequestAllowed();
-			parser.parse(Utils.getInputStream(url), entryHandler);
+			parser = Utils.getSaxParser();
+			// LibraryThing ToS (no more than 1 request/second) are enforced by RateLimiter in parseUrl()
+			Utils.parseUrl(parser, url, entryHandler);
 			// Dont bother catching general exceptions, they will be caught by the caller.
 		} catch (MalformedURLException e) {
 			String s = "unknown";
@@ -624,8 +586,7 @@ public class LibraryThingManager {
 		String url = getCoverImageUrl(isbn, size);
 		//Log.e("BC", url + " " + isbn + " " + size.toString());
 		
-		// Make sure we follow LibraryThing ToS (no more than 1 request/second).
-		waitUntilRequestAllowed();
+		// LibraryThing ToS (no more than 1 request/second) are enforced by RateLimiter for all downloads
 		
 		// Save it with an _LT suffix
 		String filename = Utils.saveThumbnailFromUrl(url, "_LT_" + size + "_" + isbn);
@@ -634,6 +595,24 @@ public class LibraryThingManager {
 		return filename;
 	}
 	
+	/**
+	 * Get the cover image using the ISBN, streaming it to a temp file and optionally
+	 * building a thumbnail from the same stream.
+	 * 
+	 * @param isbn			ISBN of book
+	 * @param size			Size of image to fetch
+	 * @param thumbnailSize	Size of thumbnail to build; 0 for none
+	 * 
+	 * @return	Download result, or null if it failed
+	 */
+	public ImageDownloader.Result getCoverImage(String isbn, ImageSizes size, int thumbnailSize) {
+		String url = getCoverImageUrl(isbn, size);
+
+		// LibraryThing ToS (no more than 1 request/second) are enforced by RateLimiter for all downloads
+
+		return ImageDownloader.download(url, CatalogueDBAdapter.getTempThumbnail("_LT_" + size + "_" + isbn), thumbnailSize);
+	}
+
 	/**
 	 * Search for edition data.
 	 *
@@ -649,14 +628,12 @@ public class LibraryThingManager {
 		ArrayList<String> editions = new ArrayList<String>();
 
 		// Setup the parser
-		SAXParserFactory factory = SAXParserFactory.newInstance();
 		SearchLibraryThingEditionHandler entryHandler = new LibraryThingManager.SearchLibraryThingEditionHandler(editions);
 
-		// Make sure we follow LibraryThing ToS (no more than 1 request/second).
-		waitUntilRequestAllowed();
+		// LibraryThing ToS (no more than 1 request/second) are enforced by RateLimiter for all downloads
 
 		// Get it
-		Utils.parseUrlOutput(path, factory, entryHandler);
+		Utils.parseUrlOutput(path, entryHandler);
 
 		return editions;
 	}
@@ -35,19 +35,30 @@ import android.os.Message;
  *  - ManagedTask -- Background task that is managed by TaskManager and uses TaskManager to 
  *    do all display activities.
  * 
+ * Tasks are run by a shared ManagedTaskPool rather than each having its own thread; start()
+ * queues the task and cancelTask() interrupts the pool thread only while it is running this task.
+ * 
  * @author Philip Warner
  */
-abstract public class ManagedTask extends Thread {
+abstract public class ManagedTask implements Runnable {
 	// The manager who we will use for progress etc, and who we will inform about our state.
 	protected TaskManager mManager;
 	// Flag indicating the main onRun method has completed. Set in call do doFinish() in the UI thread.
 	private boolean mFinished = false;
 	// Indicates the user has requested a cancel. Up to subclass to decice what to do. Set by TaskManager.
-	private boolean mCancelFlg = false;
+	private volatile boolean mCancelFlg = false;
+	// Set when start() is called
+	private boolean mStarted = false;
+	// Thread running this task, if it is running. Only changed while holding mRunnerLock.
+	private Thread mRunner = null;
+	private final Object mRunnerLock = new Object();
 	// Each task has a handler object that can be used to communicate with the main thread.
 	private TaskHandler mTaskHandler;
 	// Handler for UI thread messages. Used to manage thread-based comms.
 	protected Handler mMessageHandler;
+	// Statistics for this class of task, and when it was created (System.nanoTime()).
+	private final TaskStatistics.TaskStats mStats;
+	private final long mCreatedAt;
 
 	//
 	// Called when the task has finished, but *only* if the TaskManager has a context (ie. is
@@ -110,6 +121,10 @@ abstract public class ManagedTask extends Thread {
 		// Save the stuff for mater
 		mManager = manager;
 		mTaskHandler = taskHandler;
+		// Record that it is waiting to start
+		mStats = TaskStatistics.get(manager.getStatisticsName(), this.getClass());
+		mCreatedAt = System.nanoTime();
+		mStats.onQueued();
 		// Add to my manager
 		mManager.addTask(this);
 		// Create a new Handler.
@@ -138,11 +153,31 @@ abstract public class ManagedTask extends Thread {
 	}
 
 	/**
-	 * Executed in main task thread.
+	 * Queue the task to run in the shared pool. May only be called once.
+	 */
+	public void start() {
+		synchronized(this) {
+			if (mStarted)
+				throw new IllegalStateException("Task already started");
+			mStarted = true;
+		}
+		ManagedTaskPool.getInstance().execute(this);
+	}
+
+	/**
+	 * Executed in a pool thread.
 	 */
 	@Override
 	public void run() {
+		final long startedAt = mStats.onStarted(mCreatedAt);
+		boolean failed = false;
 
+		synchronized(mRunnerLock) {
+			mRunner = Thread.currentThread();
+			// If cancelled while waiting to run, behave as if cancelled just after starting.
+			if (mCancelFlg)
+				mRunner.interrupt();
+		}
 		try {
 			onRun();			
 		} catch (InterruptedException e) {
@@ -150,8 +185,16 @@ abstract public class ManagedTask extends Thread {
 		} catch (ClosedByInterruptException e) {
 			mCancelFlg = true;
 		} catch (Exception e) {
+			failed = true;
 			Logger.logError(e);
+		} finally {
+			// From now on cancelTask() will not interrupt this thread, so clear anything it did.
+			synchronized(mRunnerLock) {
+				mRunner = null;
+			}
+			Thread.interrupted();
 		}
+		mStats.onFinished(startedAt, failed, mCancelFlg);
 		mMessageHandler.post(new Runnable() {
 			public void run() { doFinish(); };
 		});
@@ -175,7 +218,10 @@ abstract public class ManagedTask extends Thread {
 	 */
 	public void cancelTask() {
 		mCancelFlg = true;
-		this.interrupt();
+		synchronized(mRunnerLock) {
+			if (mRunner != null)
+				mRunner.interrupt();
+		}
 	}
 
 	/**
@@ -0,0 +1,176 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Pool of threads used to run ManagedTask objects, so that (for example) the four searches
+ * run for each book by UpdateFromInternet reuse threads rather than creating new ones.
+ *
+ * Tasks run in the order they are started, and the number running at once is limited (see
+ * setMaxThreads()). Tasks should not start other tasks and wait for them, since a full pool
+ * would then deadlock; UpdateThumbnailsThread, for example, uses one thread and waits for
+ * searches that SearchManager starts from the UI thread.
+ *
+ * Threads exit when they have been idle for a while.
+ *
+ * @author Philip Warner
+ */
+public class ManagedTaskPool {
+	/** Default maximum number of threads */
+	public static final int DEFAULT_MAX_THREADS = 6;
+	/** Time a thread waits for work before exiting */
+	private static final long IDLE_TIMEOUT_MS = 30000;
+
+	/** The single shared pool */
+	private static ManagedTaskPool mInstance = null;
+
+	/** Tasks waiting for a thread */
+	private final LinkedList<ManagedTask> mQueue = new LinkedList<ManagedTask>();
+	/** All live threads */
+	private final ArrayList<Worker> mWorkers = new ArrayList<Worker>();
+	/** Number of threads waiting for work */
+	private int mIdleWorkers = 0;
+	/** Maximum number of threads */
+	private int mMaxThreads = DEFAULT_MAX_THREADS;
+	/** Used to name threads */
+	private int mThreadCount = 0;
+
+	/**
+	 * Get the shared pool.
+	 */
+	public static synchronized ManagedTaskPool getInstance() {
+		if (mInstance == null)
+			mInstance = new ManagedTaskPool();
+		return mInstance;
+	}
+
+	private ManagedTaskPool() {
+	}
+
+	/**
+	 * Set the maximum number of ManagedTask objects that run at once.
+	 *
+	 * @param max	Maximum; at least 1
+	 */
+	public void setMaxThreads(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("max must be at least 1");
+		synchronized(this) {
+			mMaxThreads = max;
+			// Start threads for any waiting tasks
+			while (mQueue.size() > mIdleWorkers && mWorkers.size() < mMaxThreads)
+				startWorker();
+		}
+	}
+
+	/**
+	 * Accessor
+	 */
+	public int getMaxThreads() {
+		synchronized(this) {
+			return mMaxThreads;
+		}
+	}
+
+	/**
+	 * Queue a task to run.
+	 */
+	void execute(ManagedTask task) {
+		synchronized(this) {
+			mQueue.add(task);
+			if (mIdleWorkers >= mQueue.size()) {
+				this.notify();
+			} else if (mWorkers.size() < mMaxThreads) {
+				startWorker();
+			}
+		}
+	}
+
+	/**
+	 * Start a new thread. Must hold the lock.
+	 */
+	private void startWorker() {
+		Worker w = new Worker(++mThreadCount);
+		mWorkers.add(w);
+		w.start();
+	}
+
+	/**
+	 * Thread that runs tasks from the queue.
+	 *
+	 * @author Philip Warner
+	 */
+	private class Worker extends Thread {
+		private final String mIdleName;
+
+		Worker(int number) {
+			mIdleName = "managed-task-" + number;
+			setName(mIdleName);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					ManagedTask task;
+					synchronized(ManagedTaskPool.this) {
+						if (mQueue.size() == 0) {
+							mIdleWorkers++;
+							try {
+								ManagedTaskPool.this.wait(IDLE_TIMEOUT_MS);
+							} finally {
+								mIdleWorkers--;
+							}
+						}
+						// Nothing to do; exit.
+						if (mQueue.size() == 0) {
+							mWorkers.remove(this);
+							return;
+						}
+						task = mQueue.removeFirst();
+					}
+
+					setName(task.getClass().getSimpleName());
+					try {
+						task.run();
+					} finally {
+						// The task may have changed our priority, or been interrupted by a cancel
+						// that arrived just as it finished; neither should affect the next task.
+						setPriority(Thread.NORM_PRIORITY);
+						Thread.interrupted();
+						setName(mIdleName);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Only happens if interrupted while idle; exit.
+			} catch (Exception e) {
+				Logger.logError(e);
+			} finally {
+				synchronized(ManagedTaskPool.this) {
+					mWorkers.remove(this);
+				}
+			}
+		}
+	}
+}
@@ -42,6 +42,8 @@ public class OtherPreferences extends PreferencesBase {
 	public void setupViews(final BookCataloguePreferences prefs) {
 		addBooleanPreference(prefs, R.id.startup_my_books_checkbox, R.id.startup_in_my_books_label, BookCataloguePreferences.PREF_START_IN_MY_BOOKS);
 		addBooleanPreference(prefs, R.id.include_classic_checkbox, R.id.include_classic_label, BookCataloguePreferences.PREF_INCLUDE_CLASSIC_MY_BOOKS);
+		addBooleanPreference(prefs, R.id.use_cover_pack_checkbox, R.id.use_cover_pack_label, BookCataloguePreferences.PREF_USE_COVER_PACK);
+		addBooleanPreference(prefs, R.id.sequential_title_search_checkbox, R.id.sequential_title_search_label, BookCataloguePreferences.PREF_SEQUENTIAL_TITLE_SEARCH);
 	}
 
 	@Override
@@ -0,0 +1,348 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared rate limiter for all network requests, with one token bucket per host.
+ *
+ * Each bucket holds up to 'burst' tokens and refills at 'rate' tokens per second; a request
+ * takes one token. When the bucket is empty the request is given the next free slot, so ten
+ * threads asking at once for a 1/second host get slots 0, 1, 2...9 seconds from now.
+ *
+ * Limits are looked up by host, then by each parent domain in turn (so 'covers.librarything.com'
+ * uses the 'librarything.com' limit); hosts with no configured limit get their own bucket
+ * with the default rate.
+ *
+ * Callers that do not want to block a thread can use reserve() to get the delay until their
+ * slot and schedule the work for then, or tryAcquire() to only proceed if a token is free now.
+ *
+ * @author Philip Warner
+ */
+public class RateLimiter {
+	/** Default rate for hosts with no configured limit */
+	private static final double DEFAULT_RATE = 4;
+	/** Default burst for hosts with no configured limit */
+	private static final int DEFAULT_BURST = 8;
+
+	/** Configured limits; keyed by host or domain */
+	private static final ConcurrentHashMap<String, Bucket> mConfigured = new ConcurrentHashMap<String, Bucket>();
+	/** Bucket used for each host seen, so lookups only walk the domains once */
+	private static final ConcurrentHashMap<String, Bucket> mByHost = new ConcurrentHashMap<String, Bucket>();
+
+	static {
+		setDefaults();
+	}
+
+	/**
+	 * Configure the limits for the known providers.
+	 */
+	private static void setDefaults() {
+		// Goodreads and LibraryThing ToS: no more than 1 request/second. Goodreads images
+		// come from photo.goodreads.com and are not API calls, so only limit the API host.
+		setRate("www.goodreads.com", 1, 1);
+		setRate("librarything.com", 1, 1);
+		setRate("amazon.com", 1, 2);
+		setRate("images-amazon.com", 2, 4);
+		setRate("google.com", 2, 4);
+		setRate("wikipedia.org", 1, 2);
+	}
+
+	/**
+	 * Set the limit for a host, or for a domain and all hosts within it.
+	 *
+	 * @param host		Host or domain name
+	 * @param rate		Requests per second
+	 * @param burst		Number of requests that may be made at once after a quiet period
+	 */
+	public static void setRate(String host, double rate, int burst) {
+		if (rate <= 0 || burst < 1)
+			throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+		host = host.toLowerCase();
+		Bucket b = mConfigured.get(host);
+		if (b != null) {
+			b.setRate(rate, burst);
+		} else {
+			mConfigured.put(host, new Bucket(host, rate, burst));
+			// Hosts may have been resolved to a parent domain or the default already
+			mByHost.clear();
+		}
+	}
+
+	/**
+	 * Discard all limits set with setRate(), and all waits and statistics, and go back to the
+	 * limits for the known providers. Eg. for use after a benchmark.
+	 */
+	public static void resetToDefaults() {
+		mConfigured.clear();
+		mByHost.clear();
+		setDefaults();
+	}
+
+	/**
+	 * Get the bucket for a host.
+	 *
+	 * @param host	Host name; null or empty uses a shared bucket with the default rate
+	 */
+	public static Bucket getBucket(String host) {
+		if (host == null)
+			host = "";
+		host = host.toLowerCase();
+
+		Bucket b = mByHost.get(host);
+		if (b != null)
+			return b;
+
+		// Try the host, then each parent domain
+		String name = host;
+		while (b == null && name.length() > 0) {
+			b = mConfigured.get(name);
+			final int pos = name.indexOf('.');
+			name = pos < 0 ? "" : name.substring(pos + 1);
+		}
+		if (b == null)
+			b = new Bucket(host, DEFAULT_RATE, DEFAULT_BURST);
+
+		Bucket existing = mByHost.putIfAbsent(host, b);
+		return existing == null ? b : existing;
+	}
+
+	/**
+	 * Wait until a request to the passed host is allowed.
+	 *
+	 * @return	Time waited, in milliseconds
+	 *
+	 * @throws InterruptedIOException	if interrupted while waiting; the request must not be made
+	 */
+	public static long acquire(String host) throws InterruptedIOException {
+		return getBucket(host).acquire();
+	}
+
+	/**
+	 * Wait until a request for the passed URL is allowed.
+	 *
+	 * @return	Time waited, in milliseconds
+	 *
+	 * @throws InterruptedIOException	if interrupted while waiting; the request must not be made
+	 */
+	public static long acquire(URL url) throws InterruptedIOException {
+		return acquire(url.getHost());
+	}
+
+	/**
+	 * Wait until a request for the passed URI is allowed.
+	 *
+	 * @return	Time waited, in milliseconds
+	 *
+	 * @throws InterruptedIOException	if interrupted while waiting; the request must not be made
+	 */
+	public static long acquire(URI uri) throws InterruptedIOException {
+		return acquire(uri.getHost());
+	}
+
+	/**
+	 * Reserve a request slot for the passed host without waiting. The caller must not make
+	 * the request until the returned delay has passed.
+	 *
+	 * @return	Milliseconds until the request may be made; 0 for now
+	 */
+	public static long reserve(String host) {
+		return getBucket(host).reserve();
+	}
+
+	/**
+	 * Take a request slot for the passed host only if one is free now.
+	 *
+	 * @return	true if the request may be made
+	 */
+	public static boolean tryAcquire(String host) {
+		return getBucket(host).tryAcquire();
+	}
+
+	/**
+	 * Get a printable summary of the limits and waits for each bucket, suitable for debug emails.
+	 */
+	public static String getSnapshot() {
+		ArrayList<Bucket> all = new ArrayList<Bucket>();
+		for(Bucket b : mByHost.values()) {
+			if (!all.contains(b))
+				all.add(b);
+		}
+		Collections.sort(all, new Comparator<Bucket>() {
+			@Override
+			public int compare(Bucket lhs, Bucket rhs) {
+				return lhs.name.compareTo(rhs.name);
+			}});
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Rate limits (waits in ms: avg/p50/p90/max)\n");
+		for(Bucket b : all)
+			b.appendTo(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Token bucket for one host or domain.
+	 *
+	 * Rather than storing a token count, it stores the time at which the bucket will next be
+	 * full ('mFullAt'). Taking a token moves that time forward by one interval; if it would
+	 * then be more than 'burst' intervals in the future, the caller has to wait for the excess.
+	 * This allows tokens to be reserved in advance without any thread sleeping.
+	 *
+	 * @author Philip Warner
+	 */
+	public static class Bucket {
+		/** Host or domain this bucket applies to */
+		public final String name;
+
+		/** Milliseconds per token */
+		private double mInterval;
+		/** Maximum tokens */
+		private int mBurst;
+		/** Time at which the bucket will be full, given the tokens already taken */
+		private double mFullAt = 0;
+
+		/** Number of requests that did not have to wait */
+		private final AtomicLong mImmediate = new AtomicLong();
+		/** Number of requests that had to wait */
+		private final AtomicLong mDelayed = new AtomicLong();
+		/** Number of tryAcquire() calls that failed */
+		private final AtomicLong mRefused = new AtomicLong();
+		/** Time each request had to wait */
+		private final TaskStatistics.Histogram mWaits = new TaskStatistics.Histogram();
+
+		Bucket(String name, double rate, int burst) {
+			this.name = name;
+			setRate(rate, burst);
+		}
+
+		/**
+		 * Change the limits. Slots already reserved are not affected.
+		 */
+		synchronized void setRate(double rate, int burst) {
+			mInterval = 1000.0 / rate;
+			mBurst = burst;
+		}
+
+		/**
+		 * Take a token, reserving a slot in the future if none is available now.
+		 *
+		 * @return	Milliseconds until the slot; 0 for now
+		 */
+		public long reserve() {
+			final long wait;
+			synchronized(this) {
+				final long now = System.currentTimeMillis();
+				// An idle bucket is full at 'now' and can not get any fuller
+				if (mFullAt < now)
+					mFullAt = now;
+				mFullAt += mInterval;
+				wait = (long)Math.ceil(mFullAt - now - mInterval * mBurst);
+			}
+			if (wait > 0) {
+				mDelayed.incrementAndGet();
+				mWaits.record(wait);
+				return wait;
+			} else {
+				mImmediate.incrementAndGet();
+				mWaits.record(0);
+				return 0;
+			}
+		}
+
+		/**
+		 * Take a token only if one is available now.
+		 *
+		 * @return	true if a token was taken
+		 */
+		public boolean tryAcquire() {
+			synchronized(this) {
+				final long now = System.currentTimeMillis();
+				if (mFullAt < now)
+					mFullAt = now;
+				if (mFullAt + mInterval - now > mInterval * mBurst) {
+					mRefused.incrementAndGet();
+					return false;
+				}
+				mFullAt += mInterval;
+			}
+			mImmediate.incrementAndGet();
+			mWaits.record(0);
+			return true;
+		}
+
+		/**
+		 * Return an unused token; eg. when a caller was interrupted while waiting for its slot.
+		 */
+		public void release() {
+			synchronized(this) {
+				mFullAt -= mInterval;
+			}
+		}
+
+		/**
+		 * Take a token, sleeping until it is available.
+		 *
+		 * @return	Time waited, in milliseconds
+		 *
+		 * @throws InterruptedIOException	if interrupted while waiting; the token is given back
+		 */
+		public long acquire() throws InterruptedIOException {
+			final long wait = reserve();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					// The request must not be made; give the slot back and keep the interrupt
+					release();
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for " + (name.length() == 0 ? "(default)" : name));
+				}
+			}
+			return wait;
+		}
+
+		void appendTo(StringBuilder sb) {
+			final double rate;
+			final int burst;
+			synchronized(this) {
+				rate = 1000.0 / mInterval;
+				burst = mBurst;
+			}
+			sb.append("  ").append(name.length() == 0 ? "(default)" : name)
+				.append(": rate ").append(rate).append("/s, burst ").append(burst)
+				.append(": immediate ").append(mImmediate.get())
+				.append(", delayed ").append(mDelayed.get())
+				.append(", refused ").append(mRefused.get())
+				.append(", wait ");
+			mWaits.appendTo(sb);
+			sb.append('\n');
+		}
+	}
+}
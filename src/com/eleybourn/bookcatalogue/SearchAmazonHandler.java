@@ -167,7 +167,7 @@ public class SearchAmazonHandler extends DefaultHandler {
 	private StringBuilder mBuilder;
 	private String mThumbnailUrl = "";
 	private int mThumbnailSize = -1;
-	private static boolean mFetchThumbnail;
+	private boolean mFetchThumbnail;
 	
 	/* How many results found */
 	public int count = 0;
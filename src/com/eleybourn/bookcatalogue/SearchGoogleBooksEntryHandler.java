@@ -106,7 +106,7 @@ public class SearchGoogleBooksEntryHandler extends DefaultHandler {
 	private StringBuilder builder;
 	
 	private Bundle mValues;
-	private static boolean mFetchThumbnail;
+	private boolean mFetchThumbnail;
 
 	public static String ID = "id";
 	public static String TOTALRESULTS = "totalResults";
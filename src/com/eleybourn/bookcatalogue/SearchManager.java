@@ -20,15 +20,22 @@
 
  package com.eleybourn.bookcatalogue;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Hashtable;
 
 import android.os.Bundle;
+import android.os.Handler;
 
+import com.eleybourn.bookcatalogue.BookCatalogueApp.BookCataloguePreferences;
 import com.eleybourn.bookcatalogue.ManagedTask.TaskHandler;
 import com.eleybourn.bookcatalogue.SearchThread.SearchTaskHandler;
+import com.eleybourn.bookcatalogue.SimpleTaskQueue.SimpleTask;
+import com.eleybourn.bookcatalogue.SimpleTaskQueue.SimpleTaskContext;
 import com.eleybourn.bookcatalogue.TaskManager.OnTaskEndedListener;
+import com.eleybourn.bookcatalogue.database.SearchCacheDbHelper;
 
 /**
  * Class to co-ordinate multiple SearchThread objects using an existing TaskManager.
@@ -65,6 +72,38 @@ public class SearchManager implements OnTaskEndedListener {
 	private Bundle mBookData = null;
 	// Flag indicating searches will be non-concurrent until an ISBN is found
 	private boolean mWaitingForIsbn = false;
+	// Flag indicating searches without an ISBN are run at once, and reconciled by ISBN when they finish
+	private boolean mReconcilingIsbn = false;
+	// Sources from the first (concurrent) pass that have not yet reported
+	private int mFirstPassPending = 0;
+	// Sources currently being searched
+	private int mRunningSources = 0;
+	// Fields which, once all have been found, allow the search to finish without waiting for 
+	// the remaining sources. null to wait for all sources.
+	private String[] mRequiredFields = null;
+	// Latency percentile (0.0-1.0) of a source after which the search stops waiting for it if
+	// other sources have already found the book; 0 for no hedging.
+	private double mHedgePercentile = 0;
+	// Time each running search was started
+	private Hashtable<SearchThread, Long> mStartTimes = new Hashtable<SearchThread, Long>();
+	// Handler used to schedule hedging searches; created in the UI thread
+	private Handler mHandler = null;
+	// Whether to use the search results cache
+	private boolean mUseCache = true;
+	// Sources whose results came from the cache
+	private int mCachedSources = 0;
+	// Cache key for the original search parameters
+	private String mCacheKey = null;
+
+	/** Single thread queue for writing to the search cache */
+	private static final SimpleTaskQueue mCacheWriter = new SimpleTaskQueue("search-cache", 1).setDefaultPriority(SimpleTaskQueue.PRIORITY_BACKGROUND);
+	/** Queue for reading the search cache before a search starts; created in the UI thread */
+	private static SimpleTaskQueue mCacheReader = null;
+
+	/** Minimum time to wait before hedging a search */
+	private static final long MIN_HEDGE_DELAY_MS = 500;
+	/** Recent latencies of each source, shared by all searches */
+	private static final Hashtable<Integer, LatencyTracker> mLatencies = new Hashtable<Integer, LatencyTracker>();
 	// Flag indicating a task was cancelled.
 	private boolean mCancelledFlg = false;
 	// Flag to indicate search finished
@@ -103,7 +142,7 @@ public class SearchManager implements OnTaskEndedListener {
 	 * @param taskManager	TaskManager to use
 	 * @param taskHandler	SearchHandler to send results
 	 */
-	SearchManager(TaskManager taskManager, SearchResultHandler taskHandler) {
+	public SearchManager(TaskManager taskManager, SearchResultHandler taskHandler) {
 		mTaskManager = taskManager;
 		mSearchHandler = taskHandler;
 	}
@@ -125,6 +164,99 @@ public class SearchManager implements OnTaskEndedListener {
 			mSearchHandler.onSearchFinished(mBookData, mCancelledFlg);
 	}
 	
+	/**
+	 * Set the fields which, once all have been found by any source, allow the search to finish 
+	 * without waiting for the remaining sources; these are then cancelled. Takes effect from the 
+	 * next call to search().
+	 * 
+	 * @param fields	Keys of book data (use "__thumbnail" for the cover), or null to wait for all sources
+	 */
+	public void setRequiredFields(String[] fields) {
+		mRequiredFields = fields;
+	}
+
+	/**
+	 * Set whether results may be taken from, and saved to, the search results cache. Defaults
+	 * to true.
+	 */
+	public void setUseCache(boolean useCache) {
+		mUseCache = useCache;
+	}
+
+	/**
+	 * Enable hedging: if a source has not answered within the given percentile of its recent 
+	 * response times and other sources have already found the book, stop waiting for it and 
+	 * finish with the results that are in.
+	 * 
+	 * @param percentile	0.0 to 1.0, or 0 to disable
+	 */
+	public void setHedgePercentile(double percentile) {
+		mHedgePercentile = percentile;
+	}
+
+	/**
+	 * Get the response time of a source at a given percentile of its recent searches.
+	 * 
+	 * @param source		Source, eg. SEARCH_GOOGLE
+	 * @param percentile	0.0 to 1.0
+	 * 
+	 * @return	Time in milliseconds, or 0 if there have not been enough searches to tell
+	 */
+	public static long getSourceLatency(int source, double percentile) {
+		return getLatencyTracker(source).getPercentile(percentile);
+	}
+
+	private static LatencyTracker getLatencyTracker(int source) {
+		synchronized(mLatencies) {
+			LatencyTracker t = mLatencies.get(source);
+			if (t == null) {
+				t = new LatencyTracker();
+				mLatencies.put(source, t);
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * Keeps the most recent response times of a source.
+	 * 
+	 * @author Philip Warner
+	 */
+	private static class LatencyTracker {
+		private static final int SAMPLES = 32;
+		/** Percentiles are not reported until there are at least this many samples */
+		private static final int MIN_SAMPLES = 5;
+		private final long[] mSamples = new long[SAMPLES];
+		private int mCount = 0;
+		private int mNext = 0;
+
+		synchronized void record(long ms) {
+			mSamples[mNext] = ms;
+			mNext = (mNext + 1) % SAMPLES;
+			if (mCount < SAMPLES)
+				mCount++;
+		}
+
+		synchronized long getPercentile(double percentile) {
+			if (mCount < MIN_SAMPLES)
+				return 0;
+			long[] sorted = new long[mCount];
+			System.arraycopy(mSamples, 0, sorted, 0, mCount);
+			Arrays.sort(sorted);
+			int pos = (int)Math.ceil(percentile * mCount) - 1;
+			return sorted[Math.max(0, Math.min(mCount - 1, pos))];
+		}
+	}
+
+	/**
+	 * See if the passed task is one of the searches started by this object and not yet ended.
+	 */
+	public boolean isRunning(ManagedTask t) {
+		synchronized(mRunningTasks) {
+			return mRunningTasks.contains(t);
+		}
+	}
+
 	public TaskHandler getTaskHandler(ManagedTask t) {
 		if (t instanceof SearchThread) {
 			return mGenericSearchHandler;
@@ -141,7 +273,9 @@ public class SearchManager implements OnTaskEndedListener {
 	public void onTaskEnded(TaskManager manager, ManagedTask task) {
 		int size;
 		synchronized(mRunningTasks) {
-			mRunningTasks.remove(task);
+			// Several SearchManagers may share a TaskManager; ignore tasks that are not ours.
+			if (!mRunningTasks.remove(task))
+				return;
 			size = mRunningTasks.size();
 		}
 		if (size == 0) {
@@ -155,11 +289,110 @@ public class SearchManager implements OnTaskEndedListener {
 	 * 
 	 * @param thread	Task to start
 	 */
-	private void startOne(SearchThread thread) {
+	private void startOne(final SearchThread thread) {
 		synchronized(mRunningTasks) {
 			mRunningTasks.add(thread);
 		}
+		mRunningSources |= thread.getSearchId();
+		mStartTimes.put(thread, System.currentTimeMillis());
 		thread.start();
+
+		// If hedging, check again when this source is unusually slow.
+		if (mHedgePercentile > 0 && mHandler != null) {
+			final long delay = getSourceLatency(thread.getSearchId(), mHedgePercentile);
+			if (delay > 0) {
+				mHandler.postDelayed(new Runnable() {
+					@Override
+					public void run() {
+						hedge(thread);
+					}}, Math.max(delay, MIN_HEDGE_DELAY_MS));
+			}
+		}
+	}
+
+	/**
+	 * Called when a source has taken longer than the hedging percentile. If it has still not
+	 * answered and another source has found the book, cancel it; the search finishes as soon
+	 * as the other sources have reported.
+	 */
+	private void hedge(SearchThread slow) {
+		// Wait for all sources while they may yet disagree about which book it is.
+		if (mFinished || mCancelledFlg || mWaitingForIsbn || mReconcilingIsbn)
+			return;
+		if (!hasFoundBook())
+			return;
+
+		final int remaining;
+		synchronized(mRunningTasks) {
+			if (!mRunningTasks.remove(slow))
+				return;
+			remaining = mRunningTasks.size();
+		}
+		slow.cancelTask();
+		mRunningSources &= ~slow.getSearchId();
+		// Record how long we waited so that the percentile does not only reflect the fast searches
+		Long started = mStartTimes.remove(slow);
+		if (started != null)
+			getLatencyTracker(slow.getSearchId()).record(System.currentTimeMillis() - started);
+		System.out.println("SearchManager: source " + slow.getSearchId() + " is slow; not waiting for it");
+
+		if (remaining == 0) {
+			mTaskManager.removeOnTaskEndedListener(this);
+			finish();
+		}
+	}
+
+	/**
+	 * See if any source has returned a title.
+	 */
+	private boolean hasFoundBook() {
+		for(Bundle data: mSearchResults.values()) {
+			if (Utils.isNonBlankString(data, CatalogueDBAdapter.KEY_TITLE))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * See if every required field has been found by at least one source.
+	 */
+	private boolean hasRequiredFields() {
+		if (mRequiredFields == null)
+			return false;
+		for(String field: mRequiredFields) {
+			boolean found = false;
+			for(Bundle data: mSearchResults.values()) {
+				if (Utils.isNonBlankString(data, field)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finish without waiting for the remaining sources, and cancel them. Any results they 
+	 * send are ignored since they are no longer in mRunningTasks.
+	 * 
+	 * @param current	Task that has just reported; it does not need to be cancelled.
+	 */
+	private void finishEarly(SearchThread current) {
+		ArrayList<ManagedTask> others;
+		synchronized(mRunningTasks) {
+			others = new ArrayList<ManagedTask>(mRunningTasks);
+			mRunningTasks.clear();
+		}
+		for(ManagedTask t: others) {
+			if (t != current)
+				t.cancelTask();
+		}
+		mRunningSources = 0;
+		mStartTimes.clear();
+		mTaskManager.removeOnTaskEndedListener(this);
+		finish();
 	}
 
 	/**
@@ -231,6 +464,10 @@ public class SearchManager implements OnTaskEndedListener {
 		mSearchResults = new Hashtable<Integer,Bundle>();
 
 		mWaitingForIsbn = false;
+		mReconcilingIsbn = false;
+		mFirstPassPending = 0;
+		mRunningSources = 0;
+		mStartTimes.clear();
 		mCancelledFlg = false;
 		mFinished = false;
 
@@ -239,32 +476,164 @@ public class SearchManager implements OnTaskEndedListener {
 		mIsbn = isbn;
 		mFetchThumbnail = fetchThumbnail;
 
+		mCachedSources = 0;
+		mCacheKey = null;
+
 		if (mTaskManager.runningInUiThread()) {
-			doSearch();
+			startSearch();
 		} else {
 			mTaskManager.postToUiThread(new Runnable() {
 				@Override
 				public void run() {
-					doSearch();
+					startSearch();
 				}});
 		}
 	}
+
+	/**
+	 * Read the cache in the background, if it is used, then start the searches. Always called
+	 * in the UI thread.
+	 */
+	private void startSearch() {
+		if (!mUseCache) {
+			doSearch();
+			return;
+		}
+		getCacheReader().enqueue(new SimpleTask() {
+			@Override
+			public void run(SimpleTaskContext taskContext) {
+				loadFromCache();
+			}
+			@Override
+			public void onFinish() {
+				doSearch();
+			}
+			@Override
+			public boolean requiresOnFinish() {
+				return true;
+			}});
+	}
+
+	/**
+	 * Get the cache reader queue, creating it if necessary. Must be called in the UI thread so
+	 * that results are delivered there.
+	 */
+	private static SimpleTaskQueue getCacheReader() {
+		if (mCacheReader == null)
+			mCacheReader = new SimpleTaskQueue("search-cache-read", 2);
+		return mCacheReader;
+	}
+
+	/**
+	 * Fill in results from the cache for any sources that have them; run in a background thread
+	 * before any search is started. If the search had no ISBN
+	 * but a cached result has one, the ISBN is used to look up the other sources too, and the
+	 * rest of the search will be done as an ISBN search.
+	 */
+	private void loadFromCache() {
+		mCacheKey = SearchCacheDbHelper.getLookupKey(mIsbn, mAuthor, mTitle);
+		if (mCacheKey == null)
+			return;
+		try {
+			SearchCacheDbHelper cache = SearchCacheDbHelper.getInstance();
+			loadFromCache(cache, mCacheKey);
+			if (mIsbn == null || mIsbn.length() == 0) {
+				for(int source: mSearchPriority) {
+					Bundle data = mSearchResults.get(source);
+					if (data != null && Utils.isNonBlankString(data, CatalogueDBAdapter.KEY_ISBN)) {
+						mIsbn = data.getString(CatalogueDBAdapter.KEY_ISBN);
+						loadFromCache(cache, SearchCacheDbHelper.getLookupKey(mIsbn, null, null));
+						break;
+					}
+				}
+			}
+		} catch (Exception e) {
+			// The cache is only an optimization; search everything.
+			Logger.logError(e);
+		}
+		if (mCachedSources != 0)
+			System.out.println("SearchManager: sources " + mCachedSources + " served from cache");
+	}
+
+	private void loadFromCache(SearchCacheDbHelper cache, String key) {
+		for(int source: mSearchPriority) {
+			if ((mSearchFlags & source) != 0 && !mSearchResults.containsKey(source)) {
+				Bundle data = cache.get(source, key, mFetchThumbnail);
+				if (data != null) {
+					mSearchResults.put(source, data);
+					mCachedSources |= source;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queue the results from sources that were searched to be saved in the cache. Saved under
+	 * the ISBN, if known, and also under the original author/title if that was what was 
+	 * searched for. Covers are read now, before finish() deletes or renames them.
+	 */
+	private void saveToCache() {
+		final String isbnKey = SearchCacheDbHelper.getLookupKey(mIsbn, mAuthor, mTitle);
+		final String[] keys;
+		if (isbnKey == null || isbnKey.equals(mCacheKey))
+			keys = new String[] {mCacheKey};
+		else
+			keys = new String[] {isbnKey, mCacheKey};
+
+		for(final int source: mSearchPriority) {
+			final Bundle data = mSearchResults.get(source);
+			if (data == null || (mCachedSources & source) != 0)
+				continue;
+			final boolean found = Utils.isNonBlankString(data, CatalogueDBAdapter.KEY_TITLE);
+			final byte[] cover = found ? SearchCacheDbHelper.readCover(data) : null;
+			final boolean withCovers = mFetchThumbnail;
+			mCacheWriter.enqueue(new SimpleTask() {
+				@Override
+				public void run(SimpleTaskContext taskContext) {
+					SearchCacheDbHelper.getInstance().put(source, keys, data, found, withCovers, cover);
+				}
+				@Override
+				public void onFinish() {
+				}
+				@Override
+				public boolean requiresOnFinish() {
+					return false;
+				}});
+		}
+	}
+
 	private void doSearch() {
+		// Always in the UI thread here
+		if (mHandler == null)
+			mHandler = new Handler();
+
 		// List for task ends
 		mTaskManager.addOnTaskEndedListener(this);
 		
-		// We really want to ensure we get the same book from each, so if isbn is not present, do
-		// these in series.
+		// We really want to ensure we get the same book from each, so if isbn is not present, either 
+		// do these in series, or do them all at once and then re-query any that found a different book.
 
 		boolean tasksStarted = false;
 		try {
 			if (mIsbn != null && mIsbn.length() > 0) {
 				mWaitingForIsbn = false;
-				tasksStarted = this.startSearches(mSearchFlags);
-			} else {
+				// The cache may already have everything the caller needs.
+				if (!hasRequiredFields())
+					tasksStarted = this.startSearches(mSearchFlags);
+			} else if (BookCatalogueApp.getAppPreferences().getBoolean(BookCataloguePreferences.PREF_SEQUENTIAL_TITLE_SEARCH, false)) {
 				// Run one at a time, startNext() defined the order.
 				mWaitingForIsbn = true;
 				tasksStarted = startNext();
+			} else {
+				// Run everything that can search without an ISBN, and reconcile the results. Sources
+				// already answered from the cache are not searched again.
+				mReconcilingIsbn = true;
+				for(int source: mSearchPriority) {
+					if ((mSearchFlags & source) != 0 && !mSearchResults.containsKey(source) && startOneSearch(source)) {
+						mFirstPassPending |= source;
+						tasksStarted = true;
+					}
+				}
 			}			
 		} finally {
 			if (!tasksStarted) {
@@ -333,6 +702,14 @@ public class SearchManager implements OnTaskEndedListener {
 	 * Combine all the data and create a book or display an error.
 	 */
 	private void finish() {
+		if (mUseCache && !mCancelledFlg && mCacheKey != null) {
+			try {
+				saveToCache();
+			} catch (Exception e) {
+				Logger.logError(e);
+			}
+		}
+
 		// Merge the data we have. We do this in a fixed order rather than as the threads finish.
 		for(int i: mSearchPriority)
 			accumulateData(i);
@@ -397,7 +774,7 @@ public class SearchManager implements OnTaskEndedListener {
 			// If this search includes the source, check it
 			if ( (mSearchFlags & source) != 0) {
 				// If the source has not been search, search it
-				if (!mSearchResults.containsKey(source)) {
+				if (!mSearchResults.containsKey(source) && (mRunningSources & source) == 0) {
 					return startOneSearch(source);
 				}
 			}
@@ -405,6 +782,65 @@ public class SearchManager implements OnTaskEndedListener {
 		return false;
 	}
 
+	/**
+	 * Called when all sources in the first pass of a concurrent search have reported. Picks
+	 * the ISBN found by most sources (ties go to the source with the highest priority), 
+	 * discards the results from sources that found a different book or no ISBN at all, and
+	 * searches those again along with any sources that need an ISBN.
+	 */
+	private void reconcileIsbn() {
+		// Count the sources that found each ISBN, noting the ISBNs in the order of the
+		// first source that found each one.
+		Hashtable<String, Integer> votes = new Hashtable<String, Integer>();
+		ArrayList<String> isbns = new ArrayList<String>();
+		for(int source: mSearchPriority) {
+			Bundle data = mSearchResults.get(source);
+			if (data != null && Utils.isNonBlankString(data, CatalogueDBAdapter.KEY_ISBN)) {
+				final String isbn = Utils.normaliseIsbn(data.getString(CatalogueDBAdapter.KEY_ISBN));
+				if (isbn.length() == 0)
+					continue;
+				Integer count = votes.get(isbn);
+				if (count == null)
+					isbns.add(isbn);
+				votes.put(isbn, (count == null ? 1 : count + 1));
+			}
+		}
+		// Pick the most votes; checking in priority order means ties go to the higher priority source.
+		String consensus = null;
+		int best = 0;
+		for(String isbn: isbns) {
+			final int count = votes.get(isbn);
+			if (count > best) {
+				best = count;
+				consensus = isbn;
+			}
+		}
+		// Nothing found an ISBN; we have all we are going to get.
+		if (consensus == null)
+			return;
+
+		for(int source: mSearchPriority) {
+			Bundle data = mSearchResults.get(source);
+			if (data == null)
+				continue;
+			final boolean agrees = Utils.isNonBlankString(data, CatalogueDBAdapter.KEY_ISBN) 
+									&& Utils.normaliseIsbn(data.getString(CatalogueDBAdapter.KEY_ISBN)).equals(consensus);
+			if (agrees) {
+				// Use the ISBN as written by the highest priority source that agrees.
+				if (mIsbn == null || mIsbn.length() == 0)
+					mIsbn = data.getString(CatalogueDBAdapter.KEY_ISBN);
+			} else {
+				// Discard the answer, and any covers it fetched, so the source is searched again.
+				if (data.containsKey("__thumbnail")) {
+					for(String file: Utils.decodeList(data.getString("__thumbnail"), '|'))
+						new File(file).delete();
+				}
+				mSearchResults.remove(source);
+			}
+		}
+		startSearches(mSearchFlags);
+	}
+
 	/**
 	 * Start all searches listed in passed parameter that have not been run yet.
 	 * 
@@ -417,7 +853,7 @@ public class SearchManager implements OnTaskEndedListener {
 			// If requested search contains this source...
 			if ((sources & source) != 0)
 				// If we have not run this search...
-				if (!mSearchResults.containsKey(source)) {
+				if (!mSearchResults.containsKey(source) && (mRunningSources & source) == 0) {
 					// Run it now
 					if (startOneSearch(source))
 						started = true;
@@ -453,10 +889,27 @@ public class SearchManager implements OnTaskEndedListener {
 	private SearchTaskHandler mGenericSearchHandler = new SearchTaskHandler() {
 		@Override
 		public void onSearchThreadFinish(SearchThread t, Bundle bookData, boolean cancelled) {
+			// Ignore searches we have stopped waiting for
+			synchronized(mRunningTasks) {
+				if (mFinished || !mRunningTasks.contains(t))
+					return;
+			}
+			mRunningSources &= ~t.getSearchId();
+			Long started = mStartTimes.remove(t);
+			if (started != null && !cancelled)
+				getLatencyTracker(t.getSearchId()).record(System.currentTimeMillis() - started);
+
 			mCancelledFlg = cancelled;
 			mSearchResults.put(t.getSearchId(), bookData);
 			if (cancelled) {
 				mWaitingForIsbn = false;
+				mReconcilingIsbn = false;
+			} else if (mReconcilingIsbn) {
+				mFirstPassPending &= ~t.getSearchId();
+				if (mFirstPassPending == 0) {
+					mReconcilingIsbn = false;
+					reconcileIsbn();
+				}
 			} else {
 				if (mWaitingForIsbn) {
 					if (Utils.isNonBlankString(bookData, CatalogueDBAdapter.KEY_ISBN)) {
@@ -470,6 +923,11 @@ public class SearchManager implements OnTaskEndedListener {
 					}
 				}				
 			}
+
+			// Stop now if we have everything the caller needs, unless the sources may yet 
+			// be found to disagree about which book it is.
+			if (!cancelled && !mWaitingForIsbn && !mReconcilingIsbn && hasRequiredFields())
+				finishEarly(t);
 		}
 	};
 
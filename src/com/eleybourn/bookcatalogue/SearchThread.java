@@ -21,6 +21,8 @@
 package com.eleybourn.bookcatalogue;
 
 import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedList;
 
 import com.eleybourn.bookcatalogue.Series.SeriesDetails;
 
@@ -31,7 +33,7 @@ abstract public class SearchThread extends ManagedTask {
 	protected String mAuthor;
 	protected String mTitle;
 	protected String mIsbn;
-	protected static boolean mFetchThumbnail;
+	protected boolean mFetchThumbnail;
 
 	// Accumulated book info.
 	protected Bundle mBookData = new Bundle();
@@ -60,6 +62,72 @@ abstract public class SearchThread extends ManagedTask {
 
 	public abstract int getSearchId();
 
+	/** Maximum number of searches of the same site that may run at once */
+	private static final int MAX_PER_SOURCE = 2;
+	/** Number of searches started for each site, keyed by search ID. Protected by mSourceWaiting. */
+	private static final Hashtable<Integer, Integer> mSourceRunning = new Hashtable<Integer, Integer>();
+	/** Searches waiting for each site, in the order they were started, keyed by search ID */
+	private static final Hashtable<Integer, LinkedList<SearchThread>> mSourceWaiting = new Hashtable<Integer, LinkedList<SearchThread>>();
+
+	/**
+	 * Limit the number of concurrent searches of each site, so that running several searches
+	 * at once (eg. in UpdateThumbnailsThread) does not hammer any one of them. A search is only
+	 * given to the pool when its site has a free slot, so waiting searches do not hold pool threads.
+	 */
+	@Override
+	public void start() {
+		final int id = getSearchId();
+		synchronized(mSourceWaiting) {
+			final Integer running = mSourceRunning.get(id);
+			if (running != null && running >= MAX_PER_SOURCE) {
+				LinkedList<SearchThread> waiting = mSourceWaiting.get(id);
+				if (waiting == null) {
+					waiting = new LinkedList<SearchThread>();
+					mSourceWaiting.put(id, waiting);
+				}
+				waiting.add(this);
+				return;
+			}
+			mSourceRunning.put(id, running == null ? 1 : running + 1);
+		}
+		super.start();
+	}
+
+	/**
+	 * Run the search, then pass its slot to the next search of the same site, if any.
+	 */
+	@Override
+	public void run() {
+		try {
+			super.run();
+		} finally {
+			startNextSearch(getSearchId());
+		}
+	}
+
+	/**
+	 * Start the next search waiting for a site, or free the slot if none are waiting.
+	 */
+	private static void startNextSearch(int id) {
+		SearchThread next = null;
+		synchronized(mSourceWaiting) {
+			LinkedList<SearchThread> waiting = mSourceWaiting.get(id);
+			if (waiting != null)
+				next = waiting.poll();
+			if (next == null)
+				mSourceRunning.put(id, mSourceRunning.get(id) - 1);
+		}
+		if (next != null)
+			next.dispatch();
+	}
+
+	/**
+	 * Give the search to the pool; it already has a slot.
+	 */
+	private void dispatch() {
+		super.start();
+	}
+
 	/**
 	 * Task handler for thread management; caller MUST implement this to get
 	 * search results.
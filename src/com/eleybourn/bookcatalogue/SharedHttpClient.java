@@ -0,0 +1,334 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Single HttpClient shared by all network code, so that connections are pooled and kept alive
+ * between requests rather than paying for a new TCP (and TLS) handshake on every call.
+ *
+ * The client is thread-safe. It limits the number of connections per host, asks for gzip or
+ * deflate compression and decompresses responses transparently, and closes connections that
+ * have been idle for a while.
+ *
+ * Callers must consume or close the response entity (or abort the request) so that the
+ * connection is returned to the pool.
+ *
+ * A request that sets its own Accept-Encoding header (eg. 'identity' for a resumable download)
+ * is left alone.
+ *
+ * @author Philip Warner
+ */
+public class SharedHttpClient {
+	/** Maximum connections to any one host */
+	private static final int MAX_PER_HOST = 4;
+	/** Maximum connections in total */
+	private static final int MAX_TOTAL = 16;
+	/** Time to wait for a connection from the pool */
+	private static final long POOL_TIMEOUT_MS = 30000;
+	/** Connections idle for longer than this are closed */
+	private static final long IDLE_TIMEOUT_MS = 30000;
+	/** Default connection timeout */
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 30000;
+	/** Default socket read timeout */
+	public static final int DEFAULT_SOCKET_TIMEOUT_MS = 60000;
+
+	/** Punctuation that may appear in a URI, including '%' for existing escapes */
+	private static final String LEGAL_URI_CHARS = "-._~:/?#[]@!$&'()*+,;=%";
+	/** For escaping */
+	private static final String HEX = "0123456789ABCDEF";
+
+	/** The shared client */
+	private static DefaultHttpClient mClient = null;
+	/** Last time idle connections were closed */
+	private static long mLastIdleCheck = 0;
+	/** Replacement base URLs, keyed by host; used to point providers at a local stand-in */
+	private static final ConcurrentHashMap<String, String> mBaseUrls = new ConcurrentHashMap<String, String>();
+
+	/** Number of requests sent */
+	private static final AtomicLong mRequests = new AtomicLong();
+	/** Number of requests sent on a connection that had already been used */
+	private static final AtomicLong mReused = new AtomicLong();
+	/** Number of responses that were compressed */
+	private static final AtomicLong mCompressed = new AtomicLong();
+
+	/**
+	 * Get the shared client, creating it if necessary.
+	 */
+	public static synchronized DefaultHttpClient get() {
+		if (mClient == null)
+			mClient = create();
+
+		// Keep-alive connections that have been idle a while have probably been dropped by the
+		// server; close them rather than discovering that on the next request.
+		final long now = System.currentTimeMillis();
+		if (now - mLastIdleCheck > IDLE_TIMEOUT_MS / 3) {
+			mLastIdleCheck = now;
+			mClient.getConnectionManager().closeIdleConnections(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		}
+		return mClient;
+	}
+
+	/**
+	 * Send a request using the shared client, first pointing it at the replacement base URL
+	 * for its host, if one has been set.
+	 *
+	 * @param request	Request to send
+	 *
+	 * @return	Response; the caller must consume its entity
+	 */
+	public static HttpResponse execute(HttpUriRequest request) throws IOException {
+		if (!mBaseUrls.isEmpty() && request instanceof HttpRequestBase) {
+			final URI uri = request.getURI();
+			final String base = uri.getHost() == null ? null : mBaseUrls.get(uri.getHost().toLowerCase());
+			if (base != null) {
+				StringBuilder sb = new StringBuilder(base);
+				final String path = uri.getRawPath();
+				sb.append(path == null || path.length() == 0 ? "/" : path);
+				if (uri.getRawQuery() != null)
+					sb.append('?').append(uri.getRawQuery());
+				((HttpRequestBase)request).setURI(URI.create(sb.toString()));
+			}
+		}
+		return get().execute(request);
+	}
+
+	/**
+	 * Send all requests for a host to a different base URL (eg. 'http://127.0.0.1:8080/www.goodreads.com')
+	 * instead; the path and query of each request are appended to it. Used to run provider
+	 * code against a local stand-in server.
+	 *
+	 * @param host		Host name as used by the provider
+	 * @param baseUrl	Replacement, with no trailing '/'; null to go back to the real host
+	 */
+	public static void setBaseUrl(String host, String baseUrl) {
+		if (baseUrl == null)
+			mBaseUrls.remove(host.toLowerCase());
+		else
+			mBaseUrls.put(host.toLowerCase(), baseUrl);
+	}
+
+	/**
+	 * Send all requests to their real hosts.
+	 */
+	public static void clearBaseUrls() {
+		mBaseUrls.clear();
+	}
+
+	/**
+	 * Set the timeouts used by subsequent requests.
+	 *
+	 * @param connectMs		Time to wait for a connection to be made
+	 * @param socketMs		Time to wait for data once connected
+	 */
+	public static void setTimeouts(int connectMs, int socketMs) {
+		HttpParams params = get().getParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectMs);
+		HttpConnectionParams.setSoTimeout(params, socketMs);
+	}
+
+	/**
+	 * Consume the rest of a response so that its connection can be reused.
+	 */
+	public static void consume(HttpResponse response) {
+		if (response == null)
+			return;
+		HttpEntity e = response.getEntity();
+		if (e != null) {
+			try {
+				e.consumeContent();
+			} catch (IOException ex) {
+				// Connection will not be reused; nothing else to do
+			}
+		}
+	}
+
+	/**
+	 * Convert a URL to a URI for use in a request. URLConnection accepts URLs containing
+	 * characters that are not legal in a URI (eg. spaces or quotes in a search term) so, for
+	 * compatibility, those are escaped here. Existing escapes are left alone.
+	 */
+	public static URI toUri(URL url) throws URISyntaxException {
+		final String s = url.toString();
+		try {
+			return new URI(s);
+		} catch (URISyntaxException e) {
+			// Fall through and escape
+		}
+		StringBuilder sb = new StringBuilder(s.length() + 16);
+		for(int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || LEGAL_URI_CHARS.indexOf(c) >= 0) {
+				sb.append(c);
+			} else {
+				byte[] bytes;
+				try {
+					bytes = String.valueOf(c).getBytes("UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					bytes = new byte[] {(byte)'?'};
+				}
+				for(byte b : bytes) {
+					sb.append('%');
+					sb.append(HEX.charAt((b >> 4) & 0x0f));
+					sb.append(HEX.charAt(b & 0x0f));
+				}
+			}
+		}
+		return new URI(sb.toString());
+	}
+
+	/**
+	 * Get a printable summary of connection reuse, suitable for debug emails.
+	 */
+	public static String getStatistics() {
+		final long requests = mRequests.get();
+		final long reused = mReused.get();
+		return "HTTP: requests " + requests + ", on reused connections " + reused
+				+ (requests == 0 ? "" : " (" + (reused * 100 / requests) + "%)")
+				+ ", compressed responses " + mCompressed.get() + "\n";
+	}
+
+	/**
+	 * Build the client
+	 */
+	private static DefaultHttpClient create() {
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, DEFAULT_CONNECT_TIMEOUT_MS);
+		HttpConnectionParams.setSoTimeout(params, DEFAULT_SOCKET_TIMEOUT_MS);
+		// Fixed buffer sizes to deal with potentially exorbitant settings on some HTC handsets.
+		HttpConnectionParams.setSocketBufferSize(params, 8192);
+		HttpConnectionParams.setLinger(params, 0);
+		HttpConnectionParams.setTcpNoDelay(params, false);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_PER_HOST));
+		ConnManagerParams.setTimeout(params, POOL_TIMEOUT_MS);
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		DefaultHttpClient client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params);
+
+		client.addRequestInterceptor(new HttpRequestInterceptor() {
+			@Override
+			public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+				if (!request.containsHeader("Accept-Encoding"))
+					request.addHeader("Accept-Encoding", "gzip,deflate");
+			}});
+
+		client.addResponseInterceptor(new HttpResponseInterceptor() {
+			@Override
+			public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+				mRequests.incrementAndGet();
+				// The connection has already sent this request, so more than one means it was reused
+				Object conn = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+				if (conn instanceof HttpConnection) {
+					HttpConnection c = (HttpConnection)conn;
+					if (c.getMetrics() != null && c.getMetrics().getRequestCount() > 1)
+						mReused.incrementAndGet();
+				}
+
+				HttpEntity entity = response.getEntity();
+				if (entity == null)
+					return;
+				Header enc = entity.getContentEncoding();
+				if (enc == null)
+					return;
+				final String name = enc.getValue().trim().toLowerCase();
+				if (name.equals("gzip")) {
+					mCompressed.incrementAndGet();
+					response.setEntity(new DecompressingEntity(entity, true));
+				} else if (name.equals("deflate")) {
+					mCompressed.incrementAndGet();
+					response.setEntity(new DecompressingEntity(entity, false));
+				}
+			}});
+
+		return client;
+	}
+
+	/**
+	 * Entity that decompresses the wrapped entity's content.
+	 *
+	 * @author Philip Warner
+	 */
+	private static class DecompressingEntity extends HttpEntityWrapper {
+		private final boolean mGzip;
+
+		DecompressingEntity(HttpEntity wrapped, boolean gzip) {
+			super(wrapped);
+			mGzip = gzip;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			InputStream in = wrappedEntity.getContent();
+			return mGzip ? new GZIPInputStream(in) : new InflaterInputStream(in);
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+
+		@Override
+		public long getContentLength() {
+			// Not known until decompressed
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.util.ArrayList;
+
+import com.eleybourn.bookcatalogue.SimpleTaskQueue.SimpleTaskContext;
+import com.eleybourn.bookcatalogue.database.CoversDbHelper;
+
+/**
+ * Pool of worker threads shared by all SimpleTaskQueue objects. Each SimpleTaskQueue is now just
+ * a logical queue with its own ordering and concurrency limit; the work is done by a small number
+ * of threads sized to the number of processors.
+ *
+ * Queues with work are serviced round-robin so that a busy queue can not starve the others, and
+ * no single queue may use every worker. Each worker keeps its own database connections (see
+ * SimpleTaskContext) which are reused by tasks from any queue, and closed when the worker has
+ * been idle for a while and exits.
+ *
+ * @author Philip Warner
+ */
+public class SimpleTaskPool {
+	/** Time a worker waits for work before exiting */
+	private static final long IDLE_TIMEOUT_MS = 15000;
+
+	/** The single shared pool */
+	private static SimpleTaskPool mInstance = null;
+
+	/** Maximum number of workers; one more than the processor count so a task waiting on I/O does not stall the rest */
+	private final int mMaxWorkers;
+	/** All live workers */
+	private final ArrayList<Worker> mWorkers = new ArrayList<Worker>();
+	/** Number of workers waiting for work */
+	private int mIdleWorkers = 0;
+	/** Queues that may have work, in round-robin order */
+	private final ArrayList<SimpleTaskQueue> mQueues = new ArrayList<SimpleTaskQueue>();
+	/** Position of next queue to check */
+	private int mNextQueue = 0;
+
+	/**
+	 * Get the shared pool.
+	 */
+	public static synchronized SimpleTaskPool getInstance() {
+		if (mInstance == null)
+			mInstance = new SimpleTaskPool(Math.max(2, Runtime.getRuntime().availableProcessors()) + 1);
+		return mInstance;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxWorkers	Maximum number of worker threads
+	 */
+	private SimpleTaskPool(int maxWorkers) {
+		mMaxWorkers = maxWorkers;
+	}
+
+	/**
+	 * Get the maximum number of workers a single queue may use.
+	 */
+	int getMaxWorkersPerQueue() {
+		return Math.max(1, mMaxWorkers - 1);
+	}
+
+	/**
+	 * Tell the pool that the passed queue has work. Must not be called while holding the queue lock.
+	 *
+	 * @param queue		Queue with work to do
+	 */
+	void signal(SimpleTaskQueue queue) {
+		synchronized(this) {
+			if (!mQueues.contains(queue))
+				mQueues.add(queue);
+
+			if (mIdleWorkers > 0) {
+				this.notifyAll();
+			} else if (mWorkers.size() < mMaxWorkers) {
+				Worker w = new Worker();
+				mWorkers.add(w);
+				w.start();
+			}
+		}
+	}
+
+	/**
+	 * Interrupt any worker running a task for the passed queue; called when the queue is finished.
+	 */
+	void interruptQueue(SimpleTaskQueue queue) {
+		synchronized(this) {
+			mQueues.remove(queue);
+			for(Worker w : mWorkers) {
+				if (w.mCurrentQueue == queue)
+					w.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Get the next task to run. The queue whose next task has the highest priority wins; ties
+	 * are broken round-robin, starting after the last queue serviced. Queues with nothing to do
+	 * are dropped from the list until they are next signalled. Must be called with the pool lock held.
+	 *
+	 * @return	Next task, or null if nothing is runnable
+	 */
+	private SimpleTaskQueue.SimpleTaskWrapper nextTask(Worker worker) {
+		while (mQueues.size() > 0) {
+			int best = -1;
+			int bestPriority = Integer.MIN_VALUE;
+			int i = 0;
+			while (i < mQueues.size()) {
+				final int pos = (mNextQueue + i) % mQueues.size();
+				SimpleTaskQueue q = mQueues.get(pos);
+				if (q.isIdle()) {
+					// Nothing queued; forget it until it is signalled again.
+					mQueues.remove(pos);
+					if (pos < mNextQueue)
+						mNextQueue--;
+					if (mQueues.size() == 0)
+						return null;
+					continue;
+				}
+				final int priority = q.peekPriority();
+				if (priority > bestPriority) {
+					bestPriority = priority;
+					best = pos;
+				}
+				i++;
+			}
+			// Everything is at its concurrency limit
+			if (best < 0)
+				return null;
+
+			SimpleTaskQueue q = mQueues.get(best);
+			mNextQueue = (best + 1) % mQueues.size();
+			SimpleTaskQueue.SimpleTaskWrapper w = q.takeNext();
+			if (w != null) {
+				worker.mCurrentQueue = q;
+				return w;
+			}
+			// The task was removed, or expired, after we looked; try again.
+		}
+		return null;
+	}
+
+	/**
+	 * Worker thread. Also provides the task context so that database connections are kept for
+	 * the life of the thread and shared by all queues.
+	 *
+	 * @author Philip Warner
+	 */
+	private class Worker extends Thread implements SimpleTaskContext {
+		/** DB Connection, if task requests one. Survives while thread is alive */
+		private CatalogueDBAdapter mDb = null;
+		/** Covers DB Connection, if task requests one. Survives while thread is alive */
+		private CoversDbHelper mCoversDb = null;
+		/** Utils object, if needed. Survives while thread is alive */
+		private Utils mUtils = null;
+		/** Queue whose task is currently running; only changed with the pool lock held */
+		private SimpleTaskQueue mCurrentQueue = null;
+
+		Worker() {
+			setName("simple-task-worker");
+		}
+
+		/**
+		 * Main worker thread logic
+		 */
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					SimpleTaskQueue.SimpleTaskWrapper req;
+					SimpleTaskQueue queue;
+					synchronized(SimpleTaskPool.this) {
+						req = nextTask(this);
+						if (req == null) {
+							// Wait for work, and exit if none arrives.
+							mIdleWorkers++;
+							try {
+								SimpleTaskPool.this.wait(IDLE_TIMEOUT_MS);
+							} finally {
+								mIdleWorkers--;
+							}
+							req = nextTask(this);
+							if (req == null) {
+								mWorkers.remove(this);
+								return;
+							}
+						}
+						queue = mCurrentQueue;
+					}
+
+					setName(queue.getName());
+					try {
+						queue.handleRequest(this, req);
+					} finally {
+						synchronized(SimpleTaskPool.this) {
+							mCurrentQueue = null;
+						}
+						// Tasks may have changed our priority or been interrupted by their queue finishing;
+						// neither should affect the next task, which may be from another queue.
+						android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_DEFAULT);
+						Thread.interrupted();
+						setName("simple-task-worker");
+						// The queue may have more work now that this task is done. This must happen
+						// even if the task threw an Error, or the queue would stop dispatching.
+						queue.taskDone();
+					}
+				}
+			} catch (InterruptedException e) {
+				// Only happens if interrupted while idle; exit.
+			} catch (Exception e) {
+				Logger.logError(e);
+			} finally {
+				synchronized(SimpleTaskPool.this) {
+					mWorkers.remove(this);
+				}
+				try {
+					if (mDb != null)
+						mDb.close();
+				} catch (Exception e) {}
+				try {
+					if (mCoversDb != null)
+						mCoversDb.close();
+				} catch (Exception e) {}
+				try {
+					if (mUtils != null)
+						mUtils.close();
+				} catch (Exception e) {}
+			}
+		}
+
+		@Override
+		public CatalogueDBAdapter getDb() {
+			if (mDb == null) {
+				mDb = new CatalogueDBAdapter(BookCatalogueApp.context);
+				mDb.open();
+			}
+			return mDb;
+		}
+
+		@Override
+		public Utils getUtils() {
+			if (mUtils == null)
+				mUtils = new Utils();
+			return mUtils;
+		}
+
+		@Override
+		public CoversDbHelper getCoversDb() {
+			if (mCoversDb == null)
+				mCoversDb = new CoversDbHelper();
+			return mCoversDb;
+		}
+	}
+}
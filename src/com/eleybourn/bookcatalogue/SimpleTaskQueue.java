@@ -21,24 +21,35 @@
 package com.eleybourn.bookcatalogue;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map.Entry;
 import java.util.Stack;
+import java.util.TreeMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import com.eleybourn.bookcatalogue.database.CoversDbHelper;
 
 import android.os.Handler;
+import android.os.SystemClock;
 
 /**
  * Class to perform time consuming but light-weight tasks in a worker thread. Users of this
  * class should implement their tasks as self-contained objects that implement SimpleTask.
  * 
- * The tasks run from (currently) a LIFO queue in a single thread; the run() method is called
- * in the alternate thread and the finished() method is called in the UI thread.
+ * The tasks run from (currently) a LIFO queue in worker threads shared by all queues (see 
+ * SimpleTaskPool); the run() method is called in the worker thread and the finished() method 
+ * is called in the UI thread. The queue limits how many of its tasks run at once.
  * 
  * The execution queue is (currently) a stack so that the most recent queued is loaded. This is
  * good for loading (eg) gallery images to make sure that the most recently viewed is loaded.
  * 
- * The results queue is executed in FIFO order.
+ * Tasks that implement ScheduledTask can also specify a priority (higher priorities run first,
+ * and are preferred by the shared pool across queues) and a deadline after which they are 
+ * dropped without running. A queue can be given a capacity and an OverflowPolicy.
+ * 
+ * The results queue is executed in FIFO order. Results are delivered to the UI thread in batches,
+ * at most once per display frame, so a burst of completions causes a single wakeup and layout
+ * pass; an OnBatchListener can be used to group the resulting updates further.
  * 
  * In the future, both queues could be done independently and this object could be broken into
  * 3 classes: SimpleTaskQueueBase, SimpleTaskQueueFIFO and SimpleTaskQueueLIFO. For now, this is
@@ -47,25 +58,60 @@ import android.os.Handler;
  * @author Philip Warner
  */
 public class SimpleTaskQueue {
-	// Execution queue
-	private BlockingStack<SimpleTaskWrapper> mQueue = new BlockingStack<SimpleTaskWrapper>();
+	/** Priority used for tasks that need to be done before the user notices (eg. visible thumbnails) */
+	public static final int PRIORITY_HIGH = 10;
+	/** Default priority */
+	public static final int PRIORITY_NORMAL = 0;
+	/** Priority for speculative or bulk work */
+	public static final int PRIORITY_BACKGROUND = -10;
+
+	/** Interval between result deliveries; one frame at 60fps */
+	private static final long FRAME_INTERVAL_MS = 16;
+
+	/**
+	 * What to do when a task is queued and the queue is at capacity.
+	 */
+	public enum OverflowPolicy {
+		/** Drop the queued task that would otherwise run last */
+		DROP_OLDEST,
+		/** Do not queue the new task; enqueue() returns 0 */
+		REJECT,
+		/** Wait for space. Do not use from the UI thread. */
+		BLOCK
+	}
+
+	// Execution queues, one stack per priority, highest priority first
+	private TreeMap<Integer, BlockingStack<SimpleTaskWrapper>> mQueue = new TreeMap<Integer, BlockingStack<SimpleTaskWrapper>>(Collections.reverseOrder());
+	/** Number of tasks waiting to run */
+	private int mQueuedCount = 0;
+	/** Maximum number of tasks waiting to run; 0 for no limit */
+	private int mCapacity = 0;
+	/** Policy when capacity is reached */
+	private OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+	/** Priority given to tasks that do not implement ScheduledTask */
+	private int mDefaultPriority = PRIORITY_NORMAL;
 	// Results queue
 	private LinkedBlockingQueue<SimpleTaskWrapper> mResultQueue = new LinkedBlockingQueue<SimpleTaskWrapper>();
 	// Flag indicating this object should terminate.
 	private boolean mTerminate = false;
 	// Handler for sending tasks to the UI thread.
 	private Handler mHandler = new Handler();
+	/** Set when a call to processResults() has been posted but not yet run */
+	private boolean mResultsPosted = false;
 	// Name for this queue
 	private final String mName;
-	// Threads associate with this queue
-	private ArrayList<SimpleTaskQueueThread> mThreads = new ArrayList<SimpleTaskQueueThread>();
-	/** Max number of threads to create */
+	// Name under which tasks are recorded in TaskStatistics
+	private final String mStatisticsName;
+	/** Max number of tasks to run at once */
 	private int mMaxTasks;
+	/** Number of tasks currently running in pool workers */
+	private int mRunning = 0;
 	/** Number of currently queued, executing (or starting/finishing) tasks */
 	private int mManagedTaskCount = 0;
 
 	private OnTaskStartListener mTaskStartListener = null;
 	private OnTaskFinishListener mTaskFinishListener = null;
+	private OnBatchListener mBatchListener = null;
 	
 	/**
 	 * SimpleTask interface.
@@ -94,6 +140,36 @@ public class SimpleTaskQueue {
 		boolean requiresOnFinish();
 	}
 
+	/**
+	 * Optional extension of SimpleTask for tasks that need more control over scheduling.
+	 * 
+	 * @author Philip Warner
+	 */
+	public interface ScheduledTask extends SimpleTask {
+		/**
+		 * @return	Priority of task; see PRIORITY_* for typical values. Higher runs first.
+		 */
+		int getPriority();
+		/**
+		 * @return	Time (System.currentTimeMillis()) after which the task is no longer worth running,
+		 * 			or 0 if it never expires.
+		 */
+		long getDeadline();
+	}
+
+	/**
+	 * Exception passed to the OnTaskFinishListener when a task is dropped without being run,
+	 * either because its deadline passed or because the queue overflowed.
+	 * 
+	 * @author Philip Warner
+	 */
+	public static class TaskDroppedException extends Exception {
+		private static final long serialVersionUID = -2950425155227707361L;
+		TaskDroppedException(String message) {
+			super(message);
+		}
+	}
+
 	/**
 	 * Interface for an object to listen for when tasks start.
 	 * 
@@ -112,6 +188,17 @@ public class SimpleTaskQueue {
 		void onTaskFinish(SimpleTask task, Exception e);
 	}
 
+	/**
+	 * Interface for an object to be told when a batch of results is about to be delivered to the
+	 * UI thread, and when it is done; eg. an adapter can suspend notifications for the batch.
+	 * 
+	 * @author Philip Warner
+	 */
+	public interface OnBatchListener {
+		void onBatchStart();
+		void onBatchEnd(int count);
+	}
+
 	/**
 	 * Accessor.
 	 * 
@@ -146,22 +233,59 @@ public class SimpleTaskQueue {
 		return mTaskFinishListener;
 	}
 
+	/**
+	 * Accessor.
+	 * 
+	 * @param listener
+	 */
+	public void setBatchListener(OnBatchListener listener) {
+		mBatchListener = listener;
+	}
+	/**
+	 * Accessor.
+	 * 
+	 * @param listener
+	 */
+	public OnBatchListener getBatchListener() {
+		return mBatchListener;
+	}
+
 	/**
 	 * Class to wrap a simpleTask with more info needed by the queue.
 	 * 
 	 * @author Philip Warner
 	 */
-	private static class SimpleTaskWrapper {
+	static class SimpleTaskWrapper {
 		private static Long mCounter = 0L;
 		public SimpleTask task;
 		public Exception exception;
 		public boolean finishRequested = false;
 		public long id;
-		SimpleTaskWrapper(SimpleTask task) {
+		public final int priority;
+		public final long deadline;
+		/** Statistics for this kind of task in this queue */
+		public final TaskStatistics.TaskStats stats;
+		/** System.nanoTime() when queued */
+		public long queuedAt;
+		/** Position in the stack, used to remove it */
+		public BlockingStack.Entry<SimpleTaskWrapper> entry;
+		SimpleTaskWrapper(String statisticsName, SimpleTask task, int defaultPriority) {
 			this.task = task;
+			this.stats = TaskStatistics.get(statisticsName, task.getClass());
 			synchronized(mCounter) {
 				this.id = ++mCounter;
 			}
+			if (task instanceof ScheduledTask) {
+				final ScheduledTask st = (ScheduledTask)task;
+				this.priority = st.getPriority();
+				this.deadline = st.getDeadline();
+			} else {
+				this.priority = defaultPriority;
+				this.deadline = 0;
+			}
+		}
+		boolean isExpired(long now) {
+			return deadline > 0 && now > deadline;
 		}
 	}
 
@@ -173,6 +297,7 @@ public class SimpleTaskQueue {
 	 */
 	public SimpleTaskQueue(String name) {
 		mName = name;
+		mStatisticsName = "SimpleTaskQueue (" + name + ")";
 		mMaxTasks = 5;
 	}
 
@@ -184,6 +309,7 @@ public class SimpleTaskQueue {
 	 */
 	public SimpleTaskQueue(String name, int maxTasks) {
 		mName = name;
+		mStatisticsName = "SimpleTaskQueue (" + name + ")";
 		mMaxTasks = maxTasks;
 		if (maxTasks < 1 || maxTasks > 10)
 			throw new RuntimeException("Illegal value for maxTasks");
@@ -195,12 +321,179 @@ public class SimpleTaskQueue {
 	public void finish() {
 		synchronized(this) {
 			mTerminate = true;
-			for(Thread t : mThreads) {
-				try { t.interrupt(); } catch (Exception e) {};
+			// Anything still waiting will never run
+			for(BlockingStack<SimpleTaskWrapper> stack : mQueue.values())
+				for(SimpleTaskWrapper w : stack.getElements())
+					w.stats.onRemoved(true);
+			// Release anyone waiting for space
+			this.notifyAll();
+		}
+		SimpleTaskPool.getInstance().interruptQueue(this);
+	}
+
+	/**
+	 * Accessor
+	 */
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Set the priority used for tasks that do not implement ScheduledTask.
+	 */
+	public SimpleTaskQueue setDefaultPriority(int priority) {
+		synchronized(this) {
+			mDefaultPriority = priority;
+		}
+		return this;
+	}
+
+	/**
+	 * Limit the number of tasks waiting to run.
+	 * 
+	 * @param capacity	Maximum number of waiting tasks; 0 for no limit
+	 * @param policy	What to do when a task is queued and the limit is reached
+	 */
+	public SimpleTaskQueue setCapacity(int capacity, OverflowPolicy policy) {
+		synchronized(this) {
+			mCapacity = capacity;
+			mOverflowPolicy = policy;
+			this.notifyAll();
+		}
+		return this;
+	}
+
+	/**
+	 * Add a task to the stack for its priority. Must hold the lock.
+	 */
+	private void pushWrapper(SimpleTaskWrapper w) {
+		BlockingStack<SimpleTaskWrapper> stack = mQueue.get(w.priority);
+		if (stack == null) {
+			stack = new BlockingStack<SimpleTaskWrapper>();
+			mQueue.put(w.priority, stack);
+		}
+		w.queuedAt = System.nanoTime();
+		w.entry = stack.push(w);
+		mQueuedCount++;
+		w.stats.onQueued();
+	}
+
+	/**
+	 * Get the next task from the highest priority non-empty stack, dropping any that have
+	 * expired. Must hold the lock.
+	 */
+	private SimpleTaskWrapper pollWrapper() {
+		final long now = System.currentTimeMillis();
+		for(BlockingStack<SimpleTaskWrapper> stack : mQueue.values()) {
+			SimpleTaskWrapper w;
+			while ( (w = stack.poll()) != null) {
+				mQueuedCount--;
+				this.notifyAll();
+				if (!w.isExpired(now))
+					return w;
+				dropTask(w, "Deadline passed");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Remove a specific task if it is still waiting. Must hold the lock.
+	 */
+	private boolean removeWrapper(SimpleTaskWrapper w) {
+		if (w.entry != null && w.entry.remove()) {
+			mQueuedCount--;
+			this.notifyAll();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get a copy of all waiting tasks.
+	 */
+	private ArrayList<SimpleTaskWrapper> getQueuedElements() {
+		ArrayList<SimpleTaskWrapper> all = new ArrayList<SimpleTaskWrapper>();
+		synchronized(this) {
+			for(BlockingStack<SimpleTaskWrapper> stack : mQueue.values())
+				all.addAll(stack.getElements());
+		}
+		return all;
+	}
+
+	/**
+	 * Discard a task without running it. The finish listener, if any, is told. Must hold the lock.
+	 */
+	private void dropTask(SimpleTaskWrapper w, String reason) {
+		w.stats.onRemoved(false);
+		w.exception = new TaskDroppedException(reason);
+		w.finishRequested = false;
+		if (mTaskFinishListener != null) {
+			try {
+				mResultQueue.put(w);
+			} catch (InterruptedException e) {
+			}
+			postResults();
+		} else {
+			mManagedTaskCount--;
+		}
+	}
+
+	/**
+	 * Called by the pool to get the priority of the task that would run next.
+	 * 
+	 * @return	Priority, or Integer.MIN_VALUE if nothing can run now.
+	 */
+	int peekPriority() {
+		synchronized(this) {
+			if (mTerminate || mRunning >= Math.min(mMaxTasks, SimpleTaskPool.getInstance().getMaxWorkersPerQueue()))
+				return Integer.MIN_VALUE;
+			for(Entry<Integer, BlockingStack<SimpleTaskWrapper>> e : mQueue.entrySet()) {
+				if (e.getValue().size() > 0)
+					return e.getKey();
 			}
+			return Integer.MIN_VALUE;
 		}
 	}
 
+	/**
+	 * Called by the pool to get the next task to run, if this queue is below its concurrency limit.
+	 * 
+	 * @return	Task, or null if none or at the limit
+	 */
+	SimpleTaskWrapper takeNext() {
+		synchronized(this) {
+			if (mTerminate || mRunning >= Math.min(mMaxTasks, SimpleTaskPool.getInstance().getMaxWorkersPerQueue()))
+				return null;
+			SimpleTaskWrapper w = pollWrapper();
+			if (w != null)
+				mRunning++;
+			return w;
+		}
+	}
+
+	/**
+	 * Called by the pool to see if there is anything queued.
+	 */
+	boolean isIdle() {
+		synchronized(this) {
+			return mTerminate || mQueuedCount == 0;
+		}
+	}
+
+	/**
+	 * Called by the pool when one of our tasks has finished running.
+	 */
+	void taskDone() {
+		boolean more;
+		synchronized(this) {
+			mRunning--;
+			more = !mTerminate && mQueuedCount > 0;
+		}
+		if (more)
+			SimpleTaskPool.getInstance().signal(this);
+	}
+
 	/**
 	 * Check to see if any tasks are active -- either queued, or with ending results.
 	 * 
@@ -216,28 +509,48 @@ public class SimpleTaskQueue {
 	 * Queue a request to run in the worker thread.
 	 * 
 	 * @param task		Task to run.
+	 * 
+	 * @return	ID of the queued task, or 0 if it was rejected because the queue is full
 	 */
 	public long enqueue(SimpleTask task) {
-		SimpleTaskWrapper wrapper = new SimpleTaskWrapper(task);
+		SimpleTaskWrapper wrapper;
 
 		try {
 			synchronized(this) {
-				mQueue.push(wrapper);
+				wrapper = new SimpleTaskWrapper(mStatisticsName, task, mDefaultPriority);
+				if (mCapacity > 0 && mQueuedCount >= mCapacity) {
+					switch(mOverflowPolicy) {
+					case REJECT:
+						wrapper.stats.onRejected();
+						return 0;
+					case BLOCK:
+						while (mCapacity > 0 && mQueuedCount >= mCapacity && !mTerminate)
+							this.wait();
+						break;
+					case DROP_OLDEST:
+						// The oldest task in the lowest priority is the one that would run last.
+						ArrayList<BlockingStack<SimpleTaskWrapper>> stacks = new ArrayList<BlockingStack<SimpleTaskWrapper>>(mQueue.values());
+						for(int i = stacks.size() - 1; i >= 0; i--) {
+							Stack<SimpleTaskWrapper> elements = stacks.get(i).getElements();
+							if (elements.size() > 0) {
+								SimpleTaskWrapper oldest = elements.get(0);
+								if (removeWrapper(oldest))
+									dropTask(oldest, "Queue full");
+								break;
+							}
+						}
+						break;
+					}
+				}
+				pushWrapper(wrapper);
 				mManagedTaskCount++;
 			}
 		} catch (InterruptedException e) {
-			// Ignore. This happens if the queue object is being terminated.
+			// This happens if the queue object is being terminated.
+			return 0;
 		}
 		//System.out.println("SimpleTaskQueue(added): " + mQueue.size());
-		synchronized(this) {
-			int qSize = mQueue.size();
-			int nThreads = mThreads.size();
-			if (nThreads < qSize && nThreads < mMaxTasks) {
-				SimpleTaskQueueThread t = new SimpleTaskQueueThread();
-				mThreads.add(t);
-				t.start();
-			}
-		}
+		SimpleTaskPool.getInstance().signal(this);
 		return wrapper.id;
 	}
 
@@ -245,12 +558,15 @@ public class SimpleTaskQueue {
 	 * Remove a previously requested task based on ID, if present
 	 */
 	public boolean remove(long id) {
-		Stack<SimpleTaskWrapper> currTasks = mQueue.getElements();
+		ArrayList<SimpleTaskWrapper> currTasks = getQueuedElements();
 		for (SimpleTaskWrapper w : currTasks) {
 			if (w.id == id) {
+				// The task may have been taken by a thread since we copied the queue
 				synchronized(this) {
-					if (mQueue.remove(w))
-						mManagedTaskCount--;					
+					if (!removeWrapper(w))
+						return false;
+					mManagedTaskCount--;
+					w.stats.onRemoved(true);
 				}
 				//System.out.println("SimpleTaskQueue(removeok): " + mQueue.size());			
 				return true;
@@ -264,12 +580,15 @@ public class SimpleTaskQueue {
 	 * Remove a previously requested task, if present
 	 */
 	public boolean remove(SimpleTask t) {
-		Stack<SimpleTaskWrapper> currTasks = mQueue.getElements();
+		ArrayList<SimpleTaskWrapper> currTasks = getQueuedElements();
 		for (SimpleTaskWrapper w : currTasks) {
 			if (w.task.equals(t)) {
+				// The task may have been taken by a thread since we copied the queue
 				synchronized(this) {
-					if (mQueue.remove(w))
-						mManagedTaskCount--;					
+					if (!removeWrapper(w))
+						return false;
+					mManagedTaskCount--;
+					w.stats.onRemoved(true);
 				}
 				//System.out.println("SimpleTaskQueue(removeok): " + mQueue.size());			
 				return true;
@@ -289,12 +608,24 @@ public class SimpleTaskQueue {
 		}
 	};
 
+	/**
+	 * Arrange for processResults() to run at the start of the next frame, unless it is already
+	 * due to run. Must hold the lock.
+	 */
+	private void postResults() {
+		if (mResultsPosted)
+			return;
+		mResultsPosted = true;
+		final long now = SystemClock.uptimeMillis();
+		mHandler.postAtTime(mDoProcessResults, (now / FRAME_INTERVAL_MS + 1) * FRAME_INTERVAL_MS);
+	}
+
 	/**
 	 * Run the task then queue the results.
 	 * 
 	 * @param task
 	 */
-	private void handleRequest(final SimpleTaskQueueThread thread, final SimpleTaskWrapper taskWrapper) {
+	void handleRequest(final SimpleTaskContext taskContext, final SimpleTaskWrapper taskWrapper) {
 		final SimpleTask task = taskWrapper.task;
 
 		if (mTaskStartListener != null) {
@@ -305,12 +636,14 @@ public class SimpleTaskQueue {
 			}
 		}
 
+		final long startedAt = taskWrapper.stats.onStarted(taskWrapper.queuedAt);
 		try {
-			task.run(thread);
+			task.run(taskContext);
 		} catch (Exception e) {
 			taskWrapper.exception = e;
 			Logger.logError(e, "Error running task");
 		}
+		taskWrapper.stats.onFinished(startedAt, taskWrapper.exception != null, false);
 		// See if we need to call finished(). Default to true.
 		try {
 			taskWrapper.finishRequested = task.requiresOnFinish();
@@ -326,7 +659,7 @@ public class SimpleTaskQueue {
 				} catch (InterruptedException e) {
 				}
 				// Queue Runnable in the UI thread.
-				mHandler.post(mDoProcessResults);			
+				postResults();
 			} else {
 				// If no other methods are going to be called, then decrement
 				// managed task count. We do not care about this task any more.
@@ -339,6 +672,14 @@ public class SimpleTaskQueue {
 	 * Run in the UI thread, process the results queue.
 	 */
 	private void processResults() {
+		// Clear the flag first: anything queued from now on is either handled by this
+		// call or causes another one to be posted.
+		synchronized(this) {
+			mResultsPosted = false;
+		}
+
+		final OnBatchListener batchListener = mBatchListener;
+		int count = 0;
 		try {
 			while (!mTerminate) {
 				// Get next; if none, exit.
@@ -346,6 +687,14 @@ public class SimpleTaskQueue {
 				if (req == null)
 					break;
 
+				if (count++ == 0 && batchListener != null) {
+					try {
+						batchListener.onBatchStart();
+					} catch (Exception e) {
+						Logger.logError(e, "Error from batch listener");
+					}
+				}
+
 				final SimpleTask task = req.task;
 				
 				// Decrement the managed task count BEFORE we call any methods.
@@ -374,6 +723,14 @@ public class SimpleTaskQueue {
 			}
 		} catch (Exception e) {
 			Logger.logError(e, "Exception in processResults in UI thread");
+		} finally {
+			if (count > 0 && batchListener != null) {
+				try {
+					batchListener.onBatchEnd(count);
+				} catch (Exception e) {
+					Logger.logError(e, "Error from batch listener");
+				}
+			}
 		}
 	}
 
@@ -383,86 +740,4 @@ public class SimpleTaskQueue {
 		public CoversDbHelper getCoversDb();
 		public Utils getUtils();
 	}
-
-	/**
-	 * Class to actually run the tasks. Can start more than one. They wait until there is nothing left in
-	 * the queue before terminating.
-	 * 
-	 * @author Philip Warner
-	 */
-	private class SimpleTaskQueueThread extends Thread implements SimpleTaskContext {
-		/** DB Connection, if task requests one. Survives while thread is alive */
-		CatalogueDBAdapter mDb = null;
-		/** Covers DB Connection, if task requests one. Survives while thread is alive */
-		CoversDbHelper mCoversDb = null;
-		/** Utils object, if needed. Survives while thread is alive */
-		Utils mUtils = null;
-
-		/**
-		 * Main worker thread logic
-		 */
-		public void run() {
-			try {
-				this.setName(mName);
-				while (!mTerminate) {
-					SimpleTaskWrapper req = mQueue.pop(15000);
-
-					// If timeout occurred, get a lock on the queue and see if anything was queued
-					// in the intervening milliseconds. If not, delete this tread and exit.
-					if (req == null) {
-						synchronized(SimpleTaskQueue.this) {
-							req = mQueue.poll();
-							if (req == null) {
-								mThreads.remove(this);
-								return;
-							}
-						}
-					}
-
-					//System.out.println("SimpleTaskQueue(run): " + mQueue.size());						
-					handleRequest(this, req);
-				}
-			} catch (InterruptedException e) {
-				// Ignore; these will happen when object is destroyed
-			} catch (Exception e) {
-				Logger.logError(e);
-			} finally {
-				try {
-					if (mDb != null)
-						mDb.close();					
-				} catch (Exception e) {}
-				try {
-					if (mCoversDb != null)
-						mCoversDb.close();					
-				} catch (Exception e) {}
-				try {
-					if (mUtils != null)
-						mUtils.close();					
-				} catch (Exception e) {}
-			}
-		}
-
-		@Override
-		public CatalogueDBAdapter getDb() {
-			if (mDb == null) {
-				mDb = new CatalogueDBAdapter(BookCatalogueApp.context);
-				mDb.open();
-			}
-			return mDb;
-		}
-
-		@Override
-		public Utils getUtils() {
-			if (mUtils == null)
-				mUtils = new Utils();
-			return mUtils;
-		}
-
-		@Override
-		public CoversDbHelper getCoversDb() {
-			if (mCoversDb == null)
-				mCoversDb = new CoversDbHelper();
-			return mCoversDb;
-		}
-	}
 }
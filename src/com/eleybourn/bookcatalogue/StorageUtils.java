@@ -33,6 +33,8 @@ public class StorageUtils {
 
 	private static final String LOCATION = "bookCatalogue";
 	private static final String DATABASE_NAME = "book_catalogue";
+	/** Name of the database in use; only changed by tests */
+	private static String mDatabaseName = DATABASE_NAME;
 
 	private static final String EXTERNAL_FILE_PATH = Environment.getExternalStorageDirectory() + "/" + LOCATION;
 	private static final String ERRORLOG_FILE = EXTERNAL_FILE_PATH + "/error.log";
@@ -52,7 +54,17 @@ public class StorageUtils {
 	 * @return
 	 */
 	public static String getDatabaseName() {
-		return DATABASE_NAME;
+		return mDatabaseName;
+	}
+
+	/**
+	 * Use a different database for CatalogueDBAdapter objects created from now on, so that
+	 * tests do not change the user's books. Pass null to go back to the normal database.
+	 * 
+	 * @param name	Database name, or null
+	 */
+	public static void setDatabaseName(String name) {
+		mDatabaseName = (name == null ? DATABASE_NAME : name);
 	}
 
 	/**
@@ -249,7 +261,7 @@ public class StorageUtils {
 		emailIntent.putExtra(android.content.Intent.EXTRA_EMAIL, context.getString(R.string.debug_email).split(";"));
 		String subject = "[" + context.getString(R.string.app_name) + "] " + context.getString(R.string.debug_subject);
 		emailIntent.putExtra(android.content.Intent.EXTRA_SUBJECT, subject);
-		emailIntent.putExtra(android.content.Intent.EXTRA_TEXT, context.getString(R.string.debug_body));
+		emailIntent.putExtra(android.content.Intent.EXTRA_TEXT, context.getString(R.string.debug_body) + "\n\n" + BitmapPool.getStatistics() + "\n\n" + TaskStatistics.getSnapshot() + "\n" + RateLimiter.getSnapshot() + SharedHttpClient.getStatistics());
 		//has to be an ArrayList
 		ArrayList<Uri> uris = new ArrayList<Uri>();
 		//convert from paths to Android friendly Parcelable Uri's
@@ -58,6 +58,8 @@ public class TaskManager {
 	private WeakReference<Thread> mUiThread;
 	// Handler for UI thread messages
 	private Handler mMessageHandler;
+	// Name under which tasks are recorded in TaskStatistics
+	private final String mStatisticsName;
 
 	private ArrayList<OnTaskEndedListener> mOnTaskEndedListeners = new ArrayList<OnTaskEndedListener>();
 	
@@ -102,6 +104,7 @@ public class TaskManager {
 			throw new IllegalArgumentException();
 		mAppContext = activity.getApplicationContext();
 		mActivity = activity;	
+		mStatisticsName = TaskStatistics.SOURCE_TASK_MANAGER + " (" + activity.getClass().getSimpleName() + ")";
 		// Assumes the current thread is the UI thread.
 		mUiThread = new WeakReference<Thread>(Thread.currentThread());
 		// New handler to send messages to the UI thread.
@@ -117,6 +120,13 @@ public class TaskManager {
 		return (Thread.currentThread() == mUiThread.get());
 	}
 
+	/**
+	 * Name used to group statistics for tasks run by this manager.
+	 */
+	public String getStatisticsName() {
+		return mStatisticsName;
+	}
+
 	public void postToUiThread(Runnable r) {
 		mMessageHandler.post(r);
 	}
@@ -0,0 +1,335 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics for background work, kept per source (a SimpleTaskQueue or a TaskManager) and
+ * task class. Used to tell whether slow background work is spending its time waiting in a
+ * queue or running, and which kind of task is responsible.
+ *
+ * Everything is updated with atomic operations so that recording from worker threads never
+ * contends with the UI or with other workers. Values read together are not guaranteed to be
+ * mutually consistent, which is fine for diagnostics.
+ *
+ * @author Philip Warner
+ */
+public class TaskStatistics {
+	/** Source name used for ManagedTask objects */
+	public static final String SOURCE_TASK_MANAGER = "TaskManager";
+
+	/** All statistics, keyed by source and class */
+	private static final ConcurrentHashMap<String, TaskStats> mStats = new ConcurrentHashMap<String, TaskStats>();
+
+	/**
+	 * Get (creating if necessary) the statistics for a class of task from a given source.
+	 *
+	 * @param source	Name of queue or manager
+	 * @param taskClass	Class of task
+	 */
+	public static TaskStats get(String source, Class<?> taskClass) {
+		final String key = source + "/" + taskClass.getName();
+		TaskStats s = mStats.get(key);
+		if (s == null) {
+			TaskStats n = new TaskStats(source, getShortName(taskClass));
+			s = mStats.putIfAbsent(key, n);
+			if (s == null)
+				s = n;
+		}
+		return s;
+	}
+
+	/**
+	 * Class name without the package; anonymous classes keep their '$n' suffix.
+	 */
+	private static String getShortName(Class<?> c) {
+		final String name = c.getName();
+		final int pos = name.lastIndexOf('.');
+		return pos < 0 ? name : name.substring(pos + 1);
+	}
+
+	/**
+	 * Get all statistics, sorted by source then task name.
+	 */
+	public static ArrayList<TaskStats> getAll() {
+		ArrayList<TaskStats> all = new ArrayList<TaskStats>(mStats.values());
+		Collections.sort(all, new Comparator<TaskStats>() {
+			@Override
+			public int compare(TaskStats lhs, TaskStats rhs) {
+				final int c = lhs.source.compareTo(rhs.source);
+				return c != 0 ? c : lhs.name.compareTo(rhs.name);
+			}});
+		return all;
+	}
+
+	/**
+	 * Reset all counters and histograms. Depth and running counts are left alone since they
+	 * describe work that is still in progress.
+	 */
+	public static void reset() {
+		for(TaskStats s : mStats.values())
+			s.reset();
+	}
+
+	/**
+	 * Get a printable summary of all statistics, suitable for debug emails.
+	 */
+	public static String getSnapshot() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Task statistics (times in ms: avg/p50/p90/max)\n");
+		String lastSource = null;
+		for(TaskStats s : getAll()) {
+			if (!s.source.equals(lastSource)) {
+				sb.append(s.source).append(":\n");
+				lastSource = s.source;
+			}
+			s.appendTo(sb);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Counters for one class of task from one source.
+	 *
+	 * @author Philip Warner
+	 */
+	public static class TaskStats {
+		public final String source;
+		public final String name;
+
+		/** Number waiting to start */
+		private final AtomicInteger mDepth = new AtomicInteger();
+		/** Largest value of mDepth seen */
+		private final AtomicInteger mMaxDepth = new AtomicInteger();
+		/** Number currently running */
+		private final AtomicInteger mRunning = new AtomicInteger();
+
+		private final AtomicLong mQueued = new AtomicLong();
+		private final AtomicLong mCompleted = new AtomicLong();
+		private final AtomicLong mFailed = new AtomicLong();
+		private final AtomicLong mCancelled = new AtomicLong();
+		private final AtomicLong mDropped = new AtomicLong();
+
+		/** Time from enqueue to start */
+		private final Histogram mWait = new Histogram();
+		/** Time to run */
+		private final Histogram mRun = new Histogram();
+
+		TaskStats(String source, String name) {
+			this.source = source;
+			this.name = name;
+		}
+
+		/**
+		 * Called when a task is queued.
+		 */
+		public void onQueued() {
+			mQueued.incrementAndGet();
+			final int depth = mDepth.incrementAndGet();
+			int max;
+			while (depth > (max = mMaxDepth.get())) {
+				if (mMaxDepth.compareAndSet(max, depth))
+					break;
+			}
+		}
+
+		/**
+		 * Called when a queued task is removed without running.
+		 *
+		 * @param cancelled	true if removed by request, false if dropped by the queue
+		 */
+		public void onRemoved(boolean cancelled) {
+			mDepth.decrementAndGet();
+			if (cancelled)
+				mCancelled.incrementAndGet();
+			else
+				mDropped.incrementAndGet();
+		}
+
+		/**
+		 * Called when a task is refused by a full queue.
+		 */
+		public void onRejected() {
+			mDropped.incrementAndGet();
+		}
+
+		/**
+		 * Called when a queued task starts running.
+		 *
+		 * @param queuedAt	System.nanoTime() when the task was queued
+		 *
+		 * @return	System.nanoTime() at start, to pass to onFinished()
+		 */
+		public long onStarted(long queuedAt) {
+			final long now = System.nanoTime();
+			mDepth.decrementAndGet();
+			mRunning.incrementAndGet();
+			mWait.record((now - queuedAt) / 1000000);
+			return now;
+		}
+
+		/**
+		 * Called when a task has finished running.
+		 *
+		 * @param startedAt	Value returned by onStarted()
+		 * @param failed	true if the task threw an exception
+		 * @param cancelled	true if the task was cancelled while running
+		 */
+		public void onFinished(long startedAt, boolean failed, boolean cancelled) {
+			mRunning.decrementAndGet();
+			mRun.record((System.nanoTime() - startedAt) / 1000000);
+			if (cancelled)
+				mCancelled.incrementAndGet();
+			else if (failed)
+				mFailed.incrementAndGet();
+			else
+				mCompleted.incrementAndGet();
+		}
+
+		public int getDepth() {
+			return mDepth.get();
+		}
+
+		public int getRunning() {
+			return mRunning.get();
+		}
+
+		public Histogram getWaitTimes() {
+			return mWait;
+		}
+
+		public Histogram getRunTimes() {
+			return mRun;
+		}
+
+		void reset() {
+			mMaxDepth.set(mDepth.get());
+			mQueued.set(0);
+			mCompleted.set(0);
+			mFailed.set(0);
+			mCancelled.set(0);
+			mDropped.set(0);
+			mWait.reset();
+			mRun.reset();
+		}
+
+		void appendTo(StringBuilder sb) {
+			sb.append("  ").append(name).append('\n');
+			sb.append("    depth ").append(mDepth.get()).append(" (max ").append(mMaxDepth.get()).append(")");
+			sb.append(", running ").append(mRunning.get());
+			sb.append(", queued ").append(mQueued.get());
+			sb.append(", done ").append(mCompleted.get());
+			sb.append(", failed ").append(mFailed.get());
+			sb.append(", cancelled ").append(mCancelled.get());
+			sb.append(", dropped ").append(mDropped.get()).append('\n');
+			sb.append("    wait ");
+			mWait.appendTo(sb);
+			sb.append(", run ");
+			mRun.appendTo(sb);
+			sb.append('\n');
+		}
+	}
+
+	/**
+	 * Histogram of times in milliseconds using power-of-two buckets: bucket 0 holds 0ms,
+	 * bucket n holds [2^(n-1), 2^n). The last bucket holds everything larger.
+	 *
+	 * @author Philip Warner
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 18;
+		private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mTotal = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		public void record(long ms) {
+			if (ms < 0)
+				ms = 0;
+			final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+			mCounts.incrementAndGet(bucket);
+			mCount.incrementAndGet();
+			mTotal.addAndGet(ms);
+			long max;
+			while (ms > (max = mMax.get())) {
+				if (mMax.compareAndSet(max, ms))
+					break;
+			}
+		}
+
+		public long getCount() {
+			return mCount.get();
+		}
+
+		public long getMax() {
+			return mMax.get();
+		}
+
+		public long getAverage() {
+			final long n = mCount.get();
+			return n == 0 ? 0 : mTotal.get() / n;
+		}
+
+		/**
+		 * Get the approximate value below which the passed fraction of samples fall. Returns the
+		 * upper bound of the bucket containing the percentile, capped at the maximum seen.
+		 *
+		 * @param fraction	0.0 to 1.0
+		 */
+		public long getPercentile(double fraction) {
+			long total = 0;
+			for(int i = 0; i < BUCKETS; i++)
+				total += mCounts.get(i);
+			if (total == 0)
+				return 0;
+			final long target = (long)Math.ceil(total * fraction);
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				seen += mCounts.get(i);
+				if (seen >= target && seen > 0) {
+					final long upper = i == 0 ? 0 : (1L << i) - 1;
+					return Math.min(upper, mMax.get());
+				}
+			}
+			return mMax.get();
+		}
+
+		void reset() {
+			for(int i = 0; i < BUCKETS; i++)
+				mCounts.set(i, 0);
+			mCount.set(0);
+			mTotal.set(0);
+			mMax.set(0);
+		}
+
+		void appendTo(StringBuilder sb) {
+			sb.append(getAverage()).append('/').append(getPercentile(0.5)).append('/')
+				.append(getPercentile(0.9)).append('/').append(getMax());
+		}
+	}
+}
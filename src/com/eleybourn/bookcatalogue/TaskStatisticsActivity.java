@@ -0,0 +1,85 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.Button;
+import android.widget.TextView;
+
+/**
+ * Debug activity that displays the live contents of TaskStatistics, refreshed every second
+ * while visible.
+ *
+ * @author Philip Warner
+ */
+public class TaskStatisticsActivity extends Activity {
+	/** Time between refreshes */
+	private static final long REFRESH_INTERVAL = 1000;
+
+	private TextView mText;
+	private Handler mHandler = new Handler();
+
+	private Runnable mRefresh = new Runnable() {
+		@Override
+		public void run() {
+			mText.setText(TaskStatistics.getSnapshot() + "\n" + RateLimiter.getSnapshot() + SharedHttpClient.getStatistics() + "\n" + BitmapPool.getStatistics());
+			mHandler.postDelayed(this, REFRESH_INTERVAL);
+		}
+	};
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		try {
+			setContentView(R.layout.task_statistics);
+			this.setTitle(R.string.task_statistics);
+			mText = (TextView) findViewById(R.id.statistics);
+
+			Button reset = (Button) findViewById(R.id.reset);
+			reset.setOnClickListener(new OnClickListener() {
+				@Override
+				public void onClick(View v) {
+					TaskStatistics.reset();
+					mHandler.removeCallbacks(mRefresh);
+					mRefresh.run();
+				}
+			});
+		} catch (Exception e) {
+			Logger.logError(e);
+		}
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mRefresh.run();
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		mHandler.removeCallbacks(mRefresh);
+	}
+}
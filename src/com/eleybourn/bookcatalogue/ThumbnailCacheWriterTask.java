@@ -24,7 +24,6 @@ import android.graphics.Bitmap;
 
 import com.eleybourn.bookcatalogue.SimpleTaskQueue.SimpleTask;
 import com.eleybourn.bookcatalogue.SimpleTaskQueue.SimpleTaskContext;
-import com.eleybourn.bookcatalogue.database.CoversDbHelper;
 
 /**
  * Background task to save a bitmap into the covers thumbnail database. Runs in background
@@ -43,7 +42,7 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 	 * Single-thread queue for writing data. There is no point in more than one thread since
 	 * the database will force serialization of the updates.
 	 */
-	private static SimpleTaskQueue mQueue = new SimpleTaskQueue("cachewriter", 1);
+	private static SimpleTaskQueue mQueue = new SimpleTaskQueue("cachewriter", 1).setDefaultPriority(SimpleTaskQueue.PRIORITY_BACKGROUND);
 
 	/**
 	 * Queue the passed bitmap to be compresed and written to the database, will be recycled if
@@ -95,14 +94,13 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 	 */
 	@Override
 	public void run(SimpleTaskContext taskContext) {
-		CoversDbHelper db = taskContext.getCoversDb();
 		if (mBitmap.isRecycled()) {
 			// Was probably recycled by rapid scrolling of view
 			mBitmap = null;
 		} else {
-			db.saveFile(mCacheId, mBitmap);
+			taskContext.getUtils().saveCachedCover(mCacheId, mBitmap);
 			if (mCanRecycle) {
-				mBitmap.recycle();
+				BitmapPool.release(mBitmap);
 				mBitmap = null;
 			}
 		}
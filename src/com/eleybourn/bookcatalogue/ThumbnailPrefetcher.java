@@ -0,0 +1,398 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import android.graphics.Bitmap;
+
+import com.eleybourn.bookcatalogue.SimpleTaskQueue.ScheduledTask;
+import com.eleybourn.bookcatalogue.SimpleTaskQueue.SimpleTaskContext;
+import com.eleybourn.bookcatalogue.booklist.BooklistBuilder;
+
+/**
+ * Class to warm the cover caches for rows that are about to scroll into view. It is driven
+ * by the list scroll position and direction: as the list moves, the UUIDs of the next few
+ * rows are read from the list table and their covers are loaded into the covers database
+ * and into a small in-memory cache that Utils.fetchBookCoverIntoImageView() checks first.
+ *
+ * Work is done in a single low-priority thread and is throttled to a fixed number of decodes
+ * per second so that it never competes seriously with the visible rows. A change of scroll
+ * direction abandons any outstanding work.
+ *
+ * @author Philip Warner
+ */
+public class ThumbnailPrefetcher {
+	/** Default number of rows beyond the visible area to prefetch */
+	public static final int DEFAULT_ROWS_AHEAD = 20;
+	/** Default maximum number of covers to decode per second */
+	public static final int DEFAULT_DECODES_PER_SECOND = 8;
+	/** Maximum number of prefetched bitmaps to hold in memory */
+	private static final int MAX_PREFETCHED = 30;
+	/** Time after which a queued prefetch that has not started is no longer useful */
+	private static final long PREFETCH_DEADLINE_MS = 3000;
+	/** Single-thread queue shared by all prefetchers; only the newest couple of requests are kept */
+	private static SimpleTaskQueue mQueue = null;
+
+	/**
+	 * Get the shared queue, creating it on first use. The queue creates a Handler, so this
+	 * must be called from the UI thread (all callers are list scroll events).
+	 */
+	private static SimpleTaskQueue getQueue() {
+		if (mQueue == null) {
+			mQueue = new SimpleTaskQueue("thumbnail-prefetch", 1)
+						.setCapacity(2, SimpleTaskQueue.OverflowPolicy.DROP_OLDEST);
+		}
+		return mQueue;
+	}
+
+	/**
+	 * Bitmaps that have been prefetched but not yet displayed, keyed by cache ID. Entries are
+	 * removed when used, so once a bitmap is handed to a view this class no longer owns it.
+	 */
+	private static final LinkedHashMap<String, Bitmap> mPrefetched = new LinkedHashMap<String, Bitmap>(MAX_PREFETCHED, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest) {
+			if (size() > MAX_PREFETCHED) {
+				BitmapPool.release(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/** Start of the current one-second decode budget window */
+	private static long mBudgetWindowStart = 0;
+	/** Number of decodes done in the current window */
+	private static int mBudgetUsed = 0;
+
+	/**
+	 * Get, and remove, a prefetched bitmap from the memory cache.
+	 *
+	 * @param cacheId	Cache ID (see Utils.getCoverCacheId())
+	 *
+	 * @return			Bitmap, or null if not prefetched
+	 */
+	public static Bitmap takePrefetched(String cacheId) {
+		synchronized(mPrefetched) {
+			return mPrefetched.remove(cacheId);
+		}
+	}
+
+	/**
+	 * Check if a bitmap is in the memory cache without removing it.
+	 */
+	private static boolean isPrefetched(String cacheId) {
+		synchronized(mPrefetched) {
+			return mPrefetched.containsKey(cacheId);
+		}
+	}
+
+	/**
+	 * Add a bitmap to the memory cache.
+	 */
+	private static void putPrefetched(String cacheId, Bitmap bm) {
+		synchronized(mPrefetched) {
+			Bitmap old = mPrefetched.put(cacheId, bm);
+			if (old != null && old != bm)
+				BitmapPool.release(old);
+		}
+	}
+
+	/**
+	 * Discard any prefetched bitmaps for the passed book, eg. because the cover changed.
+	 *
+	 * @param uuid	Book UUID
+	 */
+	public static void forgetBook(String uuid) {
+		final String prefix = uuid + ".";
+		synchronized(mPrefetched) {
+			Iterator<Entry<String, Bitmap>> i = mPrefetched.entrySet().iterator();
+			while (i.hasNext()) {
+				Entry<String, Bitmap> e = i.next();
+				if (e.getKey().startsWith(prefix)) {
+					BitmapPool.release(e.getValue());
+					i.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discard all prefetched bitmaps.
+	 */
+	public static void clearPrefetched() {
+		synchronized(mPrefetched) {
+			for(Bitmap bm : mPrefetched.values())
+				BitmapPool.release(bm);
+			mPrefetched.clear();
+		}
+	}
+
+	/**
+	 * Wait until the decode budget allows another decode.
+	 *
+	 * @param decodesPerSecond	Budget to apply
+	 */
+	private static void waitForDecodeSlot(int decodesPerSecond) throws InterruptedException {
+		while (true) {
+			long wait;
+			synchronized(ThumbnailPrefetcher.class) {
+				final long now = System.currentTimeMillis();
+				if (now - mBudgetWindowStart >= 1000) {
+					mBudgetWindowStart = now;
+					mBudgetUsed = 0;
+				}
+				if (mBudgetUsed < decodesPerSecond) {
+					mBudgetUsed++;
+					return;
+				}
+				wait = mBudgetWindowStart + 1000 - now;
+			}
+			Thread.sleep(wait);
+		}
+	}
+
+	/** Builder whose list table we read */
+	private final BooklistBuilder mBuilder;
+	/** Thumbnail width to prefetch */
+	private final int mMaxWidth;
+	/** Thumbnail height to prefetch */
+	private final int mMaxHeight;
+	/** Number of rows to prefetch beyond the visible rows */
+	private int mRowsAhead = DEFAULT_ROWS_AHEAD;
+	/** Maximum number of decodes per second */
+	private int mDecodesPerSecond = DEFAULT_DECODES_PER_SECOND;
+
+	/** Last first-visible row seen */
+	private int mLastFirst = -1;
+	/** Current scroll direction: 1 = down, -1 = up, 0 = unknown */
+	private int mDirection = 0;
+	/** Start of the range covered by the most recent task */
+	private int mQueuedStart = -1;
+	/** Most recent task; older tasks stop when they notice they are no longer current */
+	private volatile PrefetchTask mCurrentTask = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param builder		Builder for the list being displayed
+	 * @param maxWidth		Thumbnail width used by the list
+	 * @param maxHeight		Thumbnail height used by the list
+	 */
+	public ThumbnailPrefetcher(BooklistBuilder builder, int maxWidth, int maxHeight) {
+		mBuilder = builder;
+		mMaxWidth = maxWidth;
+		mMaxHeight = maxHeight;
+	}
+
+	/**
+	 * Set the number of rows to prefetch beyond the visible rows.
+	 */
+	public ThumbnailPrefetcher setRowsAhead(int rows) {
+		mRowsAhead = rows;
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of cover decodes per second.
+	 */
+	public ThumbnailPrefetcher setDecodesPerSecond(int decodes) {
+		mDecodesPerSecond = decodes;
+		return this;
+	}
+
+	/**
+	 * Called from the list OnScrollListener, in the UI thread.
+	 *
+	 * @param firstVisible	First visible row
+	 * @param visibleCount	Number of visible rows
+	 * @param totalCount	Total rows in list
+	 */
+	public void onScroll(int firstVisible, int visibleCount, int totalCount) {
+		if (firstVisible == mLastFirst)
+			return;
+
+		final int direction = (firstVisible > mLastFirst) ? 1 : -1;
+		final boolean isFirstCall = (mLastFirst < 0);
+		mLastFirst = firstVisible;
+		// The initial display is not a scroll; there is nothing to infer yet.
+		if (isFirstCall)
+			return;
+
+		if (direction != mDirection) {
+			cancel();
+			mDirection = direction;
+		}
+
+		// Work out the range of rows about to become visible
+		int start;
+		int end;
+		if (direction > 0) {
+			start = firstVisible + visibleCount;
+			end = Math.min(totalCount, start + mRowsAhead);
+		} else {
+			end = firstVisible;
+			start = Math.max(0, end - mRowsAhead);
+		}
+		if (end <= start)
+			return;
+
+		// Only requeue when the window has moved far enough to be worthwhile
+		if (mQueuedStart >= 0 && Math.abs(start - mQueuedStart) < mRowsAhead / 2)
+			return;
+
+		PrefetchTask oldTask = mCurrentTask;
+		PrefetchTask task = new PrefetchTask(start, end - start, direction);
+		mCurrentTask = task;
+		mQueuedStart = start;
+		if (oldTask != null)
+			getQueue().remove(oldTask);
+		getQueue().enqueue(task);
+	}
+
+	/**
+	 * Abandon any outstanding work.
+	 */
+	public void cancel() {
+		PrefetchTask oldTask = mCurrentTask;
+		mCurrentTask = null;
+		mQueuedStart = -1;
+		if (oldTask != null)
+			getQueue().remove(oldTask);
+	}
+
+	/**
+	 * Called when the associated list is no longer displayed.
+	 */
+	public void close() {
+		cancel();
+		mLastFirst = -1;
+		mDirection = 0;
+	}
+
+	/**
+	 * Task to read the UUIDs of a range of rows and load their covers into the caches.
+	 *
+	 * @author Philip Warner
+	 */
+	private class PrefetchTask implements ScheduledTask {
+		private final int mStart;
+		private final int mCount;
+		private final int mTaskDirection;
+		private final long mDeadline;
+
+		PrefetchTask(int start, int count, int direction) {
+			mStart = start;
+			mCount = count;
+			mTaskDirection = direction;
+			mDeadline = System.currentTimeMillis() + PREFETCH_DEADLINE_MS;
+		}
+
+		@Override
+		public int getPriority() {
+			// Never compete with visible thumbnails
+			return SimpleTaskQueue.PRIORITY_BACKGROUND;
+		}
+
+		@Override
+		public long getDeadline() {
+			return mDeadline;
+		}
+
+		private boolean isCurrent() {
+			return mCurrentTask == this;
+		}
+
+		@Override
+		public void run(SimpleTaskContext taskContext) {
+			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
+			if (!isCurrent())
+				return;
+
+			ArrayList<String> uuids;
+			try {
+				uuids = mBuilder.getBookUuids(mStart, mCount);
+			} catch (Exception e) {
+				// The list was probably closed underneath us. Not a problem.
+				return;
+			}
+			// When scrolling up, the nearest rows are at the end of the range.
+			if (mTaskDirection < 0) {
+				ArrayList<String> reversed = new ArrayList<String>(uuids.size());
+				for(int i = uuids.size() - 1; i >= 0; i--)
+					reversed.add(uuids.get(i));
+				uuids = reversed;
+			}
+
+			final Utils utils = taskContext.getUtils();
+			try {
+				for(String uuid : uuids) {
+					if (!isCurrent())
+						return;
+
+					final String cacheId = Utils.getCoverCacheId(uuid, mMaxWidth, mMaxHeight);
+					if (isPrefetched(cacheId))
+						continue;
+
+					File coverFile = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
+					if (!coverFile.exists())
+						continue;
+
+					waitForDecodeSlot(mDecodesPerSecond);
+					if (!isCurrent())
+						return;
+
+					Bitmap bm = utils.fetchCachedImageIntoImageView(coverFile, null, cacheId);
+					if (bm == null) {
+						bm = utils.fetchBookCoverIntoImageView(null, mMaxWidth, mMaxHeight, true, uuid, false, false);
+						if (bm == null)
+							continue;
+						try {
+							utils.saveCachedCover(cacheId, bm);
+						} catch (Exception e) {
+							// Just a cache; ignore.
+						}
+					}
+					putPrefetched(cacheId, bm);
+				}
+			} catch (InterruptedException e) {
+				// Queue is terminating
+			}
+		}
+
+		@Override
+		public void onFinish() {
+		}
+
+		@Override
+		public boolean requiresOnFinish() {
+			return false;
+		}
+	}
+}
@@ -1,7 +1,7 @@
 /*
  * @copyright 2011 Philip Warner
  * @license GNU General Public License
- * 
+ *
  * This file is part of Book Catalogue.
  *
  * Book Catalogue is free software: you can redistribute it and/or modify
@@ -23,15 +23,17 @@ package com.eleybourn.bookcatalogue;
 import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Message;
-import android.os.Parcelable;
 
 import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
+import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
 import com.eleybourn.bookcatalogue.UpdateFromInternet.FieldUsage;
 import com.eleybourn.bookcatalogue.UpdateFromInternet.FieldUsages;
 import com.eleybourn.bookcatalogue.UpdateFromInternet.FieldUsages.Usages;
@@ -39,31 +41,43 @@ import com.eleybourn.bookcatalogue.UpdateFromInternet.FieldUsages.Usages;
 /**
  * Class to update all thumbnails (and some other data) in a background thread.
  *
+ * The work is pipelined: this task reads the books and works out which fields each one needs,
+ * up to MAX_CONCURRENT_SEARCHES books are searched at once (each with its own SearchManager,
+ * and subject to the per-source limit in SearchThread), and the results are written by this
+ * task, in batches, each in a single transaction. All database access is done in this task's
+ * thread; the searches only pass their results back.
+ *
  * @author Philip Warner
  */
-public class UpdateThumbnailsThread extends ManagedTask implements SearchManager.SearchResultHandler {
+public class UpdateThumbnailsThread extends ManagedTask {
+	/** Number of books searched at the same time */
+	private static final int MAX_CONCURRENT_SEARCHES = 4;
+	/** Results are written once this many are waiting... */
+	private static final int WRITE_BATCH_SIZE = 20;
+	/** ...or the oldest has waited this long */
+	private static final long WRITE_BATCH_MS = 2000;
+
 	// The fields that the user requested to update
 	private FieldUsages mRequestedFields;
 
-	// Lock help by pop and by push when an item was added to an empty stack.
-	private final ReentrantLock mSearchLock = new ReentrantLock();
-	// Signal for available items
-	private final Condition mSearchDone = mSearchLock.newCondition();
-
 	private String mFinalMessage;
 
-	// Data related to current row being processed
-	// - Original row data
-	private Bundle mOrigData = null;
-	// - current book ID
-	private long mCurrId = 0;
-	// - current book UUID
-	private String mCurrUuid = null;
-	// - The (subset) of fields relevant to the current book
-	private FieldUsages mCurrFieldUsages;
-
-	// Active search manager
-	private SearchManager mSearchManager = null;
+	// Lock for the search and result lists below
+	private final ReentrantLock mLock = new ReentrantLock();
+	// Signalled when a search finishes
+	private final Condition mSearchDone = mLock.newCondition();
+	// Every search created
+	private final ArrayList<BookSearch> mSearches = new ArrayList<BookSearch>();
+	// Searches not in use
+	private final ArrayList<BookSearch> mIdleSearches = new ArrayList<BookSearch>();
+	// Books whose search has finished, waiting to be written
+	private final LinkedList<BookRequest> mResults = new LinkedList<BookRequest>();
+	// Number of searches running
+	private int mActiveSearches = 0;
+
+	// Number of books read, and number finished with (skipped or written)
+	private int mBooksRead = 0;
+	private int mBooksDone = 0;
 
 	// DB connection
 	protected CatalogueDBAdapter mDbHelper;
@@ -73,9 +87,38 @@ public class UpdateThumbnailsThread extends ManagedTask implements SearchManager
 		void onFinish();
 	}
 
+	/**
+	 * Details of one book being updated.
+	 *
+	 * @author Philip Warner
+	 */
+	private static class BookRequest {
+		// Original row data
+		final Bundle origData;
+		// Book ID and UUID
+		final long id;
+		final String uuid;
+		// The (subset) of fields relevant to this book
+		final FieldUsages fieldUsages;
+		// Where the downloaded cover, if any, is kept until written
+		final File tempThumbnail;
+		// Search results; set when the search has finished
+		Bundle newData = null;
+		// Time the search finished
+		long finishedAt;
+
+		BookRequest(long id, String uuid, Bundle origData, FieldUsages fieldUsages) {
+			this.id = id;
+			this.uuid = uuid;
+			this.origData = origData;
+			this.fieldUsages = fieldUsages;
+			this.tempThumbnail = CatalogueDBAdapter.getTempThumbnail("_update_" + id);
+		}
+	}
+
 	/**
 	 * Constructor.
-	 * 
+	 *
 	 * @param manager			Object to manage background tasks
 	 * @param requestedFields	fields to update
 	 * @param lookupHandler		Interface object to handle events in this thread.
@@ -84,15 +127,21 @@ public class UpdateThumbnailsThread extends ManagedTask implements SearchManager
 		super(manager, lookupHandler);
 		mDbHelper = new CatalogueDBAdapter(manager.getAppContext());
 		mDbHelper.open();
-		
+
 		mRequestedFields = requestedFields;
-		mSearchManager = new SearchManager(mManager, this);
+
+		// Create the searches here, in the UI thread; SearchManager must be created in a thread with a Looper.
+		for(int i = 0; i < MAX_CONCURRENT_SEARCHES; i++) {
+			BookSearch s = new BookSearch();
+			mSearches.add(s);
+			mIdleSearches.add(s);
+		}
+
 		mManager.doProgress(mManager.getString(R.string.starting_search));
 	}
 
 	@Override
 	public void onRun() throws InterruptedException {
-		int counter = 0;
 		/* Test write to the SDCard; abort if not writable */
 		if (!StorageUtils.sdCardWritable()) {
 			mFinalMessage = getString(R.string.thumbnail_failed_sdcard);
@@ -104,128 +153,188 @@ public class UpdateThumbnailsThread extends ManagedTask implements SearchManager
 		mManager.setMax(this, books.getCount());
 		try {
 			while (books.moveToNext() && !isCancelled()) {
-				// Increment the progress counter 
-				counter++;
-
-				// Copy the fields from the cursor and build a complete set of data for this book.
-				// This only needs to include data that we can fetch (so, for example, bookshelves are ignored).
-				mOrigData = new Bundle();
-				for(int i = 0; i < books.getColumnCount(); i++) {
-					mOrigData.putString(books.getColumnName(i), books.getString(i));
-				}
-				// Get the book ID
-				mCurrId = Utils.getAsLong(mOrigData, CatalogueDBAdapter.KEY_ROWID);
-				// Get the book UUID
-				mCurrUuid = mOrigData.getString( DatabaseDefinitions.DOM_BOOK_UUID.name );
-				// Get the extra data about the book
-				mOrigData.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, mDbHelper.getBookAuthorList(mCurrId));
-				mOrigData.putSerializable(CatalogueDBAdapter.KEY_SERIES_ARRAY, mDbHelper.getBookSeriesList(mCurrId));
+				mBooksRead++;
 
-				// Grab the searchable fields. Ideally we will have an ISBN but we may not.
-				String isbn = mOrigData.getString(CatalogueDBAdapter.KEY_ISBN);
-				String author = mOrigData.getString(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED);
-				String title = mOrigData.getString(CatalogueDBAdapter.KEY_TITLE);
-
-				// Reset the fields we want for THIS book
-				mCurrFieldUsages = new FieldUsages();
-
-				// See if there is a reason to fetch ANY data by checking which fields this book needs. 
-				for(FieldUsage usage : mRequestedFields.values()) {
-					// Not selected, we dont want it
-					if (usage.selected) {
-						switch(usage.usage) {
-						case ADD_EXTRA:
-						case OVERWRITE:
-							// Add and Overwrite mean we always get the data
-							mCurrFieldUsages.put(usage);
-							break;
-						case COPY_IF_BLANK:
-							// Handle special cases
-							// - If it's a thumbnail, then see if it's missing or empty. 
-							if (usage.fieldName.equals(CatalogueDBAdapter.KEY_THUMBNAIL)) {
-								File file = CatalogueDBAdapter.fetchThumbnailByUuid(mCurrUuid);
-								if (!file.exists() || file.length() == 0)
-									mCurrFieldUsages.put(usage);
-							} else if (usage.fieldName.equals(CatalogueDBAdapter.KEY_AUTHOR_ARRAY)) {
-								// We should never have a book with no authors, but lets be paranoid
-								if (mOrigData.containsKey(usage.fieldName)) {
-									ArrayList<Author> origAuthors = (ArrayList<Author>) mOrigData.getSerializable(usage.fieldName);
-									if (origAuthors == null || origAuthors.size() == 0)
-										mCurrFieldUsages.put(usage);
-								}
-							} else if (usage.fieldName.equals(CatalogueDBAdapter.KEY_SERIES_ARRAY)) {
-								if (mOrigData.containsKey(usage.fieldName)) {
-									ArrayList<Series> origSeries = (ArrayList<Series>) mOrigData.getSerializable(usage.fieldName);
-									if (origSeries == null || origSeries.size() == 0)
-										mCurrFieldUsages.put(usage);
-								}
-							} else {
-								// If the original was blank, add to list
-								if (!mOrigData.containsKey(usage.fieldName) || mOrigData.getString(usage.fieldName) == null || mOrigData.getString(usage.fieldName).length() == 0 )
-									mCurrFieldUsages.put(usage);
-							}
-							break;
-						}
-					}
-				}
+				BookRequest req = readBook(books);
 
-				// Cache the value to indicate we need thumbnails (or not).
-				boolean tmpThumbWanted = mCurrFieldUsages.containsKey(CatalogueDBAdapter.KEY_THUMBNAIL);
-
-				if (tmpThumbWanted) {
-					// delete any temporary thumbnails //
-					try {
-						File delthumb = CatalogueDBAdapter.getTempThumbnail();
-						delthumb.delete();
-					} catch (Exception e) {
-						// do nothing - this is the expected behaviour 
-					}					
-				}
+				// Grab the searchable fields. Ideally we will have an ISBN but we may not.
+				String isbn = req.origData.getString(CatalogueDBAdapter.KEY_ISBN);
+				String author = req.origData.getString(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED);
+				String title = req.origData.getString(CatalogueDBAdapter.KEY_TITLE);
 
-				// Use this to flag if we actually need a search.
-				boolean wantSearch = false;
 				// Update the progress appropriately
-				if (mCurrFieldUsages.size() == 0 || isbn.equals("") && (author.equals("") || title.equals(""))) {
-					mManager.doProgress(String.format(getString(R.string.skip_title), title));
+				if (req.fieldUsages.size() == 0 || isbn.equals("") && (author.equals("") || title.equals(""))) {
+					mBooksDone++;
+					mManager.doProgress(this, String.format(getString(R.string.skip_title), title), mBooksDone);
 				} else {
-					wantSearch = true;
-					if (title.length() > 0)
-						mManager.doProgress(title);
-					else
-						mManager.doProgress(isbn);
-				}
-				mManager.doProgress(this, null, counter);
-
-				// Start searching if we need it, then wait...
-				if (wantSearch) {
-					// TODO: Allow user-selection of search sources
-					mSearchManager.search(author, title, isbn, tmpThumbWanted, SearchManager.SEARCH_ALL);
-					// Wait for the search to complete; when the search has completed it uses class-level state
-					// data when processing the results. It will signal this lock when it no longer needs any class
-					// level state data (eg. mOrigData).
-					mSearchLock.lock();
-					try {
-						mSearchDone.await();
-					} finally {
-						mSearchLock.unlock();					
-					}
+					// Wait for a free search, writing any results while we wait, and start it.
+					BookSearch search = getIdleSearch();
+					if (req.fieldUsages.containsKey(CatalogueDBAdapter.KEY_THUMBNAIL))
+						req.tempThumbnail.delete();
+					search.start(req, author, title, isbn);
 				}
+				writeResults(false);
+			}
 
+			// Let the remaining searches finish, and write their results.
+			while (true) {
+				mLock.lock();
+				try {
+					if (mActiveSearches == 0 || isCancelled())
+						break;
+					mSearchDone.await(WRITE_BATCH_MS, TimeUnit.MILLISECONDS);
+				} finally {
+					mLock.unlock();
+				}
+				writeResults(false);
 			}
 		} finally {
 			// Clean up the cursor
 			if (books != null && !books.isClosed())
 				books.close();
+
+			// Save anything we already have, even if cancelled.
+			try {
+				writeResults(true);
+			} catch (Exception e) {
+				Logger.logError(e);
+			}
+
 			// Empty the progress.
 			mManager.doProgress(null);
 
 			// Make the final message
-			mFinalMessage = String.format(getString(R.string.num_books_searched), "" + counter);
-			if (isCancelled()) 
+			mFinalMessage = String.format(getString(R.string.num_books_searched), "" + mBooksRead);
+			if (isCancelled())
 				mFinalMessage = String.format(getString(R.string.cancelled_info), mFinalMessage);
 		}
 	}
 
+	/**
+	 * Copy the fields from the cursor and build a complete set of data for the current book,
+	 * and work out which fields it needs.
+	 */
+	private BookRequest readBook(Cursor books) {
+		// This only needs to include data that we can fetch (so, for example, bookshelves are ignored).
+		Bundle origData = new Bundle();
+		for(int i = 0; i < books.getColumnCount(); i++) {
+			origData.putString(books.getColumnName(i), books.getString(i));
+		}
+		// Get the book ID
+		final long id = Utils.getAsLong(origData, CatalogueDBAdapter.KEY_ROWID);
+		// Get the book UUID
+		final String uuid = origData.getString( DatabaseDefinitions.DOM_BOOK_UUID.name );
+		// Get the extra data about the book
+		origData.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, mDbHelper.getBookAuthorList(id));
+		origData.putSerializable(CatalogueDBAdapter.KEY_SERIES_ARRAY, mDbHelper.getBookSeriesList(id));
+
+		// The fields we want for THIS book
+		FieldUsages fieldUsages = new FieldUsages();
+
+		// See if there is a reason to fetch ANY data by checking which fields this book needs.
+		for(FieldUsage usage : mRequestedFields.values()) {
+			// Not selected, we dont want it
+			if (usage.selected) {
+				switch(usage.usage) {
+				case ADD_EXTRA:
+				case OVERWRITE:
+					// Add and Overwrite mean we always get the data
+					fieldUsages.put(usage);
+					break;
+				case COPY_IF_BLANK:
+					// Handle special cases
+					// - If it's a thumbnail, then see if it's missing or empty.
+					if (usage.fieldName.equals(CatalogueDBAdapter.KEY_THUMBNAIL)) {
+						File file = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
+						if (!file.exists() || file.length() == 0)
+							fieldUsages.put(usage);
+					} else if (usage.fieldName.equals(CatalogueDBAdapter.KEY_AUTHOR_ARRAY)) {
+						// We should never have a book with no authors, but lets be paranoid
+						if (origData.containsKey(usage.fieldName)) {
+							ArrayList<Author> origAuthors = (ArrayList<Author>) origData.getSerializable(usage.fieldName);
+							if (origAuthors == null || origAuthors.size() == 0)
+								fieldUsages.put(usage);
+						}
+					} else if (usage.fieldName.equals(CatalogueDBAdapter.KEY_SERIES_ARRAY)) {
+						if (origData.containsKey(usage.fieldName)) {
+							ArrayList<Series> origSeries = (ArrayList<Series>) origData.getSerializable(usage.fieldName);
+							if (origSeries == null || origSeries.size() == 0)
+								fieldUsages.put(usage);
+						}
+					} else {
+						// If the original was blank, add to list
+						if (!origData.containsKey(usage.fieldName) || origData.getString(usage.fieldName) == null || origData.getString(usage.fieldName).length() == 0 )
+							fieldUsages.put(usage);
+					}
+					break;
+				}
+			}
+		}
+		return new BookRequest(id, uuid, origData, fieldUsages);
+	}
+
+	/**
+	 * Get a search that is not in use. If all are busy, wait for one to finish, writing
+	 * results while waiting.
+	 */
+	private BookSearch getIdleSearch() throws InterruptedException {
+		while (true) {
+			mLock.lock();
+			try {
+				if (mIdleSearches.size() > 0)
+					return mIdleSearches.remove(mIdleSearches.size() - 1);
+				mSearchDone.await(WRITE_BATCH_MS, TimeUnit.MILLISECONDS);
+			} finally {
+				mLock.unlock();
+			}
+			writeResults(false);
+		}
+	}
+
+	/**
+	 * Write the results of finished searches, in a single transaction. Unless forced, nothing
+	 * is done until there is a full batch or the oldest result has waited long enough.
+	 *
+	 * @param force		Write whatever is waiting
+	 */
+	private void writeResults(boolean force) {
+		ArrayList<BookRequest> batch;
+		mLock.lock();
+		try {
+			if (mResults.size() == 0)
+				return;
+			if (!force && mResults.size() < WRITE_BATCH_SIZE
+					&& System.currentTimeMillis() - mResults.getFirst().finishedAt < WRITE_BATCH_MS)
+				return;
+			batch = new ArrayList<BookRequest>(mResults);
+			mResults.clear();
+		} finally {
+			mLock.unlock();
+		}
+
+		SyncLock txLock = mDbHelper.startTransaction(true);
+		try {
+			for(BookRequest req: batch) {
+				try {
+					processSearchResults(req);
+				} catch (Exception e) {
+					// Do not lose the rest of the batch
+					Logger.logError(e, "Failed to update book " + req.id);
+				}
+			}
+			// Purging was skipped for each book; do it once for the batch.
+			mDbHelper.purgeAuthors();
+			mDbHelper.purgeSeries();
+			mDbHelper.setTransactionSuccessful();
+		} finally {
+			mDbHelper.endTransaction(txLock);
+		}
+
+		mBooksDone += batch.size();
+		String title = batch.get(batch.size() - 1).origData.getString(CatalogueDBAdapter.KEY_TITLE);
+		mManager.doProgress(this, title, mBooksDone);
+	}
+
 	@Override
 	protected boolean onFinish() {
 		try {
@@ -246,44 +355,114 @@ public class UpdateThumbnailsThread extends ManagedTask implements SearchManager
 	}
 
 	/**
-	 * Called in the main thread for this object when a search has completed.
+	 * One of the concurrent searches. Each has its own SearchManager, which is reused for
+	 * each book it searches for.
 	 *
-	 * @param bookData
-	 * @param cancelled
+	 * @author Philip Warner
 	 */
-	@Override
-	public void onSearchFinished(Bundle bookData, boolean cancelled) {
-		// Set cancelled flag if the task was cancelled
-		if (cancelled) {
-			cancelTask();
-		} else if (bookData == null) {
-			mManager.doToast("Unable to find book details");
+	private class BookSearch implements SearchManager.SearchResultHandler {
+		private final SearchManager mSearchManager;
+		// Book being searched for; only used in the UI thread once the search has started
+		private BookRequest mRequest = null;
+
+		BookSearch() {
+			mSearchManager = new SearchManager(mManager, this);
+		}
+
+		/**
+		 * Start searching for the passed book.
+		 */
+		void start(BookRequest req, String author, String title, String isbn) {
+			mRequest = req;
+			mLock.lock();
+			try {
+				mActiveSearches++;
+			} finally {
+				mLock.unlock();
+			}
+			// TODO: Allow user-selection of search sources
+			mSearchManager.setRequiredFields(getRequiredFields(req.fieldUsages));
+			mSearchManager.search(author, title, isbn, req.fieldUsages.containsKey(CatalogueDBAdapter.KEY_THUMBNAIL), SearchManager.SEARCH_ALL);
 		}
 
-		// Save the local data from the context so we can start a new search
-		long rowId = mCurrId;
-		Bundle origData = mOrigData;
-		FieldUsages requestedFields = mCurrFieldUsages;
+		/**
+		 * Called in the UI thread when a search has completed. Queues the results to be
+		 * written and makes this search available for another book.
+		 *
+		 * @param bookData
+		 * @param cancelled
+		 */
+		@Override
+		public void onSearchFinished(Bundle bookData, boolean cancelled) {
+			// Set cancelled flag if the task was cancelled
+			if (cancelled) {
+				cancelTask();
+			} else if (bookData == null) {
+				mManager.doToast("Unable to find book details");
+			}
+
+			final BookRequest req = mRequest;
+			mRequest = null;
 
-		// Dispatch to UI thread so we can fire the lock...can't do from same thread.
-		mMessageHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				doSearchDone();
-			}});
+			// The search left its cover in the standard temp file; move it before another search
+			// finishes and overwrites it. This runs in the UI thread, as do all search completions.
+			File downloadedFile = CatalogueDBAdapter.getTempThumbnail();
+			if (!isCancelled() && bookData != null && bookData.containsKey(CatalogueDBAdapter.KEY_THUMBNAIL)) {
+				req.tempThumbnail.delete();
+				downloadedFile.renameTo(req.tempThumbnail);
+			} else {
+				downloadedFile.delete();
+			}
 
-		if (!isCancelled() && bookData != null)
-			processSearchResults(rowId, mCurrUuid, requestedFields, bookData, origData);
+			mLock.lock();
+			try {
+				if (!isCancelled() && bookData != null) {
+					req.newData = bookData;
+					req.finishedAt = System.currentTimeMillis();
+					mResults.add(req);
+				}
+				mActiveSearches--;
+				mIdleSearches.add(this);
+				mSearchDone.signalAll();
+			} finally {
+				mLock.unlock();
+			}
+		}
 	}
 
 	/**
-	 * Passed the old & new data, construct the update data and perform the update.
-	 * 
-	 * @param rowId		Book ID
-	 * @param newData	Data gathered from internet
-	 * @param origData	Original data
+	 * Get the search result fields needed to fill all the fields wanted for a book, so the
+	 * search can stop as soon as one source has supplied each of them. Returns null if any field
+	 * wants extra values appended, since then every source is useful.
+	 */
+	private static String[] getRequiredFields(FieldUsages fieldUsages) {
+		ArrayList<String> fields = new ArrayList<String>();
+		for(FieldUsage usage: fieldUsages.values()) {
+			if (usage.usage == Usages.ADD_EXTRA)
+				return null;
+			if (usage.fieldName.equals(CatalogueDBAdapter.KEY_THUMBNAIL))
+				fields.add("__thumbnail");
+			else if (usage.fieldName.equals(CatalogueDBAdapter.KEY_AUTHOR_ARRAY))
+				fields.add(CatalogueDBAdapter.KEY_AUTHOR_DETAILS);
+			else if (usage.fieldName.equals(CatalogueDBAdapter.KEY_SERIES_ARRAY))
+				fields.add(CatalogueDBAdapter.KEY_SERIES_DETAILS);
+			else
+				fields.add(usage.fieldName);
+		}
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	/**
+	 * Passed the old & new data, construct the update data and perform the update. Does not
+	 * purge unused authors and series; the caller does that once for each batch.
+	 *
+	 * @param req	Book, with the data gathered from internet
 	 */
-	private void processSearchResults(long bookId, String bookUuid, FieldUsages requestedFields, Bundle newData, Bundle origData) {
+	private void processSearchResults(BookRequest req) {
+		final FieldUsages requestedFields = req.fieldUsages;
+		final Bundle newData = req.newData;
+		final Bundle origData = req.origData;
+
 		// First, filter the data to remove keys we don't care about
 		ArrayList<String> toRemove = new ArrayList<String>();
 		for(String key : newData.keySet()) {
@@ -291,24 +470,24 @@ public class UpdateThumbnailsThread extends ManagedTask implements SearchManager
 				toRemove.add(key);
 		}
 		for(String key : toRemove) {
-			newData.remove(key);				
+			newData.remove(key);
 		}
 
-		// For each field, process it according the the usage. 
+		// For each field, process it according the the usage.
 		for(FieldUsage usage : requestedFields.values()) {
 			if (newData.containsKey(usage.fieldName)) {
 				// Handle thumbnail specially
 				if (usage.fieldName.equals(CatalogueDBAdapter.KEY_THUMBNAIL)) {
-					File downloadedFile = CatalogueDBAdapter.getTempThumbnail();
+					File downloadedFile = req.tempThumbnail;
 					boolean copyThumb = false;
 					if (usage.usage == Usages.COPY_IF_BLANK) {
-						File file = CatalogueDBAdapter.fetchThumbnailByUuid(bookUuid);
+						File file = CatalogueDBAdapter.fetchThumbnailByUuid(req.uuid);
 						copyThumb = (!file.exists() || file.length() == 0);
 					} else if (usage.usage == Usages.OVERWRITE) {
 						copyThumb = true;
 					}
 					if (copyThumb) {
-						File file = CatalogueDBAdapter.fetchThumbnailByUuid(bookUuid);
+						File file = CatalogueDBAdapter.fetchThumbnailByUuid(req.uuid);
 						downloadedFile.renameTo(file);
 					} else {
 						downloadedFile.delete();
@@ -324,13 +503,13 @@ public class UpdateThumbnailsThread extends ManagedTask implements SearchManager
 							if (origData.containsKey(usage.fieldName)) {
 								ArrayList<Author> origAuthors = (ArrayList<Author>) origData.getSerializable(usage.fieldName);
 								if (origAuthors != null && origAuthors.size() > 0)
-									newData.remove(usage.fieldName);								
+									newData.remove(usage.fieldName);
 							}
 						} else if (usage.fieldName.equals(CatalogueDBAdapter.KEY_SERIES_ARRAY)) {
 							if (origData.containsKey(usage.fieldName)) {
 								ArrayList<Series> origSeries = (ArrayList<Series>) origData.getSerializable(usage.fieldName);
 								if (origSeries != null && origSeries.size() > 0)
-									newData.remove(usage.fieldName);								
+									newData.remove(usage.fieldName);
 							}
 						} else {
 							// If the original was non-blank, erase from list
@@ -350,15 +529,17 @@ public class UpdateThumbnailsThread extends ManagedTask implements SearchManager
 						}
 						break;
 					}
-					
+
 				}
 			}
 		}
+		// Remove the cover if it was not used
+		req.tempThumbnail.delete();
 
 		// Update
 		if (newData.size() > 0)
-			mDbHelper.updateBook(bookId, newData, true);
-		
+			mDbHelper.updateBook(req.id, newData, false);
+
 	}
 
 	private static<T extends Serializable> void combineArrays(String key, Bundle origData, Bundle newData) {
@@ -384,20 +565,6 @@ public class UpdateThumbnailsThread extends ManagedTask implements SearchManager
 		newData.putSerializable(key, origList);
 	}
 	
-	/**
-	 * Called to signal that the search is complete AND the class-level data has 
-	 * been cached by the processing thread, so that a new search can begin.
-	 */
-	private void doSearchDone() {
-		// Let another search begin
-		mSearchLock.lock();
-		try {
-			mSearchDone.signal();
-		} finally {
-			mSearchLock.unlock();			
-		}
-	}
-	
 	/**
 	 * Cleanup any DB connection etc after main task has run.
 	 */
@@ -416,13 +583,23 @@ public class UpdateThumbnailsThread extends ManagedTask implements SearchManager
 
 	/**
 	 * Since this thread is the only one created directly by the calling activity, we need to 
-	 * provide a way to get the handlers for each task. We just defer to the SearchManager.
+	 * provide a way to get the handlers for each task. We just defer to the SearchManager
+	 * running the task.
 	 * 
 	 * @param t
 	 * @return
 	 */
 	public TaskHandler getTaskHandler(ManagedTask t) {
-		return mSearchManager.getTaskHandler(t);
+		mLock.lock();
+		try {
+			for(BookSearch s: mSearches) {
+				if (s.mSearchManager.isRunning(t))
+					return s.mSearchManager.getTaskHandler(t);
+			}
+		} finally {
+			mLock.unlock();
+		}
+		return null;
 	}
 
 }
@@ -21,17 +21,14 @@
 package com.eleybourn.bookcatalogue;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
-import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.text.DateFormat;
@@ -49,13 +46,11 @@ import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.entity.BufferedHttpEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import com.eleybourn.bookcatalogue.database.CoverPackStore;
 import com.eleybourn.bookcatalogue.database.CoversDbHelper;
 
 import android.content.Context;
@@ -67,6 +62,7 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Looper;
 import android.widget.ImageView;
 import android.widget.Toast;
 
@@ -437,66 +433,13 @@ public class Utils {
 	 * @return	Downloaded filespec
 	 */
 	static public String saveThumbnailFromUrl(String urlText, String filenameSuffix) {
-		URL u;
-		try {
-			u = new URL(urlText);
-		} catch (MalformedURLException e) {
-			Logger.logError(e);
+		// The image is streamed directly to the file; it is never held in memory. The name is
+		// made unique since several searches for the same site may run at once, on pooled threads.
+		File file = CatalogueDBAdapter.getUniqueTempThumbnail(filenameSuffix);
+		ImageDownloader.Result result = ImageDownloader.download(urlText, file, 0);
+		if (result == null)
 			return "";
-		}
-		HttpURLConnection c;
-		InputStream in = null;
-		try {
-            HttpGet httpRequest = null;
-
-			httpRequest = new HttpGet(u.toURI());
-
-            HttpClient httpclient = new DefaultHttpClient();
-            HttpResponse response = (HttpResponse) httpclient.execute(httpRequest);
-
-            HttpEntity entity = response.getEntity();
-            BufferedHttpEntity bufHttpEntity = new BufferedHttpEntity(entity);
-            in = bufHttpEntity.getContent();
-
-            // The defaut URL fetcher does not cope well with pages that have not content
-            // header (including goodreads images!). So use the more advanced one.
-			//c = (HttpURLConnection) u.openConnection();
-			//c.setConnectTimeout(30000);
-			//c.setRequestMethod("GET");
-			//c.setDoOutput(true);
-			//c.connect();
-			//in = c.getInputStream();
-		} catch (IOException e) {
-			Logger.logError(e);
-			return "";
-		} catch (URISyntaxException e) {
-			Logger.logError(e);
-			return "";
-		}
-
-		String filename = "";
-		FileOutputStream f = null;
-		try {
-			File file = CatalogueDBAdapter.getTempThumbnail(filenameSuffix);
-			filename = file.getAbsolutePath();
-			f = new FileOutputStream(filename);
-		} catch (FileNotFoundException e) {
-			Logger.logError(e);
-			return "";
-		}
-		
-		try {
-			byte[] buffer = new byte[1024];
-			int len1 = 0;
-			while ( (len1 = in.read(buffer)) > 0 ) {
-				f.write(buffer,0, len1);
-			}
-			f.close();
-		} catch (IOException e) {
-			Logger.logError(e);
-			return "";
-		}
-		return filename;
+		return result.file.getAbsolutePath();
 	}
 
 	/**
@@ -536,33 +479,40 @@ public class Utils {
 	 * @return	Downloaded byte[]
 	 */
 	static public byte[] getBytesFromUrl(String urlText) {
-		// Get the URL
-		URL u;
+		// Request it from the network
+		HttpGet request;
 		try {
-			u = new URL(urlText);
-		} catch (MalformedURLException e) {
+			request = new HttpGet(urlText);
+		} catch (IllegalArgumentException e) {
 			Logger.logError(e);
 			return null;
 		}
-		// Request it from the network
-		HttpURLConnection c;
-		InputStream in = null;
+		HttpResponse response;
+		HttpEntity entity;
 		try {
-			c = (HttpURLConnection) u.openConnection();
-			c.setConnectTimeout(30000);
-			c.setRequestMethod("GET");
-			c.setDoOutput(true);
-			c.connect();
-			in = c.getInputStream();
+			RateLimiter.acquire(request.getURI());
+			response = SharedHttpClient.execute(request);
+			entity = response.getEntity();
 		} catch (IOException e) {
 			Logger.logError(e);
 			return null;
 		}
+		if (entity == null)
+			return null;
+		if (response.getStatusLine().getStatusCode() >= 400) {
+			SharedHttpClient.consume(response);
+			Logger.logError(new RuntimeException("HTTP " + response.getStatusLine().getStatusCode() + " fetching " + urlText));
+			return null;
+		}
 
-		// Save the output to a byte output stream
-		ByteArrayOutputStream f = new ByteArrayOutputStream();
+		// Save the output to a byte output stream; size it up front if we know the length so
+		// that it does not repeatedly grow and copy.
+		final long length = entity.getContentLength();
+		ByteArrayOutputStream f = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int)length : 8192);
+		InputStream in = null;
 		try {
-			byte[] buffer = new byte[1024];
+			in = entity.getContent();
+			byte[] buffer = new byte[8192];
 			int len1 = 0;
 			while ( (len1 = in.read(buffer)) > 0 ) {
 				f.write(buffer,0, len1);
@@ -570,40 +520,73 @@ public class Utils {
 			f.close();
 		} catch (IOException e) {
 			Logger.logError(e);
+			request.abort();
 			return null;
+		} finally {
+			if (in != null)
+				try { in.close(); } catch (Exception e) {};
 		}
 		// Return it as a byte[]
 		return f.toByteArray();
 	}
 
 	/**
-	 * Utility routine to get the data from a URL. Makes sure timeout is set to avoid application
-	 * stalling.
+	 * Utility routine to get a URL and parse the XML it returns. Makes sure timeout is set to avoid
+	 * application stalling, and that the host is not sent requests faster than RateLimiter allows.
+	 *
+	 * The request is made using the SharedHttpClient so the connection is reused. It is always
+	 * released when this returns: the response is consumed after a complete parse, and the request
+	 * is aborted if the parse stopped early, so the rest is not downloaded.
 	 * 
+	 * @param parser	Parser to use
 	 * @param url		URL to retrieve
-	 * @return
+	 * @param handler	Handler for the parser
+	 *
 	 * @throws UnknownHostException 
 	 */
-	static public InputStream getInputStream(URL url) throws UnknownHostException {
-		
-		synchronized (url) {
-			
-			int retries = 3;
-			while (true) {
-				try {
-					java.net.URLConnection conn = url.openConnection();
-					conn.setConnectTimeout(30000);
-					return conn.getInputStream();
-				} catch (java.net.UnknownHostException e) {
-					Logger.logError(e);
-					retries--;
-					if (retries-- == 0)
-						throw e;
-					try { Thread.sleep(500); } catch(Exception junk) {};
-				} catch (Exception e) {
-					Logger.logError(e);
-					throw new RuntimeException(e);
-				}			
+	static public void parseUrl(SAXParser parser, URL url, DefaultHandler handler) throws UnknownHostException, SAXException, IOException {
+		int retries = 3;
+		HttpGet request;
+		HttpResponse response;
+		while (true) {
+			try {
+				RateLimiter.acquire(url);
+				request = new HttpGet(SharedHttpClient.toUri(url));
+				response = SharedHttpClient.execute(request);
+				final int code = response.getStatusLine().getStatusCode();
+				if (code >= 400) {
+					SharedHttpClient.consume(response);
+					throw new IOException("HTTP " + code + " fetching " + url);
+				}
+				break;
+			} catch (java.io.InterruptedIOException e) {
+				// Cancelled while waiting to be allowed to send the request
+				throw e;
+			} catch (java.net.UnknownHostException e) {
+				Logger.logError(e);
+				retries--;
+				if (retries-- == 0)
+					throw e;
+				try { Thread.sleep(500); } catch(Exception junk) {};
+			} catch (Exception e) {
+				Logger.logError(e);
+				throw new RuntimeException(e);
+			}			
+		}
+
+		boolean parsed = false;
+		InputStream in = null;
+		try {
+			HttpEntity entity = response.getEntity();
+			in = (entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent());
+			parser.parse(in, handler);
+			parsed = true;
+		} finally {
+			if (parsed) {
+				try { in.close(); } catch (Exception e) {};
+				SharedHttpClient.consume(response);
+			} else {
+				request.abort();
 			}
 		}
 	}
@@ -759,6 +742,36 @@ public class Utils {
 		return outputString;
 	}
 
+	/**
+	 * Reduce an ISBN to a canonical form so that different ways of writing the same ISBN
+	 * compare equal: punctuation is removed and ISBN-10 values are converted to ISBN-13.
+	 * 
+	 * @param isbn		ISBN as entered or returned by a web site
+	 * 
+	 * @return			Canonical ISBN, or the cleaned string if it is not a valid length
+	 */
+	public static String normaliseIsbn(String isbn) {
+		if (isbn == null)
+			return "";
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < isbn.length(); i++) {
+			final char c = isbn.charAt(i);
+			if (Character.isDigit(c))
+				sb.append(c);
+			else if (c == 'x' || c == 'X')
+				sb.append('X');
+		}
+		if (sb.length() == 10) {
+			// Convert to ISBN-13; the old check digit is replaced.
+			String digits = "978" + sb.substring(0, 9);
+			int sum = 0;
+			for(int i = 0; i < 12; i++)
+				sum += (digits.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+			return digits + ((10 - (sum % 10)) % 10);
+		}
+		return sb.toString();
+	}
+
 	/**
 	 * Check if passed bundle contains a non-blank string at key k.
 	 * 
@@ -955,15 +968,40 @@ public class Utils {
 		return details;
 	}
 	
+	/** SAX parser for each thread; creating one is slow, but they can be reused */
+	private static final ThreadLocal<SAXParser> mSaxParser = new ThreadLocal<SAXParser>();
+
+	/**
+	 * Get a SAX parser for the current thread, with the default factory settings. It must not
+	 * be used for a second document while the first is still being parsed.
+	 *
+	 * A reused parser is reset first so that nothing left over from a previous (possibly
+	 * failed) parse leaks into the next one; if it can not be reset, a new one is made.
+	 */
+	static public SAXParser getSaxParser() throws ParserConfigurationException, SAXException {
+		SAXParser parser = mSaxParser.get();
+		if (parser != null) {
+			try {
+				parser.reset();
+				return parser;
+			} catch (UnsupportedOperationException e) {
+				// Fall through and replace it
+			}
+		}
+		parser = SAXParserFactory.newInstance().newSAXParser();
+		mSaxParser.set(parser);
+		return parser;
+	}
+
 	// TODO: Make sure all URL getters use this if possible.
-	static public void parseUrlOutput(String path, SAXParserFactory factory, DefaultHandler handler) {
+	static public void parseUrlOutput(String path, DefaultHandler handler) {
 		SAXParser parser;
 		URL url;
 
 		try {
 			url = new URL(path);
-			parser = factory.newSAXParser();
-			parser.parse(Utils.getInputStream(url), handler);
+			parser = getSaxParser();
+			parseUrl(parser, url, handler);
 			// Dont bother catching general exceptions, they will be caught by the caller.
 		} catch (MalformedURLException e) {
 			String s = "unknown";
@@ -1007,7 +1045,7 @@ public class Utils {
 			return null;
 		}
 
-		bm = shrinkFileIntoImageView(destView, file.getPath(), maxWidth, maxHeight, exact);
+		bm = shrinkFileIntoImageView(destView, file.getPath(), maxWidth, maxHeight, exact, null);
 
 		return bm;
 	}
@@ -1039,24 +1077,29 @@ public class Utils {
 	public Bitmap fetchCachedImageIntoImageView(final File originalFile, final ImageView destView, final String cacheId) {
 		Bitmap bm = null;					// resultant Bitmap (which we will return) 
 
-		// Get the db
-		CoversDbHelper coversDb = getCoversDb();
-		if (coversDb != null) {
+		Date expiry;
+		if (originalFile == null)
+			expiry = new Date(0L);
+		else
+			expiry = new Date(originalFile.lastModified());
+
+		// Get the pack store or db
+		CoverPackStore pack = CoverPackStore.getInstanceIfEnabled();
+		CoversDbHelper coversDb = (pack == null ? getCoversDb() : null);
+		if (pack != null || coversDb != null) {
 			byte[] bytes;
 			// Wrap in try/catch. It's possible the SDCard got removed and DB is now inaccessible
-			Date expiry;
-			if (originalFile == null)
-				expiry = new Date(0L);
-			else
-				expiry = new Date(originalFile.lastModified());
-
-			try { bytes = coversDb.getFile(cacheId, expiry); } 
-				catch (Exception e) {
+			try { 
+				if (pack != null)
+					bytes = pack.get(cacheId, expiry.getTime() + 1);
+				else
+					bytes = coversDb.getFile(cacheId, expiry);
+			} catch (Exception e) {
 					bytes = null;
 				};
 			if (bytes != null) {
 				try {
-					bm = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+					bm = BitmapPool.decodeByteArray(bytes, new BitmapFactory.Options());
 				} catch (Exception e) {
 					bytes = null;
 				};
@@ -1080,6 +1123,53 @@ public class Utils {
 		return bm;
 	}
 
+	/**
+	 * Save a thumbnail to the cover cache; the pack store if enabled, otherwise the covers database.
+	 * 
+	 * @param cacheId	ID of the image in the cache
+	 * @param bm		Bitmap to save
+	 */
+	public void saveCachedCover(final String cacheId, final Bitmap bm) {
+		CoverPackStore pack = CoverPackStore.getInstanceIfEnabled();
+		if (pack != null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			bm.compress(Bitmap.CompressFormat.JPEG, 70, out);
+			try {
+				pack.put(cacheId, System.currentTimeMillis(), out.toByteArray());
+			} catch (IOException e) {
+				Logger.logError(e, "Failed to save " + cacheId + " to cover pack");
+			}
+		} else {
+			CoversDbHelper coversDb = getCoversDb();
+			if (coversDb != null)
+				coversDb.saveFile(cacheId, bm);
+		}
+	}
+
+	/**
+	 * Check if the cover cache has an entry newer than the passed date.
+	 * 
+	 * @param cacheId		ID of the image in the cache
+	 * @param lastModified	Date of the original image
+	 * 
+	 * @return	true if there is an up to date entry
+	 */
+	public boolean isCachedCoverValid(final String cacheId, final Date lastModified) {
+		CoverPackStore pack = CoverPackStore.getInstanceIfEnabled();
+		if (pack != null)
+			return pack.isEntryValid(cacheId, lastModified.getTime() + 1);
+
+		CoversDbHelper coversDb = getCoversDb();
+		return coversDb != null && coversDb.isEntryValid(cacheId, lastModified);
+	}
+
+	/**
+	 * Check if there is anywhere to cache covers.
+	 */
+	public boolean isCoverCacheAvailable() {
+		return CoverPackStore.getInstanceIfEnabled() != null || getCoversDb() != null;
+	}
+
 	/**
 	 * Called in the UI thread, will either use a cached cover OR start a background task to create and load it.
 	 * 
@@ -1104,6 +1194,18 @@ public class Utils {
 		Bitmap bm = null;
 		boolean cacheWasChecked = false;
 
+		// If it was prefetched, just use it; this does not touch the database.
+		if (checkCache) {
+			bm = ThumbnailPrefetcher.takePrefetched(getCoverCacheId(hash, maxWidth, maxHeight));
+			if (bm != null) {
+				if (destView != null) {
+					GetThumbnailTask.clearOldTaskFromView( destView );
+					destView.setImageBitmap(bm);
+				}
+				return bm;
+			}
+		}
+
 		// If we want to check the cache, AND we dont have cache building happening, then check it.
 		if (checkCache && !GetThumbnailTask.hasActiveTasks() && !ThumbnailCacheWriterTask.hasActiveTasks()) {
 			final String cacheId = getCoverCacheId(hash, maxWidth, maxHeight);
@@ -1133,7 +1235,7 @@ public class Utils {
 		//File coverFile = CatalogueDBAdapter.fetchThumbnail(bookId);
 		
 		// File is not in cache, original exists, we are in the background task (or not allowed to queue request)
-		return shrinkFileIntoImageView(destView, coverFile.getPath(), maxWidth, maxHeight, exact);
+		return shrinkFileIntoImageView(destView, coverFile.getPath(), maxWidth, maxHeight, exact, hash);
 
 	}
 
@@ -1146,16 +1248,20 @@ public class Utils {
 	 * @param maxWidth
 	 * @param maxHeight
 	 * @param exact
+	 * @param uuid		Book UUID if the file is the book cover, otherwise null. Only book covers are packed.
 	 * 
 	 * @return
 	 */
-	private static Bitmap shrinkFileIntoImageView(ImageView destView, String filename, int maxWidth, int maxHeight, boolean exact) {
+	private static Bitmap shrinkFileIntoImageView(ImageView destView, String filename, int maxWidth, int maxHeight, boolean exact, String uuid) {
 		Bitmap bm = null;
 
+		// If covers are being packed, read the whole cover in one go from the pack
+		final byte[] packed = (uuid == null ? null : getPackedCover(uuid, new File(filename)));
+
 		// Read the file to get file size
 		BitmapFactory.Options opt = new BitmapFactory.Options();
 		opt.inJustDecodeBounds = true;
-		BitmapFactory.decodeFile( filename, opt );
+		decodeFileOrBytes( filename, packed, opt );
 
 		// If no size info, or a single pixel, assume file bad and set the 'alert' icon
 		if ( opt.outHeight <= 0 || opt.outWidth <= 0 || (opt.outHeight== 1 && opt.outWidth == 1) ) {
@@ -1186,22 +1292,20 @@ public class Utils {
 				opt.inSampleSize = samplePow2 / 2;
 				if (opt.inSampleSize < 1)
 					opt.inSampleSize = 1;
-				Bitmap tmpBm = BitmapFactory.decodeFile( filename, opt );
-				android.graphics.Matrix matrix = new android.graphics.Matrix();
-				// Fixup ratio based on new sample size and scale it.
+				Bitmap tmpBm = decodeFileOrBytes( filename, packed, opt );
+				if (tmpBm == null)
+					return null;
+				// Fixup ratio based on new sample size and scale it into a pooled bitmap if possible.
 				ratio = ratio / (1.0f / opt.inSampleSize);
-				matrix.postScale(ratio, ratio);
-				bm = Bitmap.createBitmap(tmpBm, 0, 0, opt.outWidth, opt.outHeight, matrix, true);
-				// Recycle if original was not returned
-				if (bm != tmpBm) {
-					tmpBm.recycle();
-					tmpBm = null;
-				}
+				bm = BitmapPool.scale(tmpBm, ratio);
+				// The temporary bitmap can be reused by the next decode
+				BitmapPool.release(tmpBm);
+				tmpBm = null;
 			} else {
 				// Use a scale that will make image *no larger than* the desired size
 				if (ratio < 1.0f)
 					opt.inSampleSize = samplePow2;
-				bm = BitmapFactory.decodeFile( filename, opt );
+				bm = decodeFileOrBytes( filename, packed, opt );
 			}
 		} catch (OutOfMemoryError e) {
 			return null;
@@ -1214,6 +1318,45 @@ public class Utils {
 		return bm;		
 	}
 
+	/**
+	 * Decode from the passed bytes if present, otherwise from the file. Bounds-only decodes are done
+	 * directly; full decodes use pooled buffers and bitmaps.
+	 */
+	private static Bitmap decodeFileOrBytes(String filename, byte[] bytes, BitmapFactory.Options opt) {
+		if (opt.inJustDecodeBounds) {
+			if (bytes != null)
+				return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+			else
+				return BitmapFactory.decodeFile(filename, opt);
+		}
+		if (bytes != null)
+			return BitmapPool.decodeByteArray(bytes, opt);
+		else
+			return BitmapPool.decodeFile(filename, opt);
+	}
+
+	/**
+	 * If the pack store is in use, get the cover data from it. Missing or out of date covers are
+	 * only added from background threads, so the UI thread never reads a whole file to pack it.
+	 * 
+	 * @param uuid	Book UUID
+	 * @param file	Cover file
+	 * 
+	 * @return	Cover data, or null if the pack store is not in use or the cover is not packed.
+	 */
+	private static byte[] getPackedCover(String uuid, File file) {
+		CoverPackStore pack = CoverPackStore.getInstanceIfEnabled();
+		if (pack == null || !file.exists())
+			return null;
+
+		try {
+			return pack.getCover(uuid, file, Looper.myLooper() != Looper.getMainLooper());
+		} catch (IOException e) {
+			Logger.logError(e, "Failed to pack cover " + file.getPath());
+			return null;
+		}
+	}
+
 	public static void showLtAlertIfNecessary(Context context, boolean always, String suffix) {
 		if (USE_LT) {
 			LibraryThingManager ltm = new LibraryThingManager(context);
@@ -1327,6 +1470,15 @@ public class Utils {
 	 * Erase contents of covers cache
 	 */
 	public void eraseCoverCache() {
+		ThumbnailPrefetcher.clearPrefetched();
+		CoverPackStore pack = CoverPackStore.getInstanceIfEnabled();
+		if (pack != null) {
+			try {
+				pack.clear();
+			} catch (IOException e) {
+				Logger.logError(e, "Failed to clear cover pack");
+			}
+		}
 		CoversDbHelper db = getCoversDb();
 		if (db != null)
 			db.eraseCoverCache();
@@ -1336,6 +1488,15 @@ public class Utils {
 	 * Erase contents of covers cache
 	 */
 	public int eraseCachedBookCover(String uuid) {
+		ThumbnailPrefetcher.forgetBook(uuid);
+		CoverPackStore pack = CoverPackStore.getInstanceIfEnabled();
+		if (pack != null) {
+			try {
+				pack.deleteGroup(uuid);
+			} catch (IOException e) {
+				Logger.logError(e, "Failed to erase packed covers for " + uuid);
+			}
+		}
 		CoversDbHelper db = getCoversDb();
 		if (db != null)
 			return db.eraseCachedBookCover(uuid);
@@ -1150,6 +1150,36 @@ public class BooklistBuilder {
 		return (BooklistCursor) mDb.rawQueryWithFactory(mBooklistCursorFactory, sql, EMPTY_STRING_ARRAY, "");		
 	}
 
+	/**
+	 * Get the UUIDs of the books in the visible list rows starting at a given offset. Non-book
+	 * rows in the range are skipped, so fewer than 'size' UUIDs may be returned.
+	 *
+	 * Used by the thumbnail prefetcher; may be called from a background thread.
+	 *
+	 * @param position	First list position to examine
+	 * @param size		Number of list rows to examine
+	 *
+	 * @return			UUIDs in list order
+	 */
+	public ArrayList<String> getBookUuids(int position, int size) {
+		final String sql = "select " + mListTable.dot(DOM_KIND) + ", " + mListTable.dot(DOM_BOOK_UUID) +
+				" from " + mListTable.ref() + mListTable.join(mNavTable) +
+				" Where " + mNavTable.dot(DOM_VISIBLE) + " = 1 Order by " + mNavTable.dot(DOM_ID) +
+				" Limit " + size + " Offset " + position;
+
+		ArrayList<String> uuids = new ArrayList<String>();
+		Cursor c = mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+		try {
+			while (c.moveToNext()) {
+				if (c.getInt(0) == ROW_KIND_BOOK && !c.isNull(1))
+					uuids.add(c.getString(1));
+			}
+		} finally {
+			c.close();
+		}
+		return uuids;
+	}
+
 	/**
 	 * Return a BooklistPseudoCursor instead of a real cursor.
 	 */
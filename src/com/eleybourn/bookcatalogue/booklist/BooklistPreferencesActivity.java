@@ -27,6 +27,7 @@ import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 
 import com.eleybourn.bookcatalogue.BookCatalogueApp.BookCataloguePreferences;
+import com.eleybourn.bookcatalogue.CoverCacheWarmingTask;
 import com.eleybourn.bookcatalogue.HintManager;
 import com.eleybourn.bookcatalogue.Logger;
 import com.eleybourn.bookcatalogue.PreferencesBase;
@@ -58,12 +59,20 @@ public class BooklistPreferencesActivity extends PreferencesBase {
 	public static final String PREF_CHANGED = TAG + "PrefChanged";
 	/** Always expand/collapse/preserve book list state */
 	public static final String PREF_BOOKLISTS_STATE = TAG + "BooklistState";
+	/** How far ahead of the visible rows to prefetch covers */
+	public static final String PREF_COVER_PREFETCH = TAG + "CoverPrefetch";
 
 	// ID values for state preservation property
 	public static final int BOOKLISTS_ALWAYS_EXPANDED = 1;
 	public static final int BOOKLISTS_ALWAYS_COLLAPSED = 2;
 	public static final int BOOKLISTS_STATE_PRESERVED = 3;
 
+	// ID values for cover prefetch property
+	public static final int COVER_PREFETCH_OFF = 0;
+	public static final int COVER_PREFETCH_LIGHT = 1;
+	public static final int COVER_PREFETCH_NORMAL = 2;
+	public static final int COVER_PREFETCH_AGGRESSIVE = 3;
+
 	/** Booklist state preservation property */
 	private static ItemEntries<Integer> mBooklistStateListItems = new ItemEntries<Integer>();
 	private static IntegerListProperty mBooklistStateProperty = new IntegerListProperty(
@@ -93,6 +102,22 @@ public class BooklistPreferencesActivity extends PreferencesBase {
 		mFlatBackgroundProperty.setGlobal(true);
 	}
 
+	/** Cover prefetch property definition */
+	private static ItemEntries<Integer> mCoverPrefetchListItems = new ItemEntries<Integer>();
+	private static IntegerListProperty mCoverPrefetchProperty = new IntegerListProperty(
+				mCoverPrefetchListItems, 
+				PREF_COVER_PREFETCH, 
+				PropertyGroup.GRP_THUMBNAILS, 
+				R.string.cover_prefetch, null, PREF_COVER_PREFETCH, COVER_PREFETCH_NORMAL);
+	static {
+		mCoverPrefetchListItems.add(null, R.string.use_default_setting);
+		mCoverPrefetchListItems.add(COVER_PREFETCH_OFF, R.string.cover_prefetch_off);
+		mCoverPrefetchListItems.add(COVER_PREFETCH_LIGHT, R.string.cover_prefetch_light);
+		mCoverPrefetchListItems.add(COVER_PREFETCH_NORMAL, R.string.cover_prefetch_normal);
+		mCoverPrefetchListItems.add(COVER_PREFETCH_AGGRESSIVE, R.string.cover_prefetch_aggressive);
+		mCoverPrefetchProperty.setGlobal(true);
+	}
+
 	/**
 	 * Build the activity UI
 	 */
@@ -138,6 +163,8 @@ public class BooklistPreferencesActivity extends PreferencesBase {
 				} finally {
 					utils.close();
 				}
+				// Rebuild it in the background rather than during the next scroll
+				CoverCacheWarmingTask.start();
 				return;
 			}});
 
@@ -173,6 +200,7 @@ public class BooklistPreferencesActivity extends PreferencesBase {
 		// Add the locally constructed porperties
 		globalProps.add(mFlatBackgroundProperty);
 		globalProps.add(mBooklistStateProperty);
+		globalProps.add(mCoverPrefetchProperty);
 
 		// Get the parent view and put the properties under it.
 		ViewGroup styleProps = (ViewGroup) findViewById(R.id.style_properties);
@@ -205,4 +233,13 @@ public class BooklistPreferencesActivity extends PreferencesBase {
 	public static final boolean isBackgroundFlat() {
 		return mFlatBackgroundProperty.getResolvedValue();
 	}
+
+	/**
+	 * Convenience Accessor.
+	 * 
+	 * @return	One of the COVER_PREFETCH_* values
+	 */
+	public static final int getCoverPrefetch() {
+		return mCoverPrefetchProperty.getResolvedValue();
+	}
 }
@@ -65,16 +65,9 @@ public class BooklistRowView {
 		mCursor = c;
 		mBuilder = builder;
 
-		final int extras = mBuilder.getStyle().getExtras();
-
 		// Cache preferences
-		if ( (extras & BooklistStyle.EXTRAS_THUMBNAIL_LARGE) != 0) {
-			mMaxThumbnailWidth = 120;
-			mMaxThumbnailHeight = 120;
-		} else {
-			mMaxThumbnailWidth = 60;
-			mMaxThumbnailHeight = 60;
-		}		
+		mMaxThumbnailWidth = mBuilder.getStyle().getThumbnailSize();
+		mMaxThumbnailHeight = mMaxThumbnailWidth;
 	}
 
 	/**
@@ -94,16 +87,9 @@ public class BooklistRowView {
 
 		mBuilder = builder;
 
-		final int extras = mBuilder.getStyle().getExtras();
-
 		// Cache preferences
-		if ( (extras & BooklistStyle.EXTRAS_THUMBNAIL_LARGE) != 0) {
-			mMaxThumbnailWidth = 120;
-			mMaxThumbnailHeight = 120;
-		} else {
-			mMaxThumbnailWidth = 60;
-			mMaxThumbnailHeight = 60;
-		}		
+		mMaxThumbnailWidth = mBuilder.getStyle().getThumbnailSize();
+		mMaxThumbnailHeight = mMaxThumbnailWidth;
 	}
 
 	/**
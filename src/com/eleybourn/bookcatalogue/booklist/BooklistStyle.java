@@ -80,6 +80,11 @@ public class BooklistStyle implements Iterable<BooklistGroup>, Serializable {
 	/** Extra book data to show at lowest level */
 	public static final int EXTRAS_ALL = EXTRAS_BOOKSHELVES|EXTRAS_LOCATION|EXTRAS_PUBLISHER|EXTRAS_AUTHOR|EXTRAS_THUMBNAIL|EXTRAS_THUMBNAIL_LARGE;
 
+	/** Max width and height of thumbnails in book lists */
+	public static final int THUMBNAIL_SIZE = 60;
+	/** Max width and height of thumbnails in book lists when large thumbnails are preferred */
+	public static final int THUMBNAIL_SIZE_LARGE = 120;
+
 	public static final String SFX_SHOW_BOOKSHELVES = "ShowBookshelves";
 	public static final String SFX_SHOW_LOCATION = "ShowLocation";
 	public static final String SFX_SHOW_PUBLISHER = "ShowPublisher";
@@ -548,6 +553,15 @@ public class BooklistStyle implements Iterable<BooklistGroup>, Serializable {
 	public void setShowThumbnails(boolean show) {
 		mXtraShowThumbnails.set(show);
 	}
+	/**
+	 * Get the max width and height of thumbnails displayed using this style.
+	 */
+	public int getThumbnailSize() {
+		if (mXtraLargeThumbnails.getResolvedValue())
+			return THUMBNAIL_SIZE_LARGE;
+		else
+			return THUMBNAIL_SIZE;
+	}
 	/**
 	 * Accessor
 	 */
@@ -0,0 +1,1073 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Hashtable;
+
+import android.database.Cursor;
+
+import com.eleybourn.bookcatalogue.BookCatalogueApp;
+import com.eleybourn.bookcatalogue.BookCatalogueApp.BookCataloguePreferences;
+import com.eleybourn.bookcatalogue.BooksCursor;
+import com.eleybourn.bookcatalogue.BooksRowView;
+import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
+import com.eleybourn.bookcatalogue.Logger;
+import com.eleybourn.bookcatalogue.StorageUtils;
+import com.eleybourn.bookcatalogue.Utils;
+
+/**
+ * Alternative to the covers database and the flat cover directory: images are appended to a small
+ * number of 'pack' files and located via a memory-mapped hash index.
+ *
+ * Each entry is identified by a name; cached thumbnails use the same names as the covers database
+ * (see Utils.getCoverCacheId()) and full covers use the book UUID. All names for a book start with
+ * its UUID, which lets deleteGroup() remove them together.
+ *
+ * Pack record layout (all big-endian):
+ *
+ *   int magic, short nameLength, byte[] name (UTF-8), long date, int dataLength, byte[] data
+ *
+ * A dataLength of -1 is a deletion marker; it is only used when rebuilding the index from the packs.
+ *
+ * Index layout: a 64 byte header followed by an open-addressed (linear probe) table of 40 byte slots:
+ *
+ *   int state, int groupHash, long nameHash, int pack, int dataLength, long offset, long date
+ *
+ * Deleted entries leave garbage in the packs; once it passes half of the total, a background thread
+ * moves the live entries out of the most wasteful pack, one pack at a time, and deletes it. Deletion
+ * markers that may still hide records in older packs are copied too.
+ *
+ * @author Philip Warner
+ */
+public class CoverPackStore {
+	/** Directory (in shared storage) holding the packs and index */
+	private static final String DIRECTORY = "covers";
+	private static final String INDEX_NAME = "index.dat";
+	private static final String PACK_PREFIX = "pack-";
+	private static final String PACK_SUFFIX = ".dat";
+
+	private static final int INDEX_MAGIC = 0x42435058;		// 'BCPX'
+	private static final int RECORD_MAGIC = 0x42435052;		// 'BCPR'
+	private static final int INDEX_VERSION = 1;
+	private static final int INITIAL_CAPACITY = 4096;
+	/** Packs are closed for appends once they reach this size */
+	private static final long MAX_PACK_SIZE = 32L * 1024 * 1024;
+	/** Do not bother compacting until there is at least this much garbage */
+	private static final long MIN_GARBAGE = 1024L * 1024;
+	/** Number of entries moved per lock during compaction; keeps readers responsive */
+	private static final int COMPACT_BATCH = 32;
+	/**
+	 * Cover files modified less than this long ago (in millis) are not packed: a rewrite within the
+	 * file date resolution (2 seconds on FAT) would not change the date, so would go unnoticed.
+	 */
+	private static final long FILE_DATE_RESOLUTION = 2000;
+
+	// Header fields
+	private static final int HEADER_SIZE = 64;
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_CAPACITY = 8;
+	private static final int H_COUNT = 12;
+	private static final int H_USED = 16;
+	private static final int H_CURRENT_PACK = 20;
+	private static final int H_FLAGS = 24;
+	private static final int H_GARBAGE = 32;
+	private static final int H_TOTAL = 40;
+
+	// Slot fields
+	private static final int SLOT_SIZE = 40;
+	private static final int S_STATE = 0;
+	private static final int S_GROUP = 4;
+	private static final int S_HASH = 8;
+	private static final int S_PACK = 16;
+	private static final int S_LENGTH = 20;
+	private static final int S_OFFSET = 24;
+	private static final int S_DATE = 32;
+
+	private static final int STATE_EMPTY = 0;
+	private static final int STATE_LIVE = 1;
+	private static final int STATE_DELETED = 2;
+
+	/** Header flag: existing files and covers.db have been imported */
+	private static final int FLAG_MIGRATED = 1;
+
+	/** Record header size, excluding the name */
+	private static final int RECORD_OVERHEAD = 4 + 2 + 8 + 4;
+
+	/** The single instance; all access is synchronized on it */
+	private static CoverPackStore mInstance = null;
+	/** Set if opening failed so we do not keep retrying */
+	private static boolean mOpenFailed = false;
+
+	private final File mDir;
+	private RandomAccessFile mIndexFile;
+	private FileChannel mIndexChannel;
+	private MappedByteBuffer mIndex;
+	private int mCapacity;
+	/** Open pack files, by pack number */
+	private final Hashtable<Integer, RandomAccessFile> mPacks = new Hashtable<Integer, RandomAccessFile>();
+	/** Set while a background compaction or migration is running */
+	private boolean mCompacting = false;
+	private boolean mMigrating = false;
+	/** Incremented by clear(); a compaction started before a clear() must not delete any pack */
+	private int mGeneration = 0;
+
+	/**
+	 * Check if the user has chosen to use the pack store.
+	 */
+	public static boolean isEnabled() {
+		return BookCatalogueApp.getAppPreferences().getBoolean(BookCataloguePreferences.PREF_USE_COVER_PACK, false);
+	}
+
+	/**
+	 * Get the store if it is enabled, opening it (and starting the one-off migration) if necessary.
+	 *
+	 * @return	The store, or null if it is disabled or can not be opened
+	 */
+	public static CoverPackStore getInstanceIfEnabled() {
+		if (!isEnabled())
+			return null;
+		return getInstance();
+	}
+
+	/**
+	 * Get the store, opening it if necessary.
+	 *
+	 * @return	The store, or null if it can not be opened (eg. no SD card)
+	 */
+	public static synchronized CoverPackStore getInstance() {
+		if (mInstance == null && !mOpenFailed) {
+			try {
+				mInstance = new CoverPackStore(new File(StorageUtils.getSharedStoragePath() + "/" + DIRECTORY));
+				if (!mInstance.isMigrated())
+					mInstance.startMigration();
+			} catch (Exception e) {
+				Logger.logError(e, "Unable to open cover pack store");
+				mOpenFailed = true;
+			}
+		}
+		return mInstance;
+	}
+
+	/**
+	 * Constructor. Open or create the index, rebuilding it from the packs if it is not usable.
+	 */
+	private CoverPackStore(File dir) throws IOException {
+		mDir = dir;
+		mDir.mkdirs();
+		File indexFile = new File(mDir, INDEX_NAME);
+		boolean valid = indexFile.exists();
+		mIndexFile = new RandomAccessFile(indexFile, "rw");
+		mIndexChannel = mIndexFile.getChannel();
+		if (valid) {
+			valid = openIndex();
+		}
+		if (!valid) {
+			createIndex(INITIAL_CAPACITY);
+			rebuildFromPacks();
+		}
+	}
+
+	/**
+	 * Map an existing index and check it is sane.
+	 */
+	private boolean openIndex() throws IOException {
+		final long len = mIndexChannel.size();
+		if (len < HEADER_SIZE)
+			return false;
+		mIndex = mIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, len);
+		mCapacity = mIndex.getInt(H_CAPACITY);
+		return mIndex.getInt(H_MAGIC) == INDEX_MAGIC
+				&& mIndex.getInt(H_VERSION) == INDEX_VERSION
+				&& mCapacity > 0 && (mCapacity & (mCapacity - 1)) == 0
+				&& len == HEADER_SIZE + (long)mCapacity * SLOT_SIZE;
+	}
+
+	/**
+	 * Create a new, empty index.
+	 */
+	private void createIndex(int capacity) throws IOException {
+		mIndexChannel.truncate(0);
+		mapEmptyIndex(capacity);
+		mIndex.putInt(H_MAGIC, INDEX_MAGIC);
+		mIndex.putInt(H_VERSION, INDEX_VERSION);
+		mIndex.putInt(H_CURRENT_PACK, 0);
+		mIndex.putInt(H_FLAGS, 0);
+		mIndex.putLong(H_GARBAGE, 0);
+		mIndex.putLong(H_TOTAL, 0);
+	}
+
+	/**
+	 * Map the index with the passed capacity and clear all slots. Header fields other than
+	 * capacity, count and used are left as they were.
+	 */
+	private void mapEmptyIndex(int capacity) throws IOException {
+		final long len = HEADER_SIZE + (long)capacity * SLOT_SIZE;
+		mIndexFile.setLength(len);
+		mIndex = mIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, len);
+		for(int i = HEADER_SIZE; i < len; i += 8)
+			mIndex.putLong(i, 0L);
+		mCapacity = capacity;
+		mIndex.putInt(H_CAPACITY, capacity);
+		mIndex.putInt(H_COUNT, 0);
+		mIndex.putInt(H_USED, 0);
+	}
+
+	private boolean isMigrated() {
+		synchronized(this) {
+			return (mIndex.getInt(H_FLAGS) & FLAG_MIGRATED) != 0;
+		}
+	}
+
+	/**
+	 * Number of live entries.
+	 */
+	public synchronized int size() {
+		return mIndex.getInt(H_COUNT);
+	}
+
+	/**
+	 * Get the data for the named entry.
+	 *
+	 * @param name		Entry name
+	 * @param notBefore	Entries dated before this time (in millis) are treated as missing
+	 *
+	 * @return			The data, or null if not present or out of date
+	 */
+	public synchronized byte[] get(String name, long notBefore) {
+		try {
+			final byte[] nameBytes = encode(name);
+			final int slot = findLive(name, nameBytes, hash64(name));
+			if (slot < 0)
+				return null;
+			final int base = slotBase(slot);
+			if (mIndex.getLong(base + S_DATE) < notBefore)
+				return null;
+			return readData(mIndex.getInt(base + S_PACK), mIndex.getLong(base + S_OFFSET), nameBytes, mIndex.getInt(base + S_LENGTH));
+		} catch (IOException e) {
+			Logger.logError(e, "Failed to read cover pack entry " + name);
+			return null;
+		}
+	}
+
+	/**
+	 * Check if the named entry exists and is not out of date, without reading it.
+	 */
+	public synchronized boolean isEntryValid(String name, long notBefore) {
+		try {
+			final int slot = findLive(name, encode(name), hash64(name));
+			return slot >= 0 && mIndex.getLong(slotBase(slot) + S_DATE) >= notBefore;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get a book cover. The entry is only used if it has the same date and size as the cover file;
+	 * otherwise, if allowed, the file is read and stored.
+	 *
+	 * @param uuid		Book UUID; used as the entry name
+	 * @param file		Cover file from CatalogueDBAdapter.fetchThumbnailByUuid()
+	 * @param mayPack	Set if the file can be read and packed when the entry is missing or out of date
+	 *
+	 * @return			The cover data, or null if not packed
+	 */
+	public byte[] getCover(String uuid, File file, boolean mayPack) throws IOException {
+		final long date = file.lastModified();
+		final long length = file.length();
+		synchronized(this) {
+			final byte[] nameBytes = encode(uuid);
+			final int slot = findLive(uuid, nameBytes, hash64(uuid));
+			if (slot >= 0 && isCoverSlotCurrent(slot, date, length)) {
+				final int base = slotBase(slot);
+				return readData(mIndex.getInt(base + S_PACK), mIndex.getLong(base + S_OFFSET), nameBytes, mIndex.getInt(base + S_LENGTH));
+			}
+		}
+		if (!mayPack || !canPackCover(file))
+			return null;
+
+		final byte[] data = readFile(file);
+		// Do not store it if the file changed while it was being read
+		if (file.lastModified() != date || data.length != length)
+			return null;
+		put(uuid, date, data);
+		return data;
+	}
+
+	/**
+	 * Check if the entry for a cover has the same date and size as the cover file.
+	 */
+	public synchronized boolean isCoverCurrent(String uuid, File file) {
+		try {
+			final int slot = findLive(uuid, encode(uuid), hash64(uuid));
+			return slot >= 0 && isCoverSlotCurrent(slot, file.lastModified(), file.length());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Check if a cover file exists and was not modified too recently to be packed.
+	 */
+	private static boolean canPackCover(File file) {
+		final long date = file.lastModified();
+		return date > 0 && System.currentTimeMillis() - date >= FILE_DATE_RESOLUTION;
+	}
+
+	/**
+	 * Check the slot date and size against a cover file. Must hold the lock.
+	 */
+	private boolean isCoverSlotCurrent(int slot, long date, long length) {
+		final int base = slotBase(slot);
+		return mIndex.getLong(base + S_DATE) == date && mIndex.getInt(base + S_LENGTH) == length;
+	}
+
+	/**
+	 * Store data under the passed name, replacing any existing entry.
+	 *
+	 * @param name	Entry name
+	 * @param date	Date of the data, in millis
+	 * @param data	Data to store
+	 */
+	public void put(String name, long date, byte[] data) throws IOException {
+		synchronized(this) {
+			final byte[] nameBytes = encode(name);
+			final long hash = hash64(name);
+			deleteLive(name, nameBytes, hash, false);
+			appendAndIndex(name, nameBytes, hash, date, data, data.length);
+		}
+		checkCompaction();
+	}
+
+	/**
+	 * Delete the named entry, if present.
+	 */
+	public void delete(String name) throws IOException {
+		synchronized(this) {
+			deleteLive(name, encode(name), hash64(name), true);
+		}
+		checkCompaction();
+	}
+
+	/**
+	 * Delete all entries for the passed book UUID: the cover and all cached thumbnails.
+	 *
+	 * @return	Number of entries deleted
+	 */
+	public int deleteGroup(String uuid) throws IOException {
+		int deleted = 0;
+		synchronized(this) {
+			final int group = uuid.hashCode();
+			final String prefix = uuid + ".";
+			for(int slot = 0; slot < mCapacity; slot++) {
+				final int base = slotBase(slot);
+				if (mIndex.getInt(base + S_STATE) == STATE_LIVE && mIndex.getInt(base + S_GROUP) == group) {
+					String name = readName(mIndex.getInt(base + S_PACK), mIndex.getLong(base + S_OFFSET));
+					if (name != null && (name.equals(uuid) || name.startsWith(prefix))) {
+						tombstone(slot, name, encode(name), true);
+						deleted++;
+					}
+				}
+			}
+		}
+		checkCompaction();
+		return deleted;
+	}
+
+	/**
+	 * Remove everything: delete all packs and reset the index.
+	 */
+	public synchronized void clear() throws IOException {
+		// Pack numbers are about to be reused; stop any compaction from deleting them.
+		mGeneration++;
+		closePacks();
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for(File f : files) {
+				if (f.getName().startsWith(PACK_PREFIX))
+					f.delete();
+			}
+		}
+		final int flags = mIndex.getInt(H_FLAGS);
+		createIndex(INITIAL_CAPACITY);
+		// Keep the 'migrated' flag; we do not want to reimport just because the cache was cleared.
+		mIndex.putInt(H_FLAGS, flags);
+	}
+
+	/**
+	 * Flush the index to storage.
+	 */
+	public synchronized void flush() {
+		mIndex.force();
+	}
+
+	/**
+	 * Import the existing cover files and the contents of covers.db. Existing entries that are
+	 * at least as new are kept. Safe to run again if interrupted.
+	 *
+	 * @param db			Database to read book UUIDs from
+	 * @param coversDb		Covers database to import
+	 */
+	public void importExisting(CatalogueDBAdapter db, CoversDbHelper coversDb) throws IOException {
+		// Full size covers
+		BooksCursor books = db.getAllBooksForCoverCacheCursor(0);
+		try {
+			final BooksRowView book = books.getRowView();
+			while (books.moveToNext()) {
+				final String uuid = book.getBookUuid();
+				final File f = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
+				if (f.exists() && !isCoverCurrent(uuid, f))
+					getCover(uuid, f, true);
+			}
+		} finally {
+			books.close();
+		}
+
+		// Cached thumbnails
+		if (coversDb != null) {
+			Cursor c = coversDb.getAllImages();
+			try {
+				while (c.moveToNext()) {
+					final String name = c.getString(0);
+					final Date d = Utils.parseDate(c.getString(1));
+					final long date = (d == null ? 0 : d.getTime());
+					if (!isEntryValid(name, date))
+						put(name, date, c.getBlob(2));
+				}
+			} finally {
+				c.close();
+			}
+		}
+
+		synchronized(this) {
+			mIndex.putInt(H_FLAGS, mIndex.getInt(H_FLAGS) | FLAG_MIGRATED);
+			mIndex.force();
+		}
+	}
+
+	/**
+	 * Run importExisting() in a background thread.
+	 */
+	private void startMigration() {
+		synchronized(this) {
+			if (mMigrating)
+				return;
+			mMigrating = true;
+		}
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+				CatalogueDBAdapter db = new CatalogueDBAdapter(BookCatalogueApp.context);
+				CoversDbHelper coversDb = null;
+				try {
+					db.open();
+					try {
+						coversDb = new CoversDbHelper();
+					} catch (Exception e) {
+						// No covers DB to import; carry on with the files.
+					}
+					importExisting(db, coversDb);
+				} catch (Exception e) {
+					Logger.logError(e, "Cover pack migration failed");
+				} finally {
+					if (coversDb != null)
+						coversDb.close();
+					db.close();
+					synchronized(CoverPackStore.this) {
+						mMigrating = false;
+					}
+				}
+			}
+		};
+		t.setName("coverpack-migrate");
+		t.start();
+	}
+
+	/**
+	 * Start a background compaction if there is enough garbage to justify one.
+	 */
+	private void checkCompaction() {
+		synchronized(this) {
+			if (mCompacting)
+				return;
+			final long garbage = mIndex.getLong(H_GARBAGE);
+			if (garbage < MIN_GARBAGE || garbage * 2 < mIndex.getLong(H_TOTAL))
+				return;
+			mCompacting = true;
+		}
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					while (compactOnePack())
+						;
+				} catch (Exception e) {
+					Logger.logError(e, "Cover pack compaction failed");
+				} finally {
+					synchronized(CoverPackStore.this) {
+						mCompacting = false;
+					}
+				}
+			}
+		};
+		t.setName("coverpack-compact");
+		t.start();
+	}
+
+	/**
+	 * Move the live entries out of the most wasteful closed pack and delete it.
+	 *
+	 * @return	true if a pack was compacted
+	 */
+	boolean compactOnePack() throws IOException {
+		int victim = -1;
+		long victimSize = 0;
+		long movedBytes = 0;
+		final int generation;
+
+		// Choose the pack with the lowest proportion of live data, ignoring the current pack.
+		synchronized(this) {
+			generation = mGeneration;
+			final int current = mIndex.getInt(H_CURRENT_PACK);
+			Hashtable<Integer, Long> live = new Hashtable<Integer, Long>();
+			for(int slot = 0; slot < mCapacity; slot++) {
+				final int base = slotBase(slot);
+				if (mIndex.getInt(base + S_STATE) == STATE_LIVE) {
+					final Integer pack = mIndex.getInt(base + S_PACK);
+					final Long sofar = live.get(pack);
+					// Names are not in the index; assume a typical thumbnail name length.
+					final long size = RECORD_OVERHEAD + 48 + mIndex.getInt(base + S_LENGTH);
+					live.put(pack, (sofar == null ? 0 : sofar) + size);
+				}
+			}
+			float bestRatio = 0.5f;
+			for(int pack = 0; pack < current; pack++) {
+				File f = packFile(pack);
+				if (!f.exists())
+					continue;
+				final Long liveBytes = live.get(pack);
+				final float ratio = (liveBytes == null ? 0 : liveBytes) / (float)Math.max(1, f.length());
+				if (ratio < bestRatio) {
+					bestRatio = ratio;
+					victim = pack;
+					victimSize = f.length();
+				}
+			}
+		}
+		if (victim < 0)
+			return false;
+
+		// Move the live entries, a batch at a time so that readers are not held up.
+		int slot = 0;
+		boolean done = false;
+		while (!done) {
+			synchronized(this) {
+				if (mGeneration != generation)
+					return false;
+				int moved = 0;
+				while (slot < mCapacity && moved < COMPACT_BATCH) {
+					final long bytes = moveEntry(slot, victim);
+					if (bytes > 0) {
+						movedBytes += bytes;
+						moved++;
+					}
+					slot++;
+				}
+				done = (slot >= mCapacity);
+			}
+		}
+
+		// The table may have been resized while we were not holding the lock, so check every slot
+		// again before dropping the pack. Usually there is nothing left to move.
+		synchronized(this) {
+			if (mGeneration != generation)
+				return false;
+			for(slot = 0; slot < mCapacity; slot++)
+				movedBytes += moveEntry(slot, victim);
+
+			// A marker may hide a record in an older pack; keep it unless the name has since been
+			// stored again, in which case the newer record already wins. Only the record headers
+			// are read, so this is quick.
+			if (hasPackBefore(victim)) {
+				for(String name : readMarkerNames(victim)) {
+					final byte[] nameBytes = encode(name);
+					if (findLive(name, nameBytes, hash64(name)) < 0)
+						appendMarker(name, nameBytes);
+				}
+			}
+
+			RandomAccessFile raf = mPacks.remove(victim);
+			if (raf != null)
+				raf.close();
+			packFile(victim).delete();
+			final long freed = victimSize - movedBytes;
+			mIndex.putLong(H_GARBAGE, Math.max(0, mIndex.getLong(H_GARBAGE) - freed));
+			mIndex.putLong(H_TOTAL, Math.max(0, mIndex.getLong(H_TOTAL) - freed));
+			mIndex.force();
+		}
+		return true;
+	}
+
+	/**
+	 * If the slot is a live entry in the passed pack, copy it to the current pack. Must hold the lock.
+	 *
+	 * @return	Number of bytes moved
+	 */
+	private long moveEntry(int slot, int fromPack) throws IOException {
+		final int base = slotBase(slot);
+		if (mIndex.getInt(base + S_STATE) != STATE_LIVE || mIndex.getInt(base + S_PACK) != fromPack)
+			return 0;
+
+		final long offset = mIndex.getLong(base + S_OFFSET);
+		final String name = readName(fromPack, offset);
+		if (name == null)
+			return 0;
+		final byte[] nameBytes = encode(name);
+		final int length = mIndex.getInt(base + S_LENGTH);
+		final byte[] data = readData(fromPack, offset, nameBytes, length);
+		if (data == null)
+			return 0;
+
+		final int recordSize = RECORD_OVERHEAD + nameBytes.length + length;
+		final int pack = getAppendPack(recordSize);
+		final long newOffset = appendRecord(pack, nameBytes, mIndex.getLong(base + S_DATE), data, length);
+		mIndex.putInt(base + S_PACK, pack);
+		mIndex.putLong(base + S_OFFSET, newOffset);
+		return recordSize;
+	}
+
+	/**
+	 * Get the names of the deletion markers in a pack. Must hold the lock.
+	 */
+	private ArrayList<String> readMarkerNames(int pack) throws IOException {
+		ArrayList<String> names = new ArrayList<String>();
+		FileChannel ch = getPack(pack).getChannel();
+		final long len = ch.size();
+		long pos = 0;
+		ByteBuffer head = ByteBuffer.allocate(6);
+		while (pos + RECORD_OVERHEAD <= len) {
+			head.clear();
+			readFully(ch, head, pos);
+			if (head.getInt(0) != RECORD_MAGIC)
+				break;
+			final int nameLen = head.getShort(4) & 0xffff;
+			ByteBuffer rest = ByteBuffer.allocate(nameLen + 12);
+			readFully(ch, rest, pos + 6);
+			final byte[] nameBytes = new byte[nameLen];
+			rest.get(nameBytes);
+			rest.getLong();
+			final int dataLen = rest.getInt();
+			if (dataLen < 0) {
+				names.add(new String(nameBytes, "UTF-8"));
+				pos += RECORD_OVERHEAD + nameLen;
+			} else {
+				pos += RECORD_OVERHEAD + nameLen + dataLen;
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Check if any pack numbered below the passed one exists. Must hold the lock.
+	 */
+	private boolean hasPackBefore(int pack) {
+		for(int i = 0; i < pack; i++) {
+			if (packFile(i).exists())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Rebuild the index by scanning all packs in order. Later records override earlier ones.
+	 */
+	private void rebuildFromPacks() throws IOException {
+		int maxPack = -1;
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for(File f : files) {
+				final int n = packNumber(f);
+				if (n > maxPack)
+					maxPack = n;
+			}
+		}
+		long total = 0;
+		for(int pack = 0; pack <= maxPack; pack++) {
+			if (!packFile(pack).exists())
+				continue;
+			FileChannel ch = getPack(pack).getChannel();
+			final long len = ch.size();
+			total += len;
+			long pos = 0;
+			ByteBuffer head = ByteBuffer.allocate(6);
+			while (pos + RECORD_OVERHEAD <= len) {
+				head.clear();
+				readFully(ch, head, pos);
+				if (head.getInt(0) != RECORD_MAGIC)
+					break;	// Truncated or corrupt tail; ignore the rest of this pack.
+				final int nameLen = head.getShort(4) & 0xffff;
+				ByteBuffer rest = ByteBuffer.allocate(nameLen + 12);
+				readFully(ch, rest, pos + 6);
+				final byte[] nameBytes = new byte[nameLen];
+				rest.get(nameBytes);
+				final long date = rest.getLong();
+				final int dataLen = rest.getInt();
+				final String name = new String(nameBytes, "UTF-8");
+				final long hash = hash64(name);
+				deleteLive(name, nameBytes, hash, false);
+				if (dataLen >= 0) {
+					insertSlot(name, hash, pack, pos, dataLen, date);
+					pos += RECORD_OVERHEAD + nameLen + dataLen;
+				} else {
+					pos += RECORD_OVERHEAD + nameLen;
+				}
+			}
+		}
+		// Everything not indexed is garbage. 'Deleted' accounting was done by deleteLive().
+		long liveBytes = 0;
+		for(int slot = 0; slot < mCapacity; slot++) {
+			final int base = slotBase(slot);
+			if (mIndex.getInt(base + S_STATE) == STATE_LIVE)
+				liveBytes += RECORD_OVERHEAD + 48 + mIndex.getInt(base + S_LENGTH);
+		}
+		mIndex.putInt(H_CURRENT_PACK, Math.max(0, maxPack));
+		mIndex.putLong(H_TOTAL, total);
+		mIndex.putLong(H_GARBAGE, Math.max(0, total - liveBytes));
+		mIndex.force();
+	}
+
+	/**
+	 * Append a record and add it to the index. Must hold the lock.
+	 */
+	private void appendAndIndex(String name, byte[] nameBytes, long hash, long date, byte[] data, int length) throws IOException {
+		final int pack = getAppendPack(RECORD_OVERHEAD + nameBytes.length + Math.max(0, length));
+		final long offset = appendRecord(pack, nameBytes, date, data, length);
+		mIndex.putLong(H_TOTAL, mIndex.getLong(H_TOTAL) + RECORD_OVERHEAD + nameBytes.length + Math.max(0, length));
+		if (length >= 0)
+			insertSlot(name, hash, pack, offset, length, date);
+	}
+
+	/**
+	 * Get the pack to append a record of the passed size to, starting a new one if the current pack is full.
+	 */
+	private int getAppendPack(int recordSize) throws IOException {
+		int pack = mIndex.getInt(H_CURRENT_PACK);
+		RandomAccessFile raf = getPack(pack);
+		if (raf.length() > 0 && raf.length() + recordSize > MAX_PACK_SIZE) {
+			pack++;
+			mIndex.putInt(H_CURRENT_PACK, pack);
+		}
+		return pack;
+	}
+
+	/**
+	 * Write a record at the end of a pack.
+	 *
+	 * @return	Offset of the record
+	 */
+	private long appendRecord(int pack, byte[] nameBytes, long date, byte[] data, int length) throws IOException {
+		FileChannel ch = getPack(pack).getChannel();
+		final long offset = ch.size();
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_OVERHEAD + nameBytes.length + Math.max(0, length));
+		buf.putInt(RECORD_MAGIC);
+		buf.putShort((short)nameBytes.length);
+		buf.put(nameBytes);
+		buf.putLong(date);
+		buf.putInt(length);
+		if (length > 0)
+			buf.put(data, 0, length);
+		buf.flip();
+		long pos = offset;
+		while (buf.hasRemaining())
+			pos += ch.write(buf, pos);
+		return offset;
+	}
+
+	/**
+	 * Read the data for a record, checking the name matches.
+	 *
+	 * @return	Data, or null if the record is not the one expected
+	 */
+	private byte[] readData(int pack, long offset, byte[] nameBytes, int length) throws IOException {
+		FileChannel ch = getPack(pack).getChannel();
+		final int headLen = RECORD_OVERHEAD + nameBytes.length;
+		byte[] all = new byte[headLen + length];
+		ByteBuffer buf = ByteBuffer.wrap(all);
+		readFully(ch, buf, offset);
+		if (buf.getInt(0) != RECORD_MAGIC || (buf.getShort(4) & 0xffff) != nameBytes.length)
+			return null;
+		for(int i = 0; i < nameBytes.length; i++) {
+			if (all[6 + i] != nameBytes[i])
+				return null;
+		}
+		byte[] data = new byte[length];
+		System.arraycopy(all, headLen, data, 0, length);
+		return data;
+	}
+
+	/**
+	 * Read just the name of a record.
+	 */
+	private String readName(int pack, long offset) throws IOException {
+		FileChannel ch = getPack(pack).getChannel();
+		ByteBuffer head = ByteBuffer.allocate(6);
+		readFully(ch, head, offset);
+		if (head.getInt(0) != RECORD_MAGIC)
+			return null;
+		final int nameLen = head.getShort(4) & 0xffff;
+		byte[] nameBytes = new byte[nameLen];
+		readFully(ch, ByteBuffer.wrap(nameBytes), offset + 6);
+		return new String(nameBytes, "UTF-8");
+	}
+
+	/**
+	 * Find the slot holding the live entry for a name.
+	 *
+	 * @return	Slot number, or -1 if not present
+	 */
+	private int findLive(String name, byte[] nameBytes, long hash) throws IOException {
+		final int mask = mCapacity - 1;
+		int slot = (int)(hash & mask);
+		for(int probes = 0; probes < mCapacity; probes++) {
+			final int base = slotBase(slot);
+			final int state = mIndex.getInt(base + S_STATE);
+			if (state == STATE_EMPTY)
+				return -1;
+			if (state == STATE_LIVE && mIndex.getLong(base + S_HASH) == hash) {
+				// 64 bit hashes make collisions unlikely, but check the name to be sure.
+				String found = readName(mIndex.getInt(base + S_PACK), mIndex.getLong(base + S_OFFSET));
+				if (name.equals(found))
+					return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Delete the live entry for a name, if present.
+	 *
+	 * @param writeMarker	If true, append a deletion marker so a rebuilt index also omits it.
+	 */
+	private void deleteLive(String name, byte[] nameBytes, long hash, boolean writeMarker) throws IOException {
+		final int slot = findLive(name, nameBytes, hash);
+		if (slot >= 0)
+			tombstone(slot, name, nameBytes, writeMarker);
+	}
+
+	/**
+	 * Mark a slot as deleted and account for the garbage.
+	 */
+	private void tombstone(int slot, String name, byte[] nameBytes, boolean writeMarker) throws IOException {
+		final int base = slotBase(slot);
+		mIndex.putInt(base + S_STATE, STATE_DELETED);
+		mIndex.putInt(H_COUNT, mIndex.getInt(H_COUNT) - 1);
+		mIndex.putLong(H_GARBAGE, mIndex.getLong(H_GARBAGE) + RECORD_OVERHEAD + nameBytes.length + mIndex.getInt(base + S_LENGTH));
+		if (writeMarker)
+			appendMarker(name, nameBytes);
+	}
+
+	/**
+	 * Append a deletion marker for a name. Must hold the lock.
+	 */
+	private void appendMarker(String name, byte[] nameBytes) throws IOException {
+		appendAndIndex(name, nameBytes, hash64(name), System.currentTimeMillis(), null, -1);
+		// The marker itself is garbage as soon as it is written
+		mIndex.putLong(H_GARBAGE, mIndex.getLong(H_GARBAGE) + RECORD_OVERHEAD + nameBytes.length);
+	}
+
+	/**
+	 * Add a live entry, growing the table if it is getting full. The name must not already be live.
+	 */
+	private void insertSlot(String name, long hash, int pack, long offset, int length, long date) throws IOException {
+		if ((mIndex.getInt(H_USED) + 1) * 4L > mCapacity * 3L) {
+			// Grow if mostly live, otherwise just rebuild in place to discard deleted slots.
+			final int live = mIndex.getInt(H_COUNT);
+			resize(live * 2 > mCapacity ? mCapacity * 2 : mCapacity);
+		}
+		final int mask = mCapacity - 1;
+		int slot = (int)(hash & mask);
+		while (true) {
+			final int base = slotBase(slot);
+			final int state = mIndex.getInt(base + S_STATE);
+			if (state != STATE_LIVE) {
+				if (state == STATE_EMPTY)
+					mIndex.putInt(H_USED, mIndex.getInt(H_USED) + 1);
+				putSlot(base, groupOf(name), hash, pack, offset, length, date);
+				mIndex.putInt(H_COUNT, mIndex.getInt(H_COUNT) + 1);
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void putSlot(int base, int group, long hash, int pack, long offset, int length, long date) {
+		mIndex.putInt(base + S_GROUP, group);
+		mIndex.putLong(base + S_HASH, hash);
+		mIndex.putInt(base + S_PACK, pack);
+		mIndex.putInt(base + S_LENGTH, length);
+		mIndex.putLong(base + S_OFFSET, offset);
+		mIndex.putLong(base + S_DATE, date);
+		mIndex.putInt(base + S_STATE, STATE_LIVE);
+	}
+
+	/**
+	 * Rebuild the hash table with the passed capacity, keeping only live slots.
+	 */
+	private void resize(int newCapacity) throws IOException {
+		final int live = mIndex.getInt(H_COUNT);
+		final int[] groups = new int[live];
+		final long[] hashes = new long[live];
+		final int[] packs = new int[live];
+		final int[] lengths = new int[live];
+		final long[] offsets = new long[live];
+		final long[] dates = new long[live];
+		int n = 0;
+		for(int slot = 0; slot < mCapacity && n < live; slot++) {
+			final int base = slotBase(slot);
+			if (mIndex.getInt(base + S_STATE) == STATE_LIVE) {
+				groups[n] = mIndex.getInt(base + S_GROUP);
+				hashes[n] = mIndex.getLong(base + S_HASH);
+				packs[n] = mIndex.getInt(base + S_PACK);
+				lengths[n] = mIndex.getInt(base + S_LENGTH);
+				offsets[n] = mIndex.getLong(base + S_OFFSET);
+				dates[n] = mIndex.getLong(base + S_DATE);
+				n++;
+			}
+		}
+
+		mapEmptyIndex(newCapacity);
+
+		final int mask = mCapacity - 1;
+		for(int i = 0; i < n; i++) {
+			int slot = (int)(hashes[i] & mask);
+			while (mIndex.getInt(slotBase(slot) + S_STATE) != STATE_EMPTY)
+				slot = (slot + 1) & mask;
+			putSlot(slotBase(slot), groups[i], hashes[i], packs[i], offsets[i], lengths[i], dates[i]);
+		}
+		mIndex.putInt(H_COUNT, n);
+		mIndex.putInt(H_USED, n);
+	}
+
+	private static int slotBase(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private File packFile(int pack) {
+		return new File(mDir, PACK_PREFIX + pack + PACK_SUFFIX);
+	}
+
+	private static int packNumber(File f) {
+		final String n = f.getName();
+		if (!n.startsWith(PACK_PREFIX) || !n.endsWith(PACK_SUFFIX))
+			return -1;
+		try {
+			return Integer.parseInt(n.substring(PACK_PREFIX.length(), n.length() - PACK_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private RandomAccessFile getPack(int pack) throws IOException {
+		RandomAccessFile raf = mPacks.get(pack);
+		if (raf == null) {
+			raf = new RandomAccessFile(packFile(pack), "rw");
+			mPacks.put(pack, raf);
+		}
+		return raf;
+	}
+
+	private void closePacks() {
+		for(RandomAccessFile raf : mPacks.values()) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+		mPacks.clear();
+	}
+
+	/**
+	 * Positional read that fills the buffer or throws.
+	 */
+	private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			final int n = ch.read(buf, pos);
+			if (n < 0)
+				throw new IOException("Unexpected end of cover pack");
+			pos += n;
+		}
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		byte[] data = new byte[(int)f.length()];
+		FileInputStream in = new FileInputStream(f);
+		try {
+			int pos = 0;
+			while (pos < data.length) {
+				final int n = in.read(data, pos, data.length - pos);
+				if (n < 0)
+					break;
+				pos += n;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static byte[] encode(String name) throws UnsupportedEncodingException {
+		return name.getBytes("UTF-8");
+	}
+
+	/**
+	 * Get the hash identifying the book an entry belongs to: the hash of the UUID part of the name.
+	 */
+	private static int groupOf(String name) {
+		final int dot = name.indexOf('.');
+		return (dot < 0 ? name : name.substring(0, dot)).hashCode();
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of a name.
+	 */
+	private static long hash64(String name) {
+		long h = 0xcbf29ce484222325L;
+		for(int i = 0; i < name.length(); i++) {
+			h ^= name.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+}
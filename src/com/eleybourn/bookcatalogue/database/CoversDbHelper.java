@@ -184,6 +184,16 @@ public class CoversDbHelper extends GenericOpenHelper {
 			c.close();
 		}
 	}
+	/**
+	 * Get all images, for exporting the cache elsewhere.
+	 * 
+	 * @return	Cursor returning filename, date and image data
+	 */
+	public Cursor getAllImages() {
+		SynchronizedDb db = this.getDb();
+		return db.query(TBL_IMAGE.getName(), new String[]{DOM_FILENAME.name, DOM_DATE.name, DOM_IMAGE.name}, null, null, null, null, null);
+	}
+
 	/**
 	 * Save the passed bitmap to a 'file'
 	 * 
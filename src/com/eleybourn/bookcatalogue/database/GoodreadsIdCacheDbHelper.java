@@ -0,0 +1,273 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.database;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.eleybourn.bookcatalogue.StorageUtils;
+import com.eleybourn.bookcatalogue.Utils;
+import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedDb;
+import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedStatement;
+import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer;
+import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
+import com.eleybourn.bookcatalogue.database.DbUtils.DomainDefinition;
+import com.eleybourn.bookcatalogue.database.DbUtils.TableDefinition;
+
+/**
+ * DB Helper for the cache of ISBN to Goodreads book ID mappings on external storage.
+ *
+ * Goodreads book IDs do not change, so a mapping, once known, is kept until a request using
+ * it fails. ISBNs that Goodreads did not know are kept too, with a time before which they are
+ * not looked up again; each further failure doubles the wait, up to a limit.
+ *
+ * ISBNs are stored in the form returned by Utils.normaliseIsbn() so that ISBN-10 and ISBN-13
+ * forms of the same ISBN share an entry.
+ *
+ * A single shared instance is used; it stays open for the life of the process.
+ *
+ * @author Philip Warner
+ */
+public class GoodreadsIdCacheDbHelper extends GenericOpenHelper {
+	/** DB location */
+	private static final String DATABASE_NAME = StorageUtils.getSharedStoragePath() + "/goodreads_ids.db";
+	/** DB Version */
+	private static final int DATABASE_VERSION = 1;
+
+	/** Returned by get() when nothing is known about an ISBN */
+	public static final long UNKNOWN = -1;
+	/** Returned by get() when Goodreads did not know the ISBN, and it is too soon to ask again */
+	public static final long NOT_FOUND = 0;
+
+	private static final long DAY_MS = 24L * 60 * 60 * 1000;
+	/** Time before looking up an ISBN again after the first 'not found' */
+	private static final long NOT_FOUND_RETRY_MS = 3 * DAY_MS;
+	/** Longest time before looking up an ISBN again */
+	private static final long MAX_NOT_FOUND_RETRY_MS = 60 * DAY_MS;
+
+	/** The shared instance */
+	private static GoodreadsIdCacheDbHelper mInstance = null;
+
+	/** Synchronizer to coordinate DB access */
+	private static final Synchronizer mSynchronizer = new Synchronizer();
+
+	public static final DomainDefinition DOM_ISBN = new DomainDefinition( "isbn", "text", "", "not null");
+	public static final DomainDefinition DOM_GOODREADS_BOOK_ID = new DomainDefinition( "goodreads_book_id", "integer", "", "not null");
+	public static final DomainDefinition DOM_NOT_FOUND_COUNT = new DomainDefinition( "not_found_count", "integer", "", "not null");
+	public static final DomainDefinition DOM_RETRY_AFTER = new DomainDefinition( "retry_after", "integer", "", "not null");
+	public static final DomainDefinition DOM_UPDATED = new DomainDefinition( "updated", "integer", "", "not null");
+	public static final TableDefinition TBL_GOODREADS_ID = new TableDefinition("goodreads_id",
+			DOM_ISBN, DOM_GOODREADS_BOOK_ID, DOM_NOT_FOUND_COUNT, DOM_RETRY_AFTER, DOM_UPDATED );
+	static {
+		TBL_GOODREADS_ID
+			.addIndex("isbn", true, DOM_ISBN)
+			.addIndex("book_id", false, DOM_GOODREADS_BOOK_ID);
+	};
+
+	public static final TableDefinition TABLES[] = new TableDefinition[] {TBL_GOODREADS_ID};
+
+	private SynchronizedDb mDb;
+
+	/** List of statements we create so we can close them when object is closed. */
+	private SqlStatementManager mStatements = new SqlStatementManager();
+
+	private SynchronizedStatement mReplaceStmt = null;
+	private SynchronizedStatement mDeleteStmt = null;
+	private SynchronizedStatement mDeleteIdStmt = null;
+
+	/**
+	 * Get the shared instance.
+	 */
+	public static synchronized GoodreadsIdCacheDbHelper getInstance() {
+		if (mInstance == null)
+			mInstance = new GoodreadsIdCacheDbHelper();
+		return mInstance;
+	}
+
+	private GoodreadsIdCacheDbHelper() {
+		super(DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	/**
+	 * As with SQLiteOpenHelper, routine called to create DB
+	 */
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		DbUtils.createTables(new SynchronizedDb(db, mSynchronizer), TABLES, true );
+	}
+
+	/**
+	 * As with SQLiteOpenHelper, routine called to upgrade DB
+	 */
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		throw new RuntimeException("Upgrades not handled yet!");
+	}
+
+	private SynchronizedDb getDb() {
+		if (mDb == null)
+			mDb = new SynchronizedDb(this, mSynchronizer);
+		return mDb;
+	}
+
+	/**
+	 * Get the Goodreads book ID for an ISBN.
+	 *
+	 * @param isbn	ISBN in any form
+	 *
+	 * @return	The book ID, NOT_FOUND if Goodreads did not know the ISBN and it should not be
+	 * 			looked up yet, or UNKNOWN if it should be looked up.
+	 */
+	public synchronized long get(String isbn) {
+		final String key = Utils.normaliseIsbn(isbn);
+		if (key.length() == 0)
+			return UNKNOWN;
+
+		Cursor c = getDb().query(TBL_GOODREADS_ID.getName(),
+				new String[]{DOM_GOODREADS_BOOK_ID.name, DOM_RETRY_AFTER.name},
+				DOM_ISBN + "=?", new String[]{key}, null, null, null);
+		try {
+			if (!c.moveToFirst())
+				return UNKNOWN;
+			final long id = c.getLong(0);
+			if (id != 0)
+				return id;
+			return System.currentTimeMillis() < c.getLong(1) ? NOT_FOUND : UNKNOWN;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Save the Goodreads book ID for an ISBN.
+	 */
+	public synchronized void putFound(String isbn, long grId) {
+		final String key = Utils.normaliseIsbn(isbn);
+		if (key.length() == 0 || grId <= 0)
+			return;
+		replace(key, grId, 0, 0);
+	}
+
+	/**
+	 * Save a set of ISBN to Goodreads book ID mappings in one transaction.
+	 */
+	public synchronized void putFound(Map<String, Long> mappings) {
+		if (mappings.size() == 0)
+			return;
+
+		SynchronizedDb db = getDb();
+		SyncLock txLock = db.beginTransaction(true);
+		try {
+			for(Entry<String, Long> e : mappings.entrySet()) {
+				final String key = Utils.normaliseIsbn(e.getKey());
+				final long grId = e.getValue();
+				if (key.length() > 0 && grId > 0)
+					replace(key, grId, 0, 0);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction(txLock);
+		}
+	}
+
+	/**
+	 * Record that Goodreads did not know an ISBN. The time before it is looked up again
+	 * doubles with each consecutive failure.
+	 */
+	public synchronized void putNotFound(String isbn) {
+		final String key = Utils.normaliseIsbn(isbn);
+		if (key.length() == 0)
+			return;
+
+		int count = 0;
+		Cursor c = getDb().query(TBL_GOODREADS_ID.getName(),
+				new String[]{DOM_GOODREADS_BOOK_ID.name, DOM_NOT_FOUND_COUNT.name},
+				DOM_ISBN + "=?", new String[]{key}, null, null, null);
+		try {
+			if (c.moveToFirst() && c.getLong(0) == 0)
+				count = c.getInt(1);
+		} finally {
+			c.close();
+		}
+		count++;
+
+		long wait = NOT_FOUND_RETRY_MS;
+		for(int i = 1; i < count && wait < MAX_NOT_FOUND_RETRY_MS; i++)
+			wait *= 2;
+		if (wait > MAX_NOT_FOUND_RETRY_MS)
+			wait = MAX_NOT_FOUND_RETRY_MS;
+
+		replace(key, 0, count, System.currentTimeMillis() + wait);
+	}
+
+	/**
+	 * Forget what is known about an ISBN.
+	 */
+	public synchronized void remove(String isbn) {
+		final String key = Utils.normaliseIsbn(isbn);
+		if (key.length() == 0)
+			return;
+		if (mDeleteStmt == null) {
+			String sql = "Delete From " + TBL_GOODREADS_ID + " Where " + DOM_ISBN + " = ?";
+			mDeleteStmt = mStatements.add(getDb(), "mDeleteStmt", sql);
+		}
+		mDeleteStmt.bindString(1, key);
+		mDeleteStmt.execute();
+	}
+
+	/**
+	 * Forget all ISBNs mapped to a Goodreads book ID; called when requests using the ID fail.
+	 */
+	public synchronized void removeBookId(long grId) {
+		if (grId <= 0)
+			return;
+		if (mDeleteIdStmt == null) {
+			String sql = "Delete From " + TBL_GOODREADS_ID + " Where " + DOM_GOODREADS_BOOK_ID + " = ?";
+			mDeleteIdStmt = mStatements.add(getDb(), "mDeleteIdStmt", sql);
+		}
+		mDeleteIdStmt.bindLong(1, grId);
+		mDeleteIdStmt.execute();
+	}
+
+	private void replace(String key, long grId, int notFoundCount, long retryAfter) {
+		if (mReplaceStmt == null) {
+			String sql = "Insert or Replace Into " + TBL_GOODREADS_ID + " (" + DOM_ISBN + ", " + DOM_GOODREADS_BOOK_ID + ", "
+					+ DOM_NOT_FOUND_COUNT + ", " + DOM_RETRY_AFTER + ", " + DOM_UPDATED + ") Values (?, ?, ?, ?, ?)";
+			mReplaceStmt = mStatements.add(getDb(), "mReplaceStmt", sql);
+		}
+		mReplaceStmt.bindString(1, key);
+		mReplaceStmt.bindLong(2, grId);
+		mReplaceStmt.bindLong(3, notFoundCount);
+		mReplaceStmt.bindLong(4, retryAfter);
+		mReplaceStmt.bindLong(5, System.currentTimeMillis());
+		mReplaceStmt.execute();
+	}
+
+	/**
+	 * Erase the whole cache
+	 */
+	public synchronized void clear() {
+		getDb().execSQL("Delete From " + TBL_GOODREADS_ID);
+	}
+}
@@ -0,0 +1,434 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
+import com.eleybourn.bookcatalogue.Logger;
+import com.eleybourn.bookcatalogue.SearchManager;
+import com.eleybourn.bookcatalogue.StorageUtils;
+import com.eleybourn.bookcatalogue.Utils;
+import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedDb;
+import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedStatement;
+import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer;
+import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
+import com.eleybourn.bookcatalogue.database.DbUtils.DomainDefinition;
+import com.eleybourn.bookcatalogue.database.DbUtils.TableDefinition;
+
+/**
+ * DB Helper for the search results cache on external storage.
+ *
+ * Stores the results from each search source (and the cover it downloaded, if any) keyed by the
+ * normalised ISBN, or by author and title when there was no ISBN, so that searching for the same
+ * book again does not need the network. Sources that did not find the book are cached too, for
+ * a shorter time.
+ *
+ * Entries expire after a time that depends on the source. The total size is limited; when it
+ * is exceeded, the least recently used entries are deleted.
+ *
+ * A single shared instance is used; it stays open for the life of the process.
+ *
+ * @author Philip Warner
+ */
+public class SearchCacheDbHelper extends GenericOpenHelper {
+	/** DB location */
+	private static final String DATABASE_NAME = StorageUtils.getSharedStoragePath() + "/search_cache.db";
+	/** DB Version */
+	private static final int DATABASE_VERSION = 1;
+
+	/** Maximum total size of cached data and covers */
+	private static final long MAX_CACHE_BYTES = 16L * 1024 * 1024;
+	/** When evicting, reduce the total to this size so we do not evict on every save */
+	private static final long TRIM_CACHE_BYTES = MAX_CACHE_BYTES * 3 / 4;
+
+	private static final long DAY_MS = 24L * 60 * 60 * 1000;
+	/** Time to keep 'not found' results for all sources; short since the failure may have been a network error */
+	private static final long NOT_FOUND_TTL_MS = 2 * DAY_MS;
+
+	/** Key prefix for ISBN lookups */
+	private static final String ISBN_PREFIX = "isbn:";
+	/** Key prefix for author/title lookups */
+	private static final String AUTHOR_TITLE_PREFIX = "at:";
+	/** Key used in the Bundle for the list of downloaded covers */
+	private static final String THUMBNAIL_KEY = "__thumbnail";
+
+	/** The shared instance */
+	private static SearchCacheDbHelper mInstance = null;
+
+	/** Synchronizer to coordinate DB access */
+	private static final Synchronizer mSynchronizer = new Synchronizer();
+
+	public static final DomainDefinition DOM_ID = new DomainDefinition( "_id", "integer",  "primary key autoincrement", "");
+	public static final DomainDefinition DOM_SOURCE = new DomainDefinition( "source", "integer", "", "not null");
+	public static final DomainDefinition DOM_LOOKUP_KEY = new DomainDefinition( "lookup_key", "text", "", "not null");
+	public static final DomainDefinition DOM_FOUND = new DomainDefinition( "found", "integer", "", "not null");
+	public static final DomainDefinition DOM_WITH_COVERS = new DomainDefinition( "with_covers", "integer", "", "not null");
+	public static final DomainDefinition DOM_DATA = new DomainDefinition( "data", "blob", "", "");
+	public static final DomainDefinition DOM_COVER = new DomainDefinition( "cover", "blob", "", "");
+	public static final DomainDefinition DOM_SIZE = new DomainDefinition( "size", "integer", "", "not null");
+	public static final DomainDefinition DOM_FETCHED = new DomainDefinition( "fetched", "integer", "", "not null");
+	public static final DomainDefinition DOM_LAST_USED = new DomainDefinition( "last_used", "integer", "", "not null");
+	public static final TableDefinition TBL_SEARCH_RESULT = new TableDefinition("search_result",
+			DOM_ID, DOM_SOURCE, DOM_LOOKUP_KEY, DOM_FOUND, DOM_WITH_COVERS, DOM_DATA, DOM_COVER, DOM_SIZE, DOM_FETCHED, DOM_LAST_USED );
+	static {
+		TBL_SEARCH_RESULT
+			.addIndex("id", true, DOM_ID)
+			.addIndex("key", true, DOM_SOURCE, DOM_LOOKUP_KEY)
+			.addIndex("last_used", false, DOM_LAST_USED);
+	};
+
+	public static final TableDefinition TABLES[] = new TableDefinition[] {TBL_SEARCH_RESULT};
+
+	private SynchronizedDb mDb;
+
+	/** List of statements we create so we can close them when object is closed. */
+	private SqlStatementManager mStatements = new SqlStatementManager();
+
+	private SynchronizedStatement mTouchStmt = null;
+	private SynchronizedStatement mDeleteStmt = null;
+	private SynchronizedStatement mTotalSizeStmt = null;
+
+	/**
+	 * Get the shared instance.
+	 */
+	public static synchronized SearchCacheDbHelper getInstance() {
+		if (mInstance == null)
+			mInstance = new SearchCacheDbHelper();
+		return mInstance;
+	}
+
+	private SearchCacheDbHelper() {
+		super(DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	/**
+	 * As with SQLiteOpenHelper, routine called to create DB
+	 */
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		DbUtils.createTables(new SynchronizedDb(db, mSynchronizer), TABLES, true );
+	}
+
+	/**
+	 * As with SQLiteOpenHelper, routine called to upgrade DB
+	 */
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		throw new RuntimeException("Upgrades not handled yet!");
+	}
+
+	private SynchronizedDb getDb() {
+		if (mDb == null)
+			mDb = new SynchronizedDb(this, mSynchronizer);
+		return mDb;
+	}
+
+	/**
+	 * Get the key used to cache a search.
+	 *
+	 * @return	Key based on the ISBN if present, otherwise on author and title. null if
+	 * 			there is not enough to identify a book.
+	 */
+	public static String getLookupKey(String isbn, String author, String title) {
+		if (isbn != null) {
+			final String norm = Utils.normaliseIsbn(isbn);
+			if (norm.length() > 0)
+				return ISBN_PREFIX + norm;
+		}
+		final String a = normaliseText(author);
+		final String t = normaliseText(title);
+		if (a.length() == 0 || t.length() == 0)
+			return null;
+		return AUTHOR_TITLE_PREFIX + a + "|" + t;
+	}
+
+	/**
+	 * Lower case, and replace any run of punctuation and spaces with a single space.
+	 */
+	private static String normaliseText(String s) {
+		if (s == null)
+			return "";
+		return s.toLowerCase(Locale.US).replaceAll("[\\p{Punct}\\s]+", " ").trim();
+	}
+
+	/**
+	 * Time for which a successful result from a source is kept. Sites whose data rarely
+	 * changes are kept longer.
+	 */
+	private static long getTimeToLive(int source) {
+		switch(source) {
+		case SearchManager.SEARCH_AMAZON:
+			return 30 * DAY_MS;
+		case SearchManager.SEARCH_GOOGLE:
+			return 60 * DAY_MS;
+		case SearchManager.SEARCH_LIBRARY_THING:
+			return 90 * DAY_MS;
+		case SearchManager.SEARCH_GOODREADS:
+			return 30 * DAY_MS;
+		default:
+			return 30 * DAY_MS;
+		}
+	}
+
+	/**
+	 * Get a cached result.
+	 *
+	 * If the source found the book and a cover was cached, the cover is written to a new
+	 * temporary file, listed under '__thumbnail' as a search thread would.
+	 *
+	 * @param source		Search source, eg. SearchManager.SEARCH_GOOGLE
+	 * @param key			Key from getLookupKey()
+	 * @param needCovers	true if the caller wants covers; results saved without them are ignored
+	 *
+	 * @return	The book data (empty if the source did not find the book), or null if not cached
+	 */
+	public synchronized Bundle get(int source, String key, boolean needCovers) {
+		if (key == null)
+			return null;
+
+		SynchronizedDb db = getDb();
+		final long now = System.currentTimeMillis();
+		long id;
+		boolean found;
+		byte[] data;
+		byte[] cover;
+		Cursor c = db.query(TBL_SEARCH_RESULT.getName(),
+				new String[]{DOM_ID.name, DOM_FOUND.name, DOM_WITH_COVERS.name, DOM_DATA.name, DOM_COVER.name, DOM_FETCHED.name},
+				DOM_SOURCE + "=? and " + DOM_LOOKUP_KEY + "=?", new String[]{Integer.toString(source), key}, null, null, null);
+		try {
+			if (!c.moveToFirst())
+				return null;
+			id = c.getLong(0);
+			found = c.getInt(1) != 0;
+			final long ttl = found ? getTimeToLive(source) : NOT_FOUND_TTL_MS;
+			if (now - c.getLong(5) > ttl) {
+				delete(id);
+				return null;
+			}
+			if (found && needCovers && c.getInt(2) == 0)
+				return null;
+			data = c.getBlob(3);
+			cover = c.getBlob(4);
+		} finally {
+			c.close();
+		}
+
+		Bundle b = new Bundle();
+		if (found) {
+			try {
+				HashMap<String, String> values = SerializationUtils.deserializeObject(data);
+				for(String k: values.keySet())
+					b.putString(k, values.get(k));
+			} catch (Exception e) {
+				Logger.logError(e);
+				delete(id);
+				return null;
+			}
+			if (needCovers && cover != null && cover.length > 0) {
+				final String file = writeCover(source, cover);
+				if (file != null)
+					b.putString(THUMBNAIL_KEY, file);
+			}
+		}
+
+		if (mTouchStmt == null) {
+			String sql = "Update " + TBL_SEARCH_RESULT + " Set " + DOM_LAST_USED + " = ? Where " + DOM_ID + " = ?";
+			mTouchStmt = mStatements.add(db, "mTouchStmt", sql);
+		}
+		mTouchStmt.bindLong(1, now);
+		mTouchStmt.bindLong(2, id);
+		mTouchStmt.execute();
+
+		return b;
+	}
+
+	/**
+	 * Write a cached cover to a temporary file of the kind the search threads create.
+	 *
+	 * @return	Full path, or null on failure
+	 */
+	private static String writeCover(int source, byte[] cover) {
+		// Each cover needs its own file; several searches may be using the cache at once
+		File file = CatalogueDBAdapter.getUniqueTempThumbnail("_CACHE_" + source);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			out.write(cover);
+			return file.getAbsolutePath();
+		} catch (Exception e) {
+			Logger.logError(e);
+			return null;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (Exception e) {}
+			}
+		}
+	}
+
+	/**
+	 * Read the first cover listed in a search result. Must be called before the search manager
+	 * deletes or renames the files.
+	 *
+	 * @return	Image data, or null if there is no cover
+	 */
+	public static byte[] readCover(Bundle bookData) {
+		if (!bookData.containsKey(THUMBNAIL_KEY))
+			return null;
+		for(String name: Utils.decodeList(bookData.getString(THUMBNAIL_KEY), '|')) {
+			File f = new File(name);
+			if (name.length() == 0 || !f.exists() || f.length() == 0)
+				continue;
+			try {
+				byte[] data = new byte[(int)f.length()];
+				FileInputStream in = new FileInputStream(f);
+				try {
+					int pos = 0;
+					while (pos < data.length) {
+						final int n = in.read(data, pos, data.length - pos);
+						if (n < 0)
+							break;
+						pos += n;
+					}
+				} finally {
+					in.close();
+				}
+				return data;
+			} catch (Exception e) {
+				Logger.logError(e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Save the result of a search from one source.
+	 *
+	 * @param source		Search source, eg. SearchManager.SEARCH_GOOGLE
+	 * @param keys			Keys from getLookupKey() to save the result under
+	 * @param bookData		Data as returned by the search; '__thumbnail' is ignored
+	 * @param found			true if the source found the book
+	 * @param withCovers	true if the search asked for covers
+	 * @param cover			Cover image data, or null
+	 */
+	public synchronized void put(int source, String[] keys, Bundle bookData, boolean found, boolean withCovers, byte[] cover) {
+		byte[] data = null;
+		if (found) {
+			HashMap<String, String> values = new HashMap<String, String>();
+			for(String k: bookData.keySet()) {
+				Object o = bookData.get(k);
+				if (!k.equals(THUMBNAIL_KEY) && o != null)
+					values.put(k, o.toString());
+			}
+			data = SerializationUtils.serializeObject(values);
+			if (data == null)
+				return;
+		} else {
+			cover = null;
+		}
+
+		final long now = System.currentTimeMillis();
+		ContentValues cv = new ContentValues();
+		cv.put(DOM_SOURCE.name, source);
+		cv.put(DOM_FOUND.name, found ? 1 : 0);
+		cv.put(DOM_WITH_COVERS.name, withCovers ? 1 : 0);
+		cv.put(DOM_DATA.name, data);
+		cv.put(DOM_COVER.name, cover);
+		cv.put(DOM_SIZE.name, (data == null ? 0 : data.length) + (cover == null ? 0 : cover.length));
+		cv.put(DOM_FETCHED.name, now);
+		cv.put(DOM_LAST_USED.name, now);
+
+		SynchronizedDb db = getDb();
+		SyncLock txLock = db.beginTransaction(true);
+		try {
+			for(String key: keys) {
+				if (key == null)
+					continue;
+				cv.put(DOM_LOOKUP_KEY.name, key);
+				db.delete(TBL_SEARCH_RESULT.getName(), DOM_SOURCE + "=? and " + DOM_LOOKUP_KEY + "=?", new String[]{Integer.toString(source), key});
+				db.insert(TBL_SEARCH_RESULT.getName(), null, cv);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction(txLock);
+		}
+
+		evictIfNecessary();
+	}
+
+	/**
+	 * If the cache is too big, delete the least recently used entries.
+	 */
+	private void evictIfNecessary() {
+		SynchronizedDb db = getDb();
+		if (mTotalSizeStmt == null) {
+			String sql = "Select Coalesce(Sum(" + DOM_SIZE + "), 0) From " + TBL_SEARCH_RESULT;
+			mTotalSizeStmt = mStatements.add(db, "mTotalSizeStmt", sql);
+		}
+		long total = mTotalSizeStmt.simpleQueryForLong();
+		if (total <= MAX_CACHE_BYTES)
+			return;
+
+		SyncLock txLock = db.beginTransaction(true);
+		try {
+			Cursor c = db.query(TBL_SEARCH_RESULT.getName(), new String[]{DOM_ID.name, DOM_SIZE.name}, null, null, null, null, DOM_LAST_USED.name);
+			try {
+				while (total > TRIM_CACHE_BYTES && c.moveToNext()) {
+					delete(c.getLong(0));
+					total -= c.getLong(1);
+				}
+			} finally {
+				c.close();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction(txLock);
+		}
+		System.out.println("Search cache trimmed to " + total + " bytes");
+	}
+
+	private void delete(long id) {
+		if (mDeleteStmt == null) {
+			String sql = "Delete From " + TBL_SEARCH_RESULT + " Where " + DOM_ID + " = ?";
+			mDeleteStmt = mStatements.add(getDb(), "mDeleteStmt", sql);
+		}
+		mDeleteStmt.bindLong(1, id);
+		mDeleteStmt.execute();
+	}
+
+	/**
+	 * Erase the whole cache
+	 */
+	public synchronized void clear() {
+		getDb().execSQL("Delete From " + TBL_SEARCH_RESULT);
+	}
+}
@@ -50,10 +50,90 @@ import net.philipwarner.taskqueue.TasksCursor;
 public abstract class GenericTask extends RunnableTask {
 	private static final long serialVersionUID = -5985866222873741455L;
 
+	/** Default number of items processed between checkpoints */
+	public static final int DEFAULT_CHECKPOINT_ITEMS = 20;
+	/** Default longest time between checkpoints; this also limits how out of date the progress shown in the UI can be */
+	public static final long DEFAULT_CHECKPOINT_MS = 3000;
+
+	/** Current checkpoint limits */
+	private static int mCheckpointItems = DEFAULT_CHECKPOINT_ITEMS;
+	private static long mCheckpointMs = DEFAULT_CHECKPOINT_MS;
+
+	/** Items processed since the last checkpoint */
+	private transient int mItemsSinceCheckpoint = 0;
+	/** Time of the last checkpoint */
+	private transient long mLastCheckpoint = 0;
+	/** Number of checkpoints made by this instance */
+	private transient int mCheckpointCount = 0;
+	/** Time spent by this instance in checkpoints, in ms */
+	private transient long mCheckpointTime = 0;
+
 	public GenericTask(String description) {
 		super(description);
 	}
 
+	/**
+	 * Called by long-running tasks after each item of work, and with force set before returning
+	 * early (on error or abort). Saves the task if forced, or if enough items or time have passed
+	 * since the last save.
+	 *
+	 * Saving serialises the whole task into the queue database, which is too slow to do after
+	 * every item. Tasks must therefore be able to resume from any checkpoint: repeating the
+	 * items done since the last one must be harmless.
+	 *
+	 * @param qMgr		Queue manager running the task
+	 * @param force		true to save regardless of the limits
+	 */
+	protected void checkpoint(QueueManager qMgr, boolean force) {
+		checkpoint(qMgr, 1, force);
+	}
+
+	/**
+	 * As checkpoint(QueueManager, boolean), for tasks that process items in batches.
+	 *
+	 * @param qMgr		Queue manager running the task
+	 * @param items		Number of items processed since the last call
+	 * @param force		true to save regardless of the limits
+	 */
+	protected void checkpoint(QueueManager qMgr, int items, boolean force) {
+		mItemsSinceCheckpoint += items;
+		final long now = System.currentTimeMillis();
+		if (!force && mItemsSinceCheckpoint < mCheckpointItems && now - mLastCheckpoint < mCheckpointMs)
+			return;
+
+		qMgr.saveTask(this);
+		mItemsSinceCheckpoint = 0;
+		mLastCheckpoint = System.currentTimeMillis();
+		mCheckpointCount++;
+		mCheckpointTime += mLastCheckpoint - now;
+	}
+
+	/**
+	 * Set the limits used by checkpoint(). Passing 1 item makes tasks save after every item,
+	 * as they used to.
+	 *
+	 * @param items		Number of items between checkpoints
+	 * @param ms		Longest time between checkpoints
+	 */
+	public static void setCheckpointLimits(int items, long ms) {
+		mCheckpointItems = items;
+		mCheckpointMs = ms;
+	}
+
+	/**
+	 * Number of checkpoints made by this instance.
+	 */
+	public int getCheckpointCount() {
+		return mCheckpointCount;
+	}
+
+	/**
+	 * Time spent by this instance in checkpoints, in ms.
+	 */
+	public long getCheckpointTime() {
+		return mCheckpointTime;
+	}
+
 	/**
 	 * Holder class record to maintain task views.
 	 * 
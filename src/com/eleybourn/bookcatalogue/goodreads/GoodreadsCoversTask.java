@@ -0,0 +1,267 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.goodreads;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.philipwarner.taskqueue.QueueManager;
+import android.content.Context;
+
+import com.eleybourn.bookcatalogue.BcQueueManager;
+import com.eleybourn.bookcatalogue.BookCatalogueApp;
+import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
+import com.eleybourn.bookcatalogue.ImageDownloader;
+import com.eleybourn.bookcatalogue.Logger;
+import com.eleybourn.bookcatalogue.R;
+import com.eleybourn.bookcatalogue.StorageUtils;
+import com.eleybourn.bookcatalogue.Utils;
+
+/**
+ * Background task to download the covers of books created by ImportAllTask.
+ *
+ * The import writes each page of books without waiting for covers, then queues one of these
+ * tasks with the cover URLs of the books it created. They go on the covers queue so that
+ * they run while the import continues, without holding up the small jobs queue. Up to MAX_DOWNLOADERS covers are downloaded at once
+ * through ImageDownloader, so the per-host RateLimiter applies. Each cover is attached to its
+ * book in this task's thread as its download finishes.
+ *
+ * Covers that fail stay in the task, which then returns false so that the task queue retries
+ * it later; a cover is given up after MAX_ATTEMPTS failures. A failed cover never holds up or
+ * fails the import.
+ *
+ * @author Philip Warner
+ */
+public class GoodreadsCoversTask extends GenericTask {
+	private static final long serialVersionUID = 4177260916346301538L;
+
+	/** Number of covers downloaded at once */
+	private static final int MAX_DOWNLOADERS = 3;
+	/** Number of failed downloads after which a cover is given up */
+	private static final int MAX_ATTEMPTS = 3;
+	/** Time to wait for a download before checking if the downloaders are finished */
+	private static final long POLL_MS = 1000;
+
+	/**
+	 * Details of one cover to fetch.
+	 *
+	 * @author Philip Warner
+	 */
+	public static class CoverRequest implements Serializable {
+		private static final long serialVersionUID = -6640216463498391806L;
+
+		/** Book ID and UUID; the UUID is checked in case the ID is reused */
+		public final long bookId;
+		public final String uuid;
+		/** Cover URL */
+		public final String url;
+		/** Number of failed downloads */
+		int failures = 0;
+
+		public CoverRequest(long bookId, String uuid, String url) {
+			this.bookId = bookId;
+			this.uuid = uuid;
+			this.url = url;
+		}
+	}
+
+	/**
+	 * Result of one download, passed back by a downloader.
+	 */
+	private static class DownloadResult {
+		final CoverRequest request;
+		/** Downloaded file, or null if the download failed */
+		final File file;
+
+		DownloadResult(CoverRequest request, File file) {
+			this.request = request;
+			this.file = file;
+		}
+	}
+
+	/** Covers still to fetch; only changed in the task thread */
+	private final ArrayList<CoverRequest> mPending;
+	/** Number of covers fetched */
+	private int mFetched = 0;
+	/** Number of covers given up */
+	private int mFailed = 0;
+	/** Number of covers queued */
+	private final int mTotal;
+
+	/**
+	 * Queue a task to fetch the passed covers, if there are any.
+	 */
+	public static void enqueue(ArrayList<CoverRequest> covers) {
+		if (covers.size() == 0)
+			return;
+		QueueManager.getQueueManager().enqueueTask(new GoodreadsCoversTask(covers), BcQueueManager.QUEUE_COVERS, 0);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param covers	Covers to fetch
+	 */
+	public GoodreadsCoversTask(ArrayList<CoverRequest> covers) {
+		super(BookCatalogueApp.getResourceString(R.string.download_goodreads_covers));
+		mPending = new ArrayList<CoverRequest>(covers);
+		mTotal = covers.size();
+	}
+
+	/**
+	 * Run the task, log exceptions.
+	 */
+	@Override
+	public boolean run(QueueManager qMgr, Context context) {
+		try {
+			return fetchCovers(qMgr, context);
+		} catch (InterruptedException e) {
+			checkpoint(qMgr, true);
+			return false;
+		} catch (Exception e) {
+			Logger.logError(e, "Error fetching Goodreads covers");
+			return false;
+		}
+	}
+
+	/**
+	 * Start the downloaders and attach the covers as they arrive.
+	 *
+	 * @return	true if there is nothing left to retry
+	 */
+	private boolean fetchCovers(QueueManager qMgr, Context context) throws InterruptedException {
+		if (mPending.size() == 0)
+			return true;
+
+		if (!Utils.isNetworkAvailable(context)) {
+			// Only wait 5 mins max on network errors.
+			if (getRetryDelay() > 300)
+				setRetryDelay(300);
+			return false;
+		}
+		if (!StorageUtils.sdCardWritable())
+			return false;
+
+		final LinkedBlockingQueue<CoverRequest> todo = new LinkedBlockingQueue<CoverRequest>(mPending);
+		final LinkedBlockingQueue<DownloadResult> results = new LinkedBlockingQueue<DownloadResult>();
+
+		Thread[] downloaders = new Thread[Math.min(MAX_DOWNLOADERS, mPending.size())];
+		for(int i = 0; i < downloaders.length; i++) {
+			downloaders[i] = new Thread("GoodreadsCovers " + i) {
+				@Override
+				public void run() {
+					android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+					CoverRequest req;
+					while (!isAborting() && (req = todo.poll()) != null) {
+						File file = CatalogueDBAdapter.getTempThumbnail("_GR_" + req.bookId);
+						ImageDownloader.Result r = null;
+						try {
+							r = ImageDownloader.download(req.url, file, 0);
+						} catch (Exception e) {
+							Logger.logError(e, "Failed to download cover for book " + req.bookId);
+						}
+						results.add(new DownloadResult(req, r == null ? null : r.file));
+					}
+				}};
+			downloaders[i].start();
+		}
+
+		CatalogueDBAdapter db = new CatalogueDBAdapter(context.getApplicationContext());
+		db.open();
+		try {
+			while (true) {
+				DownloadResult r = results.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				if (r == null) {
+					// Finished when all the downloaders have stopped and nothing is left to handle
+					if (!isAlive(downloaders) && results.size() == 0)
+						break;
+					continue;
+				}
+				if (r.file != null) {
+					attachCover(db, r.request, r.file);
+					mPending.remove(r.request);
+					mFetched++;
+				} else if (++r.request.failures >= MAX_ATTEMPTS) {
+					mPending.remove(r.request);
+					mFailed++;
+				}
+				checkpoint(qMgr, false);
+			}
+		} finally {
+			db.close();
+		}
+
+		if (mPending.size() > 0) {
+			// Retry the rest later
+			checkpoint(qMgr, true);
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean isAlive(Thread[] threads) {
+		for(Thread t : threads) {
+			if (t.isAlive())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Make a downloaded file the cover of a book, unless the book has gone or been given a
+	 * cover while we were downloading.
+	 */
+	private void attachCover(CatalogueDBAdapter db, CoverRequest req, File file) {
+		String uuid;
+		try {
+			uuid = db.getBookUuid(req.bookId);
+		} catch (Exception e) {
+			// Book deleted
+			uuid = null;
+		}
+		File real = CatalogueDBAdapter.fetchThumbnailByUuid(req.uuid);
+		if (!req.uuid.equals(uuid) || (real.exists() && real.length() > 0)) {
+			file.delete();
+			return;
+		}
+		if (!file.renameTo(real)) {
+			Logger.logError(new RuntimeException("Unable to save cover for book " + req.bookId));
+			file.delete();
+		}
+	}
+
+	/**
+	 * Make a more informative description
+	 */
+	@Override
+	public String getDescription() {
+		String base = super.getDescription();
+		return base + " (" + BookCatalogueApp.getResourceString(R.string.x_of_y, mFetched + mFailed, mTotal) + ")";
+	}
+
+	@Override
+	public long getCategory() {
+		return BcQueueManager.CAT_GOODREADS_COVERS;
+	}
+}
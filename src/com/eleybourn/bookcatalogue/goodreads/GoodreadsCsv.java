@@ -1,7 +1,7 @@
 /*
  * @copyright 2012 Philip Warner
  * @license GNU General Public License
- * 
+ *
  * This file is part of Book Catalogue.
  *
  * Book Catalogue is free software: you can redistribute it and/or modify
@@ -20,299 +20,300 @@
 
 package com.eleybourn.bookcatalogue.goodreads;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 import oauth.signpost.exception.OAuthCommunicationException;
 import oauth.signpost.exception.OAuthExpectationFailedException;
 import oauth.signpost.exception.OAuthMessageSignerException;
-import oauth.signpost.http.HttpResponse;
 
-import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.FileBody;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
 
 import android.database.Cursor;
 
-import com.eleybourn.bookcatalogue.BookCatalogueApp;
-import com.eleybourn.bookcatalogue.BooksCursor;
 import com.eleybourn.bookcatalogue.BooksRowView;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
+import com.eleybourn.bookcatalogue.Utils;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager.Exceptions.BookNotFoundException;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager.Exceptions.NetworkException;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager.Exceptions.NotAuthorizedException;
-import com.eleybourn.bookcatalogue.goodreads.api.TrivialParser;
-
-import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.*;
 
 /**
- * RELEASE GoodreadsCsv is a WORK IN PROGRESS. Probably not needed.
- * 
+ * Class to send books to the goodreads import page as CSV, used by SendAllBooksTask for
+ * full exports.
+ *
+ * Each upload is written straight to a temporary file as books are added, so memory use does
+ * not depend on the number of books. The columns follow the goodreads library export; goodreads
+ * matches the rows to its books by ISBN and puts them on the user's shelves. The import page
+ * does not return the goodreads book IDs, so the caller must get them from the review list.
+ *
+ * Usage: start(), add() for each book, send(), check the result with isAccepted(), and close()
+ * when finished with the upload.
+ *
+ * NOTE: the import page is a web form, not part of the OAuth API, and has not been checked
+ * against goodreads itself; SendAllBooksTask only uses this class when asked to.
+ *
  * @author Philip Warner
  */
 public class GoodreadsCsv {
+	/** Goodreads import page */
+	private static final String IMPORT_URL = "http://www.goodreads.com/review/import";
 
-	private CatalogueDBAdapter mDb = null;
-	private long mLastId = -1;
-
-	private static final GoodreadsFieldPublishedDateHandler mPubDateHandler = new GoodreadsFieldPublishedDateHandler();
-	private static final GoodreadsFieldIgnoreHandler mIgnoreHandler = new GoodreadsFieldIgnoreHandler();
-	//private static final GoodreadsFieldOriginalDateHandler mOrigDateHandler = new GoodreadsFieldOriginalDateHandler();
-	private static final GoodreadsFieldBookshelvesHandler mBookshelvesHandler = new GoodreadsFieldBookshelvesHandler();
-
-	private static final GoodreadsCsvFields mFieldMap = new GoodreadsCsvFields()
-		.add("Title", CatalogueDBAdapter.KEY_TITLE)
-		// TODO: Work out how to handle authors in GR CSV
-		//.add("Author", CatalogueDBAdapter.KEY_AUTHOR_NAME)
-		.add("Author", mIgnoreHandler)
-		.add("ISBN", CatalogueDBAdapter.KEY_ISBN)
-		.add("Average Rating", mIgnoreHandler)
-		.add("Publisher", CatalogueDBAdapter.KEY_PUBLISHER)
-		.add("Binding", CatalogueDBAdapter.KEY_FORMAT)
-		.add("Year Published", mPubDateHandler)
-		// ENHANCE: Handle ORIGINAL PUB DATE
-		//.add("Original Publicaltion Year", mOrigDateHandler)
-		.add("Original Publicaltion Year", mIgnoreHandler)
-		.add("Date Read", CatalogueDBAdapter.KEY_READ_END)
-		.add("Date Added", CatalogueDBAdapter.KEY_DATE_ADDED)
-		.add("Bookshelves", mBookshelvesHandler)
-		.add("My Review", CatalogueDBAdapter.KEY_NOTES)
-		;
-	
-	private static abstract class GoodreadsFieldHandler {
-		public abstract void outputCsv(CatalogueDBAdapter db, BooksRowView book, StringBuilder csv);
-		public abstract boolean canImport();
-		public abstract boolean canExport();
-	}
-
-	private static class GoodreadsFieldDirectCopy extends GoodreadsFieldHandler {
-		private final String mDestination;
-		GoodreadsFieldDirectCopy(String destination) {
-			mDestination = destination;
-		}
-		public void outputCsv(CatalogueDBAdapter db, BooksRowView book, StringBuilder csv) {
-			csv.append(book.getString(mDestination));
-		}
-		@Override
-		public boolean canImport() {
-			return true;
-		}
-		@Override
-		public boolean canExport() {
-			return true;
+	/**
+	 * Base class for the handler of each column.
+	 */
+	private static abstract class GoodreadsCsvColumn {
+		public final String grName;
+		GoodreadsCsvColumn(String grName) {
+			this.grName = grName;
 		}
+		/**
+		 * Get the value of this column for the current book.
+		 *
+		 * @return	Value, or null if none
+		 */
+		public abstract String getValue(CatalogueDBAdapter db, BooksRowView book);
 	}
 
-	private static class GoodreadsFieldIgnoreHandler extends GoodreadsFieldHandler {
-		public void outputCsv(CatalogueDBAdapter db, BooksRowView book, StringBuilder csv) {
-			throw new RuntimeException("Can not output IGNORED field");
-		}
-
-		@Override
-		public boolean canImport() {
-			return false;
+	/**
+	 * Column that is copied from the book.
+	 */
+	private static class GoodreadsDirectCopyColumn extends GoodreadsCsvColumn {
+		private final String mSource;
+		GoodreadsDirectCopyColumn(String grName, String source) {
+			super(grName);
+			mSource = source;
 		}
-
 		@Override
-		public boolean canExport() {
-			return false;
+		public String getValue(CatalogueDBAdapter db, BooksRowView book) {
+			return book.getString(mSource);
 		}
 	}
 
-	private static class GoodreadsFieldPublishedDateHandler extends GoodreadsFieldHandler {
-		public void outputCsv(CatalogueDBAdapter db, BooksRowView book, StringBuilder csv) {
-			csv.append(book.getDatePublished());
-		}
-
-		@Override
-		public boolean canImport() {
-			return true;
+	/**
+	 * Date column; goodreads uses yyyy/mm/dd.
+	 */
+	private static class GoodreadsDateColumn extends GoodreadsCsvColumn {
+		private final String mSource;
+		GoodreadsDateColumn(String grName, String source) {
+			super(grName);
+			mSource = source;
 		}
-
 		@Override
-		public boolean canExport() {
-			return true;
+		public String getValue(CatalogueDBAdapter db, BooksRowView book) {
+			String date = book.getString(mSource);
+			if (date == null || date.length() < 10 || date.startsWith("0000"))
+				return null;
+			return date.substring(0, 10).replace('-', '/');
 		}
 	}
 
-	//private static class GoodreadsFieldOriginalDateHandler extends GoodreadsFieldHandler {
-	//}
-
-	private static class GoodreadsFieldBookshelvesHandler extends GoodreadsFieldHandler {
-		public void outputCsv(CatalogueDBAdapter db, BooksRowView book, StringBuilder csv) {
-			Cursor shelves = db.getAllBookBookshelvesForGoodreadsCursor(book.getId());
-			try {
-				int	shelfCol = shelves.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_BOOKSHELF);
-
-				while (shelves.moveToNext()) {
-					String shelfName = shelves.getString(shelfCol);
-					csv.append("'" + shelfName + "' ");
+	private static final GoodreadsCsvColumn[] mColumns = new GoodreadsCsvColumn[] {
+		new GoodreadsCsvColumn("Book Id") {
+			@Override
+			public String getValue(CatalogueDBAdapter db, BooksRowView book) {
+				final long grId = book.getGoodreadsBookId();
+				return grId == 0 ? null : Long.toString(grId);
+			}},
+		new GoodreadsDirectCopyColumn("Title", CatalogueDBAdapter.KEY_TITLE),
+		new GoodreadsCsvColumn("Author") {
+			@Override
+			public String getValue(CatalogueDBAdapter db, BooksRowView book) {
+				return book.getPrimaryAuthorName();
+			}},
+		new GoodreadsCsvColumn("ISBN") {
+			@Override
+			public String getValue(CatalogueDBAdapter db, BooksRowView book) {
+				final String isbn = book.getIsbn();
+				return (isbn != null && isbn.replace("-", "").trim().length() == 10) ? isbn.replace("-", "").trim() : null;
+			}},
+		new GoodreadsCsvColumn("ISBN13") {
+			@Override
+			public String getValue(CatalogueDBAdapter db, BooksRowView book) {
+				final String isbn = Utils.normaliseIsbn(book.getIsbn());
+				return isbn.length() == 13 ? isbn : null;
+			}},
+		new GoodreadsCsvColumn("My Rating") {
+			@Override
+			public String getValue(CatalogueDBAdapter db, BooksRowView book) {
+				final int rating = (int)book.getRating();
+				return rating == 0 ? null : Integer.toString(rating);
+			}},
+		new GoodreadsDirectCopyColumn("Publisher", CatalogueDBAdapter.KEY_PUBLISHER),
+		new GoodreadsDirectCopyColumn("Binding", CatalogueDBAdapter.KEY_FORMAT),
+		new GoodreadsCsvColumn("Year Published") {
+			@Override
+			public String getValue(CatalogueDBAdapter db, BooksRowView book) {
+				final String date = book.getDatePublished();
+				return (date != null && date.length() >= 4 && !date.startsWith("0000")) ? date.substring(0, 4) : null;
+			}},
+		new GoodreadsDateColumn("Date Read", CatalogueDBAdapter.KEY_READ_END),
+		new GoodreadsDateColumn("Date Added", CatalogueDBAdapter.KEY_DATE_ADDED),
+		new GoodreadsCsvColumn("Bookshelves") {
+			@Override
+			public String getValue(CatalogueDBAdapter db, BooksRowView book) {
+				// The read/to-read shelves go in 'Exclusive Shelf'
+				StringBuilder shelves = new StringBuilder();
+				Cursor c = db.getAllBookBookshelvesForGoodreadsCursor(book.getId());
+				try {
+					final int shelfCol = c.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_BOOKSHELF);
+					while (c.moveToNext()) {
+						final String shelf = GoodreadsManager.canonicalizeBookshelfName(c.getString(shelfCol));
+						if (shelf.equals("read") || shelf.equals("to-read") || shelf.equals("currently-reading"))
+							continue;
+						if (shelves.length() > 0)
+							shelves.append(", ");
+						shelves.append(shelf);
+					}
+				} finally {
+					c.close();
 				}
-			} finally {
-				shelves.close();
-			}
-		}
+				return shelves.toString();
+			}},
+		new GoodreadsCsvColumn("Exclusive Shelf") {
+			@Override
+			public String getValue(CatalogueDBAdapter db, BooksRowView book) {
+				return book.getRead() == 0 ? "to-read" : "read";
+			}},
+	};
+
+	private final CatalogueDBAdapter mDb;
+	private final GoodreadsManager mManager;
+
+	/** File for the current upload */
+	private File mFile = null;
+	private Writer mWriter = null;
+	/** Number of books in the current upload */
+	private int mRowCount = 0;
 
-		@Override
-		public boolean canImport() {
-			return true;
-		}
+	/**
+	 * Constructor
+	 *
+	 * @param db		Database to read shelves from
+	 * @param manager	Manager used to send the uploads
+	 */
+	public GoodreadsCsv(CatalogueDBAdapter db, GoodreadsManager manager) {
+		mDb = db;
+		mManager = manager;
+	}
 
-		@Override
-		public boolean canExport() {
-			return true;
+	/**
+	 * Start a new upload, discarding any current one.
+	 */
+	public void start() throws IOException {
+		close();
+		mFile = File.createTempFile("BC_GR", ".csv");
+		mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile), "UTF-8"));
+		for(int i = 0; i < mColumns.length; i++) {
+			if (i > 0)
+				mWriter.write(',');
+			mWriter.write(mColumns[i].grName);
 		}
+		mWriter.write("\r\n");
+		mRowCount = 0;
 	}
 
-	private static class GoodreadsCsvField {
-		public String grName;
-		public GoodreadsFieldHandler handler;
-		GoodreadsCsvField(String grName, String bcFieldName) {
-			this.grName = grName;
-			this.handler = new GoodreadsFieldDirectCopy(bcFieldName);
-		}
-		GoodreadsCsvField(String grName, GoodreadsFieldHandler handler) {
-			this.grName = grName;
-			this.handler = handler;
+	/**
+	 * Add a book to the current upload.
+	 *
+	 * @param book	Row view of a cursor from CatalogueDBAdapter.getAllBooksForGoodreadsCsvCursor()
+	 */
+	public void add(BooksRowView book) throws IOException {
+		for(int i = 0; i < mColumns.length; i++) {
+			if (i > 0)
+				mWriter.write(',');
+			writeValue(mColumns[i].getValue(mDb, book));
 		}
+		mWriter.write("\r\n");
+		mRowCount++;
 	}
 
-	private static class GoodreadsCsvFields implements Iterable<GoodreadsCsvField> {
-		private ArrayList<GoodreadsCsvField> mList = new ArrayList<GoodreadsCsvField>();
-
-		public GoodreadsCsvFields add(String grName, String bcName) {
-			GoodreadsCsvField f = new GoodreadsCsvField(grName, bcName);
-			mList.add(f);
-			return this;
-		}
-		public GoodreadsCsvFields add(String grName, GoodreadsFieldHandler handler) {
-			GoodreadsCsvField f = new GoodreadsCsvField(grName, handler);
-			mList.add(f);
-			return this;
-		}
-		@Override
-		public Iterator<GoodreadsCsvField> iterator() {
-			return mList.iterator();
-		}
+	/**
+	 * Number of books in the current upload.
+	 */
+	public int getRowCount() {
+		return mRowCount;
 	}
-	
+
 	/**
-	 * Send all books to goodreads in batches of 100 via the CSV interface
-	 * @throws IOException 
-	 * @throws BookNotFoundException 
-	 * @throws NotAuthorizedException 
-	 * @throws OAuthCommunicationException 
-	 * @throws OAuthExpectationFailedException 
-	 * @throws OAuthMessageSignerException 
-	 * @throws NetworkException 
+	 * Send the current upload to goodreads.
+	 *
+	 * @return	Text of the response
 	 */
-	public void sendAllToGoodreads() throws IOException, OAuthMessageSignerException, OAuthExpectationFailedException, OAuthCommunicationException, NotAuthorizedException, BookNotFoundException, NetworkException {
-		CatalogueDBAdapter db = getDb();
-		long lastId = mLastId;
-		BooksCursor books = null;
-		StringBuilder csvBuilder = new StringBuilder();
+	public String send() throws IOException, OAuthMessageSignerException, OAuthExpectationFailedException, OAuthCommunicationException, NotAuthorizedException, BookNotFoundException, NetworkException {
+		mWriter.close();
+		mWriter = null;
 
-		try {
-			// reset the CSV data
-			csvBuilder.setLength(0);
-			
-			// Make the headers
-			boolean first = true;
-			for(GoodreadsCsvField f: mFieldMap) {
-				if (f.handler.canExport()) {
-					if (first) 
-						first = false;
-					else 
-						csvBuilder.append(",");
-					csvBuilder.append(f.grName);
-				}
-			}
-			csvBuilder.append("\n");
+		HttpPost post = new HttpPost(IMPORT_URL);
+		MultipartEntity entity = new MultipartEntity();
+		entity.addPart("import[file]", new FileBody(mFile, "text/csv"));
+		post.setEntity(entity);
 
-			while (true) {
-				String sql = "Select " + TBL_BOOKS.dot("*") + " from " + TBL_BOOKS.ref() + 
-						" Where " + TBL_BOOKS.dot(DOM_ID) + " > " + lastId +
-						" Order By " + TBL_BOOKS.dot(DOM_ID) + " asc Limit 5";
-				
-				books = db.fetchBooks(sql, CatalogueDBAdapter.EMPTY_STRING_ARRAY);
-				BooksRowView book = books.getRowView();
+		return mManager.executeRaw(post);
+	}
 
-				while (books.moveToNext()) {
-					lastId = book.getId();
-					first = true;
-					for(GoodreadsCsvField f: mFieldMap) {
-						if (f.handler.canExport()) {
-							if (first) 
-								first = false;
-							else 
-								csvBuilder.append(",");
-							f.handler.outputCsv(db, book, csvBuilder);
-						}
-					}
-					csvBuilder.append("\n");
-				}
-				books.close();
-				sendCsv(csvBuilder.toString());
-				mLastId = lastId;
-			}
-		} finally {
-			if (books != null)
-				books.close();
-		}
+	/**
+	 * Check the page returned by send(). Because the import page is a web form, problems such as
+	 * an expired session come back as a normal page (eg. the sign in form) rather than an error code.
+	 *
+	 * @param response	Text returned by send()
+	 *
+	 * @return	true if the page looks like a confirmation of the import
+	 */
+	public static boolean isAccepted(String response) {
+		if (response == null)
+			return false;
+		final String text = response.toLowerCase();
+		if (text.contains("sign_in") || text.contains("type=\"password\"") || text.contains("error"))
+			return false;
+		return text.contains("import");
 	}
 
-	private CatalogueDBAdapter getDb() {
-		if (mDb == null) {
-			mDb = new CatalogueDBAdapter(BookCatalogueApp.context);
-			mDb.open();
+	/**
+	 * Discard the current upload, if any.
+	 */
+	public void close() {
+		if (mWriter != null) {
+			try {
+				mWriter.close();
+			} catch (IOException e) {
+				// Ignore; the file is being deleted
+			}
+			mWriter = null;
 		}
-		return mDb;
+		if (mFile != null) {
+			mFile.delete();
+			mFile = null;
+		}
+		mRowCount = 0;
 	}
 
-	public void sendCsv(final String csvData) throws IOException, OAuthMessageSignerException, OAuthExpectationFailedException, OAuthCommunicationException, NotAuthorizedException, BookNotFoundException, NetworkException {
-
-		GoodreadsManager grMgr = new GoodreadsManager();
-	
-		File file = File.createTempFile("BC_GR", ".csv");
-		try {
-			FileWriter writer = new FileWriter(file);
-			writer.write(csvData);
-			writer.close();
-
-			HttpClient client = new DefaultHttpClient();
-			HttpPost post = new HttpPost("http://www.goodreads.com/review/import");
-
-			MultipartEntity entity = new MultipartEntity();
-
-//			List<NameValuePair> parameters = new ArrayList<NameValuePair>();
-//	        parameters.add(new BasicNameValuePair("import[file]", "test.csv"));
-//	        parameters.add(new BasicNameValuePair("commit", "import books"));
-//
-//	        UrlEncodedFormEntity args = new UrlEncodedFormEntity(parameters);
-//	        entity.addPart(args);
-
-	        entity.addPart("file.csv", new FileBody(file));
-
-			post.setEntity(entity);
-
-			TrivialParser parser = new TrivialParser();
-			grMgr.execute(post, parser, true);
-			String res = parser.getHtml();
-			System.out.println(res);
-			
-		} finally {
-			file.delete();
+	/**
+	 * Write a value, quoted if necessary.
+	 */
+	private void writeValue(String value) throws IOException {
+		if (value == null || value.length() == 0)
+			return;
+		boolean needsQuotes = false;
+		for(int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+				needsQuotes = true;
+				break;
+			}
+		}
+		if (needsQuotes) {
+			mWriter.write('"');
+			mWriter.write(value.replace("\"", "\"\""));
+			mWriter.write('"');
+		} else {
+			mWriter.write(value);
 		}
-		
 	}
 }
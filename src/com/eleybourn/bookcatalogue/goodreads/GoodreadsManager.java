@@ -22,13 +22,13 @@ package com.eleybourn.bookcatalogue.goodreads;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Date;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import oauth.signpost.OAuthProvider;
 import oauth.signpost.commonshttp.CommonsHttpOAuthConsumer;
@@ -40,12 +40,7 @@ import oauth.signpost.exception.OAuthMessageSignerException;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
@@ -60,7 +55,10 @@ import com.eleybourn.bookcatalogue.BookCatalogueApp.BookCataloguePreferences;
 import com.eleybourn.bookcatalogue.BooksRowView;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
 import com.eleybourn.bookcatalogue.Logger;
+import com.eleybourn.bookcatalogue.RateLimiter;
+import com.eleybourn.bookcatalogue.SharedHttpClient;
 import com.eleybourn.bookcatalogue.Utils;
+import com.eleybourn.bookcatalogue.database.GoodreadsIdCacheDbHelper;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager.Exceptions.BookNotFoundException;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager.Exceptions.NetworkException;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager.Exceptions.NotAuthorizedException;
@@ -122,8 +120,8 @@ public class GoodreadsManager {
 	// Local copies of user data retrieved when the credentials were verified
 	protected static String m_username = null;
 	protected static long m_userid = 0;
-	// Stores the last time an API request was made to avoid breaking API rules.
-	private static Long m_LastRequestTime = 0L;
+	/** Host used for API requests; rate limited as per the ToS */
+	private static final String API_HOST = "www.goodreads.com";
 
 	private final static String DEV_KEY = GoodreadsApiKeys.GOODREADS_DEV_KEY;
 	private final static String DEV_SECRET = GoodreadsApiKeys.GOODREADS_DEV_SECRET;
@@ -238,6 +236,18 @@ public class GoodreadsManager {
 		return true;
 	}
 
+	/**
+	 * Discard the cached result of validating the credentials, so they will be checked again
+	 * on next use. Eg. after the stored tokens have been changed outside of the OAuth process.
+	 */
+	public static void forgetCredentials() {
+		m_hasValidCredentials = false;
+		m_accessToken = null;
+		m_accessSecret = null;
+		m_username = null;
+		m_userid = 0;
+	}
+
 	/**
 	 * Request authorization from the current user by going to the OAuth web page.
 	 * 
@@ -296,8 +306,8 @@ public class GoodreadsManager {
 		m_consumer.setTokenWithSecret(tokenString, secretString);
 
 		// Get the access token
-		waitUntilRequestAllowed();
 		try {
+			waitUntilRequestAllowed();
 	    	m_provider.retrieveAccessToken(m_consumer, null ); //m_consumer.getToken());			
         } catch (oauth.signpost.exception.OAuthNotAuthorizedException e) {
         	throw new NotAuthorizedException(e);
@@ -315,22 +325,6 @@ public class GoodreadsManager {
 		ed.commit();
 	}
 
-	/**
-	 * Create an HttpClient with specifically set buffer sizes to deal with
-	 * potentially exorbitant settings on some HTC handsets.
-	 * 
-	 * @return
-	 */
-	private HttpClient newHttpClient() {
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setConnectionTimeout(params, 30000);
-		HttpConnectionParams.setSocketBufferSize(params, 8192);
-		HttpConnectionParams.setLinger(params, 0);
-		HttpConnectionParams.setTcpNoDelay(params, false);
-		HttpClient httpClient = new DefaultHttpClient(params);		
-		return httpClient;
-	}
-
 	/**
 	 * Utility routine called to sign a request and submit it then pass it off to a parser.
 	 *
@@ -341,9 +335,6 @@ public class GoodreadsManager {
 	 */
 	public HttpResponse execute(HttpUriRequest request, DefaultHandler requestHandler, boolean requiresSignature) throws ClientProtocolException, IOException, OAuthMessageSignerException, OAuthExpectationFailedException, OAuthCommunicationException, NotAuthorizedException, BookNotFoundException, NetworkException {
 
-		// Get a new client
-		HttpClient httpClient = newHttpClient();
-
 		// Sign the request and wait until we can submit it legally.
 		if (requiresSignature) {
 			m_consumer.setTokenWithSecret(m_accessToken, m_accessSecret);
@@ -354,21 +345,26 @@ public class GoodreadsManager {
     	// Submit the request and process result.
     	HttpResponse response;
     	try {
-    		response = httpClient.execute(request);
+    		response = SharedHttpClient.execute(request);
     	} catch (Exception e) {
     		throw new NetworkException(e);
     	}
 
-    	int code = response.getStatusLine().getStatusCode();
-    	if (code == 200 || code == 201)
-    		parseResponse(response, requestHandler);
-    	else if (code == 401) {
-    		m_hasValidCredentials = false;
-    		throw new NotAuthorizedException(null);
-    	} else if (code == 404) {
-    		throw new BookNotFoundException(null);
-    	} else
-    		throw new RuntimeException("Unexpected status code from API: " + response.getStatusLine().getStatusCode() + "/" + response.getStatusLine().getReasonPhrase());
+    	try {
+	    	int code = response.getStatusLine().getStatusCode();
+	    	if (code == 200 || code == 201)
+	    		parseResponse(response, requestHandler);
+	    	else if (code == 401) {
+	    		m_hasValidCredentials = false;
+	    		throw new NotAuthorizedException(null);
+	    	} else if (code == 404) {
+	    		throw new BookNotFoundException(null);
+	    	} else
+	    		throw new RuntimeException("Unexpected status code from API: " + response.getStatusLine().getStatusCode() + "/" + response.getStatusLine().getReasonPhrase());
+    	} finally {
+    		// Make sure the connection goes back to the pool
+    		SharedHttpClient.consume(response);
+    	}
 
     	return response;
 	}
@@ -388,9 +384,6 @@ public class GoodreadsManager {
 	 */
 	public String executeRaw(HttpUriRequest request) throws OAuthMessageSignerException, OAuthExpectationFailedException, OAuthCommunicationException, ClientProtocolException, IOException, NotAuthorizedException, BookNotFoundException, NetworkException {
 
-		// Get a new client
-		HttpClient httpClient = newHttpClient();
-
 		// Sign the request and wait until we can submit it legally.
 		m_consumer.setTokenWithSecret(m_accessToken, m_accessSecret);
 		m_consumer.sign(request);
@@ -399,7 +392,7 @@ public class GoodreadsManager {
     	// Submit the request then process result.
     	HttpResponse response = null;
     	try {
-    		response = httpClient.execute(request);
+    		response = SharedHttpClient.execute(request);
     	} catch (Exception e) {
     		throw new NetworkException(e);
     	}
@@ -410,11 +403,15 @@ public class GoodreadsManager {
         if (e != null) {
             InputStream in = e.getContent();
             if (in != null) {
-                while (true) {
-                	int i = in.read();
-                	if (i == -1) break;
-                	html.append((char)(i));
-                }        	            	
+            	try {
+	                while (true) {
+	                	int i = in.read();
+	                	if (i == -1) break;
+	                	html.append((char)(i));
+	                }        	            	
+            	} finally {
+            		in.close();
+            	}
             }
         }
 
@@ -439,15 +436,13 @@ public class GoodreadsManager {
 		boolean parseOk = false;
 
 		// Setup the parser
-		SAXParserFactory factory = SAXParserFactory.newInstance();
 		SAXParser parser;
 
 		InputStream in = response.getEntity().getContent();
 
 		// Dont bother catching general exceptions, they will be caught by the caller.
 		try {
-			parser = factory.newSAXParser();
-			// Make sure we follow LibraryThing ToS (no more than 1 request/second).
+			parser = Utils.getSaxParser();
 			parser.parse(in, requestHandler);
 			parseOk = true;
 		} catch (MalformedURLException e) {
@@ -471,36 +466,15 @@ public class GoodreadsManager {
 	}
 
 	/**
-	 * Use mLastRequestTime to determine how long until the next request is allowed; and
-	 * update mLastRequestTime this needs to be synchroized across threads.
-	 *
- 	 * Note that as a result of this approach mLastRequestTime may in fact be
-	 * in the future; callers to this routine effectively allocate time slots.
-	 * 
-	 * This method will sleep() until it can make a request; if ten threads call this 
+	 * Wait until the Goodreads ToS allow another API request (no more than 1 request/second).
+	 * The limit is shared with every other thread via RateLimiter; if ten threads call this
 	 * simultaneously, one will return immediately, one will return 1 second later, another
 	 * two seconds etc.
 	 * 
+	 * @throws InterruptedIOException	if interrupted while waiting; the request must not be made
 	 */
-	private static void waitUntilRequestAllowed() {
-		long now = System.currentTimeMillis();
-		long wait;
-		synchronized(m_LastRequestTime) {
-			wait = 1000 - (now - m_LastRequestTime);
-			//
-			// mLastRequestTime must be updated while synchronized. As soon as this
-			// block is left, another block may perform another update.
-			//
-			if (wait < 0)
-				wait = 0;
-			m_LastRequestTime = now + wait;
-		}
-		if (wait > 0) {
-			try {
-				Thread.sleep(wait);
-			} catch (InterruptedException e) {
-			}
-		}
+	private static void waitUntilRequestAllowed() throws InterruptedIOException {
+		RateLimiter.acquire(API_HOST);
 	}
 
 	public String getUsername() {
@@ -520,12 +494,28 @@ public class GoodreadsManager {
 	/** Local API object */
 	private IsbnToId m_isbnToId = null;
 	/**
-	 * Wrapper to call ISBN->ID API
+	 * Wrapper to call ISBN->ID API. Results, including 'not found', are kept in
+	 * GoodreadsIdCacheDbHelper and used in preference to the API.
 	 */
 	public long isbnToId(String isbn) throws OAuthMessageSignerException, OAuthExpectationFailedException, OAuthCommunicationException, NotAuthorizedException, BookNotFoundException, NetworkException, IOException {
+		GoodreadsIdCacheDbHelper cache = GoodreadsIdCacheDbHelper.getInstance();
+		final long cached = cache.get(isbn);
+		if (cached == GoodreadsIdCacheDbHelper.NOT_FOUND)
+			throw new BookNotFoundException(null);
+		if (cached != GoodreadsIdCacheDbHelper.UNKNOWN)
+			return cached;
+
 		if (m_isbnToId == null)
 			m_isbnToId = new IsbnToId(this);
-		return m_isbnToId.isbnToId(isbn);
+		final long id;
+		try {
+			id = m_isbnToId.isbnToId(isbn);
+		} catch (BookNotFoundException e) {
+			cache.putNotFound(isbn);
+			throw e;
+		}
+		cache.putFound(isbn, id);
+		return id;
 	}
 
 	/** Local API object */
@@ -589,6 +579,10 @@ public class GoodreadsManager {
 				if (grBookInfo == null)
 					grId = 0;
 			}
+		} catch (BookNotFoundException e) {
+			// Make sure ISBN lookups do not use the stale ID either
+			GoodreadsIdCacheDbHelper.getInstance().removeBookId(books.getGoodreadsBookId());
+			grId = 0;
 		} catch (Exception e) {
 			grId = 0;
 		}
@@ -596,8 +590,11 @@ public class GoodreadsManager {
 		isNew = (grId == 0);
 
 		if (grId == 0 && !isbn.equals("")) {
+			// Skip the lookup if Goodreads recently did not know the ISBN
+			if (GoodreadsIdCacheDbHelper.getInstance().get(isbn) == GoodreadsIdCacheDbHelper.NOT_FOUND)
+				return ExportDisposition.notFound;
 			try {
-				// Get the book details using ISBN
+				// Get the book details using ISBN; this uses the cached book ID if known
 				grBookInfo = this.getBookByIsbn(isbn);
 				if (grBookInfo != null && grBookInfo.containsKey(ShowBookFieldNames.BOOK_ID))
 					grId = grBookInfo.getLong(ShowBookFieldNames.BOOK_ID);
@@ -0,0 +1,196 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.goodreads;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.database.Cursor;
+
+import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
+import com.eleybourn.bookcatalogue.Utils;
+
+/**
+ * In-memory index used by ImportAllTask to match goodreads reviews to books without querying
+ * the database for each review.
+ *
+ * It is built from a single query when the import starts, and maps goodreads book IDs and
+ * normalised ISBNs to book IDs. It also keeps the last goodreads sync date of each book so
+ * that books that do not need updating are never loaded. The import must call put() for each
+ * book it creates or updates to keep the index in step with the database.
+ *
+ * @author Philip Warner
+ */
+public class GoodreadsMatchIndex {
+	private static final long[] NO_BOOKS = new long[0];
+
+	/**
+	 * Details held for each book.
+	 */
+	private static class BookEntry {
+		long grId;
+		String isbn;
+		String lastSync;
+	}
+
+	/** Details for each book ID */
+	private final HashMap<Long, BookEntry> mBooks = new HashMap<Long, BookEntry>();
+	/** Book IDs for each goodreads book ID */
+	private final HashMap<Long, long[]> mByGoodreadsId = new HashMap<Long, long[]>();
+	/** Book IDs for each normalised ISBN */
+	private final HashMap<String, long[]> mByIsbn = new HashMap<String, long[]>();
+
+	/**
+	 * Constructor. Reads every book.
+	 *
+	 * @param db	Database to index
+	 */
+	public GoodreadsMatchIndex(CatalogueDBAdapter db) {
+		Cursor c = db.getAllBooksForGoodreadsMatchCursor();
+		try {
+			while (c.moveToNext()) {
+				put(c.getLong(0), c.isNull(2) ? 0 : c.getLong(2), c.getString(1), c.getString(3));
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Number of books indexed.
+	 */
+	public int size() {
+		return mBooks.size();
+	}
+
+	/**
+	 * Find the books matching a review: those with its goodreads book ID if there are any,
+	 * otherwise those with any of its ISBNs.
+	 *
+	 * @param grId		Goodreads book ID, or 0 if unknown
+	 * @param isbns		ISBNs of the book
+	 *
+	 * @return	Matching book IDs; may be empty
+	 */
+	public long[] find(long grId, ArrayList<String> isbns) {
+		if (grId > 0) {
+			long[] ids = mByGoodreadsId.get(grId);
+			if (ids != null)
+				return ids;
+		}
+
+		long[] result = NO_BOOKS;
+		if (isbns != null) {
+			for(String isbn : isbns) {
+				long[] ids = mByIsbn.get(Utils.normaliseIsbn(isbn));
+				if (ids != null) {
+					for(long id : ids)
+						result = add(result, id);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check if a book may need updating from a review. A book does not need updating if the
+	 * review was last updated before the book was last synced with goodreads.
+	 *
+	 * @param bookId	Book ID
+	 * @param updated	Review update date in SQL format, or null if unknown
+	 */
+	public boolean needsUpdate(long bookId, String updated) {
+		BookEntry e = mBooks.get(bookId);
+		if (e == null || e.lastSync == null || updated == null)
+			return true;
+		return updated.compareTo(e.lastSync) >= 0;
+	}
+
+	/**
+	 * Add or replace the details of a book.
+	 *
+	 * @param bookId	Book ID
+	 * @param grId		Goodreads book ID, or 0 if none
+	 * @param isbn		ISBN, may be null
+	 * @param lastSync	Last goodreads sync date, may be null
+	 */
+	public void put(long bookId, long grId, String isbn, String lastSync) {
+		final String key = Utils.normaliseIsbn(isbn);
+		BookEntry e = mBooks.get(bookId);
+		if (e == null) {
+			e = new BookEntry();
+			mBooks.put(bookId, e);
+		} else {
+			// Remove the old keys if they have changed
+			if (e.grId != grId && e.grId > 0)
+				mByGoodreadsId.put(e.grId, remove(mByGoodreadsId.get(e.grId), bookId));
+			if (e.isbn != null && !e.isbn.equals(key))
+				mByIsbn.put(e.isbn, remove(mByIsbn.get(e.isbn), bookId));
+		}
+
+		if (grId > 0 && e.grId != grId)
+			mByGoodreadsId.put(grId, add(mByGoodreadsId.get(grId), bookId));
+		if (key.length() > 0 && !key.equals(e.isbn))
+			mByIsbn.put(key, add(mByIsbn.get(key), bookId));
+
+		e.grId = grId;
+		e.isbn = key.length() > 0 ? key : null;
+		e.lastSync = lastSync;
+	}
+
+	/**
+	 * Return the passed array with an ID added, if not already present.
+	 */
+	private static long[] add(long[] ids, long id) {
+		if (ids == null)
+			return new long[] {id};
+		for(long i : ids) {
+			if (i == id)
+				return ids;
+		}
+		long[] result = new long[ids.length + 1];
+		System.arraycopy(ids, 0, result, 0, ids.length);
+		result[ids.length] = id;
+		return result;
+	}
+
+	/**
+	 * Return the passed array without an ID; null if it becomes empty.
+	 */
+	private static long[] remove(long[] ids, long id) {
+		if (ids == null)
+			return null;
+		int n = 0;
+		for(long i : ids) {
+			if (i != id)
+				n++;
+		}
+		if (n == 0)
+			return null;
+		long[] result = new long[n];
+		n = 0;
+		for(long i : ids) {
+			if (i != id)
+				result[n++] = i;
+		}
+		return result;
+	}
+}
@@ -20,12 +20,12 @@
 
 package com.eleybourn.bookcatalogue.goodreads;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Hashtable;
 
 import net.philipwarner.taskqueue.QueueManager;
@@ -44,6 +44,9 @@ import com.eleybourn.bookcatalogue.Logger;
 import com.eleybourn.bookcatalogue.R;
 import com.eleybourn.bookcatalogue.Series;
 import com.eleybourn.bookcatalogue.Utils;
+import com.eleybourn.bookcatalogue.database.GoodreadsIdCacheDbHelper;
+import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
+import com.eleybourn.bookcatalogue.goodreads.GoodreadsCoversTask.CoverRequest;
 import com.eleybourn.bookcatalogue.goodreads.api.ListReviewsApiHandler.ListReviewsFieldNames;
 import com.eleybourn.bookcatalogue.goodreads.api.ListReviewsApiHandler;
 
@@ -74,6 +77,8 @@ public class ImportAllTask extends GenericTask {
 
 	/** Lookup table of bookshelves defined currently and their goodreads canonical names */
 	private transient Hashtable<String,String> mBookshelfLookup = null;
+	/** Index of the books in the database by goodreads book ID and ISBN; built when the import starts */
+	private transient GoodreadsMatchIndex mMatchIndex = null;
 
 	/** Number of books to retrieve in one batch; we are encouarged to make fewer API calls, so
 	 * setting this number high is good. 50 seems to take several seconds to retrieve, so it 
@@ -109,10 +114,14 @@ public class ImportAllTask extends GenericTask {
 	public boolean run(QueueManager qMgr, Context context) {
 		CatalogueDBAdapter db = new CatalogueDBAdapter(context);
 		db.open();
+		final long start = System.currentTimeMillis();
 
 		try {
 			// Load the goodreads reviews
 			boolean ok = processReviews(qMgr, db);
+			final long elapsed = System.currentTimeMillis() - start;
+			System.out.println("ImportAllTask: " + getCheckpointCount() + " checkpoints took " + getCheckpointTime()
+					+ "ms of " + elapsed + "ms");
 			// If it's a sync job, then start the 'send' part and save last syn date
 			if (mIsSync) {
 				GoodreadsManager.setLastSyncDate(mStartDate);
@@ -125,8 +134,53 @@ public class ImportAllTask extends GenericTask {
 		}
 	}
 
+	/**
+	 * Fetches one page of reviews in a background thread.
+	 *
+	 * Each fetcher must be given an API handler that is not otherwise in use, since the handler
+	 * reuses its result Bundle for each page.
+	 *
+	 * @author Philip Warner
+	 */
+	private static class PageFetcher extends Thread {
+		private final ListReviewsApiHandler mApi;
+		private final int mPage;
+		private Bundle mResult = null;
+		private Exception mException = null;
+
+		PageFetcher(ListReviewsApiHandler api, int page) {
+			super("ImportAllTask page " + page);
+			mApi = api;
+			mPage = page;
+		}
+
+		@Override
+		public void run() {
+			try {
+				mResult = mApi.run(mPage, BOOKS_PER_PAGE);
+			} catch (Exception e) {
+				mException = e;
+			}
+		}
+
+		/**
+		 * Wait for the page, and return it or throw the exception that stopped it.
+		 */
+		Bundle getResult() throws Exception {
+			join();
+			if (mException != null)
+				throw mException;
+			return mResult;
+		}
+	}
+
 	/**
 	 * Repeatedly request review pages until we are done.
+	 *
+	 * Reviews are requested most recently updated first. While a page is written, the next one
+	 * is fetched in the background; the Goodreads rate limit still applies since all requests go
+	 * through GoodreadsManager. The next page is not fetched if the current one is the last,
+	 * or, for a sync, if it reaches reviews from before the last sync.
 	 * 
 	 * @param qMgr
 	 * @param db
@@ -136,6 +190,14 @@ public class ImportAllTask extends GenericTask {
 	private boolean processReviews(QueueManager qMgr, CatalogueDBAdapter db) {
 		GoodreadsManager gr = new GoodreadsManager();
 		ListReviewsApiHandler api = new ListReviewsApiHandler(gr);
+		// Handler for the page being prefetched; swapped with api as each page is used.
+		ListReviewsApiHandler nextApi = null;
+		PageFetcher prefetch = null;
+
+		// Load the match index once, rather than querying for every review
+		final long indexStart = System.currentTimeMillis();
+		mMatchIndex = new GoodreadsMatchIndex(db);
+		System.out.println("Goodreads import: indexed " + mMatchIndex.size() + " books in " + (System.currentTimeMillis() - indexStart) + "ms");
 
 		int currPage = (mPosition / BOOKS_PER_PAGE);
 		while(true) {
@@ -147,21 +209,31 @@ public class ImportAllTask extends GenericTask {
 
 			Bundle books;
 
-			// Call the API, return false if failed.
+			// Call the API (or wait for the prefetch), return false if failed.
 			try {
-				// If we have not started successfully yet, record the date at which the run() was called.
-				// This date is used if the job is a sync job.
-				Date runDate = null;
-				if (mStartDate == null) {
-					runDate = new Date();
-				}
-				books = api.run(currPage, BOOKS_PER_PAGE);
-				// If we succeeded, and this is the first time, save the date
-				if (mStartDate == null) {
-					mStartDate = runDate;
+				if (prefetch != null) {
+					books = prefetch.getResult();
+					prefetch = null;
+					// The handler used for the previous page is now free for the next prefetch
+					ListReviewsApiHandler t = api;
+					api = nextApi;
+					nextApi = t;
+				} else {
+					// If we have not started successfully yet, record the date at which the run() was called.
+					// This date is used if the job is a sync job.
+					Date runDate = null;
+					if (mStartDate == null) {
+						runDate = new Date();
+					}
+					books = api.run(currPage, BOOKS_PER_PAGE);
+					// If we succeeded, and this is the first time, save the date
+					if (mStartDate == null) {
+						mStartDate = runDate;
+					}
 				}
 			} catch (Exception e) {
 				this.setException(e);
+				checkpoint(qMgr, true);
 				return false;
 			}
 			
@@ -169,7 +241,7 @@ public class ImportAllTask extends GenericTask {
 			mTotalBooks = (int)books.getLong(ListReviewsFieldNames.TOTAL);
 			if (mFirstCall) {
 				// So the details get updated
-				qMgr.saveTask(this);
+				checkpoint(qMgr, true);
 				mFirstCall = false;
 			}
 
@@ -179,30 +251,63 @@ public class ImportAllTask extends GenericTask {
 			if (reviews.size() == 0)
 				break;
 
-			for(Bundle review: reviews) {
-				// Always check for an abort request
-				if (this.isAborting())
-					return false;
+			// Start fetching the next page while this one is written
+			if (needNextPage(books, reviews)) {
+				if (nextApi == null)
+					nextApi = new ListReviewsApiHandler(new GoodreadsManager());
+				prefetch = new PageFetcher(nextApi, currPage + 1);
+				prefetch.start();
+			}
 
-				if (mUpdatesAfter != null && review.containsKey(ListReviewsFieldNames.UPDATED)) {
-					if (mUpdatesAfter.compareTo(review.getString(ListReviewsFieldNames.UPDATED)) > 0)
-						return true;
+			// Every review gives the book ID for its ISBNs; save them so exports do not look them up
+			cacheGoodreadsIds(reviews);
+
+			// Write the page in one transaction. Covers are not downloaded here; the URLs for new
+			// books are collected and passed to a GoodreadsCoversTask once the page is written.
+			ArrayList<CoverRequest> covers = new ArrayList<CoverRequest>();
+			boolean aborted = false;
+			boolean reachedLastSync = false;
+			int processed = 0;
+			SyncLock tx = db.startTransaction(true);
+			try {
+				for(Bundle review: reviews) {
+					// Always check for an abort request
+					if (this.isAborting()) {
+						aborted = true;
+						break;
+					}
+
+					if (mUpdatesAfter != null && review.containsKey(ListReviewsFieldNames.UPDATED)) {
+						if (mUpdatesAfter.compareTo(review.getString(ListReviewsFieldNames.UPDATED)) > 0) {
+							reachedLastSync = true;
+							break;
+						}
+					}
+
+					processReview(db, review, covers);
+					mPosition++;
+					processed++;
 				}
-					
-				// Processing may involve a SLOW thumbnail download...don't run in TX!
-				processReview(db, review);
-				//SyncLock tx = db.startTransaction(true);
-				//try {
-				//	processReview(db, review);
-				//	db.setTransactionSuccessful();
-				//} finally {
-				//	db.endTransaction(tx);
-				//}
-
-				// Update after each book. Mainly for a nice UI.
-				qMgr.saveTask(this);
-				mPosition++;
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction(tx);
 			}
+			GoodreadsCoversTask.enqueue(covers);
+
+			if (aborted) {
+				checkpoint(qMgr, true);
+				return false;
+			}
+			if (reachedLastSync)
+				return true;
+
+			// Save every few books, mainly for a nice UI. A restart begins at the start of the
+			// page containing mPosition, and reprocessing a review is harmless.
+			checkpoint(qMgr, processed, false);
+
+			// No prefetch means this was the last page needed
+			if (prefetch == null)
+				break;
 		}
 		try {
 			db.analyzeDb();
@@ -213,48 +318,85 @@ public class ImportAllTask extends GenericTask {
 		return true;
 	}
 
+	/**
+	 * Decide if the page after the passed one is needed.
+	 *
+	 * @param books		Page from ListReviewsApiHandler
+	 * @param reviews	Reviews from the page
+	 *
+	 * @return	false if this page is the last one, or, for a sync, if it ends with a review
+	 * 			updated before the last sync (so processing will stop in this page)
+	 */
+	private boolean needNextPage(Bundle books, ArrayList<Bundle> reviews) {
+		if (books.containsKey(ListReviewsFieldNames.END)
+				&& books.getLong(ListReviewsFieldNames.END) >= books.getLong(ListReviewsFieldNames.TOTAL))
+			return false;
+
+		if (mUpdatesAfter != null) {
+			Bundle last = reviews.get(reviews.size() - 1);
+			if (last.containsKey(ListReviewsFieldNames.UPDATED)
+					&& mUpdatesAfter.compareTo(last.getString(ListReviewsFieldNames.UPDATED)) > 0)
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Process one review (book).
 	 * 
 	 * @param db
 	 * @param review
+	 * @param covers	Covers to fetch for any new book are added to this list
 	 */
-	private void processReview(CatalogueDBAdapter db, Bundle review) {
+	private void processReview(CatalogueDBAdapter db, Bundle review, ArrayList<CoverRequest> covers) {
 		long grId = review.getLong(ListReviewsFieldNames.GR_BOOK_ID);
 
 		// Find the books in our database - NOTE: may be more than one!
-		// First look by goodreads book ID
-		BooksCursor c = db.fetchBooksByGoodreadsBookId(grId);
-		try {
-			boolean found = c.moveToFirst();
-			if (!found) {
-				// Not found by GR id, look via ISBNs
-				c.close();
-				c = null;
+		// Books with the goodreads book ID are used if there are any, otherwise books with the ISBNs.
+		long[] ids = mMatchIndex.find(grId, extractIsbns(review));
+		if (ids.length == 0) {
+			// Create the book
+			createBook(db, review, covers);
+			return;
+		}
 
-				ArrayList<String> isbns = extractIsbns(review);
-				if (isbns != null && isbns.size() > 0) {
-					c = db.fetchBooksByIsbns(isbns);
-					found = c.moveToFirst();
-				}
+		// Update ALL related books; only those that may have changed are loaded
+		final String updated = review.containsKey(UPDATED) ? review.getString(UPDATED) : null;
+		for(long id : ids) {
+			// Check for abort
+			if (this.isAborting())
+				break;
+			if (!mMatchIndex.needsUpdate(id, updated))
+				continue;
+			BooksCursor c = db.fetchBookById(id);
+			try {
+				if (c.moveToFirst())
+					updateBook(db, c.getRowView(), review);
+			} finally {
+				c.close();
 			}
+		}
+	}
 
-			if (found) {
-				// If found, update ALL related books
-				BooksRowView rv = c.getRowView();
-				do {
-					// Check for abort
-					if (this.isAborting())
-						break;
-					updateBook(db, rv, review);
-				} while (c.moveToNext());
-			} else {
-				// Create the book
-				createBook(db, review);
-			}
-		} finally {
-			if (c != null)
-				c.close();
+	/**
+	 * Save the ISBN to Goodreads book ID mappings from a page of reviews in the ID cache.
+	 *
+	 * @param reviews	Reviews from ListReviewsApiHandler
+	 */
+	private void cacheGoodreadsIds(ArrayList<Bundle> reviews) {
+		HashMap<String, Long> ids = new HashMap<String, Long>();
+		for(Bundle review: reviews) {
+			final long grId = review.getLong(ListReviewsFieldNames.GR_BOOK_ID);
+			if (grId == 0)
+				continue;
+			for(String isbn: extractIsbns(review))
+				ids.put(isbn, grId);
+		}
+		try {
+			GoodreadsIdCacheDbHelper.getInstance().putFound(ids);
+		} catch (Exception e) {
+			// Not critical; the IDs will be looked up if needed
+			Logger.logError(e);
 		}
 	}
 
@@ -333,6 +475,10 @@ public class ImportAllTask extends GenericTask {
 		// data for the given book, not just replace it.
 		Bundle book = buildBundle(db, rv, review);
 		db.updateBook(rv.getId(), book, false);			
+		mMatchIndex.put(rv.getId(),
+				book.containsKey(DOM_GOODREADS_BOOK_ID.name) ? book.getLong(DOM_GOODREADS_BOOK_ID.name) : rv.getGoodreadsBookId(),
+				book.containsKey(CatalogueDBAdapter.KEY_ISBN) ? book.getString(CatalogueDBAdapter.KEY_ISBN) : rv.getIsbn(),
+				book.getString(DOM_LAST_GOODREADS_SYNC_DATE.name));
 		//db.setGoodreadsSyncDate(rv.getId());
 	}
 
@@ -341,19 +487,37 @@ public class ImportAllTask extends GenericTask {
 	 * 
 	 * @param db
 	 * @param review
+	 * @param covers	If the review has a cover, a request to fetch it is added to this list
 	 */
-	private void createBook(CatalogueDBAdapter db, Bundle review) {
+	private void createBook(CatalogueDBAdapter db, Bundle review, ArrayList<CoverRequest> covers) {
 		Bundle book = buildBundle(db, null, review);
 		long id = db.createBook(book);
-		if (book.getBoolean(CatalogueDBAdapter.KEY_THUMBNAIL)) {
-			String uuid = db.getBookUuid(id);
-			File thumb = CatalogueDBAdapter.getTempThumbnail();
-			File real = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
-			thumb.renameTo(real);			
+		if (id > 0) {
+			mMatchIndex.put(id, book.getLong(DOM_GOODREADS_BOOK_ID.name), book.getString(CatalogueDBAdapter.KEY_ISBN),
+					book.getString(DOM_LAST_GOODREADS_SYNC_DATE.name));
+		}
+		String url = getCoverUrl(review);
+		if (id > 0 && url != null) {
+			covers.add(new CoverRequest(id, db.getBookUuid(id), url));
 		}
 		//db.setGoodreadsSyncDate(id);
 	}
 
+	/**
+	 * Get the URL of the best cover for a review.
+	 *
+	 * @return	URL, or null if Goodreads has no cover
+	 */
+	private String getCoverUrl(Bundle review) {
+		if (review.containsKey(ListReviewsFieldNames.LARGE_IMAGE) && !review.getString(ListReviewsFieldNames.LARGE_IMAGE).toLowerCase().contains("nocover")) {
+			return review.getString(ListReviewsFieldNames.LARGE_IMAGE);
+		} else if (review.containsKey(ListReviewsFieldNames.SMALL_IMAGE) && !review.getString(ListReviewsFieldNames.SMALL_IMAGE).toLowerCase().contains("nocover")) {
+			return review.getString(ListReviewsFieldNames.SMALL_IMAGE);
+		} else {
+			return null;
+		}
+	}
+
 	/**
 	 * Build a book bundle based on the goodreads 'review' data. Some data is just copied
 	 * while other data is processed (eg. dates) and other are combined (authors & series).
@@ -421,23 +585,8 @@ public class ImportAllTask extends GenericTask {
         book.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, authors);
 
         if (rv == null) {
-        	// Use the GR added date for new books
+        	// Use the GR added date for new books. The cover is fetched later by GoodreadsCoversTask.
         	addStringIfNonBlank(review, ListReviewsFieldNames.ADDED, book, DOM_ADDED_DATE.name);
-        	// Also fetch thumbnail if add
-        	String thumbnail;
-        	if (review.containsKey(ListReviewsFieldNames.LARGE_IMAGE) && !review.getString(ListReviewsFieldNames.LARGE_IMAGE).toLowerCase().contains("nocover")) {
-        		thumbnail = review.getString(ListReviewsFieldNames.LARGE_IMAGE);
-        	} else if (review.containsKey(ListReviewsFieldNames.SMALL_IMAGE) && !review.getString(ListReviewsFieldNames.SMALL_IMAGE).toLowerCase().contains("nocover")) {
-        		thumbnail = review.getString(ListReviewsFieldNames.SMALL_IMAGE);        		
-        	} else {
-        		thumbnail = null;
-        	}
-        	if (thumbnail != null) {
-    			String filename = Utils.saveThumbnailFromUrl(thumbnail, "_GR");
-    			if (filename.length() > 0)
-    				Utils.appendOrAdd(book, "__thumbnail", filename);
-    			Utils.cleanupThumbnails(book);        		
-        	}
         }
 
         /**
@@ -20,6 +20,9 @@
 
 package com.eleybourn.bookcatalogue.goodreads;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 import com.eleybourn.bookcatalogue.BcQueueManager;
 import com.eleybourn.bookcatalogue.BookCatalogueApp;
 import com.eleybourn.bookcatalogue.BooksCursor;
@@ -29,21 +32,42 @@ import com.eleybourn.bookcatalogue.Logger;
 import com.eleybourn.bookcatalogue.R;
 import com.eleybourn.bookcatalogue.Utils;
 import com.eleybourn.bookcatalogue.BookEvents.*;
+import com.eleybourn.bookcatalogue.database.GoodreadsIdCacheDbHelper;
+import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager.ExportDisposition;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager.Exceptions.*;
+import com.eleybourn.bookcatalogue.goodreads.api.ListReviewsApiHandler;
+import com.eleybourn.bookcatalogue.goodreads.api.ListReviewsApiHandler.ListReviewsFieldNames;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Bundle;
 import net.philipwarner.taskqueue.QueueManager;
 
 /**
  * Background task class to send all books in the database to goodreads.
  * 
+ * Books can be sent one at a time through the API, which takes several requests per book, or,
+ * for full exports, in CSV uploads to the goodreads import page (see GoodreadsCsv). Since the
+ * import page does not return goodreads book IDs, CSV exports finish with one pass through the
+ * user's review list to find the IDs and mark the books as synced. Goodreads may still be
+ * processing the uploads, so the pass is repeated later if some books are missing, up to
+ * MAX_RECONCILE_PASSES times.
+ * 
  * @author Philip Warner
  */
 public class SendAllBooksTask extends GenericTask {
 	private static final long serialVersionUID = -1933000305276643875L;
 
+	/** Number of books in each CSV upload */
+	private static final int CSV_BOOKS_PER_UPLOAD = 500;
+	/** Number of reviews in each page of the review list when reconciling CSV uploads */
+	private static final int RECONCILE_PAGE_SIZE = 200;
+	/** Number of passes through the review list before unmatched books are reported as not found */
+	private static final int MAX_RECONCILE_PASSES = 3;
+	/** Time, in seconds, to give goodreads to process the uploads before another pass */
+	private static final int RECONCILE_RETRY_DELAY = 300;
+
 	/** Last book ID processed */
 	private long mLastId = 0;
 	/** Flag indicating if it should only send UPDATED books to goodreads; false == all books */
@@ -59,13 +83,31 @@ public class SendAllBooksTask extends GenericTask {
 	private int mCount = 0;
 	/** Total count of books that are in cursor */
 	private int mTotalBooks = 0;
+	/** Flag indicating books should be sent as CSV uploads rather than one at a time */
+	private final boolean mUseCsv;
+	/** Flag indicating all the CSV uploads have been sent */
+	private boolean mCsvSent = false;
+	/** Number of passes through the review list done to reconcile the CSV uploads */
+	private int mReconcilePasses = 0;
 
 	/**
-	 * Constructor
+	 * Constructor. Books are sent one at a time.
 	 */
 	public SendAllBooksTask(boolean updatesOnly) {
+		this(updatesOnly, false);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param updatesOnly	Only send books changed since they were last sent
+	 * @param useCsv		Send the books as CSV uploads. The import page has not been checked
+	 * 						against goodreads itself, so this is never the default.
+	 */
+	public SendAllBooksTask(boolean updatesOnly, boolean useCsv) {
 		super(BookCatalogueApp.getResourceString(R.string.send_books_to_goodreads));
 		mUpdatesOnly = updatesOnly;
+		mUseCsv = useCsv;
 	}
 
 	/**
@@ -92,8 +134,6 @@ public class SendAllBooksTask extends GenericTask {
 	 * @throws NotAuthorizedException
 	 */
 	public boolean sendAllBooks(QueueManager qmanager, Context context) throws NotAuthorizedException {
-		int lastSave = mCount;
-		boolean needsRetryReset = true;
 
 		// ENHANCE: Work out a way of checking if GR site is up
 		//if (!Utils.hostIsAvailable(context, "www.goodreads.com"))
@@ -118,8 +158,38 @@ public class SendAllBooksTask extends GenericTask {
 		}
 
 		dbHelper.open();
+		try {
+			final boolean ok;
+			if (mUseCsv)
+				ok = sendBooksAsCsv(qmanager, grManager, dbHelper);
+			else
+				ok = sendBooksOneByOne(qmanager, grManager, dbHelper);
+			if (!ok)
+				return false;
+		} finally {
+			try {
+				dbHelper.close();				
+			} catch(Exception e)
+			{}
+		}
+
+		// Notify the user: '15 books processed: 3 sent successfully, 5 with no ISBN and 7 with ISBN but not found in goodreads'
+		String s = context.getString(R.string.send_all_to_goodreads_result, mCount, mSent, mNoIsbn, mNotFound);
+		BookCatalogueApp.showNotification(R.id.NOTIFICATION, 
+							context.getString(R.string.send_books_to_goodreads), s, 
+							BookCatalogueApp.getAppToForegroundIntent(context));
+
+		return true;
+	}
+
+	/**
+	 * Send the books one at a time through the API.
+	 * 
+	 * @return	true if all books were processed
+	 */
+	private boolean sendBooksOneByOne(QueueManager qmanager, GoodreadsManager grManager, CatalogueDBAdapter dbHelper) {
+		boolean needsRetryReset = true;
 		BooksCursor books = null;
-		Cursor shelves = null;
 
 		try {
 			books = dbHelper.getAllBooksForGoodreadsCursor(mLastId, mUpdatesOnly);
@@ -142,7 +212,7 @@ public class SendAllBooksTask extends GenericTask {
 				switch(disposition) {
 				case error:
 					this.setException(exportException);
-					qmanager.saveTask(this);
+					checkpoint(qmanager, true);
 					return false;
 				case sent:
 					// Record the change
@@ -161,7 +231,7 @@ public class SendAllBooksTask extends GenericTask {
 					// Only wait 5 mins on network errors.
 					if (getRetryDelay() > 300)
 						setRetryDelay(300);						
-					qmanager.saveTask(this);
+					checkpoint(qmanager, true);
 					return false;
 				}
 
@@ -174,17 +244,13 @@ public class SendAllBooksTask extends GenericTask {
 					resetRetryCounter();
 				}
 
-				// Save every few rows in case phone dies (and to allow task queries to see data)
-				// Actually, save every row because it updates the UI, and sending a row takes a while.
-				//if (mCount - lastSave >= 5) {
-					qmanager.saveTask(this);
-					lastSave = mCount;
-				//}
-
+				// Save every few rows in case phone dies (and to allow task queries to see data).
+				// A restart resends the books after mLastId, and resending a book is harmless.
 				if (this.isAborting()) {
-					qmanager.saveTask(this);
+					checkpoint(qmanager, true);
 					return false;
 				}
+				checkpoint(qmanager, false);
 			}
 
 		} finally {
@@ -196,29 +262,220 @@ public class SendAllBooksTask extends GenericTask {
 					// Ignore failures, but log them
 					Logger.logError(e, "Failed to close GoodReads books cursor");
 				}
-			if (shelves != null)
+		}
+		return true;
+	}
+
+	/**
+	 * Send the books as CSV uploads, then reconcile them with the review list.
+	 * 
+	 * @return	true if finished
+	 */
+	private boolean sendBooksAsCsv(QueueManager qmanager, GoodreadsManager grManager, CatalogueDBAdapter dbHelper) {
+		if (!mCsvSent) {
+			if (!uploadCsv(qmanager, grManager, dbHelper))
+				return false;
+			mCsvSent = true;
+			checkpoint(qmanager, true);
+		}
+		return reconcileCsv(qmanager, grManager, dbHelper);
+	}
+
+	/**
+	 * Send the books after mLastId in CSV uploads of up to CSV_BOOKS_PER_UPLOAD books. The task
+	 * is saved after each upload, so a restart resumes with the next one.
+	 * 
+	 * @return	true if all books were sent
+	 */
+	private boolean uploadCsv(QueueManager qmanager, GoodreadsManager grManager, CatalogueDBAdapter dbHelper) {
+		boolean needsRetryReset = true;
+		final GoodreadsCsv csv = new GoodreadsCsv(dbHelper, grManager);
+		final ArrayList<Long> noIsbn = new ArrayList<Long>();
+		BooksCursor books = dbHelper.getAllBooksForGoodreadsCsvCursor(mLastId);
+		try {
+			final BooksRowView book = books.getRowView();
+			mTotalBooks = books.getCount() + mCount;
+
+			boolean more = books.moveToNext();
+			while (more) {
+				long lastId = mLastId;
+				int rows = 0;
+				noIsbn.clear();
 				try {
-					shelves.close();
-				} catch (Exception e)
-				{
-					// Ignore failures, but log them
-					Logger.logError(e, "Failed to close GoodReads book bookshelves cursor");
+					csv.start();
+					while (more && csv.getRowCount() < CSV_BOOKS_PER_UPLOAD) {
+						final String isbn = book.getIsbn();
+						if (isbn == null || isbn.trim().equals(""))
+							noIsbn.add(book.getId());
+						else
+							csv.add(book);
+						lastId = book.getId();
+						more = books.moveToNext();
+					}
+					rows = csv.getRowCount();
+					if (rows > 0) {
+						final String response = csv.send();
+						if (!GoodreadsCsv.isAccepted(response)) {
+							// Do not go on to report every book as not found.
+							this.setException(new RuntimeException("Goodreads did not accept the CSV upload"));
+							System.out.println("Goodreads CSV upload rejected: " + (response.length() > 200 ? response.substring(0, 200) : response));
+							checkpoint(qmanager, true);
+							return false;
+						}
+					}
+				} catch (NetworkException e) {
+					// Only wait 5 mins on network errors.
+					if (getRetryDelay() > 300)
+						setRetryDelay(300);						
+					checkpoint(qmanager, true);
+					return false;
+				} catch (Exception e) {
+					this.setException(e);
+					checkpoint(qmanager, true);
+					return false;
+				} finally {
+					csv.close();
+				}
+
+				for(long id: noIsbn)
+					storeEvent( new GrNoIsbnEvent(id) );
+				mNoIsbn += noIsbn.size();
+				mCount += rows + noIsbn.size();
+				mLastId = lastId;
+				if (needsRetryReset) {
+					needsRetryReset = false;
+					resetRetryCounter();
 				}
+				checkpoint(qmanager, true);
+				if (this.isAborting())
+					return false;
+			}
+		} finally {
+			books.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Read the whole review list to find the goodreads book IDs of the books sent as CSV, then
+	 * save the IDs and mark the books as synced. If some books are missing and there are passes
+	 * left, the task is retried after RECONCILE_RETRY_DELAY.
+	 * 
+	 * @return	true if finished
+	 */
+	private boolean reconcileCsv(QueueManager qmanager, GoodreadsManager grManager, CatalogueDBAdapter dbHelper) {
+		final long start = System.currentTimeMillis();
+		final GoodreadsMatchIndex index = new GoodreadsMatchIndex(dbHelper);
+		final ListReviewsApiHandler api = new ListReviewsApiHandler(grManager);
+		// Goodreads book ID for each local book found in the review list
+		final HashMap<Long, Long> found = new HashMap<Long, Long>();
+
+		int page = 0;
+		while (true) {
+			page++;
+			Bundle result;
 			try {
-				dbHelper.close();				
-			} catch(Exception e)
-			{}
+				result = api.run(page, RECONCILE_PAGE_SIZE);
+			} catch (NetworkException e) {
+				// Only wait 5 mins on network errors.
+				if (getRetryDelay() > 300)
+					setRetryDelay(300);						
+				checkpoint(qmanager, true);
+				return false;
+			} catch (Exception e) {
+				this.setException(e);
+				checkpoint(qmanager, true);
+				return false;
+			}
+
+			ArrayList<Bundle> reviews = result.getParcelableArrayList(ListReviewsFieldNames.REVIEWS);
+			if (reviews == null || reviews.size() == 0)
+				break;
+
+			HashMap<String, Long> ids = new HashMap<String, Long>();
+			for(Bundle review: reviews) {
+				final long grId = review.getLong(ListReviewsFieldNames.GR_BOOK_ID);
+				if (grId == 0)
+					continue;
+				ArrayList<String> isbns = new ArrayList<String>();
+				addIsbn(isbns, review.getString(ListReviewsFieldNames.ISBN13));
+				addIsbn(isbns, review.getString(CatalogueDBAdapter.KEY_ISBN));
+				// Match by ISBN only; that is what goodreads matched the uploads by
+				for(long id: index.find(0, isbns))
+					found.put(id, grId);
+				for(String isbn: isbns)
+					ids.put(isbn, grId);
+			}
+			try {
+				GoodreadsIdCacheDbHelper.getInstance().putFound(ids);
+			} catch (Exception e) {
+				// Not critical; the IDs will be looked up if needed
+				Logger.logError(e);
+			}
+
+			if (this.isAborting()) {
+				checkpoint(qmanager, true);
+				return false;
+			}
+			if (result.containsKey(ListReviewsFieldNames.END)
+					&& result.getLong(ListReviewsFieldNames.END) >= result.getLong(ListReviewsFieldNames.TOTAL))
+				break;
 		}
 
-		// Notify the user: '15 books processed: 3 sent successfully, 5 with no ISBN and 7 with ISBN but not found in goodreads'
-		String s = context.getString(R.string.send_all_to_goodreads_result, mCount, mSent, mNoIsbn, mNotFound);
-		BookCatalogueApp.showNotification(R.id.NOTIFICATION, 
-							context.getString(R.string.send_books_to_goodreads), s, 
-							BookCatalogueApp.getAppToForegroundIntent(context));
+		// Save the IDs of the books that were sent, and list those that goodreads has not got
+		int sent = 0;
+		ArrayList<Long> missing = new ArrayList<Long>();
+		SyncLock tx = dbHelper.startTransaction(true);
+		try {
+			Cursor c = dbHelper.getAllBooksForGoodreadsMatchCursor();
+			try {
+				while (c.moveToNext()) {
+					final long id = c.getLong(0);
+					final String isbn = c.getString(1);
+					// Skip books with no ISBN, and books added since the uploads
+					if (id > mLastId || isbn == null || isbn.trim().equals(""))
+						continue;
+					final Long grId = found.get(id);
+					if (grId == null) {
+						missing.add(id);
+					} else {
+						if (c.isNull(2) || c.getLong(2) != grId)
+							dbHelper.setGoodreadsBookId(id, grId);
+						dbHelper.setGoodreadsSyncDate(id);
+						sent++;
+					}
+				}
+			} finally {
+				c.close();
+			}
+			dbHelper.setTransactionSuccessful();
+		} finally {
+			dbHelper.endTransaction(tx);
+		}
 
+		mReconcilePasses++;
+		System.out.println("SendAllBooksTask: reconcile pass " + mReconcilePasses + " read " + page + " pages in " 
+				+ (System.currentTimeMillis() - start) + "ms; " + sent + " books found, " + missing.size() + " missing");
+
+		if (missing.size() > 0 && mReconcilePasses < MAX_RECONCILE_PASSES) {
+			// Goodreads may not have processed the uploads yet
+			setRetryDelay(RECONCILE_RETRY_DELAY);
+			checkpoint(qmanager, true);
+			return false;
+		}
+
+		for(long id: missing)
+			storeEvent( new GrNoMatchEvent(id) );
+		mSent = sent;
+		mNotFound = missing.size();
 		return true;
 	}
 
+	private static void addIsbn(ArrayList<String> isbns, String isbn) {
+		if (isbn != null && !isbn.trim().equals(""))
+			isbns.add(isbn.trim());
+	}
+
 	/**
 	 * Make a more informative description
 	 */
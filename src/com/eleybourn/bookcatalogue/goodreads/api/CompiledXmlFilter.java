@@ -0,0 +1,129 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.goodreads.api;
+
+import java.util.ArrayList;
+
+/**
+ * Compiled form of an XmlFilter tree, used by XmlResponseParser.
+ *
+ * Each filter in the tree becomes a numbered state; state 0 is the root. For each state the
+ * tag names of the sub-filters are stored, lower case and interned, in an array alongside the
+ * state they lead to. Moving to the next state for a tag is a scan of that (short) array with
+ * no allocation; since most SAX parsers intern element names, the identity check usually
+ * succeeds before the case-insensitive compare is needed.
+ *
+ * The compiled form is a snapshot; XmlFilter.getCompiled() rebuilds it if the tree changes.
+ *
+ * @author Philip Warner
+ */
+public class CompiledXmlFilter {
+	/** Returned by getNextState() when the tag is not of interest */
+	public static final int NO_STATE = -1;
+
+	/** Filter for each state */
+	private final XmlFilter[] mFilters;
+	/** Sub-filter tag names for each state */
+	private final String[][] mNames;
+	/** State for each sub-filter tag name */
+	private final int[][] mNext;
+	/** Deepest path in the tree; used to size the parser stacks */
+	private final int mMaxDepth;
+
+	/**
+	 * Constructor
+	 *
+	 * @param root	Root of filter tree
+	 */
+	public CompiledXmlFilter(XmlFilter root) {
+		// Number the filters breadth-first
+		ArrayList<XmlFilter> filters = new ArrayList<XmlFilter>();
+		ArrayList<Integer> depths = new ArrayList<Integer>();
+		filters.add(root);
+		depths.add(0);
+		int maxDepth = 0;
+		for(int i = 0; i < filters.size(); i++) {
+			final int depth = depths.get(i);
+			for(XmlFilter f : filters.get(i).mSubFilters) {
+				filters.add(f);
+				depths.add(depth + 1);
+				if (depth + 1 > maxDepth)
+					maxDepth = depth + 1;
+			}
+		}
+		mMaxDepth = maxDepth;
+
+		final int count = filters.size();
+		mFilters = filters.toArray(new XmlFilter[count]);
+		mNames = new String[count][];
+		mNext = new int[count][];
+
+		// Sub-filters were added in order, so each state's children are consecutive
+		int next = 1;
+		for(int i = 0; i < count; i++) {
+			final ArrayList<XmlFilter> subs = mFilters[i].mSubFilters;
+			mNames[i] = new String[subs.size()];
+			mNext[i] = new int[subs.size()];
+			for(int j = 0; j < subs.size(); j++) {
+				mNames[i][j] = subs.get(j).getTagName().toLowerCase().intern();
+				mNext[i][j] = next++;
+			}
+		}
+	}
+
+	/**
+	 * Get the state reached from the passed state by the passed tag.
+	 *
+	 * @param state		Current state
+	 * @param tag		Tag name
+	 *
+	 * @return			New state, or NO_STATE if the tag is not of interest
+	 */
+	public int getNextState(int state, String tag) {
+		final String[] names = mNames[state];
+		// Fast path for interned names
+		for(int i = 0; i < names.length; i++) {
+			if (names[i] == tag)
+				return mNext[state][i];
+		}
+		final int len = tag.length();
+		for(int i = 0; i < names.length; i++) {
+			final String n = names[i];
+			if (n.length() == len && n.equalsIgnoreCase(tag))
+				return mNext[state][i];
+		}
+		return NO_STATE;
+	}
+
+	/**
+	 * Get the filter for a state.
+	 */
+	public XmlFilter getFilter(int state) {
+		return mFilters[state];
+	}
+
+	/**
+	 * Get the deepest path in the filter tree.
+	 */
+	public int getMaxDepth() {
+		return mMaxDepth;
+	}
+}
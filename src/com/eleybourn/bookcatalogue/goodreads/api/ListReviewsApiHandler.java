@@ -100,7 +100,7 @@ public class ListReviewsApiHandler extends ApiHandler {
 		public static final String DB_READ_END = CatalogueDBAdapter.KEY_READ_END;
 	}
 
-	private SimpleXmlFilter mFilters;
+	SimpleXmlFilter mFilters;
 
 	public ListReviewsApiHandler(GoodreadsManager manager) {
 		super(manager);
@@ -36,6 +36,7 @@ import com.eleybourn.bookcatalogue.Author;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
 import com.eleybourn.bookcatalogue.Series;
 import com.eleybourn.bookcatalogue.Utils;
+import com.eleybourn.bookcatalogue.database.GoodreadsIdCacheDbHelper;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager.Exceptions.NetworkException;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager.Exceptions.*;
@@ -55,6 +56,9 @@ public class ShowBookByIsbnApiHandler extends ShowBookApiHandler {
 
 	/**
 	 * Perform a search and handle the results.
+	 *
+	 * The ISBN is first looked up in GoodreadsIdCacheDbHelper: if the book ID is known, the
+	 * book is fetched by ID, and if Goodreads recently did not know the ISBN, no request is made.
 	 * 
 	 * @param query
 	 * @return	the array of GoodreadsWork objects.
@@ -68,12 +72,34 @@ public class ShowBookByIsbnApiHandler extends ShowBookApiHandler {
 	 * @throws NetworkException 
 	 */
 	public Bundle get(String isbn, boolean fetchThumbnail) throws ClientProtocolException, OAuthMessageSignerException, OAuthExpectationFailedException, OAuthCommunicationException, NotAuthorizedException, BookNotFoundException, IOException, NetworkException {
+		GoodreadsIdCacheDbHelper cache = GoodreadsIdCacheDbHelper.getInstance();
+		final long grId = cache.get(isbn);
+		if (grId == GoodreadsIdCacheDbHelper.NOT_FOUND)
+			throw new BookNotFoundException(null);
+		if (grId != GoodreadsIdCacheDbHelper.UNKNOWN) {
+			try {
+				return new ShowBookByIdApiHandler(mManager).get(grId, fetchThumbnail);
+			} catch (BookNotFoundException e) {
+				// The ID is no longer valid; forget it and look up the ISBN
+				cache.removeBookId(grId);
+			}
+		}
+
 		// Setup API call //
 		final String urlBase = "http://www.goodreads.com/book/isbn?format=xml&isbn=%1$s&key=%2$s"; //format=xml&
 		final String url = String.format(urlBase, isbn, mManager.getDeveloperKey());
 		HttpGet get = new HttpGet(url);
 
-		return sendRequest(get, fetchThumbnail);
+		Bundle book;
+		try {
+			book = sendRequest(get, fetchThumbnail);
+		} catch (BookNotFoundException e) {
+			cache.putNotFound(isbn);
+			throw e;
+		}
+		if (book.containsKey(ShowBookFieldNames.BOOK_ID))
+			cache.putFound(isbn, book.getLong(ShowBookFieldNames.BOOK_ID));
+		return book;
 	}
 
 }
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.xml.sax.Attributes;
 
@@ -53,6 +54,13 @@ public class XmlFilter {
 	/** Optional parameter put in context before action is called */
 	Object mEndArg = null;
 
+	/** Incremented whenever any filter tree changes, so compiled forms can be checked */
+	private static final AtomicInteger mTreeVersion = new AtomicInteger();
+	/** Compiled form of the tree rooted at this filter, if built */
+	private CompiledXmlFilter mCompiled = null;
+	/** Value of mTreeVersion when mCompiled was built */
+	private int mCompiledVersion = -1;
+
 	/** Interface definition for filter handlers */
 	public interface XmlHandler {
 		void process(ElementContext context);
@@ -207,6 +215,22 @@ public class XmlFilter {
 			throw new RuntimeException("Filter " + filter.getTagName() + " already exists");
 		mSubFilterHash.put(lcPat, filter);
 		mSubFilters.add(filter);
+		mTreeVersion.incrementAndGet();
+	}
+
+	/**
+	 * Get the compiled form of the tree rooted at this filter, building it if the tree
+	 * has changed since it was last built.
+	 * 
+	 * @return	Compiled filter tree
+	 */
+	public synchronized CompiledXmlFilter getCompiled() {
+		final int version = mTreeVersion.get();
+		if (mCompiled == null || mCompiledVersion != version) {
+			mCompiled = new CompiledXmlFilter(this);
+			mCompiledVersion = version;
+		}
+		return mCompiled;
 	}
 
 	/**
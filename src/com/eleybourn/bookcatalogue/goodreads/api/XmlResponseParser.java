@@ -20,8 +20,6 @@
 
 package com.eleybourn.bookcatalogue.goodreads.api;
 
-import java.util.ArrayList;
-
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -35,13 +33,36 @@ import com.eleybourn.bookcatalogue.goodreads.api.XmlFilter.ElementContext;
  * This class is used with the XmlFilter class to call user-defined code at specific points in
  * an XML file.
  * 
+ * The filter tree is run in its compiled form (see CompiledXmlFilter). Only tags that have a
+ * filter get an ElementContext, and those are reused for each depth, so subtrees that are of no
+ * interest (most of a Goodreads response) are skipped with a depth counter and their text is
+ * never stored. Text for the tags of interest is kept in one buffer, with each open tag
+ * remembering where its text starts.
+ * 
  * @author Philip Warner
  */
 public class XmlResponseParser extends DefaultHandler {
-	/** Temporary storage for inter-tag text */
-	StringBuilder m_builder = new StringBuilder();
-	/** Stack of parsed tags giving context to the XML parser */
-	ArrayList<ElementContext> m_parents = new ArrayList<ElementContext>();
+	/** Initial size of text buffer; enough for most descriptions */
+	private static final int INITIAL_TEXT_SIZE = 4096;
+
+	/** Compiled filter tree */
+	private final CompiledXmlFilter mFilter;
+
+	/** Text of the open tags of interest; each one's text starts at its entry in mTextStart */
+	private char[] mText = new char[INITIAL_TEXT_SIZE];
+	private int mTextLength = 0;
+
+	/** Number of open tags of interest; the root counts as one */
+	private int mDepth = 1;
+	/** State of each open tag of interest */
+	private int[] mStates;
+	/** Start of the text of each open tag of interest */
+	private int[] mTextStart;
+	/** Context for each open tag of interest; reused */
+	private ElementContext[] mContexts;
+
+	/** Depth within a subtree that is of no interest; 0 if not in one */
+	private int mIgnoreDepth = 0;
 
 	/**
 	 * Constructor. Requires a filter tree.
@@ -49,10 +70,25 @@ public class XmlResponseParser extends DefaultHandler {
 	 * @param rootFilter		Filter tree to use
 	 */
 	public XmlResponseParser(XmlFilter rootFilter) {
-		// Build the root context and add to hierarchy.
-		ElementContext ctx = new ElementContext(null, null, null, null, null);
-		ctx.filter = rootFilter;
-		m_parents.add(ctx);
+		mFilter = rootFilter.getCompiled();
+		// Filters can only match down to the depth of the tree, plus the root
+		final int size = mFilter.getMaxDepth() + 1;
+		mStates = new int[size];
+		mTextStart = new int[size];
+		mContexts = new ElementContext[size];
+		for(int i = 0; i < size; i++)
+			mContexts[i] = new ElementContext(null, null, null, null, null);
+		mContexts[0].filter = rootFilter;
+	}
+
+	/**
+	 * Reset the stacks, in case an earlier parse with this object was abandoned
+	 */
+	@Override
+	public void startDocument() throws SAXException {
+		mDepth = 1;
+		mIgnoreDepth = 0;
+		mTextLength = 0;
 	}
 
 	/**
@@ -60,8 +96,18 @@ public class XmlResponseParser extends DefaultHandler {
 	 */
 	@Override
 	public void characters(char[] ch, int start, int length) throws SAXException {
-		super.characters(ch, start, length);
-		m_builder.append(ch, start, length);
+		// Text in a subtree of no interest would be discarded at the end of the subtree anyway
+		if (mIgnoreDepth > 0)
+			return;
+
+		final int needed = mTextLength + length;
+		if (needed > mText.length) {
+			char[] text = new char[Math.max(needed, mText.length * 2)];
+			System.arraycopy(mText, 0, text, 0, mTextLength);
+			mText = text;
+		}
+		System.arraycopy(ch, start, mText, mTextLength, length);
+		mTextLength = needed;
 	}
 
 	/**
@@ -69,29 +115,34 @@ public class XmlResponseParser extends DefaultHandler {
 	 */
 	@Override
 	public void startElement(String uri, String localName, String name, Attributes attributes) throws SAXException {
-		super.startElement(uri, localName, name, attributes);
-
-		// Get the current context (ie. the enclosing tag)
-		ElementContext currElement = m_parents.get(m_parents.size()-1);
-		// Get the active filter for the outer context, if present
-		XmlFilter currFilter = currElement.filter;
-		// Create a new context for this new tag saving the current inter-tag text for later
-		ElementContext ctx = new ElementContext(uri, localName, name, attributes, m_builder.toString());
-
-		// If there is an active filter, then see if the new tag is of any interest
-		if (currFilter != null) {
-			// Check for interest in new tag
-			XmlFilter filter = currElement.filter.getSubFilter(ctx);
-			// If new tag has a filter, store it in the new context object
-			ctx.filter = filter;
-			// If we got a filter, tell it a tag is now starting.
-			if (filter != null) 
-				filter.processStart(ctx);
+		if (mIgnoreDepth > 0) {
+			mIgnoreDepth++;
+			return;
 		}
-		// Add the new tag to the context hierarchy and reset 
-		m_parents.add(ctx);
-		// Reset the inter-tag text storage.
-		m_builder.setLength(0);
+
+		// Check for interest in new tag
+		final int state = mFilter.getNextState(mStates[mDepth - 1], localName);
+		if (state == CompiledXmlFilter.NO_STATE) {
+			mIgnoreDepth = 1;
+			return;
+		}
+
+		// Add the new tag to the context hierarchy
+		final ElementContext ctx = mContexts[mDepth];
+		ctx.uri = uri;
+		ctx.localName = localName;
+		ctx.name = name;
+		ctx.attributes = attributes;
+		ctx.body = null;
+		ctx.userArg = null;
+		ctx.filter = mFilter.getFilter(state);
+		mStates[mDepth] = state;
+		// Text inside this tag goes after the text seen so far
+		mTextStart[mDepth] = mTextLength;
+		mDepth++;
+
+		// Tell the filter a tag is now starting.
+		ctx.filter.processStart(ctx);
 	}
 
 	/**
@@ -99,25 +150,30 @@ public class XmlResponseParser extends DefaultHandler {
 	 */
 	@Override
 	public void endElement(String uri, String localName, String name) throws SAXException {
-		super.endElement(uri, localName, name);
+		if (mIgnoreDepth > 0) {
+			mIgnoreDepth--;
+			return;
+		}
 
 		// Get out current context from the hierarchy and pop from stack
-		ElementContext thisElement = m_parents.remove(m_parents.size()-1);
+		mDepth--;
+		final ElementContext thisElement = mContexts[mDepth];
 		// Minor paranoia. Make sure name matches. Total waste of time, right?
 		if (!thisElement.localName.equals(localName)) {
 			throw new RuntimeException("End element '" + localName + "' does not match start element '" + thisElement.localName + "'");
 		}
-		
-		// Save the text that appeared inside this tag (but not inside inner tags)
-		thisElement.body = m_builder.toString();
 
-		// If there is an active filter in this context, then tell it the tag is finished.
-		if (thisElement.filter != null) {
-			thisElement.filter.processEnd(thisElement);				
+		// Save the text that appeared inside this tag (but not inside inner tags), if it will be used
+		final int textStart = mTextStart[mDepth];
+		final XmlFilter filter = thisElement.filter;
+		if (filter.mEndAction != null) {
+			thisElement.body = new String(mText, textStart, mTextLength - textStart);
+			filter.processEnd(thisElement);
 		}
 
-		// Reset the inter-tag text and and append the previously saved 'pre-text'.
-		m_builder.setLength(0);
-		m_builder.append(thisElement.preText);
+		// Drop the text of this tag, leaving the enclosing tag's text
+		mTextLength = textStart;
+		// Do not keep references to parser data
+		thisElement.attributes = null;
 	}		
 }
@@ -0,0 +1,176 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.goodreads.api;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.helpers.DefaultHandler;
+
+import android.os.Bundle;
+
+import com.eleybourn.bookcatalogue.Utils;
+import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager;
+import com.eleybourn.bookcatalogue.goodreads.GoodreadsWork;
+import com.eleybourn.bookcatalogue.goodreads.api.ListReviewsApiHandler.ListReviewsFieldNames;
+import com.eleybourn.bookcatalogue.test.ProviderFixtures;
+
+/**
+ * Checks that XmlResponseParser gives the same results as the original implementation (kept as
+ * LegacyXmlResponseParser) on ListReviews and SearchBooks payloads, and compares their speed,
+ * with and without reusing the SAX parser.
+ *
+ * The payloads are generated by ProviderFixtures from the sample responses in the handlers,
+ * and parsed with the filter trees built by the real handlers.
+ *
+ * @author Philip Warner
+ */
+public class XmlFilterBenchmark extends TestCase {
+	private static final int REVIEWS_PER_PAGE = 200;
+	private static final int SEARCH_RESULTS = 20;
+	private static final int ITERATIONS = 50;
+
+	/** Goodreads manager that does not need real credentials, since nothing is sent */
+	private static class OfflineManager extends GoodreadsManager {
+		@Override
+		public boolean hasValidCredentials() {
+			return true;
+		}
+	}
+
+	private byte[] mReviewPage;
+	private byte[] mSearchResults;
+
+	@Override
+	protected void setUp() throws Exception {
+		ProviderFixtures fixtures = new ProviderFixtures(REVIEWS_PER_PAGE);
+		mReviewPage = fixtures.getReviewPage(1, REVIEWS_PER_PAGE).getBytes("UTF-8");
+		mSearchResults = fixtures.getSearchResults(SEARCH_RESULTS).getBytes("UTF-8");
+	}
+
+	public void testListReviewsResultsMatch() throws Exception {
+		ListReviewsApiHandler api = new ListReviewsApiHandler(new OfflineManager());
+
+		parse(mReviewPage, new LegacyXmlResponseParser(api.mRootFilter), false);
+		final String legacy = toString(api.mFilters.getData());
+		parse(mReviewPage, new XmlResponseParser(api.mRootFilter), false);
+		final String compiled = toString(api.mFilters.getData());
+
+		assertEquals(REVIEWS_PER_PAGE, api.mFilters.getData().getParcelableArrayList(ListReviewsFieldNames.REVIEWS).size());
+		assertEquals(legacy, compiled);
+	}
+
+	public void testSearchBooksResultsMatch() throws Exception {
+		SearchBooksApiHandler api = new SearchBooksApiHandler(new OfflineManager());
+
+		api.m_works = new ArrayList<GoodreadsWork>();
+		parse(mSearchResults, new LegacyXmlResponseParser(api.mRootFilter), false);
+		final String legacy = toString(api.m_works);
+		api.m_works = new ArrayList<GoodreadsWork>();
+		parse(mSearchResults, new XmlResponseParser(api.mRootFilter), false);
+		final String compiled = toString(api.m_works);
+
+		assertEquals(SEARCH_RESULTS, api.m_works.size());
+		assertEquals(legacy, compiled);
+	}
+
+	public void testListReviewsSpeed() throws Exception {
+		final ListReviewsApiHandler api = new ListReviewsApiHandler(new OfflineManager());
+		time("ListReviews (" + REVIEWS_PER_PAGE + " reviews)", mReviewPage, api.mRootFilter, null);
+	}
+
+	public void testSearchBooksSpeed() throws Exception {
+		final SearchBooksApiHandler api = new SearchBooksApiHandler(new OfflineManager());
+		time("SearchBooks (" + SEARCH_RESULTS + " works)", mSearchResults, api.mRootFilter, api);
+	}
+
+	/**
+	 * Time each parser, with a new SAX parser for each document (as before) and with the
+	 * thread's parser.
+	 */
+	private void time(String name, byte[] doc, XmlFilter root, SearchBooksApiHandler search) throws Exception {
+		// Warm up both
+		for(int i = 0; i < 5; i++) {
+			parse(doc, new LegacyXmlResponseParser(root), false);
+			parse(doc, new XmlResponseParser(root), true);
+		}
+
+		final long[] times = new long[3];
+		final String[] labels = new String[] {"original", "compiled", "compiled, reused parser"};
+		for(int i = 0; i < ITERATIONS; i++) {
+			for(int j = 0; j < 3; j++) {
+				if (search != null)
+					search.m_works = new ArrayList<GoodreadsWork>();
+				final long start = System.nanoTime();
+				if (j == 0)
+					parse(doc, new LegacyXmlResponseParser(root), false);
+				else
+					parse(doc, new XmlResponseParser(root), j == 2);
+				times[j] += System.nanoTime() - start;
+			}
+		}
+		for(int j = 0; j < 3; j++)
+			System.out.println(name + ", " + labels[j] + ": " + (times[j] / ITERATIONS / 1000) + "us per document");
+	}
+
+	private static void parse(byte[] doc, DefaultHandler handler, boolean reuseParser) throws Exception {
+		SAXParser parser = reuseParser ? Utils.getSaxParser() : SAXParserFactory.newInstance().newSAXParser();
+		parser.parse(new ByteArrayInputStream(doc), handler);
+	}
+
+	private static String toString(ArrayList<GoodreadsWork> works) {
+		StringBuilder sb = new StringBuilder();
+		for(GoodreadsWork w : works) {
+			sb.append(w.workId).append('/').append(w.bookId).append('/').append(w.title).append('/')
+				.append(w.authorName).append('/').append(w.imageUrl).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Build a printable form of a bundle, including nested bundles, with keys in order.
+	 */
+	private static String toString(Bundle b) {
+		ArrayList<String> keys = new ArrayList<String>(b.keySet());
+		Collections.sort(keys);
+		StringBuilder sb = new StringBuilder("{");
+		for(String k : keys) {
+			sb.append(k).append('=');
+			Object o = b.get(k);
+			if (o instanceof ArrayList<?>) {
+				sb.append('[');
+				for(Object i : (ArrayList<?>)o)
+					sb.append(i instanceof Bundle ? toString((Bundle)i) : String.valueOf(i)).append(',');
+				sb.append(']');
+			} else {
+				sb.append(o);
+			}
+			sb.append(';');
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.test;
+
+import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import junit.framework.TestCase;
+
+import com.eleybourn.bookcatalogue.BlockingStack;
+
+/**
+ * Tests for the lock-free BlockingStack, including a multi-threaded stress test and a
+ * throughput comparison with the original lock-based version.
+ *
+ * @author Philip Warner
+ */
+public class BlockingStackTest extends TestCase {
+	private static final int PRODUCERS = 4;
+	private static final int CONSUMERS = 4;
+	private static final int ITEMS_PER_PRODUCER = 20000;
+
+	public void testLifoOrder() {
+		BlockingStack<Integer> s = new BlockingStack<Integer>();
+		for(int i = 0; i < 5; i++)
+			s.push(i);
+		assertEquals(5, s.size());
+		for(int i = 4; i >= 0; i--)
+			assertEquals(Integer.valueOf(i), s.poll());
+		assertNull(s.poll());
+		assertEquals(0, s.size());
+	}
+
+	public void testRemoveByEntry() {
+		BlockingStack<Integer> s = new BlockingStack<Integer>();
+		s.push(1);
+		BlockingStack.Entry<Integer> two = s.push(2);
+		BlockingStack.Entry<Integer> three = s.push(3);
+		assertTrue(two.remove());
+		assertFalse(two.remove());
+		assertEquals(2, s.size());
+		assertEquals(Integer.valueOf(3), s.poll());
+		// Already taken
+		assertFalse(three.remove());
+		assertEquals(Integer.valueOf(1), s.poll());
+		assertNull(s.poll());
+	}
+
+	public void testRemoveByValue() {
+		BlockingStack<Integer> s = new BlockingStack<Integer>();
+		s.push(1);
+		s.push(2);
+		s.push(3);
+		assertTrue(s.remove(3));
+		assertFalse(s.remove(3));
+		assertEquals(Integer.valueOf(2), s.poll());
+		assertEquals(1, s.size());
+	}
+
+	public void testGetElementsOrder() {
+		BlockingStack<Integer> s = new BlockingStack<Integer>();
+		s.push(1);
+		BlockingStack.Entry<Integer> two = s.push(2);
+		s.push(3);
+		two.remove();
+		Stack<Integer> copy = s.getElements();
+		assertEquals(2, copy.size());
+		// Bottom of stack first, as with java.util.Stack
+		assertEquals(Integer.valueOf(1), copy.get(0));
+		assertEquals(Integer.valueOf(3), copy.peek());
+	}
+
+	public void testPopTimeout() throws InterruptedException {
+		BlockingStack<Integer> s = new BlockingStack<Integer>();
+		final long start = System.currentTimeMillis();
+		assertNull(s.pop(100));
+		assertTrue(System.currentTimeMillis() - start >= 90);
+	}
+
+	public void testPopWakesOnPush() throws InterruptedException {
+		final BlockingStack<Integer> s = new BlockingStack<Integer>();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				s.push(42);
+			}};
+		t.start();
+		assertEquals(Integer.valueOf(42), s.pop(5000));
+		t.join();
+	}
+
+	/**
+	 * Producers push, consumers pop and a third party removes entries, all at once. Every
+	 * item must end up taken exactly once, by either a consumer or a remove.
+	 */
+	public void testConcurrentStress() throws InterruptedException {
+		final int total = PRODUCERS * ITEMS_PER_PRODUCER;
+		final BlockingStack<Integer> s = new BlockingStack<Integer>();
+		final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+		final ConcurrentLinkedQueue<BlockingStack.Entry<Integer>> entries = new ConcurrentLinkedQueue<BlockingStack.Entry<Integer>>();
+		final AtomicInteger accounted = new AtomicInteger();
+		final AtomicBoolean producersDone = new AtomicBoolean(false);
+		final CountDownLatch producersLatch = new CountDownLatch(PRODUCERS);
+		final CountDownLatch othersLatch = new CountDownLatch(CONSUMERS + 1);
+
+		for(int p = 0; p < PRODUCERS; p++) {
+			final int base = p * ITEMS_PER_PRODUCER;
+			new Thread() {
+				@Override
+				public void run() {
+					for(int i = 0; i < ITEMS_PER_PRODUCER; i++) {
+						BlockingStack.Entry<Integer> e = s.push(base + i);
+						if (i % 3 == 0)
+							entries.add(e);
+					}
+					producersLatch.countDown();
+				}}.start();
+		}
+
+		for(int c = 0; c < CONSUMERS; c++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							Integer o = s.pop(20);
+							if (o == null) {
+								if (producersDone.get() && s.size() == 0)
+									break;
+								continue;
+							}
+							seen.incrementAndGet(o);
+							accounted.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+					}
+					othersLatch.countDown();
+				}}.start();
+		}
+
+		new Thread() {
+			@Override
+			public void run() {
+				while (true) {
+					BlockingStack.Entry<Integer> e = entries.poll();
+					if (e == null) {
+						if (producersDone.get())
+							break;
+						Thread.yield();
+						continue;
+					}
+					if (e.remove()) {
+						seen.incrementAndGet(e.getItem());
+						accounted.incrementAndGet();
+					}
+				}
+				othersLatch.countDown();
+			}}.start();
+
+		producersLatch.await();
+		producersDone.set(true);
+		othersLatch.await();
+
+		assertEquals(total, accounted.get());
+		for(int i = 0; i < total; i++)
+			assertEquals("Item " + i, 1, seen.get(i));
+		assertEquals(0, s.size());
+		assertNull(s.poll());
+	}
+
+	/**
+	 * Compare throughput with the original lock-based stack. Results are printed rather than
+	 * asserted since timing on a device is too variable.
+	 */
+	public void testThroughputBenchmark() throws InterruptedException {
+		// Warm up both, then measure
+		for(int pass = 0; pass < 2; pass++) {
+			final long lockFree = runBenchmark(new LockFreeAdapter());
+			final long locking = runBenchmark(new LockingAdapter());
+			if (pass == 1) {
+				final int ops = PRODUCERS * ITEMS_PER_PRODUCER * 2;
+				System.out.println("BlockingStack benchmark (" + PRODUCERS + " producers, " + CONSUMERS + " consumers, " + ops + " ops): "
+						+ "lock-free " + lockFree + "ms (" + (ops / Math.max(1, lockFree)) + " ops/ms), "
+						+ "locking " + locking + "ms (" + (ops / Math.max(1, locking)) + " ops/ms)");
+			}
+		}
+	}
+
+	/**
+	 * Common interface so that both implementations can be benchmarked with the same code.
+	 */
+	private interface StackAdapter {
+		void push(Integer o) throws InterruptedException;
+		Integer pop(long wait) throws InterruptedException;
+	}
+
+	private static class LockFreeAdapter implements StackAdapter {
+		private final BlockingStack<Integer> mStack = new BlockingStack<Integer>();
+		public void push(Integer o) {
+			mStack.push(o);
+		}
+		public Integer pop(long wait) throws InterruptedException {
+			return mStack.pop(wait);
+		}
+	}
+
+	private static class LockingAdapter implements StackAdapter {
+		private final LockingBlockingStack<Integer> mStack = new LockingBlockingStack<Integer>();
+		public void push(Integer o) throws InterruptedException {
+			mStack.push(o);
+		}
+		public Integer pop(long wait) throws InterruptedException {
+			return mStack.pop(wait);
+		}
+	}
+
+	/**
+	 * Push and pop PRODUCERS * ITEMS_PER_PRODUCER items through the stack.
+	 *
+	 * @return	Elapsed time in milliseconds
+	 */
+	private long runBenchmark(final StackAdapter s) throws InterruptedException {
+		final int total = PRODUCERS * ITEMS_PER_PRODUCER;
+		final AtomicInteger consumed = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(PRODUCERS + CONSUMERS);
+		final Integer item = Integer.valueOf(1);
+
+		for(int p = 0; p < PRODUCERS; p++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int i = 0; i < ITEMS_PER_PRODUCER; i++)
+							s.push(item);
+					} catch (InterruptedException e) {
+					}
+					done.countDown();
+				}}.start();
+		}
+		for(int c = 0; c < CONSUMERS; c++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						while (consumed.get() < total) {
+							if (s.pop(10) != null)
+								consumed.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+					}
+					done.countDown();
+				}}.start();
+		}
+
+		final long t0 = System.currentTimeMillis();
+		start.countDown();
+		done.await();
+		return System.currentTimeMillis() - t0;
+	}
+}
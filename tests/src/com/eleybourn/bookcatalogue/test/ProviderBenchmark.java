@@ -0,0 +1,355 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.philipwarner.taskqueue.QueueManager;
+import android.content.Context;
+import android.os.Bundle;
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.eleybourn.bookcatalogue.AdministrationFunctions;
+import com.eleybourn.bookcatalogue.BcQueueManager;
+import com.eleybourn.bookcatalogue.BookCatalogueApp;
+import com.eleybourn.bookcatalogue.BookCatalogueApp.BookCataloguePreferences;
+import com.eleybourn.bookcatalogue.BooksCursor;
+import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
+import com.eleybourn.bookcatalogue.LibraryThingManager;
+import com.eleybourn.bookcatalogue.RateLimiter;
+import com.eleybourn.bookcatalogue.SearchManager;
+import com.eleybourn.bookcatalogue.StorageUtils;
+import com.eleybourn.bookcatalogue.TaskStatistics;
+import com.eleybourn.bookcatalogue.database.GoodreadsIdCacheDbHelper;
+import com.eleybourn.bookcatalogue.goodreads.GenericTask;
+import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager;
+import com.eleybourn.bookcatalogue.goodreads.ImportAllTask;
+import com.eleybourn.bookcatalogue.goodreads.SendAllBooksTask;
+
+/**
+ * Benchmarks for the search and Goodreads sync paths, run against StandInHttpServer so that
+ * the results depend on the code and the injected latency rather than on the network.
+ *
+ * Rate limits are lifted for the stand-in hosts so that the code, not the ToS throttling, is
+ * measured. Results are printed rather than asserted.
+ *
+ * The Goodreads benchmarks import, export and delete books, so they use a separate database
+ * that is deleted afterwards; the user's books are never touched. The ISBN to Goodreads ID
+ * mappings cached for the stand-in books are removed too.
+ *
+ * @author Philip Warner
+ */
+public class ProviderBenchmark extends ActivityInstrumentationTestCase2<AdministrationFunctions> {
+	private static final String PREF_GR_TOKEN = "GoodReads.AccessToken.Token";
+	private static final String PREF_GR_SECRET = "GoodReads.AccessToken.Secret";
+
+	/** Number of books on the stand-in Goodreads shelves */
+	private static final int LIBRARY_SIZE = 500;
+	/** Number of books used to compare CSV and API exports */
+	private static final int EXPORT_LIBRARY_SIZE = 5000;
+	/** Number of searches per benchmark */
+	private static final int SEARCHES = 20;
+	/** Page size used by ImportAllTask */
+	private static final int IMPORT_PAGE_SIZE = 50;
+	/** Simulated network latency */
+	private static final long LATENCY_MS = 150;
+	private static final long JITTER_MS = 250;
+	/** Longest time to wait for covers after an import */
+	private static final long COVER_TIMEOUT_MS = 300000;
+	/** Database used instead of the catalogue */
+	private static final String BENCHMARK_DATABASE = "book_catalogue_benchmark";
+
+	private StandInHttpServer mServer;
+	private String mOldToken;
+	private String mOldSecret;
+	private String mOldLtKey;
+
+	public ProviderBenchmark() {
+		super("com.eleybourn.bookcatalogue", AdministrationFunctions.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		// Never work on the user's books
+		getContext().deleteDatabase(BENCHMARK_DATABASE);
+		StorageUtils.setDatabaseName(BENCHMARK_DATABASE);
+		startServer(LIBRARY_SIZE);
+		for(String h : ProviderFixtures.HOSTS)
+			RateLimiter.setRate(h, 1000, 1000);
+
+		// Dummy credentials; the stand-in does not check them
+		BookCataloguePreferences prefs = BookCatalogueApp.getAppPreferences();
+		mOldToken = prefs.getString(PREF_GR_TOKEN, "");
+		mOldSecret = prefs.getString(PREF_GR_SECRET, "");
+		mOldLtKey = prefs.getString(LibraryThingManager.LT_DEVKEY_PREF_NAME, "");
+		prefs.setString(PREF_GR_TOKEN, "standin-token");
+		prefs.setString(PREF_GR_SECRET, "standin-secret");
+		prefs.setString(LibraryThingManager.LT_DEVKEY_PREF_NAME, "standin-key");
+		GoodreadsManager.forgetCredentials();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.stop();
+		RateLimiter.resetToDefaults();
+
+		// Delete the books first so their covers and cached thumbnails go too
+		deleteAllBooks();
+		StorageUtils.setDatabaseName(null);
+		getContext().deleteDatabase(BENCHMARK_DATABASE);
+		forgetGoodreadsIds(EXPORT_LIBRARY_SIZE);
+
+		BookCataloguePreferences prefs = BookCatalogueApp.getAppPreferences();
+		prefs.setString(PREF_GR_TOKEN, mOldToken);
+		prefs.setString(PREF_GR_SECRET, mOldSecret);
+		prefs.setString(LibraryThingManager.LT_DEVKEY_PREF_NAME, mOldLtKey);
+		GoodreadsManager.forgetCredentials();
+		super.tearDown();
+	}
+
+	/**
+	 * Start the stand-in server, replacing any current one.
+	 *
+	 * @param librarySize	Number of books on the stand-in Goodreads shelves
+	 */
+	private ProviderFixtures startServer(int librarySize) throws Exception {
+		if (mServer != null)
+			mServer.stop();
+		mServer = new StandInHttpServer();
+		mServer.start();
+		ProviderFixtures fixtures = new ProviderFixtures(librarySize);
+		fixtures.register(mServer);
+		mServer.redirect(ProviderFixtures.HOSTS);
+		return fixtures;
+	}
+
+	/**
+	 * End-to-end latency of SearchManager.search() for an ISBN, across all providers.
+	 */
+	public void testSearchLatency() throws Exception {
+		for(String h : ProviderFixtures.HOSTS)
+			mServer.setLatency(h, LATENCY_MS, JITTER_MS);
+		runSearches("latency " + LATENCY_MS + "+" + JITTER_MS + "ms");
+
+		// One provider failing, one dropping connections
+		mServer.setErrors("books.google.com", 0.2, 503);
+		mServer.setErrors("theagiledirector.com", 0.1, 0);
+		runSearches("latency and errors");
+	}
+
+	/**
+	 * Goodreads import of the whole library, in review list pages per second.
+	 */
+	public void testImportAllPagesPerSecond() throws Exception {
+		mServer.setLatency("www.goodreads.com", LATENCY_MS, JITTER_MS);
+		try {
+			final long start = System.currentTimeMillis();
+			final long elapsed = runImport();
+			final int pages = (LIBRARY_SIZE + IMPORT_PAGE_SIZE - 1) / IMPORT_PAGE_SIZE;
+			System.out.println("ImportAllTask: " + LIBRARY_SIZE + " books, " + pages + " pages in " + elapsed + "ms: "
+					+ (pages * 1000.0 / elapsed) + " pages/s, " + (LIBRARY_SIZE * 1000.0 / elapsed) + " books/s; "
+					+ mServer.getRequestCount() + " requests on " + mServer.getConnectionCount() + " connections");
+
+			// Covers are fetched by GoodreadsCoversTask on the covers queue
+			while (QueueManager.getQueueManager().hasActiveTasks(BcQueueManager.CAT_GOODREADS_COVERS)
+					&& System.currentTimeMillis() - start < COVER_TIMEOUT_MS) {
+				Thread.sleep(100);
+			}
+			System.out.println("ImportAllTask: covers attached " + (System.currentTimeMillis() - start) + "ms after the import started");
+		} finally {
+			deleteAllBooks();
+		}
+	}
+
+	/**
+	 * Share of a Goodreads import spent saving the task, saving after every book (as before)
+	 * and with the default checkpoint limits. No latency is added, so that the share is not
+	 * hidden by network waits.
+	 */
+	public void testImportCheckpointCost() throws Exception {
+		try {
+			GenericTask.setCheckpointLimits(1, 0);
+			reportCheckpoints("every book");
+			deleteAllBooks();
+		} finally {
+			GenericTask.setCheckpointLimits(GenericTask.DEFAULT_CHECKPOINT_ITEMS, GenericTask.DEFAULT_CHECKPOINT_MS);
+		}
+		reportCheckpoints("default limits");
+		deleteAllBooks();
+	}
+
+	private void reportCheckpoints(String description) {
+		ImportAllTask task = new ImportAllTask(false);
+		final long start = System.currentTimeMillis();
+		task.run(QueueManager.getQueueManager(), getContext());
+		final long elapsed = System.currentTimeMillis() - start;
+		System.out.println("ImportAllTask checkpoints (" + description + "): " + task.getCheckpointCount() + " saves took "
+				+ task.getCheckpointTime() + "ms of " + elapsed + "ms (" + (task.getCheckpointTime() * 100 / elapsed) + "%)");
+	}
+
+	/**
+	 * Goodreads export of all books one at a time through the API, in books per second.
+	 */
+	public void testSendAllBooksPerSecond() throws Exception {
+		try {
+			// Make sure there are books to send
+			runImport();
+
+			final int books = countBooks();
+			mServer.setLatency("www.goodreads.com", LATENCY_MS, JITTER_MS);
+			runExport("API", new SendAllBooksTask(false, false), books);
+		} finally {
+			deleteAllBooks();
+		}
+	}
+
+	/**
+	 * Wall-clock time of a full Goodreads export of EXPORT_LIBRARY_SIZE books, one at a time
+	 * through the API and as CSV uploads followed by a pass through the review list.
+	 *
+	 * NOTE: with the simulated latency, the API export takes over an hour.
+	 */
+	public void testSendAllBooksCsvVersusApi() throws Exception {
+		final ProviderFixtures fixtures = startServer(EXPORT_LIBRARY_SIZE);
+		try {
+			runImport();
+
+			final int books = countBooks();
+			mServer.setLatency("www.goodreads.com", LATENCY_MS, JITTER_MS);
+			runExport("CSV", new SendAllBooksTask(false, true), books);
+			System.out.println("SendAllBooksTask (CSV): " + fixtures.getCsvRowCount() + " rows uploaded");
+			runExport("API", new SendAllBooksTask(false, false), books);
+		} finally {
+			deleteAllBooks();
+		}
+	}
+
+	/**
+	 * Run an export and print the time taken.
+	 */
+	private void runExport(String description, SendAllBooksTask task, int books) {
+		final int before = mServer.getRequestCount();
+		final long start = System.currentTimeMillis();
+		task.run(QueueManager.getQueueManager(), getContext());
+		final long elapsed = System.currentTimeMillis() - start;
+		System.out.println("SendAllBooksTask (" + description + "): " + books + " books in " + elapsed + "ms: "
+				+ (books * 1000.0 / elapsed) + " books/s; " + (mServer.getRequestCount() - before) + " requests");
+	}
+
+	/**
+	 * Run SEARCHES searches one after the other and print the latencies.
+	 */
+	private void runSearches(String description) throws Exception {
+		final TaskStatistics.Histogram times = new TaskStatistics.Histogram();
+		final int errorsBefore = mServer.getInjectedErrorCount();
+		// Must not be called on the UI thread
+		final AdministrationFunctions activity = getActivity();
+		int found = 0;
+
+		for(int i = 0; i < SEARCHES; i++) {
+			final String isbn = ProviderFixtures.getIsbn(i);
+			final CountDownLatch done = new CountDownLatch(1);
+			final Bundle[] result = new Bundle[1];
+			final long start = System.currentTimeMillis();
+
+			getInstrumentation().runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					SearchManager sm = new SearchManager(activity.getTaskManager(), new SearchManager.SearchResultHandler() {
+						@Override
+						public void onSearchFinished(Bundle bookData, boolean cancelled) {
+							result[0] = bookData;
+							done.countDown();
+						}});
+					sm.setUseCache(false);
+					sm.search("", "", isbn, true, SearchManager.SEARCH_ALL);
+				}});
+
+			assertTrue("Search timed out", done.await(60, TimeUnit.SECONDS));
+			times.record(System.currentTimeMillis() - start);
+			if (result[0] != null && result[0].containsKey(CatalogueDBAdapter.KEY_TITLE))
+				found++;
+		}
+		System.out.println("SearchManager.search (" + description + "): " + SEARCHES + " searches, " + found + " found, "
+				+ (mServer.getInjectedErrorCount() - errorsBefore) + " injected errors; ms avg/p50/p90/max: "
+				+ times.getAverage() + "/" + times.getPercentile(0.5) + "/" + times.getPercentile(0.9) + "/" + times.getMax());
+	}
+
+	/**
+	 * Import the stand-in library.
+	 *
+	 * @return	Elapsed time in ms
+	 */
+	private long runImport() {
+		final long start = System.currentTimeMillis();
+		new ImportAllTask(false).run(QueueManager.getQueueManager(), getContext());
+		return System.currentTimeMillis() - start;
+	}
+
+	private int countBooks() {
+		CatalogueDBAdapter db = new CatalogueDBAdapter(getContext());
+		db.open();
+		try {
+			return db.countBooks();
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Delete all books in the benchmark database, along with their covers.
+	 */
+	private void deleteAllBooks() {
+		assertEquals(BENCHMARK_DATABASE, StorageUtils.getDatabaseName());
+		CatalogueDBAdapter db = new CatalogueDBAdapter(getContext());
+		db.open();
+		try {
+			ArrayList<Long> ids = new ArrayList<Long>();
+			BooksCursor c = db.getAllBooksForCoverCacheCursor(0);
+			try {
+				while (c.moveToNext())
+					ids.add(c.getId());
+			} finally {
+				c.close();
+			}
+			for(long id : ids)
+				db.deleteBook(id);
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Remove the cached Goodreads IDs of the stand-in books.
+	 */
+	private void forgetGoodreadsIds(int librarySize) {
+		GoodreadsIdCacheDbHelper cache = GoodreadsIdCacheDbHelper.getInstance();
+		for(int n = 0; n < librarySize; n++)
+			cache.remove(ProviderFixtures.getIsbn(n));
+	}
+
+	private Context getContext() {
+		return getInstrumentation().getTargetContext();
+	}
+}
@@ -0,0 +1,449 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+import com.eleybourn.bookcatalogue.test.StandInHttpServer.Request;
+import com.eleybourn.bookcatalogue.test.StandInHttpServer.Responder;
+import com.eleybourn.bookcatalogue.test.StandInHttpServer.Response;
+
+/**
+ * Responses for all the metadata providers, for use with StandInHttpServer.
+ *
+ * The XML follows the sample responses recorded in the javadoc of each handler (SearchAmazonHandler,
+ * SearchGoogleBooksHandler, LibraryThingManager and the Goodreads ApiHandlers), cut down to the
+ * elements the handlers read. Books are generated from their position in a library of a given
+ * size, so any ISBN returned by one provider can be looked up in the others.
+ *
+ * @author Philip Warner
+ */
+public class ProviderFixtures {
+	/** Hosts answered by the fixtures; pass to StandInHttpServer.redirect() */
+	public static final String[] HOSTS = new String[] {
+			"theagiledirector.com", "ecx.images-amazon.com",
+			"books.google.com", "bks3.books.google.com",
+			"www.librarything.com", "covers.librarything.com",
+			"www.goodreads.com", "photo.goodreads.com" };
+
+	/** Goodreads user id returned by auth_user */
+	public static final long USER_ID = 5129458;
+
+	/** First Goodreads book id; the n'th book is FIRST_BOOK_ID + n */
+	private static final long FIRST_BOOK_ID = 100000;
+	/** First Goodreads review id; the n'th book is FIRST_REVIEW_ID + n */
+	private static final long FIRST_REVIEW_ID = 500000;
+
+	private static final String AMAZON =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<ItemSearchResponse xmlns=\"http://webservices.amazon.com/AWSECommerceService/2005-10-05\">\n" +
+			"<Items><TotalResults>1</TotalResults><TotalPages>1</TotalPages>\n" +
+			"<Item><ASIN>${isbn10}</ASIN>\n" +
+			"<SmallImage><URL>http://ecx.images-amazon.com/images/I/${isbn10}._SL75_.jpg</URL></SmallImage>\n" +
+			"<MediumImage><URL>http://ecx.images-amazon.com/images/I/${isbn10}._SL160_.jpg</URL></MediumImage>\n" +
+			"<LargeImage><URL>http://ecx.images-amazon.com/images/I/${isbn10}.jpg</URL></LargeImage>\n" +
+			"<ItemAttributes><Author>${author}</Author><EAN>${isbn}</EAN><ISBN>${isbn10}</ISBN>\n" +
+			"<NumberOfPages>${pages}</NumberOfPages><PublicationDate>${year}-01-01</PublicationDate>\n" +
+			"<Publisher>${publisher}</Publisher><Title>${title}</Title></ItemAttributes>\n" +
+			"<EditorialReviews><EditorialReview><Source>Product Description</Source><Content>${description}</Content></EditorialReview></EditorialReviews>\n" +
+			"</Item></Items></ItemSearchResponse>\n";
+
+	private static final String AMAZON_EMPTY =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<ItemSearchResponse xmlns=\"http://webservices.amazon.com/AWSECommerceService/2005-10-05\">\n" +
+			"<Items><TotalResults>0</TotalResults><TotalPages>0</TotalPages></Items></ItemSearchResponse>\n";
+
+	private static final String GOOGLE_FEED =
+			"<?xml version='1.0' encoding='UTF-8'?>\n" +
+			"<feed xmlns='http://www.w3.org/2005/Atom' xmlns:openSearch='http://a9.com/-/spec/opensearchrss/1.0/' xmlns:dc='http://purl.org/dc/terms'>\n" +
+			"<openSearch:totalResults>${count}</openSearch:totalResults>\n" +
+			"${entry}" +
+			"</feed>\n";
+
+	private static final String GOOGLE_FEED_ENTRY =
+			"<entry><id>http://books.google.com/books/feeds/volumes/GB${isbn}</id><title type='text'>${title}</title></entry>\n";
+
+	private static final String GOOGLE_ENTRY =
+			"<?xml version='1.0' encoding='UTF-8'?>\n" +
+			"<entry xmlns='http://www.w3.org/2005/Atom' xmlns:dc='http://purl.org/dc/terms'>\n" +
+			"<id>http://books.google.com/books/feeds/volumes/GB${isbn}</id>\n" +
+			"<link rel='http://schemas.google.com/books/2008/thumbnail' type='image/x-unknown' href='http://bks3.books.google.com/books?id=GB${isbn}&amp;printsec=frontcover&amp;img=1&amp;zoom=5'/>\n" +
+			"<link rel='self' type='application/atom+xml' href='http://books.google.com/books/feeds/volumes/GB${isbn}'/>\n" +
+			"<dc:creator>${author}</dc:creator>\n" +
+			"<dc:date>${year}-01-01</dc:date>\n" +
+			"<dc:description>${description}</dc:description>\n" +
+			"<dc:format>${pages} pages</dc:format>\n" +
+			"<dc:format>book</dc:format>\n" +
+			"<dc:identifier>GB${isbn}</dc:identifier>\n" +
+			"<dc:identifier>ISBN:${isbn10}</dc:identifier>\n" +
+			"<dc:identifier>ISBN:${isbn}</dc:identifier>\n" +
+			"<dc:publisher>${publisher}</dc:publisher>\n" +
+			"<dc:subject>Fiction</dc:subject>\n" +
+			"<dc:title>${title}</dc:title>\n" +
+			"</entry>\n";
+
+	private static final String LT_GETWORK =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<response stat=\"ok\"><ltml xmlns=\"http://www.librarything.com/\" version=\"1.1\">\n" +
+			"<item id=\"${id}\" type=\"work\"><author id=\"28\" authorcode=\"author${id}\">${author}</author>\n" +
+			"<commonknowledge><fieldList>\n" +
+			"<field type=\"21\" name=\"canonicaltitle\" displayName=\"Canonical title\"><versionList><version id=\"1\" archived=\"0\" lang=\"eng\"><factList><fact>${title}</fact></factList></version></versionList></field>\n" +
+			"<field type=\"42\" name=\"series\" displayName=\"Series\"><versionList><version id=\"2\" archived=\"0\" lang=\"eng\"><factList><fact>${series} (${seriesNum})</fact></factList></version></versionList></field>\n" +
+			"</fieldList></commonknowledge>\n" +
+			"</item><legal>By using this data you agree to the LibraryThing API terms of service.</legal></ltml></response>\n";
+
+	private static final String LT_EDITIONS =
+			"<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+			"<idlist><isbn>${isbn10}</isbn><isbn>${isbn}</isbn></idlist>\n";
+
+	private static final String GR_AUTH_USER =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<GoodreadsResponse><Request><authentication>true</authentication><key><![CDATA[key]]></key><method><![CDATA[api_auth_user]]></method></Request>\n" +
+			"<user id=\"" + USER_ID + "\"><name>Stand-in User</name><link><![CDATA[http://www.goodreads.com/user/show/" + USER_ID + "]]></link></user>\n" +
+			"</GoodreadsResponse>\n";
+
+	private static final String GR_BOOK =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<GoodreadsResponse><Request><authentication>true</authentication></Request>\n" +
+			"<book><id>${grId}</id><title>${title}</title><isbn><![CDATA[${isbn10}]]></isbn><isbn13><![CDATA[${isbn}]]></isbn13>\n" +
+			"<image_url>http://photo.goodreads.com/books/1300000000m/${grId}.jpg</image_url>\n" +
+			"<small_image_url>http://photo.goodreads.com/books/1300000000s/${grId}.jpg</small_image_url>\n" +
+			"<publication_year>${year}</publication_year><publication_month>1</publication_month><publication_day>1</publication_day>\n" +
+			"<publisher>${publisher}</publisher><is_ebook>false</is_ebook><description>${description}</description>\n" +
+			"<work><id>${workId}</id><original_publication_year>${year}</original_publication_year><original_title>${title}</original_title></work>\n" +
+			"<average_rating>3.5</average_rating><num_pages>${pages}</num_pages><format>Paperback</format>\n" +
+			"<url>http://www.goodreads.com/book/show/${grId}</url>\n" +
+			"<authors><author><id>${authorId}</id><name>${author}</name></author></authors>\n" +
+			"<my_review><id>${reviewId}</id><shelves><shelf name=\"read\" /></shelves></my_review>\n" +
+			"<series_works><series_work><user_position>${seriesNum}</user_position><series><id>${seriesId}</id><title>${series}</title></series></series_work></series_works>\n" +
+			"</book></GoodreadsResponse>\n";
+
+	private static final String GR_REVIEW_LIST =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<GoodreadsResponse><Request><authentication>true</authentication></Request>\n" +
+			"<reviews start=\"${start}\" end=\"${end}\" total=\"${total}\">\n" +
+			"${reviews}" +
+			"</reviews></GoodreadsResponse>\n";
+
+	private static final String GR_REVIEW =
+			"<review><id>${reviewId}</id>\n" +
+			"<book><id type=\"integer\">${grId}</id><isbn>${isbn10}</isbn><isbn13>${isbn}</isbn13>\n" +
+			"<title><![CDATA[${title}]]></title>\n" +
+			"<image_url>http://photo.goodreads.com/books/1300000000m/${grId}.jpg</image_url>\n" +
+			"<small_image_url>http://photo.goodreads.com/books/1300000000s/${grId}.jpg</small_image_url>\n" +
+			"<num_pages>${pages}</num_pages><format>Paperback</format><publisher>${publisher}</publisher>\n" +
+			"<publication_day>1</publication_day><publication_year>${year}</publication_year><publication_month>1</publication_month>\n" +
+			"<description><![CDATA[${description}]]></description>\n" +
+			"<authors><author><id>${authorId}</id><name><![CDATA[${author}]]></name></author></authors>\n" +
+			"</book>\n" +
+			"<rating>${rating}</rating>\n" +
+			"<shelves><shelf name=\"read\" /></shelves>\n" +
+			"<started_at></started_at><read_at></read_at>\n" +
+			"<date_added>Mon Feb 13 05:32:30 -0800 2012</date_added>\n" +
+			"<date_updated>Mon Feb 13 05:32:31 -0800 2012</date_updated>\n" +
+			"<body><![CDATA[]]></body>\n" +
+			"</review>\n";
+
+	private static final String GR_ADD_TO_SHELF =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<shelf><created-at type=\"datetime\">2012-02-13T05:32:30-08:00</created-at><id type=\"integer\">1</id>\n" +
+			"<review-id type=\"integer\">${reviewId}</review-id><updated-at type=\"datetime\">2012-02-13T05:32:30-08:00</updated-at></shelf>\n";
+
+	private static final String GR_REVIEW_UPDATE =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<review><id type=\"integer\">${reviewId}</id></review>\n";
+
+	private static final String GR_SEARCH =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<GoodreadsResponse><search><total-results>1</total-results><results>\n" +
+			"<work><id type=\"integer\">${workId}</id><original_publication_year type=\"integer\">${year}</original_publication_year>\n" +
+			"<best_book type=\"Book\"><id type=\"integer\">${grId}</id><title>${title}</title><author><id type=\"integer\">${authorId}</id><name>${author}</name></author>\n" +
+			"<image_url>http://photo.goodreads.com/books/1300000000m/${grId}.jpg</image_url>\n" +
+			"<small_image_url>http://photo.goodreads.com/books/1300000000s/${grId}.jpg</small_image_url></best_book></work>\n" +
+			"</results></search></GoodreadsResponse>\n";
+
+	/** Number of books in the Goodreads library */
+	private final int mLibrarySize;
+	/** Cover image returned for all image requests */
+	private final byte[] mCover;
+	/** Number of books received by the CSV import page */
+	private final AtomicInteger mCsvRows = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 *
+	 * @param librarySize	Number of books on the user's Goodreads shelves
+	 */
+	public ProviderFixtures(int librarySize) {
+		mLibrarySize = librarySize;
+		mCover = makeCover();
+	}
+
+	/**
+	 * Get the ISBN-13 for the n'th book.
+	 */
+	public static String getIsbn(int n) {
+		String base = "978" + String.format("%09d", 100000 + n);
+		int sum = 0;
+		for(int i = 0; i < 12; i++)
+			sum += (base.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+		return base + ((10 - sum % 10) % 10);
+	}
+
+	/**
+	 * Get the Goodreads book id for the n'th book.
+	 */
+	public static long getGoodreadsId(int n) {
+		return FIRST_BOOK_ID + n;
+	}
+
+	/**
+	 * Get the number of books received by the Goodreads CSV import page.
+	 */
+	public int getCsvRowCount() {
+		return mCsvRows.get();
+	}
+
+	/**
+	 * Register responders for all providers.
+	 */
+	public void register(StandInHttpServer server) {
+		// Amazon, via the proxy
+		server.addResponder("theagiledirector.com", "/getRest_v3.php", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				final int n = findBook(r.getParameter("isbn"));
+				return Response.xml(n < 0 ? AMAZON_EMPTY : fill(AMAZON, n));
+			}});
+
+		// Google: search feed, then the entry
+		server.addResponder("books.google.com", "/books/feeds/volumes?", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				String q = r.getParameter("q");
+				final int n = (q != null && q.startsWith("ISBN")) ? findBook(q.substring(4)) : -1;
+				String xml = GOOGLE_FEED.replace("${count}", n < 0 ? "0" : "1");
+				return Response.xml(xml.replace("${entry}", n < 0 ? "" : fill(GOOGLE_FEED_ENTRY, n)));
+			}});
+		server.addResponder("books.google.com", "/books/feeds/volumes/GB", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				final int n = findBook(r.path.substring("/books/feeds/volumes/GB".length()));
+				return n < 0 ? Response.status(404) : Response.xml(fill(GOOGLE_ENTRY, n));
+			}});
+
+		// LibraryThing: work details and editions
+		server.addResponder("www.librarything.com", "/services/rest/1.1/", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				final int n = findBook(r.getParameter("isbn"));
+				return n < 0 ? Response.xml("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response stat=\"fail\"><err code=\"105\">Work not found</err></response>\n")
+						: Response.xml(fill(LT_GETWORK, n));
+			}});
+		server.addResponder("www.librarything.com", "/api/thingISBN/", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				final int n = findBook(r.path.substring("/api/thingISBN/".length()));
+				return Response.xml(n < 0 ? "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<idlist></idlist>\n" : fill(LT_EDITIONS, n));
+			}});
+
+		// Goodreads API
+		server.addResponder("www.goodreads.com", "/api/auth_user", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				return Response.xml(GR_AUTH_USER);
+			}});
+		server.addResponder("www.goodreads.com", "/book/isbn?", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				final int n = findBook(r.getParameter("isbn"));
+				return n < 0 ? Response.status(404) : Response.xml(fill(GR_BOOK, n));
+			}});
+		server.addResponder("www.goodreads.com", "/book/isbn_to_id/", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				final int n = findBook(r.path.substring("/book/isbn_to_id/".length()));
+				return n < 0 ? Response.status(404) : new Response(200, "text/plain", Long.toString(getGoodreadsId(n)).getBytes());
+			}});
+		server.addResponder("www.goodreads.com", "/book/show/", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				String id = r.path.substring("/book/show/".length());
+				final int dot = id.indexOf('.');
+				if (dot >= 0)
+					id = id.substring(0, dot);
+				final int n = (int)(Long.parseLong(id) - FIRST_BOOK_ID);
+				return (n < 0 || n >= mLibrarySize) ? Response.status(404) : Response.xml(fill(GR_BOOK, n));
+			}});
+		server.addResponder("www.goodreads.com", "/review/list/", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				return Response.xml(getReviewPage(Integer.parseInt(r.getParameter("page")), Integer.parseInt(r.getParameter("per_page"))));
+			}});
+		server.addResponder("www.goodreads.com", "/shelf/add_to_shelf.xml", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				final String id = r.getParameter("book_id");
+				final long n = id == null ? 0 : Long.parseLong(id) - FIRST_BOOK_ID;
+				return new Response(201, "text/xml; charset=utf-8", GR_ADD_TO_SHELF.replace("${reviewId}", Long.toString(FIRST_REVIEW_ID + n)).getBytes());
+			}});
+		server.addResponder("www.goodreads.com", "/review/", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				String id = r.path.substring("/review/".length());
+				final int dot = id.indexOf('.');
+				if (dot >= 0)
+					id = id.substring(0, dot);
+				return Response.xml(GR_REVIEW_UPDATE.replace("${reviewId}", id));
+			}});
+		server.addResponder("www.goodreads.com", "/review/import", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				// The library is already on the shelves; just count the rows after the header
+				final String body = new String(r.body);
+				final int start = body.indexOf("\r\n\r\n");
+				final int end = body.lastIndexOf("\r\n--");
+				int lines = 0;
+				for(int pos = start + 4; start >= 0 && pos < end; pos = body.indexOf("\r\n", pos) + 2)
+					lines++;
+				mCsvRows.addAndGet(Math.max(0, lines - 1));
+				return new Response(200, "text/html; charset=utf-8", "<html><body>Import queued</body></html>".getBytes());
+			}});
+		server.addResponder("www.goodreads.com", "/owned_books.xml", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				return new Response(201, "text/xml; charset=utf-8", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<owned-book><id type=\"integer\">1</id></owned-book>\n".getBytes());
+			}});
+		server.addResponder("www.goodreads.com", "/search/index.xml", new Responder() {
+			@Override
+			public Response respond(Request r) {
+				return Response.xml(fill(GR_SEARCH, 0));
+			}});
+
+		// Covers
+		for(String host: new String[] {"ecx.images-amazon.com", "bks3.books.google.com", "covers.librarything.com", "photo.goodreads.com"})
+			server.addFixture(host, "/", "image/jpeg", mCover);
+	}
+
+	/**
+	 * Build one page of the user's review list; past the end of the library the page is empty.
+	 */
+	public String getReviewPage(int page, int perPage) {
+		final int start = (page - 1) * perPage;
+		final int end = Math.min(start + perPage, mLibrarySize);
+		StringBuilder reviews = new StringBuilder();
+		for(int n = start; n < end; n++)
+			reviews.append(fill(GR_REVIEW, n));
+		return GR_REVIEW_LIST
+				.replace("${start}", Integer.toString(end > start ? start + 1 : 0))
+				.replace("${end}", Integer.toString(end > start ? end : 0))
+				.replace("${total}", Integer.toString(mLibrarySize))
+				.replace("${reviews}", reviews.toString());
+	}
+
+	/**
+	 * Build a search result listing the first 'count' books in the library.
+	 */
+	public String getSearchResults(int count) {
+		StringBuilder works = new StringBuilder();
+		for(int n = 0; n < count && n < mLibrarySize; n++) {
+			String w = fill(GR_SEARCH, n);
+			works.append(w.substring(w.indexOf("<work>"), w.indexOf("</results>")));
+		}
+		final String xml = fill(GR_SEARCH, 0).replace("<total-results>1</total-results>", "<total-results>" + count + "</total-results>");
+		return xml.substring(0, xml.indexOf("<work>")) + works + xml.substring(xml.indexOf("</results>"));
+	}
+
+	/**
+	 * Find a book in the library by ISBN-10 or ISBN-13.
+	 *
+	 * @return	Position in the library, or -1 if not present
+	 */
+	private int findBook(String isbn) {
+		if (isbn == null)
+			return -1;
+		isbn = isbn.trim();
+		try {
+			final int n;
+			if (isbn.length() == 13)
+				n = Integer.parseInt(isbn.substring(3, 12)) - 100000;
+			else if (isbn.length() == 10)
+				n = Integer.parseInt(isbn.substring(0, 9)) - 100000;
+			else
+				return -1;
+			return (n >= 0 && n < mLibrarySize && (isbn.length() == 10 || getIsbn(n).equals(isbn))) ? n : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Replace the placeholders in a template with the details of the n'th book.
+	 */
+	private static String fill(String template, int n) {
+		final String isbn = getIsbn(n);
+		final String isbn10 = toIsbn10(isbn);
+		return template
+				.replace("${isbn}", isbn)
+				.replace("${isbn10}", isbn10)
+				.replace("${id}", Integer.toString(5000000 + n))
+				.replace("${grId}", Long.toString(getGoodreadsId(n)))
+				.replace("${reviewId}", Long.toString(FIRST_REVIEW_ID + n))
+				.replace("${workId}", Integer.toString(900000 + n))
+				.replace("${authorId}", Integer.toString(1000 + n % 97))
+				.replace("${author}", "Author " + (n % 97))
+				.replace("${title}", "Stand-in Book " + n)
+				.replace("${series}", "Series " + (n % 13))
+				.replace("${seriesId}", Integer.toString(2000 + n % 13))
+				.replace("${seriesNum}", Integer.toString(1 + n % 5))
+				.replace("${publisher}", "Publisher " + (n % 7))
+				.replace("${year}", Integer.toString(1950 + n % 60))
+				.replace("${pages}", Integer.toString(100 + n % 400))
+				.replace("${rating}", Integer.toString(n % 6))
+				.replace("${description}", "Description of book " + n + ".");
+	}
+
+	private static String toIsbn10(String isbn13) {
+		String base = isbn13.substring(3, 12);
+		int sum = 0;
+		for(int i = 0; i < 9; i++)
+			sum += (base.charAt(i) - '0') * (10 - i);
+		final int check = (11 - sum % 11) % 11;
+		return base + (check == 10 ? "X" : Integer.toString(check));
+	}
+
+	/**
+	 * Make a small JPEG to use for all covers.
+	 */
+	private static byte[] makeCover() {
+		Bitmap b = Bitmap.createBitmap(120, 180, Bitmap.Config.RGB_565);
+		new Canvas(b).drawColor(Color.rgb(40, 80, 160));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		b.compress(Bitmap.CompressFormat.JPEG, 80, out);
+		b.recycle();
+		return out.toByteArray();
+	}
+}
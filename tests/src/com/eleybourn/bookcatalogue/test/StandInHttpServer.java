@@ -0,0 +1,662 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.eleybourn.bookcatalogue.SharedHttpClient;
+
+/**
+ * Minimal HTTP/1.1 server that stands in for the metadata providers so that the search and
+ * Goodreads code can be run, and timed, without the network.
+ *
+ * Requests are expected in the form 'http://127.0.0.1:port/<real host>/<real path>', which
+ * is what SharedHttpClient sends once redirect() has been called. Each request is answered by
+ * the Responder registered for the longest matching host and path prefix; fixed fixtures are
+ * just Responders that always return the same data.
+ *
+ * Latency and errors can be injected per host. Errors are either an HTTP status or, for a
+ * status of 0, the connection being dropped without a response.
+ *
+ * If a record directory is set, requests with no Responder are passed on to the real host and
+ * the responses saved there; loadRecorded() will replay them in a later run.
+ *
+ * @author Philip Warner
+ */
+public class StandInHttpServer {
+	/** Query parameters that change on every call and are ignored when matching recorded responses */
+	private static final String[] VOLATILE_PARAMS = new String[] {"oauth_", "key", "apikey"};
+
+	/**
+	 * A request as received.
+	 *
+	 * @author Philip Warner
+	 */
+	public static class Request {
+		public String method;
+		/** Real host the request was intended for */
+		public String host;
+		/** Path on the real host, starting with '/' */
+		public String path;
+		/** Raw query string, or null */
+		public String query;
+		/** Headers, with lower case names */
+		public final Hashtable<String, String> headers = new Hashtable<String, String>();
+		public byte[] body = new byte[0];
+
+		/**
+		 * Get a parameter from the query string or, for form posts, the body.
+		 *
+		 * @return	Decoded value, or null if not present
+		 */
+		public String getParameter(String name) {
+			String v = findParameter(query, name);
+			if (v == null && body.length > 0) {
+				final String type = headers.get("content-type");
+				if (type != null && type.startsWith("application/x-www-form-urlencoded"))
+					v = findParameter(new String(body), name);
+			}
+			return v;
+		}
+
+		private static String findParameter(String params, String name) {
+			if (params == null)
+				return null;
+			for(String p : params.split("&")) {
+				final int pos = p.indexOf('=');
+				final String n = decode(pos < 0 ? p : p.substring(0, pos));
+				if (n.equals(name))
+					return pos < 0 ? "" : decode(p.substring(pos + 1));
+			}
+			return null;
+		}
+
+		private static String decode(String s) {
+			try {
+				return URLDecoder.decode(s, "UTF-8");
+			} catch (Exception e) {
+				return s;
+			}
+		}
+	}
+
+	/**
+	 * A response to send.
+	 *
+	 * @author Philip Warner
+	 */
+	public static class Response {
+		public final int status;
+		public final String contentType;
+		public final byte[] body;
+
+		public Response(int status, String contentType, byte[] body) {
+			this.status = status;
+			this.contentType = contentType;
+			this.body = body;
+		}
+
+		public static Response xml(String xml) {
+			try {
+				return new Response(200, "text/xml; charset=utf-8", xml.getBytes("UTF-8"));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public static Response status(int status) {
+			return new Response(status, "text/plain", ("Status " + status).getBytes());
+		}
+	}
+
+	/**
+	 * Interface for objects that answer requests.
+	 *
+	 * @author Philip Warner
+	 */
+	public interface Responder {
+		/**
+		 * @return	Response, or null to treat as not found
+		 */
+		Response respond(Request request) throws IOException;
+	}
+
+	/**
+	 * Responder for a host and path prefix.
+	 */
+	private static class Route {
+		final String host;
+		final String prefix;
+		final Responder responder;
+		Route(String host, String prefix, Responder responder) {
+			this.host = host;
+			this.prefix = prefix;
+			this.responder = responder;
+		}
+	}
+
+	/**
+	 * Injected faults for a host.
+	 */
+	private static class Faults {
+		long latencyMs;
+		long jitterMs;
+		double errorRate;
+		int errorStatus;
+	}
+
+	private final ArrayList<Route> mRoutes = new ArrayList<Route>();
+	private final Hashtable<String, Faults> mFaults = new Hashtable<String, Faults>();
+	private final Hashtable<String, Response> mRecorded = new Hashtable<String, Response>();
+	private final ArrayList<Socket> mClients = new ArrayList<Socket>();
+	private final Random mRandom = new Random(42);
+	private ServerSocket mSocket = null;
+	private Thread mAcceptThread = null;
+	private File mRecordDir = null;
+
+	private final AtomicInteger mRequests = new AtomicInteger();
+	private final AtomicInteger mConnections = new AtomicInteger();
+	private final AtomicInteger mInjectedErrors = new AtomicInteger();
+	private final AtomicInteger mNotFound = new AtomicInteger();
+
+	/**
+	 * Start listening on a free port on the loopback interface.
+	 */
+	public void start() throws IOException {
+		mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		mAcceptThread = new Thread("stand-in-accept") {
+			@Override
+			public void run() {
+				while (true) {
+					final Socket s;
+					try {
+						s = mSocket.accept();
+					} catch (IOException e) {
+						// Closed by stop()
+						return;
+					}
+					mConnections.incrementAndGet();
+					synchronized(mClients) {
+						mClients.add(s);
+					}
+					Thread t = new Thread("stand-in-connection") {
+						@Override
+						public void run() {
+							serve(s);
+						}};
+					t.setDaemon(true);
+					t.start();
+				}
+			}};
+		mAcceptThread.setDaemon(true);
+		mAcceptThread.start();
+	}
+
+	/**
+	 * Stop the server, close all connections and send requests back to the real hosts.
+	 */
+	public void stop() {
+		SharedHttpClient.clearBaseUrls();
+		try {
+			if (mSocket != null)
+				mSocket.close();
+		} catch (IOException e) {
+		}
+		synchronized(mClients) {
+			for(Socket s : mClients) {
+				try { s.close(); } catch (IOException e) {};
+			}
+			mClients.clear();
+		}
+	}
+
+	public int getPort() {
+		return mSocket.getLocalPort();
+	}
+
+	/**
+	 * Base URL that stands in for the passed host.
+	 */
+	public String getBaseUrl(String host) {
+		return "http://127.0.0.1:" + getPort() + "/" + host;
+	}
+
+	/**
+	 * Send all requests for the passed hosts to this server.
+	 */
+	public void redirect(String... hosts) {
+		for(String h : hosts)
+			SharedHttpClient.setBaseUrl(h, getBaseUrl(h));
+	}
+
+	/**
+	 * Add a Responder for requests to a host whose path and query start with the passed prefix.
+	 */
+	public void addResponder(String host, String pathPrefix, Responder responder) {
+		synchronized(mRoutes) {
+			mRoutes.add(new Route(host.toLowerCase(), pathPrefix, responder));
+		}
+	}
+
+	/**
+	 * Add a fixed response for requests to a host whose path and query start with the passed prefix.
+	 */
+	public void addFixture(String host, String pathPrefix, String contentType, byte[] body) {
+		final Response r = new Response(200, contentType, body);
+		addResponder(host, pathPrefix, new Responder() {
+			@Override
+			public Response respond(Request request) {
+				return r;
+			}});
+	}
+
+	/**
+	 * Delay every response from a host.
+	 *
+	 * @param latencyMs	Minimum delay
+	 * @param jitterMs	Maximum random extra delay
+	 */
+	public void setLatency(String host, long latencyMs, long jitterMs) {
+		Faults f = getFaults(host);
+		f.latencyMs = latencyMs;
+		f.jitterMs = jitterMs;
+	}
+
+	/**
+	 * Fail a proportion of requests to a host.
+	 *
+	 * @param rate		Proportion, 0.0 to 1.0
+	 * @param status	HTTP status to return; 0 to drop the connection instead
+	 */
+	public void setErrors(String host, double rate, int status) {
+		Faults f = getFaults(host);
+		f.errorRate = rate;
+		f.errorStatus = status;
+	}
+
+	/**
+	 * Remove all injected latency and errors.
+	 */
+	public void clearFaults() {
+		mFaults.clear();
+	}
+
+	private Faults getFaults(String host) {
+		synchronized(mFaults) {
+			Faults f = mFaults.get(host.toLowerCase());
+			if (f == null) {
+				f = new Faults();
+				mFaults.put(host.toLowerCase(), f);
+			}
+			return f;
+		}
+	}
+
+	/**
+	 * Pass requests that have no Responder on to the real host, and save the responses in
+	 * the passed directory.
+	 */
+	public void setRecordDirectory(File dir) {
+		dir.mkdirs();
+		mRecordDir = dir;
+	}
+
+	/**
+	 * Load responses saved by an earlier run with a record directory.
+	 */
+	public void loadRecorded(File dir) throws IOException {
+		File index = new File(dir, "index.txt");
+		if (!index.exists())
+			return;
+		BufferedReader in = new BufferedReader(new FileReader(index));
+		try {
+			String line;
+			while ( (line = in.readLine()) != null) {
+				String[] parts = line.split("\t");
+				if (parts.length != 4)
+					continue;
+				mRecorded.put(parts[0], new Response(Integer.parseInt(parts[1]), parts[2], readFile(new File(dir, parts[3]))));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public int getRequestCount() {
+		return mRequests.get();
+	}
+
+	public int getConnectionCount() {
+		return mConnections.get();
+	}
+
+	public int getInjectedErrorCount() {
+		return mInjectedErrors.get();
+	}
+
+	public int getNotFoundCount() {
+		return mNotFound.get();
+	}
+
+	/**
+	 * Handle requests on a connection until it is closed.
+	 */
+	private void serve(Socket s) {
+		try {
+			final InputStream in = new BufferedInputStream(s.getInputStream());
+			final OutputStream out = s.getOutputStream();
+			while (true) {
+				Request r = readRequest(in);
+				if (r == null)
+					break;
+				mRequests.incrementAndGet();
+
+				// Apply any faults
+				Faults f = mFaults.get(r.host);
+				if (f != null) {
+					long delay = f.latencyMs;
+					boolean fail;
+					synchronized(mRandom) {
+						if (f.jitterMs > 0)
+							delay += (long)(mRandom.nextDouble() * f.jitterMs);
+						fail = mRandom.nextDouble() < f.errorRate;
+					}
+					if (delay > 0)
+						Thread.sleep(delay);
+					if (fail) {
+						mInjectedErrors.incrementAndGet();
+						if (f.errorStatus == 0)
+							break;
+						writeResponse(out, Response.status(f.errorStatus), true);
+						continue;
+					}
+				}
+
+				Response resp = getResponse(r);
+				if (resp == null) {
+					mNotFound.incrementAndGet();
+					System.out.println("Stand-in: no response for " + r.method + " " + r.host + r.path + (r.query == null ? "" : "?" + r.query));
+					resp = Response.status(404);
+				}
+				final boolean close = "close".equalsIgnoreCase(r.headers.get("connection"));
+				writeResponse(out, resp, !close);
+				if (close)
+					break;
+			}
+		} catch (SocketException e) {
+			// Closed by client or by stop()
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			try { s.close(); } catch (IOException e) {};
+			synchronized(mClients) {
+				mClients.remove(s);
+			}
+		}
+	}
+
+	/**
+	 * Find the response for a request: the longest matching route, then recorded responses,
+	 * then, if recording, the real host.
+	 */
+	private Response getResponse(Request r) throws IOException {
+		final String target = r.path + (r.query == null ? "" : "?" + r.query);
+		Route best = null;
+		synchronized(mRoutes) {
+			for(Route rt : mRoutes) {
+				if (rt.host.equals(r.host) && target.startsWith(rt.prefix) && (best == null || rt.prefix.length() > best.prefix.length()))
+					best = rt;
+			}
+		}
+		if (best != null)
+			return best.responder.respond(r);
+
+		final String key = getRecordKey(r);
+		Response resp = mRecorded.get(key);
+		if (resp == null && mRecordDir != null)
+			resp = record(r, key);
+		return resp;
+	}
+
+	/**
+	 * Key for a recorded response; the method, host, path and query without volatile parameters.
+	 */
+	private static String getRecordKey(Request r) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(r.method).append(' ').append(r.host).append(r.path);
+		if (r.query != null) {
+			char sep = '?';
+			for(String p : r.query.split("&")) {
+				boolean skip = false;
+				for(String v : VOLATILE_PARAMS) {
+					if (p.startsWith(v)) {
+						skip = true;
+						break;
+					}
+				}
+				if (!skip) {
+					sb.append(sep).append(p);
+					sep = '&';
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get a response from the real host and save it.
+	 */
+	private Response record(Request r, String key) throws IOException {
+		URL url = new URL("http://" + r.host + r.path + (r.query == null ? "" : "?" + r.query));
+		HttpURLConnection c = (HttpURLConnection)url.openConnection();
+		c.setConnectTimeout(30000);
+		c.setRequestMethod(r.method);
+		final String type = r.headers.get("content-type");
+		if (type != null)
+			c.setRequestProperty("Content-Type", type);
+		if (r.body.length > 0) {
+			c.setDoOutput(true);
+			OutputStream out = c.getOutputStream();
+			out.write(r.body);
+			out.close();
+		}
+		final int status = c.getResponseCode();
+		InputStream in = status >= 400 ? c.getErrorStream() : c.getInputStream();
+		byte[] body = in == null ? new byte[0] : readAll(in);
+		String contentType = c.getContentType();
+		if (contentType == null)
+			contentType = "application/octet-stream";
+		Response resp = new Response(status, contentType, body);
+
+		synchronized(mRecorded) {
+			final String name = "rec" + mRecorded.size() + "_" + key.replaceAll("[^A-Za-z0-9.]+", "_");
+			final String fileName = name.length() > 120 ? name.substring(0, 120) : name;
+			FileOutputStream f = new FileOutputStream(new File(mRecordDir, fileName));
+			try {
+				f.write(body);
+			} finally {
+				f.close();
+			}
+			FileWriter index = new FileWriter(new File(mRecordDir, "index.txt"), true);
+			try {
+				index.write(key + "\t" + status + "\t" + contentType + "\t" + fileName + "\n");
+			} finally {
+				index.close();
+			}
+			mRecorded.put(key, resp);
+		}
+		System.out.println("Stand-in: recorded " + key);
+		return resp;
+	}
+
+	/**
+	 * Read one request.
+	 *
+	 * @return	Request, or null at end of stream
+	 */
+	private static Request readRequest(InputStream in) throws IOException {
+		String line = readLine(in);
+		while (line != null && line.length() == 0)
+			line = readLine(in);
+		if (line == null)
+			return null;
+
+		String[] parts = line.split(" ");
+		if (parts.length < 2)
+			throw new IOException("Bad request line: " + line);
+		Request r = new Request();
+		r.method = parts[0];
+		String target = parts[1];
+
+		// Accept absolute URLs, as sent to a proxy
+		if (target.startsWith("http://")) {
+			final int pos = target.indexOf('/', 7);
+			target = pos < 0 ? "/" : target.substring(pos);
+		}
+		final int q = target.indexOf('?');
+		if (q >= 0) {
+			r.query = target.substring(q + 1);
+			target = target.substring(0, q);
+		}
+		// First path segment is the real host
+		final int slash = target.indexOf('/', 1);
+		if (slash < 0) {
+			r.host = target.substring(1).toLowerCase();
+			r.path = "/";
+		} else {
+			r.host = target.substring(1, slash).toLowerCase();
+			r.path = target.substring(slash);
+		}
+
+		while ( (line = readLine(in)) != null && line.length() > 0) {
+			final int pos = line.indexOf(':');
+			if (pos > 0)
+				r.headers.put(line.substring(0, pos).trim().toLowerCase(), line.substring(pos + 1).trim());
+		}
+
+		// Body
+		final String length = r.headers.get("content-length");
+		if (length != null) {
+			r.body = readFully(in, Integer.parseInt(length));
+		} else if ("chunked".equalsIgnoreCase(r.headers.get("transfer-encoding"))) {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			while (true) {
+				String size = readLine(in);
+				if (size == null)
+					throw new IOException("Unexpected end of chunked body");
+				final int semi = size.indexOf(';');
+				final int n = Integer.parseInt((semi < 0 ? size : size.substring(0, semi)).trim(), 16);
+				if (n == 0) {
+					// Trailers
+					while ( (line = readLine(in)) != null && line.length() > 0) {
+					}
+					break;
+				}
+				body.write(readFully(in, n));
+				readLine(in);
+			}
+			r.body = body.toByteArray();
+		}
+		return r;
+	}
+
+	private static void writeResponse(OutputStream out, Response r, boolean keepAlive) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(r.status).append(r.status < 400 ? " OK" : " Error").append("\r\n");
+		sb.append("Content-Type: ").append(r.contentType).append("\r\n");
+		sb.append("Content-Length: ").append(r.body.length).append("\r\n");
+		sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+		sb.append("\r\n");
+		out.write(sb.toString().getBytes("ISO-8859-1"));
+		out.write(r.body);
+		out.flush();
+	}
+
+	/**
+	 * Read a CRLF terminated line
+	 *
+	 * @return	Line, or null at end of stream
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ( (c = in.read()) != -1) {
+			if (c == '\n') {
+				final int len = sb.length();
+				if (len > 0 && sb.charAt(len - 1) == '\r')
+					sb.setLength(len - 1);
+				return sb.toString();
+			}
+			sb.append((char)c);
+		}
+		return sb.length() == 0 ? null : sb.toString();
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException {
+		byte[] buffer = new byte[length];
+		int pos = 0;
+		while (pos < length) {
+			final int n = in.read(buffer, pos, length - pos);
+			if (n < 0)
+				throw new IOException("Unexpected end of body");
+			pos += n;
+		}
+		return buffer;
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ( (n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		return readAll(new FileInputStream(f));
+	}
+}